@@ -0,0 +1,8 @@
+package android.app;
+
+import android.content.Context;
+
+/** JVM stub of the Android class. */
+public class Application extends Context {
+  public interface ActivityLifecycleCallbacks {}
+}
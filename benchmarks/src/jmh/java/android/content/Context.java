@@ -0,0 +1,14 @@
+package android.content;
+
+import java.io.File;
+
+/** JVM stub of the Android class, only what the integration references. */
+public abstract class Context {
+  public File getFilesDir() {
+    return new File(System.getProperty("java.io.tmpdir"));
+  }
+
+  public void registerComponentCallbacks(ComponentCallbacks callback) {}
+
+  public void unregisterComponentCallbacks(ComponentCallbacks callback) {}
+}
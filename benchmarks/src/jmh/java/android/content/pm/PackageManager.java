@@ -0,0 +1,6 @@
+package android.content.pm;
+
+/** JVM stub of the Android class. */
+public abstract class PackageManager {
+  public static class NameNotFoundException extends Exception {}
+}
@@ -0,0 +1,4 @@
+package android.content.res;
+
+/** JVM stub of the Android class. */
+public class Configuration {}
@@ -0,0 +1,19 @@
+package android.media;
+
+/** JVM stub of the Android class, only what the integration references. */
+public class MediaPlayer {
+  public static final int MEDIA_INFO_BUFFERING_START = 701;
+  public static final int MEDIA_INFO_BUFFERING_END = 702;
+
+  public interface OnInfoListener {
+    boolean onInfo(MediaPlayer mp, int what, int extra);
+  }
+
+  public interface OnSeekCompleteListener {
+    void onSeekComplete(MediaPlayer mp);
+  }
+
+  public interface OnCompletionListener {
+    void onCompletion(MediaPlayer mp);
+  }
+}
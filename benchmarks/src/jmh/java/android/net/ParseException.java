@@ -0,0 +1,10 @@
+package android.net;
+
+/** JVM stub of the Android class, referenced by Segment's ISO 8601 date parsing. */
+public class ParseException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public ParseException(String detailMessage) {
+    super(detailMessage);
+  }
+}
@@ -0,0 +1,10 @@
+package android.os;
+
+/** JVM stub of the Android class, there is no main thread to post to so work is dropped. */
+public class Handler {
+  public Handler(Looper looper) {}
+
+  public final boolean post(Runnable r) {
+    return false;
+  }
+}
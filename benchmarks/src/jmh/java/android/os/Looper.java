@@ -0,0 +1,10 @@
+package android.os;
+
+/** JVM stub of the Android class. */
+public final class Looper {
+  private static final Looper MAIN = new Looper();
+
+  public static Looper getMainLooper() {
+    return MAIN;
+  }
+}
@@ -0,0 +1,20 @@
+package android.util;
+
+/** JVM stub of the Android class, benchmarks log nothing. */
+public final class Log {
+  public static int v(String tag, String msg) {
+    return 0;
+  }
+
+  public static int d(String tag, String msg) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg) {
+    return 0;
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return 0;
+  }
+}
@@ -0,0 +1,8 @@
+package androidx.lifecycle;
+
+/** JVM stub of the AndroidX class, only what the integration references. */
+public abstract class Lifecycle {
+  public abstract void addObserver(LifecycleObserver observer);
+
+  public abstract void removeObserver(LifecycleObserver observer);
+}
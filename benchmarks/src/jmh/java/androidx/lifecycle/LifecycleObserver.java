@@ -0,0 +1,4 @@
+package androidx.lifecycle;
+
+/** JVM stub of the AndroidX class. */
+public interface LifecycleObserver {}
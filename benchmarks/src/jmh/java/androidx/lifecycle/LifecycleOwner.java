@@ -0,0 +1,6 @@
+package androidx.lifecycle;
+
+/** JVM stub of the AndroidX class. */
+public interface LifecycleOwner {
+  Lifecycle getLifecycle();
+}
@@ -0,0 +1,24 @@
+package androidx.lifecycle;
+
+/** JVM stub of the AndroidX class, the process never changes state. */
+public final class ProcessLifecycleOwner implements LifecycleOwner {
+  private static final ProcessLifecycleOwner INSTANCE = new ProcessLifecycleOwner();
+
+  private final Lifecycle lifecycle =
+      new Lifecycle() {
+        @Override
+        public void addObserver(LifecycleObserver observer) {}
+
+        @Override
+        public void removeObserver(LifecycleObserver observer) {}
+      };
+
+  public static LifecycleOwner get() {
+    return INSTANCE;
+  }
+
+  @Override
+  public Lifecycle getLifecycle() {
+    return lifecycle;
+  }
+}
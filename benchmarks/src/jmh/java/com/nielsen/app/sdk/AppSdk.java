@@ -0,0 +1,46 @@
+package com.nielsen.app.sdk;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+
+/** Stub of the Nielsen AppSdk that only keeps its last arguments, so calls are not optimized out. */
+public class AppSdk {
+  public volatile Object lastArgument;
+  public volatile long calls;
+
+  public AppSdk(Context context, JSONObject config, IAppNotifier notifier) {
+    lastArgument = config;
+  }
+
+  public void play(JSONObject channelInfo) {
+    lastArgument = channelInfo;
+    calls++;
+  }
+
+  public void loadMetadata(JSONObject metadata) {
+    lastArgument = metadata;
+    calls++;
+  }
+
+  public void stop() {
+    calls++;
+  }
+
+  public void end() {
+    calls++;
+  }
+
+  public void sendID3(String id3) {
+    lastArgument = id3;
+    calls++;
+  }
+
+  public void close() {
+    calls++;
+  }
+
+  public boolean isValid() {
+    return true;
+  }
+}
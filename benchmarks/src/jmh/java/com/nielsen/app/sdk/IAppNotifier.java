@@ -0,0 +1,6 @@
+package com.nielsen.app.sdk;
+
+/** Stub of the Nielsen AppSdk event listener. */
+public interface IAppNotifier {
+  void onAppSdkEvent(long timestamp, int code, String description);
+}
@@ -0,0 +1,163 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import android.app.Application;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Settings, integrations and event streams shared by the benchmarks. */
+final class BenchmarkFixtures {
+  static final String ID3_EVENT = "Video ID3 Tag";
+  static final Logger LOGGER = Logger.with(Analytics.LogLevel.NONE);
+
+  private static final String[] NON_VIDEO_EVENTS = {
+    "Application Opened",
+    "Screen Viewed",
+    "Product Viewed",
+    "Product List Viewed",
+    "Button Tapped",
+    "Search Performed",
+    "Signed In",
+    "Notification Received"
+  };
+  private static final String[] CHANNELS = {"CNN", "HLN", "TBS", "TNT", "truTV", "TCM"};
+
+  private BenchmarkFixtures() {}
+
+  /** @return integration settings as delivered by Segment for a typical DTVR source */
+  static ValueMap settings() {
+    ValueMap settings = new ValueMap();
+    settings.put(NielsenDTVRIntegrationFactory.SETTING_APP_ID_KEY, "PDA7D5EE6-B1B8-4123-9277-2A788BC653CA");
+    settings.put(NielsenDTVRIntegrationFactory.SETTING_SF_CODE_KEY, "dcr");
+    settings.put(
+        NielsenDTVRIntegrationFactory.SETTING_ID3_EVENTS_KEY,
+        new ArrayList<>(Arrays.asList(ID3_EVENT, "Video Playback Heartbeat")));
+    settings.put(NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_KEY, "id3");
+    return settings;
+  }
+
+  /**
+   * @return analytics instance providing only the application and logger the factory asks for,
+   *     allocated without running its constructor, which needs an Android device
+   */
+  static Analytics analytics() {
+    try {
+      // sun.misc.Unsafe, looked up reflectively as it is not part of the public API
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Method allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+      Analytics analytics =
+          (Analytics) allocateInstance.invoke(theUnsafe.get(null), Analytics.class);
+      set(analytics, "application", new Application());
+      set(analytics, "logger", LOGGER);
+      return analytics;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Failed to stub Analytics", e);
+    }
+  }
+
+  private static void set(Analytics analytics, String name, Object value)
+      throws ReflectiveOperationException {
+    Field field = Analytics.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(analytics, value);
+  }
+
+  /**
+   * @param count number of distinct tags
+   * @return Nielsen style ID3 payloads, 249 characters like the ones found in PRIV frames
+   */
+  static String[] id3Tags(int count, long seed) {
+    Random random = new Random(seed);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    String[] tags = new String[count];
+    for (int i = 0; i < count; i++) {
+      StringBuilder tag = new StringBuilder("www.nielsen.com/X100zdCIGeIlgZnkYj6UvQ==/");
+      while (tag.length() < 249) {
+        tag.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      tags[i] = tag.toString();
+    }
+    return tags;
+  }
+
+  /**
+   * @param mix one of {@code realistic}, {@code bufferStorm} or {@code nonVideo}
+   * @param count number of events, a power of two so benchmarks can wrap with a mask
+   * @return stream of track payloads replayed by the benchmarks
+   */
+  static TrackPayload[] events(String mix, int count, long seed) {
+    Random random = new Random(seed);
+    TrackPayload[] events = new TrackPayload[count];
+    String[] tags = id3Tags(count / 20 + 1, seed);
+    String channel = CHANNELS[0];
+
+    for (int i = 0; i < count; i++) {
+      if ("nonVideo".equals(mix)) {
+        events[i] = nonVideo(random);
+      } else if ("bufferStorm".equals(mix)) {
+        // dozens of buffer start/complete pairs per second on a poor network
+        String event = i % 2 == 0 ? "Video Playback Buffer Started" : "Video Playback Buffer Completed";
+        events[i] = video(event, channel, null);
+      } else {
+        // ~10 events per second: 90% non-video, an ID3 tag every 2s that changes every 10s,
+        // and the occasional channel change, pause or short buffer storm
+        if (i % 20 == 0) {
+          events[i] = video(ID3_EVENT, channel, tags[i / 100]);
+        } else if (random.nextInt(100) < 90) {
+          events[i] = nonVideo(random);
+        } else {
+          int roll = random.nextInt(10);
+          if (roll == 0) {
+            channel = CHANNELS[random.nextInt(CHANNELS.length)];
+            events[i] = video("Video Content Started", channel, null);
+          } else if (roll < 3) {
+            events[i] = video("Video Playback Paused", channel, null);
+          } else if (roll < 5) {
+            events[i] = video("Video Playback Resumed", channel, null);
+          } else if (roll < 8) {
+            events[i] = video("Video Playback Buffer Started", channel, null);
+          } else {
+            events[i] = video("Video Playback Buffer Completed", channel, null);
+          }
+        }
+      }
+    }
+    return events;
+  }
+
+  private static TrackPayload nonVideo(Random random) {
+    return new TrackPayload.Builder()
+        .anonymousId("anonymous")
+        .event(NON_VIDEO_EVENTS[random.nextInt(NON_VIDEO_EVENTS.length)])
+        .properties(new Properties().putValue("screen", "home").putValue("position", 3))
+        .build();
+  }
+
+  private static TrackPayload video(String event, String channel, String id3) {
+    Properties properties =
+        new Properties()
+            .putValue("channel", channel)
+            .putValue("load_type", "linear")
+            .putValue("session_id", "12345")
+            .putValue("asset_id", "0129370")
+            .putValue("livestream", true);
+    if (id3 != null) properties.putValue("id3", id3);
+
+    return new TrackPayload.Builder()
+        .anonymousId("anonymous")
+        .event(event)
+        .properties(properties)
+        .build();
+  }
+}
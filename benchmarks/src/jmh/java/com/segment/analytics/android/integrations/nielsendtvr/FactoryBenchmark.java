@@ -0,0 +1,66 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Integration;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Cost of turning integration settings into an integration with {@link
+ * NielsenDTVRIntegrationFactory#create}, on a stub AppSdk.
+ */
+@State(Scope.Thread)
+public class FactoryBenchmark {
+  private final NielsenDTVRIntegrationFactory factory = new NielsenDTVRIntegrationFactory();
+  private ValueMap settings;
+  private Analytics analytics;
+
+  @Setup
+  public void setUp() {
+    settings = BenchmarkFixtures.settings();
+    settings.put(
+        NielsenDTVRIntegrationFactory.SETTING_EVENT_ACTIONS_KEY,
+        new ValueMap()
+            .putValue("Player Started", new ArrayList<>(Arrays.asList("play", "loadMetadata")))
+            .putValue("Player Paused", "stop"));
+  }
+
+  @Benchmark
+  public JSONObject parseAppSdkConfig() throws JSONException {
+    return factory.parseAppSdkConfig(settings);
+  }
+
+  @Benchmark
+  public EventDispatchTable parseEventDispatchTable() {
+    return factory.parseEventDispatchTable(
+        settings, factory.parseId3EventNames(settings), BenchmarkFixtures.LOGGER);
+  }
+
+  // a new analytics instance each time, as the factory only reloads the event settings of the
+  // integration it already created for one
+  @Setup(Level.Invocation)
+  public void newAnalytics() {
+    analytics = BenchmarkFixtures.analytics();
+  }
+
+  @TearDown(Level.Invocation)
+  public void shutdown() {
+    factory.shutdown(analytics);
+  }
+
+  @Benchmark
+  public Integration<?> createIntegration() {
+    return factory.create(settings, analytics);
+  }
+}
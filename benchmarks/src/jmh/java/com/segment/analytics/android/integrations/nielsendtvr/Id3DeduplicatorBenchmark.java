@@ -0,0 +1,45 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Cost of filtering one ID3 tag, for repeated and for fresh tags. */
+@State(Scope.Thread)
+public class Id3DeduplicatorBenchmark {
+  private static final int TAG_COUNT = 1 << 10;
+
+  @Param({"1", "8", "32"})
+  public int historySize;
+
+  private Id3Deduplicator deduplicator;
+  private String[] tags;
+  private String[] duplicates;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    deduplicator = new Id3Deduplicator(historySize, 0, Clock.SYSTEM);
+    tags = BenchmarkFixtures.id3Tags(TAG_COUNT, 42);
+
+    // equal but not identical copies of a tag still in the history, as parsed from a new event
+    duplicates = new String[TAG_COUNT];
+    for (int i = 0; i < TAG_COUNT; i++) {
+      duplicates[i] = new String(tags[0]);
+    }
+    deduplicator.accept(tags[0]);
+  }
+
+  @Benchmark
+  public boolean duplicate() {
+    return deduplicator.accept(duplicates[next++ & (TAG_COUNT - 1)]);
+  }
+
+  @Benchmark
+  public boolean fresh() {
+    // more distinct tags than any history holds, so every tag is a miss
+    return deduplicator.accept(tags[1 + (next++ & (TAG_COUNT - 2))]);
+  }
+}
@@ -0,0 +1,37 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Cost of producing the play and loadMetadata payloads, with and without the payload cache. */
+@State(Scope.Thread)
+public class MetadataBenchmark {
+  private static final String[] CHANNELS = {"CNN", "HLN", "TBS", "TNT", "truTV", "TCM", "TBS", "CNN"};
+
+  /** 0 disables the cache, so every payload is built. */
+  @Param({"0", "16"})
+  public int cacheSize;
+
+  private ChannelPayloadCache cache;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    cache = new ChannelPayloadCache(cacheSize, BenchmarkFixtures.LOGGER);
+  }
+
+  @Benchmark
+  public void channelInfoAndMetadata(Blackhole blackhole) {
+    String channel = CHANNELS[next++ & (CHANNELS.length - 1)];
+    JSONObject channelInfo = cache.channelInfo(channel);
+    String[] values = {channel, (next & 1) == 0 ? "1" : "2"};
+    JSONObject metadata = cache.metadata(MetadataMapping.DEFAULT, values);
+    blackhole.consume(channelInfo);
+    blackhole.consume(metadata);
+  }
+}
@@ -0,0 +1,44 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Cost of journaling one playback transition, including the periodic compaction. */
+@State(Scope.Thread)
+public class SessionJournalBenchmark {
+  private static final String[] SESSIONS = {null, "pip", "main", "preview"};
+
+  @Param({"32", "128"})
+  public int maxRecords;
+
+  private File file;
+  private SessionJournal journal;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = File.createTempFile("nielsen-dtvr", ".journal");
+    journal = SessionJournal.open(file, maxRecords, BenchmarkFixtures.LOGGER);
+  }
+
+  @TearDown
+  public void tearDown() {
+    journal.close();
+    file.delete();
+  }
+
+  @Benchmark
+  public void transition() {
+    int i = next++;
+    // alternate play and stop across a few sessions, so compaction keeps some of them open
+    byte transition = (i & 4) == 0 ? SessionJournal.PLAY : SessionJournal.STOP;
+    journal.record(transition, SESSIONS[i & 3], "channel 1");
+  }
+}
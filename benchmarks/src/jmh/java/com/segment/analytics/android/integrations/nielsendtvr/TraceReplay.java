@@ -0,0 +1,221 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import android.content.Context;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Replays an event trace recorded with the {@code recordTrace} setting against stub AppSdk
+ * instances, and reports the throughput, the AppSdk calls made and how many calls were filtered on
+ * the way. The integration is created by the factory, so every setting applies as in the app.
+ *
+ * <pre>
+ *   ./gradlew :benchmarks:replayTrace -Ptrace=segment-nielsen-dtvr-APPID.trace \
+ *       [-PreplayArgs="--speed recorded --settings settings.json --calls calls.txt"]
+ * </pre>
+ *
+ * <ul>
+ *   <li>{@code --speed max} replays as fast as possible (default), {@code --speed recorded} with
+ *       the recorded delays, and {@code --speed N} N times faster than recorded
+ *   <li>{@code --settings} reads the integration settings from a JSON file, as found in the
+ *       Segment project settings, instead of the defaults of the benchmarks
+ *   <li>{@code --calls} writes every AppSdk call, in order, to a file
+ * </ul>
+ */
+public final class TraceReplay {
+  private TraceReplay() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println(
+          "usage: TraceReplay <trace> [--speed max|recorded|N] [--settings file] [--calls file]");
+      System.exit(2);
+    }
+
+    String trace = args[0];
+    double speed = 0;
+    ValueMap settings = BenchmarkFixtures.settings();
+    Writer calls = null;
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      if ("--speed".equals(args[i])) {
+        speed =
+            "max".equals(args[i + 1]) ? 0 : "recorded".equals(args[i + 1]) ? 1 : parse(args[i + 1]);
+      } else if ("--settings".equals(args[i])) {
+        settings = readSettings(args[i + 1]);
+      } else if ("--calls".equals(args[i])) {
+        calls = new FileWriter(args[i + 1]);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    final Recorder appSdk = new Recorder(calls);
+    NielsenDTVRIntegrationFactory factory =
+        new NielsenDTVRIntegrationFactory() {
+          @Override
+          AppSdk newAppSdk(Context appContext, JSONObject appSdkConfig) {
+            return new RecordingAppSdk(appSdk);
+          }
+        };
+    Analytics analytics = BenchmarkFixtures.analytics();
+    NielsenDTVRIntegration integration =
+        (NielsenDTVRIntegration) factory.create(settings, analytics);
+    if (integration == null) throw new IllegalStateException("Invalid integration settings");
+
+    long events = 0;
+    long start = System.nanoTime();
+    EventTrace.Reader reader =
+        new EventTrace.Reader(new BufferedInputStream(new FileInputStream(trace)));
+    try {
+      for (EventTrace.Event event = reader.next(); event != null; event = reader.next()) {
+        if (speed > 0 && event.delayMillis > 0) Thread.sleep((long) (event.delayMillis / speed));
+        integration.track(
+            new TrackPayload.Builder()
+                .anonymousId("replay")
+                .event(event.name)
+                .properties(event.properties)
+                .build());
+        events++;
+      }
+    } finally {
+      reader.close();
+    }
+    integration.flush();
+    long elapsedNanos = System.nanoTime() - start;
+    NielsenDTVRStats stats = integration.getStats();
+    factory.shutdown(analytics);
+    if (calls != null) calls.close();
+
+    long filteredId3 =
+        stats.duplicateId3Tags() + stats.rateLimitedId3Tags() + stats.sharedId3Tags();
+    long id3Tags = stats.sendID3().count() + filteredId3;
+    long filteredTransitions =
+        stats.redundantCalls() + stats.coalescedCalls() + stats.sharedCalls();
+    long transitions = appSdk.transitions() + filteredTransitions;
+
+    System.out.printf(
+        "events        %d in %.1f ms, %.0f events/s%n",
+        events, elapsedNanos / 1e6, events * 1e9 / Math.max(1, elapsedNanos));
+    System.out.println("appSdk calls  " + appSdk.counts());
+    System.out.printf(
+        "id3 filtered  %d duplicate, %d rate limited, %d shared, %.1f%% of %d tags%n",
+        stats.duplicateId3Tags(),
+        stats.rateLimitedId3Tags(),
+        stats.sharedId3Tags(),
+        percent(filteredId3, id3Tags),
+        id3Tags);
+    System.out.printf(
+        "play/stop     %d redundant, %d coalesced, %d shared, %.1f%% of %d transitions%n",
+        stats.redundantCalls(),
+        stats.coalescedCalls(),
+        stats.sharedCalls(),
+        percent(filteredTransitions, transitions),
+        transitions);
+    System.out.println(stats);
+  }
+
+  private static double parse(String speed) {
+    double value = Double.parseDouble(speed);
+    if (value <= 0) throw new IllegalArgumentException("Speed must be positive: " + speed);
+    return value;
+  }
+
+  private static double percent(long part, long total) {
+    return total == 0 ? 0 : part * 100.0 / total;
+  }
+
+  private static ValueMap readSettings(String file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      String json = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+      return new ValueMap(new JSONObject(json).toMap());
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Stub AppSdk recording its calls, every instance created by the factory into one recorder. */
+  private static final class RecordingAppSdk extends AppSdk {
+    private final Recorder recorder;
+
+    RecordingAppSdk(Recorder recorder) {
+      super(null, null, null);
+      this.recorder = recorder;
+    }
+
+    @Override
+    public void play(JSONObject channelInfo) {
+      recorder.record("play", channelInfo);
+    }
+
+    @Override
+    public void loadMetadata(JSONObject metadata) {
+      recorder.record("loadMetadata", metadata);
+    }
+
+    @Override
+    public void stop() {
+      recorder.record("stop", null);
+    }
+
+    @Override
+    public void end() {
+      recorder.record("end", null);
+    }
+
+    @Override
+    public void sendID3(String id3) {
+      recorder.record("sendID3", id3);
+    }
+  }
+
+  /** Counts the AppSdk calls, and writes them to a file if one is given. */
+  private static final class Recorder {
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+    private final Writer calls;
+
+    Recorder(Writer calls) {
+      this.calls = calls;
+    }
+
+    synchronized Map<String, Long> counts() {
+      return new LinkedHashMap<>(counts);
+    }
+
+    synchronized long transitions() {
+      long transitions = 0;
+      for (String method : new String[] {"play", "stop", "end"}) {
+        Long count = counts.get(method);
+        if (count != null) transitions += count;
+      }
+      return transitions;
+    }
+
+    // calls are made on the replay thread unless dispatching async, so keep them in order
+    synchronized void record(String method, Object argument) {
+      Long count = counts.get(method);
+      counts.put(method, count == null ? 1 : count + 1);
+      if (calls == null) return;
+      try {
+        calls.write(argument == null ? method + "()\n" : method + "(" + argument + ")\n");
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Throughput of {@link NielsenDTVRIntegration#track} over realistic event streams. */
+@State(Scope.Thread)
+public class TrackBenchmark {
+  private static final int EVENT_COUNT = 1 << 12;
+
+  @Param({"realistic", "bufferStorm", "nonVideo"})
+  public String mix;
+
+  @Param({"direct", "coalescing"})
+  public String dispatch;
+
+  private final NielsenDTVRIntegrationFactory factory = new NielsenDTVRIntegrationFactory();
+  private Analytics analytics;
+  private NielsenDTVRIntegration integration;
+  private TrackPayload[] events;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    ValueMap settings = BenchmarkFixtures.settings();
+    if ("coalescing".equals(dispatch)) {
+      settings.put(NielsenDTVRIntegrationFactory.SETTING_COALESCE_WINDOW_KEY, 500);
+    }
+
+    analytics = BenchmarkFixtures.analytics();
+    integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+    events = BenchmarkFixtures.events(mix, EVENT_COUNT, 42);
+  }
+
+  @TearDown
+  public void tearDown() {
+    integration.flush();
+    factory.shutdown(analytics);
+  }
+
+  @Benchmark
+  public void track() {
+    integration.track(events[next++ & (EVENT_COUNT - 1)]);
+  }
+}
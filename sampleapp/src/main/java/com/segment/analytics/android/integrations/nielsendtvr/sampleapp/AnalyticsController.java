@@ -1,54 +1,37 @@
 package com.segment.analytics.android.integrations.nielsendtvr.sampleapp;
 
 import com.segment.analytics.Analytics;
-import com.segment.analytics.Properties;
+import com.segment.analytics.android.integrations.nielsendtvr.NielsenPlayerBinding;
 
 class AnalyticsController {
     private Analytics analytics;
+    // drives Nielsen straight from the player, and tracks the video events for other destinations
+    private NielsenPlayerBinding player;
 
     AnalyticsController(Analytics analytics) {
         this.analytics = analytics;
+        this.player = new NielsenPlayerBinding(analytics, null).emitSegmentEvents(true);
+        player.setContent("a", "linear");
     }
 
-    void trackContentStart() {
-        analytics.track("Video Content Started",
-                new Properties()
-                        .putValue("channel", "a")
-                        .putValue("load_type", "linear"));
-    }
-
-    void trackPlaybackResumed() {
-        trackPlay("Video Playback Resumed");
-    }
-
-    void trackSeekCompleted() {
-        trackPlay("Video Playback Seek Completed");
+    NielsenPlayerBinding player() {
+        return player;
     }
 
-    void trackBufferCompleted() {
-        trackPlay("Video Playback Buffer Completed");
+    void trackContentStart() {
+        player.onStart();
     }
 
-    private void trackPlay(String event) {
-        analytics.track(event,
-                new Properties()
-                        .putValue("channel", "a"));
+    void trackPlaybackResumed() {
+        player.onStart();
     }
 
     void trackPlaybackPaused() {
-        analytics.track("Video Playback Paused");
-    }
-
-    void trackContentCompleted() {
-        analytics.track("Video Content Completed");
-    }
-
-    void trackBufferStarted() {
-        analytics.track("Video Playback Buffer Started");
+        player.onPause();
     }
 
     void trackSeekStarted() {
-        analytics.track("Video Playback Seek Started");
+        player.onSeekStart();
     }
 
     void trackApplicationBackgrounded() {
@@ -56,12 +39,11 @@ class AnalyticsController {
     }
 
     void trackEnd() {
-        analytics.track("Video Playback Completed");
+        player.onStop();
     }
 
-    void trackID3(String id3) {
-        analytics.track("sendID3",
-                new Properties()
-                        .putValue("Id3", id3));
+    void sendID3(byte[] metadata) {
+        // skips the Segment pipeline, the integration finds the Nielsen tag in the raw metadata
+        player.onID3(metadata);
     }
 }
@@ -7,10 +7,6 @@ import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.widget.MediaController;
 
-import java.nio.charset.StandardCharsets;
-
-import static android.media.MediaPlayer.MEDIA_INFO_BUFFERING_END;
-import static android.media.MediaPlayer.MEDIA_INFO_BUFFERING_START;
 import static android.media.MediaPlayer.OnPreparedListener;
 import static android.media.MediaPlayer.OnCompletionListener;
 import static android.media.MediaPlayer.OnInfoListener;
@@ -96,28 +92,19 @@ public class VideoActivity extends AppCompatActivity implements OnPreparedListen
 
     @Override
     public boolean onInfo(MediaPlayer mp, int what, int extra) {
-        switch (what) {
-            case MEDIA_INFO_BUFFERING_START:
-                analytics.trackBufferStarted();
-                break;
-            case MEDIA_INFO_BUFFERING_END:
-                analytics.trackBufferCompleted();
-                break;
-        }
-
-        return false;
+        return analytics.player().onInfo(mp, what, extra);
     }
 
     @Override
     public void onCompletion(MediaPlayer mp) {
-        analytics.trackContentCompleted();
+        analytics.player().onCompletion(mp);
         analytics.trackEnd();
         videoView.clearState();
     }
 
     @Override
     public void onSeekComplete(MediaPlayer mp) {
-        analytics.trackSeekCompleted();
+        analytics.player().onSeekComplete(mp);
     }
 
     @Override
@@ -126,13 +113,7 @@ public class VideoActivity extends AppCompatActivity implements OnPreparedListen
             byte[] metadata = data.getMetaData();
 
             if (metadata != null) {
-                String iD3Payload = new String(metadata, StandardCharsets.UTF_8);
-
-                int index = iD3Payload.indexOf("www.nielsen.com");
-                if (index != -1) {
-                    String id3String = iD3Payload.substring(index, (index + 249));
-                    analytics.trackID3(id3String);
-                }
+                analytics.sendID3(metadata);
             }
         }
     }
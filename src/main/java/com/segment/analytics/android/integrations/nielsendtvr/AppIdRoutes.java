@@ -0,0 +1,110 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes events to the Nielsen app id of the network carrying them, by the value of one event
+ * property such as the channel. The table is compiled once by {@link
+ * NielsenDTVRIntegrationFactory}, so routing an event reads the property and makes a single hash
+ * lookup. Events without a route go to the app id of the integration settings.
+ */
+final class AppIdRoutes {
+  static final String DEFAULT_PROPERTY = "channel";
+
+  static final AppIdRoutes NONE = new Builder(DEFAULT_PROPERTY).build();
+
+  /** App id, and sfcode, that events are routed to. */
+  static final class Route {
+    final String appId;
+    /** sfcode of the app id, or null for the sfcode of the integration settings */
+    final String sfcode;
+    // key of the session without a session key, precomputed as it is looked up for every event
+    final String sessionKey;
+
+    Route(String appId, String sfcode) {
+      this.appId = appId;
+      this.sfcode = sfcode;
+      this.sessionKey = "@" + appId;
+    }
+
+    /**
+     * @param id value of the session key property, or null
+     * @return key of the session of {@code id} for this app id
+     */
+    String sessionKey(String id) {
+      return id == null ? sessionKey : id + sessionKey;
+    }
+  }
+
+  private final PropertyPath property;
+  private final Map<String, Route> routes;
+
+  private AppIdRoutes(PropertyPath property, Map<String, Route> routes) {
+    this.property = property;
+    this.routes = routes;
+  }
+
+  /**
+   * @param properties properties of the Segment event
+   * @return route of the event, or null for the app id of the integration settings
+   */
+  Route route(Map<?, ?> properties) {
+    return route(properties, null);
+  }
+
+  /**
+   * @param properties properties of the Segment event
+   * @param current route of the last event of the same player, kept by events without the property
+   *     such as ID3 and stop events
+   * @return route of the event, or null for the app id of the integration settings
+   */
+  Route route(Map<?, ?> properties, Route current) {
+    if (routes.isEmpty()) return null;
+
+    String value = property.read(properties);
+    return value == null ? current : routes.get(value);
+  }
+
+  /** @return path of the property whose value selects the app id */
+  PropertyPath property() {
+    return property;
+  }
+
+  /** @return number of property values with a route */
+  int size() {
+    return routes.size();
+  }
+
+  static final class Builder {
+    private final PropertyPath property;
+    private final Map<String, Route> routes = new HashMap<>();
+    // routes by app id, so the values routed to one app id share its sessions
+    private final Map<String, Route> appIds = new HashMap<>();
+
+    /** @param property path of the property whose value selects the app id */
+    Builder(String property) {
+      this.property = PropertyPath.parse(property);
+    }
+
+    /**
+     * routes the events whose property is {@code value} to {@code appId}. The sfcode of the first
+     * route of an app id applies to every value routed to it.
+     *
+     * @param sfcode sfcode of the app id, or null for the sfcode of the integration settings
+     */
+    Builder put(String value, String appId, String sfcode) {
+      Route route = appIds.get(appId);
+      if (route == null) {
+        route = new Route(appId, sfcode);
+        appIds.put(appId, route);
+      }
+      routes.put(value, route);
+      return this;
+    }
+
+    AppIdRoutes build() {
+      return new AppIdRoutes(property, new HashMap<>(routes));
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Playback and ID3 state of one AppSdk instance, shared by every session and integration calling
+ * it, since the pool and settings refreshes hand the same instance to several of them. Each
+ * session keeps its own {@link PlaybackStateMachine} and {@link Id3Deduplicator}, so without this
+ * the instance would receive a play for every session watching the same channel, a stop as soon
+ * as any of them stops, and the same ID3 tag once per session.
+ *
+ * <p>The sessions playing the instance are counted in an immutable snapshot swapped by
+ * compare-and-set, so play and stop never take a lock. ID3 tags are remembered in stripes selected
+ * by their hash: a repeated tag always lands on the same stripe, while different tags rarely
+ * contend for one.
+ */
+final class AppSdkCoordinator {
+  static final int DEFAULT_STRIPES = 8;
+  static final int DEFAULT_STRIPE_HISTORY_SIZE = 4;
+
+  /** Forwards every call, for instances that are not shared. */
+  static final AppSdkCoordinator NONE = new AppSdkCoordinator(0, 0);
+
+  private static final int IDLE = 0;
+  private static final int PLAYING = 1;
+  private static final int STOPPED = 2;
+
+  private final AtomicReference<Playback> playback =
+      new AtomicReference<>(new Playback(IDLE, null, 0));
+  private final Id3Stripe[] stripes;
+  private final int mask;
+
+  /**
+   * @param stripes number of ID3 stripes, rounded up to a power of two, 0 forwards every call
+   * @param stripeHistorySize number of recently sent tags remembered by each stripe
+   */
+  AppSdkCoordinator(int stripes, int stripeHistorySize) {
+    int size = 0;
+    if (stripes > 0) {
+      size = 1;
+      while (size < stripes) size <<= 1;
+    }
+    this.stripes = new Id3Stripe[size];
+    for (int i = 0; i < size; i++) this.stripes[i] = new Id3Stripe(stripeHistorySize);
+    this.mask = size - 1;
+  }
+
+  /** @return a new player, for the dispatcher of one session calling the instance */
+  Player join() {
+    return new Player(this);
+  }
+
+  private boolean enabled() {
+    return stripes.length > 0;
+  }
+
+  /**
+   * One session calling the instance. The calls of a session never run concurrently, so only the
+   * snapshot shared with the other sessions needs compare-and-set, and the counters of the
+   * session only need to be visible to the thread reading the stats.
+   */
+  static final class Player {
+    private final AppSdkCoordinator coordinator;
+    private volatile boolean playing;
+    private volatile long suppressedCalls;
+    private volatile long duplicateId3Tags;
+
+    private Player(AppSdkCoordinator coordinator) {
+      this.coordinator = coordinator;
+    }
+
+    /**
+     * @param channel channel the session starts playing
+     * @return true if the play call must be forwarded, false if the instance already plays it
+     */
+    boolean play(String channel) {
+      if (!coordinator.enabled()) return true;
+
+      AtomicReference<Playback> playback = coordinator.playback;
+      while (true) {
+        Playback current = playback.get();
+        boolean forward = current.state != PLAYING || !equal(current.channel, channel);
+        int players = playing ? current.players : current.players + 1;
+        if (playback.compareAndSet(current, new Playback(PLAYING, channel, players))) {
+          playing = true;
+          return forwarded(forward);
+        }
+      }
+    }
+
+    /** @return true if the stop call must be forwarded, false if another session still plays */
+    boolean stop() {
+      if (!coordinator.enabled()) return true;
+
+      AtomicReference<Playback> playback = coordinator.playback;
+      while (true) {
+        Playback current = playback.get();
+        Playback next;
+        boolean forward;
+        if (playing) {
+          int players = current.players - 1;
+          forward = players == 0;
+          next = new Playback(forward ? STOPPED : current.state, current.channel, players);
+        } else {
+          forward = current.players == 0 && current.state != STOPPED;
+          next = forward ? new Playback(STOPPED, current.channel, 0) : current;
+        }
+        if (playback.compareAndSet(current, next)) {
+          playing = false;
+          return forwarded(forward);
+        }
+      }
+    }
+
+    /** @return true if the end call must be forwarded, false if another session still plays */
+    boolean end() {
+      if (!coordinator.enabled()) return true;
+
+      AtomicReference<Playback> playback = coordinator.playback;
+      while (true) {
+        Playback current = playback.get();
+        int others = playing ? current.players - 1 : current.players;
+        boolean forward = others == 0;
+        Playback next =
+            forward
+                ? new Playback(STOPPED, null, 0)
+                : new Playback(current.state, current.channel, others);
+        if (playback.compareAndSet(current, next)) {
+          playing = false;
+          return forwarded(forward);
+        }
+      }
+    }
+
+    /**
+     * @param id3 ID3 tag about to be sent
+     * @return true if the tag must be forwarded, false if a session sent it recently
+     */
+    boolean sendID3(String id3) {
+      if (!coordinator.enabled() || id3 == null) return true;
+
+      int hash = id3.hashCode();
+      Id3Stripe stripe = coordinator.stripes[(hash ^ (hash >>> 16)) & coordinator.mask];
+      if (stripe.accept(id3, hash)) return true;
+      duplicateId3Tags++;
+      return false;
+    }
+
+    /** @return number of play, stop and end calls not forwarded as another session covers them */
+    long suppressedCalls() {
+      return suppressedCalls;
+    }
+
+    /** @return number of ID3 tags not forwarded as another session already sent them */
+    long duplicateId3Tags() {
+      return duplicateId3Tags;
+    }
+
+    /**
+     * leaves the instance without a call, once the session is shut down. A session still playing
+     * hands the playback over to the sessions left, such as the one of a rebuilt integration.
+     */
+    void leave() {
+      if (!coordinator.enabled() || !playing) return;
+
+      AtomicReference<Playback> playback = coordinator.playback;
+      while (true) {
+        Playback current = playback.get();
+        Playback next = new Playback(current.state, current.channel, current.players - 1);
+        if (playback.compareAndSet(current, next)) {
+          playing = false;
+          return;
+        }
+      }
+    }
+
+    private boolean forwarded(boolean forward) {
+      if (!forward) suppressedCalls++;
+      return forward;
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /** State of the instance, replaced as a whole on every transition. */
+  private static final class Playback {
+    final int state;
+    final String channel;
+    final int players;
+
+    Playback(int state, String channel, int players) {
+      this.state = state;
+      this.channel = channel;
+      this.players = Math.max(0, players);
+    }
+  }
+
+  /** Tags recently sent to the instance whose hash selects this stripe. */
+  private static final class Id3Stripe {
+    // guarded by this
+    private final String[] tags;
+    private final int[] hashes;
+    private int next;
+
+    Id3Stripe(int historySize) {
+      this.tags = new String[Math.max(1, historySize)];
+      this.hashes = new int[tags.length];
+    }
+
+    synchronized boolean accept(String id3, int hash) {
+      for (int i = 0; i < tags.length; i++) {
+        String tag = tags[i];
+        if (tag != null && hashes[i] == hash && tag.equals(id3)) return false;
+      }
+      tags[next] = id3;
+      hashes[next] = hash;
+      next = (next + 1) % tags.length;
+      return true;
+    }
+  }
+}
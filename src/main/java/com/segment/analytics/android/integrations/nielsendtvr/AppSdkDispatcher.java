@@ -0,0 +1,29 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.json.JSONObject;
+
+/**
+ * Receives the calls {@link NielsenDTVRIntegration} makes into the Nielsen App SDK and decides on
+ * which thread, and when, they reach the {@link com.nielsen.app.sdk.AppSdk} instance.
+ */
+interface AppSdkDispatcher {
+
+  void play(JSONObject channelInfo);
+
+  void loadMetadata(JSONObject metadata);
+
+  void stop();
+
+  void sendID3(String id3);
+
+  void end();
+
+  /** Blocks until every call dispatched so far has reached the AppSdk instance. */
+  void flush();
+
+  /** Flushes pending calls and releases any thread owned by the dispatcher. */
+  void shutdown();
+
+  /** @return snapshot of the dispatcher counters */
+  DispatcherStats stats();
+}
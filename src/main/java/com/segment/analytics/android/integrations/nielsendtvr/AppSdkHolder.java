@@ -0,0 +1,82 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+
+/**
+ * Holds the AppSdk instance of an integration, which is either constructed with the integration or,
+ * when construction is deferred, on a background thread once the first video event arrives.
+ */
+final class AppSdkHolder {
+  private volatile AppSdkPool.Entry entry;
+  private volatile long constructionNanos;
+
+  // guarded by this
+  private boolean sessionActive;
+  private boolean released;
+
+  /** @return holder of an instance that is already constructed, and not pooled */
+  static AppSdkHolder of(AppSdk appSdk, long constructionNanos) {
+    AppSdkHolder holder = new AppSdkHolder();
+    holder.set(new AppSdkPool.Entry(null, null, appSdk), constructionNanos);
+    return holder;
+  }
+
+  synchronized void set(AppSdkPool.Entry entry, long constructionNanos) {
+    this.constructionNanos = constructionNanos;
+    this.entry = entry;
+    // a session may have started, or been closed, before a deferred instance was constructed
+    if (sessionActive) entry.sessionStarted();
+    if (released) entry.release();
+  }
+
+  /** @return the AppSdk instance, or null if it is not constructed yet */
+  AppSdk get() {
+    AppSdkPool.Entry entry = this.entry;
+    return entry == null ? null : entry.appSdk();
+  }
+
+  /** @return the pool entry of the AppSdk instance, or null if it is not constructed yet */
+  AppSdkPool.Entry entry() {
+    return entry;
+  }
+
+  /** @return true if the instance is constructed and closed by its pool once released */
+  boolean isPooled() {
+    AppSdkPool.Entry entry = this.entry;
+    return entry != null && entry.isPooled();
+  }
+
+  /** @return time it took to obtain the AppSdk instance, in nanoseconds */
+  long constructionNanos() {
+    return constructionNanos;
+  }
+
+  /** records whether the integration is playing, so the pool can balance sessions */
+  synchronized void setSessionActive(boolean sessionActive) {
+    if (this.sessionActive == sessionActive) return;
+    this.sessionActive = sessionActive;
+
+    AppSdkPool.Entry entry = this.entry;
+    if (entry == null) return;
+    if (sessionActive) {
+      entry.sessionStarted();
+    } else {
+      entry.sessionEnded();
+    }
+  }
+
+  /** returns the AppSdk instance to its pool, once the integration or session no longer uses it */
+  synchronized void release() {
+    if (released) return;
+    released = true;
+
+    AppSdkPool.Entry entry = this.entry;
+    if (entry != null) entry.release();
+  }
+
+  /** @return snapshot of the pool the AppSdk instance belongs to */
+  AppSdkPoolStats poolStats() {
+    AppSdkPool.Entry entry = this.entry;
+    return entry == null ? AppSdkPoolStats.EMPTY : entry.poolStats();
+  }
+}
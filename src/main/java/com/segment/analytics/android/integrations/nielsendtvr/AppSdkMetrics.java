@@ -0,0 +1,63 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls made into the AppSdk and records their latency in a power of two histogram, so
+ * recording a call is a handful of atomic increments without allocation.
+ */
+final class AppSdkMetrics {
+  static final int PLAY = 0;
+  static final int LOAD_METADATA = 1;
+  static final int STOP = 2;
+  static final int SEND_ID3 = 3;
+  static final int END = 4;
+  static final int METHOD_COUNT = 5;
+
+  static final String[] METHOD_NAMES = {"play", "loadMetadata", "stop", "sendID3", "end"};
+
+  /** Bucket {@code i} holds latencies in {@code [2^i, 2^(i+1))} nanoseconds, the last one above. */
+  static final int BUCKET_COUNT = 40;
+
+  private final AtomicLongArray counts = new AtomicLongArray(METHOD_COUNT);
+  private final AtomicLongArray totalNanos = new AtomicLongArray(METHOD_COUNT);
+  private final AtomicLongArray maxNanos = new AtomicLongArray(METHOD_COUNT);
+  private final AtomicLongArray buckets = new AtomicLongArray(METHOD_COUNT * BUCKET_COUNT);
+
+  /**
+   * @param method one of the method constants
+   * @param nanos time the call spent in the AppSdk
+   */
+  void record(int method, long nanos) {
+    if (nanos < 0) nanos = 0;
+
+    counts.incrementAndGet(method);
+    totalNanos.addAndGet(method, nanos);
+    buckets.incrementAndGet(method * BUCKET_COUNT + bucket(nanos));
+
+    long max;
+    do {
+      max = maxNanos.get(method);
+    } while (nanos > max && !maxNanos.compareAndSet(method, max, nanos));
+  }
+
+  /** @return immutable snapshot of the counters of {@code method} */
+  NielsenDTVRStats.MethodStats snapshot(int method) {
+    long[] histogram = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      histogram[i] = buckets.get(method * BUCKET_COUNT + i);
+    }
+
+    return new NielsenDTVRStats.MethodStats(
+        METHOD_NAMES[method],
+        counts.get(method),
+        totalNanos.get(method),
+        maxNanos.get(method),
+        histogram);
+  }
+
+  static int bucket(long nanos) {
+    int bucket = 63 - Long.numberOfLeadingZeros(nanos);
+    return bucket < 0 ? 0 : bucket >= BUCKET_COUNT ? BUCKET_COUNT - 1 : bucket;
+  }
+}
@@ -0,0 +1,246 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AppSdk instances shared by the integrations of each app id, for one Analytics instance. New
+ * instances are created until the pool of an app id is full, then integrations share the existing
+ * instances according to a {@link Policy}. Instances that were closed, or that the Nielsen SDK
+ * reports as invalid, are evicted so their slot can be reused.
+ *
+ * <p>Every integration and session using an instance holds a lease on it. The instance is closed,
+ * stopping the threads of the Nielsen SDK, once its last lease is released, and every instance is
+ * closed when the pool is {@link #close()}d.
+ */
+final class AppSdkPool {
+  static final int DEFAULT_MAX_SIZE = 4;
+
+  enum Policy {
+    /** hands out the instances of an app id in turn */
+    ROUND_ROBIN("roundRobin"),
+    /** hands out the instance with the fewest playing sessions, then the fewest integrations */
+    LEAST_ACTIVE("leastActive");
+
+    private final String name;
+
+    Policy(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @param name name of the policy as used in integration settings
+     * @param defaultPolicy policy to use if {@code name} is null or unknown
+     */
+    static Policy parse(String name, Policy defaultPolicy) {
+      for (Policy policy : values()) {
+        if (policy.name.equalsIgnoreCase(name)) return policy;
+      }
+      return defaultPolicy;
+    }
+  }
+
+  // guarded by this
+  private final Map<String, Group> groups = new HashMap<>();
+  private boolean closed;
+
+  /**
+   * selects an existing instance for {@code appId}, evicting invalid instances first
+   *
+   * @param appId app id of the instance
+   * @param maxSize maximum number of instances for {@code appId}
+   * @param policy how to select among the existing instances
+   * @return the selected instance, or null if a new instance should be created and {@link
+   *     #add(String, AppSdk)}ed since the pool is not full
+   */
+  synchronized Entry select(String appId, int maxSize, Policy policy) {
+    Group group = groups.get(appId);
+    if (group == null) return null;
+
+    group.maxSize = maxSize;
+    group.evictInvalid();
+    if (group.entries.size() < maxSize) return null;
+
+    Entry entry = policy == Policy.ROUND_ROBIN ? group.next() : group.leastActive();
+    entry.leases++;
+    return entry;
+  }
+
+  /**
+   * adds a newly created instance for {@code appId} to the pool. Once the pool is closed, the
+   * instance is leased without being shared, and closed when released.
+   */
+  synchronized Entry add(String appId, AppSdk appSdk) {
+    Entry entry = new Entry(this, appId, appSdk);
+    entry.leases++;
+    if (closed) return entry;
+
+    Group group = groups.get(appId);
+    if (group == null) {
+      group = new Group();
+      groups.put(appId, group);
+    }
+    group.entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * closes every instance, whether or not it is still leased, once the Analytics instance shuts
+   * down. Instances added later are closed as soon as they are released.
+   */
+  void close() {
+    List<Entry> closing = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      for (Group group : groups.values()) {
+        for (Entry entry : group.entries) {
+          if (entry.closed) continue;
+          entry.closed = true;
+          closing.add(entry);
+        }
+      }
+      groups.clear();
+    }
+    for (Entry entry : closing) entry.appSdk.close();
+  }
+
+  private synchronized void retain(Entry entry) {
+    entry.leases++;
+  }
+
+  private void release(Entry entry) {
+    synchronized (this) {
+      if (entry.leases > 0) entry.leases--;
+      if (entry.leases > 0 || entry.closed) return;
+
+      entry.closed = true;
+      Group group = groups.get(entry.appId);
+      if (group != null && group.entries.remove(entry)) group.evictions++;
+    }
+    // outside the lock, as the Nielsen SDK joins its threads
+    entry.appSdk.close();
+  }
+
+  /** @return snapshot of the instances of {@code appId} */
+  synchronized AppSdkPoolStats stats(String appId) {
+    Group group = groups.get(appId);
+    if (group == null) return AppSdkPoolStats.EMPTY;
+
+    int size = group.entries.size();
+    int[] leases = new int[size];
+    int[] activeSessions = new int[size];
+    for (int i = 0; i < size; i++) {
+      Entry entry = group.entries.get(i);
+      leases[i] = entry.leases;
+      activeSessions[i] = entry.activeSessions.get();
+    }
+    return new AppSdkPoolStats(group.maxSize, leases, activeSessions, group.evictions);
+  }
+
+  /** An AppSdk instance, and the integrations and sessions using it. */
+  static final class Entry {
+    private final AppSdkPool pool;
+    private final String appId;
+    private final AppSdk appSdk;
+    private final AppSdkCoordinator coordinator =
+        new AppSdkCoordinator(
+            AppSdkCoordinator.DEFAULT_STRIPES, AppSdkCoordinator.DEFAULT_STRIPE_HISTORY_SIZE);
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    // guarded by pool
+    private int leases;
+    private boolean closed;
+
+    /** @param pool pool owning the instance, or null if the instance is not pooled */
+    Entry(AppSdkPool pool, String appId, AppSdk appSdk) {
+      this.pool = pool;
+      this.appId = appId;
+      this.appSdk = appSdk;
+    }
+
+    AppSdk appSdk() {
+      return appSdk;
+    }
+
+    boolean isPooled() {
+      return pool != null;
+    }
+
+    /** @return playback and ID3 state shared by every session calling the instance */
+    AppSdkCoordinator coordinator() {
+      return coordinator;
+    }
+
+    void sessionStarted() {
+      activeSessions.incrementAndGet();
+    }
+
+    void sessionEnded() {
+      activeSessions.decrementAndGet();
+    }
+
+    /**
+     * counts one more integration or session using the instance, which must {@link #release()} it
+     *
+     * @return this entry
+     */
+    Entry retain() {
+      if (pool != null) pool.retain(this);
+      return this;
+    }
+
+    /**
+     * stops counting an integration or session using the instance, closing it once no integration
+     * or session uses it
+     */
+    void release() {
+      if (pool != null) pool.release(this);
+    }
+
+    /** @return snapshot of the pool the instance belongs to */
+    AppSdkPoolStats poolStats() {
+      return pool == null ? AppSdkPoolStats.EMPTY : pool.stats(appId);
+    }
+  }
+
+  private static final class Group {
+    final List<Entry> entries = new ArrayList<>();
+    int maxSize = DEFAULT_MAX_SIZE;
+    int cursor;
+    long evictions;
+
+    void evictInvalid() {
+      for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+        if (!iterator.next().appSdk.isValid()) {
+          iterator.remove();
+          evictions++;
+        }
+      }
+    }
+
+    Entry next() {
+      Entry entry = entries.get(cursor % entries.size());
+      cursor = (cursor + 1) % entries.size();
+      return entry;
+    }
+
+    Entry leastActive() {
+      Entry best = null;
+      int bestSessions = Integer.MAX_VALUE;
+      for (int i = 0, size = entries.size(); i < size; i++) {
+        Entry entry = entries.get(i);
+        int sessions = entry.activeSessions.get();
+        if (sessions < bestSessions || (sessions == bestSessions && entry.leases < best.leases)) {
+          best = entry;
+          bestSessions = sessions;
+        }
+      }
+      return best;
+    }
+  }
+}
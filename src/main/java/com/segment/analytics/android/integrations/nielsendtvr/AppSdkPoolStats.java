@@ -0,0 +1,64 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the AppSdk instances shared by the integrations of one app id. Obtained
+ * from {@link NielsenDTVRStats#appSdkPool()}.
+ */
+public final class AppSdkPoolStats {
+  static final AppSdkPoolStats EMPTY = new AppSdkPoolStats(0, new int[0], new int[0], 0);
+
+  private final int maxSize;
+  private final int[] integrations;
+  private final int[] activeSessions;
+  private final long evictions;
+
+  AppSdkPoolStats(int maxSize, int[] integrations, int[] activeSessions, long evictions) {
+    this.maxSize = maxSize;
+    this.integrations = integrations;
+    this.activeSessions = activeSessions;
+    this.evictions = evictions;
+  }
+
+  /** @return number of AppSdk instances in the pool */
+  public int size() {
+    return integrations.length;
+  }
+
+  /** @return maximum number of AppSdk instances in the pool */
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /** @return number of integrations created with each AppSdk instance */
+  public int[] integrations() {
+    return integrations.clone();
+  }
+
+  /** @return number of sessions currently playing on each AppSdk instance */
+  public int[] activeSessions() {
+    return activeSessions.clone();
+  }
+
+  /** @return number of closed or invalid AppSdk instances removed from the pool */
+  public long evictions() {
+    return evictions;
+  }
+
+  @Override
+  public String toString() {
+    return "AppSdkPoolStats{"
+        + "size="
+        + size()
+        + ", maxSize="
+        + maxSize
+        + ", integrations="
+        + Arrays.toString(integrations)
+        + ", activeSessions="
+        + Arrays.toString(activeSessions)
+        + ", evictions="
+        + evictions
+        + '}';
+  }
+}
@@ -0,0 +1,113 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.integrations.Logger;
+
+/**
+ * Ring of the last calls made into the AppSdk, kept in memory so diagnostics can stay enabled in
+ * production. A record is the time, method, session, latency and outcome of a call, with a
+ * reference to its payload, which is immutable once built. Recording stores these in preallocated
+ * arrays without allocating or formatting anything, records are only formatted when dumped.
+ */
+final class CallTrace {
+  static final int DEFAULT_CAPACITY = 128;
+  /** Minimum time between two dumps logged because a call failed. */
+  static final long ERROR_DUMP_INTERVAL_MILLIS = 60 * 1000;
+
+  static final CallTrace NONE = new CallTrace(0, Clock.SYSTEM);
+
+  private final Clock clock;
+  private final int capacity;
+  private final long[] timesMillis;
+  private final long[] durationsNanos;
+  private final int[] methods;
+  private final boolean[] failures;
+  private final String[] sessionIds;
+  private final Object[] payloads;
+  private long count;
+  private long lastErrorDumpMillis;
+  private boolean dumpedOnError;
+
+  /**
+   * @param capacity number of calls to keep, 0 disables the trace
+   * @param clock time source of the records
+   */
+  CallTrace(int capacity, Clock clock) {
+    this.clock = clock;
+    this.capacity = Math.max(0, capacity);
+    this.timesMillis = new long[this.capacity];
+    this.durationsNanos = new long[this.capacity];
+    this.methods = new int[this.capacity];
+    this.failures = new boolean[this.capacity];
+    this.sessionIds = new String[this.capacity];
+    this.payloads = new Object[this.capacity];
+  }
+
+  /**
+   * @param method one of the {@code AppSdkMetrics} method constants
+   * @param sessionId session of the AppSdk instance, or null for the default session
+   * @param payload argument of the call, or null
+   * @param durationNanos time the call spent in the AppSdk
+   * @param failed whether the call threw
+   */
+  synchronized void record(
+      int method, String sessionId, Object payload, long durationNanos, boolean failed) {
+    if (capacity == 0) return;
+
+    int i = (int) (count++ % capacity);
+    timesMillis[i] = clock.uptimeMillis();
+    durationsNanos[i] = durationNanos;
+    methods[i] = method;
+    failures[i] = failed;
+    sessionIds[i] = sessionId;
+    payloads[i] = payload;
+  }
+
+  /** @return number of calls recorded since creation, including the ones overwritten */
+  synchronized long count() {
+    return count;
+  }
+
+  /**
+   * @return the calls kept, oldest first, one per line with their time relative to the last call,
+   *     e.g. {@code -1200ms main play({"channelName":"CNN"}) 450us}
+   */
+  synchronized String dump() {
+    StringBuilder out = new StringBuilder();
+    long first = Math.max(0, count - capacity);
+    long last = count == 0 ? 0 : timesMillis[(int) ((count - 1) % capacity)];
+    for (long n = first; n < count; n++) {
+      int i = (int) (n % capacity);
+      out.append(timesMillis[i] - last)
+          .append("ms ")
+          .append(sessionIds[i] == null ? "-" : sessionIds[i])
+          .append(' ')
+          .append(AppSdkMetrics.METHOD_NAMES[methods[i]])
+          .append('(');
+      if (payloads[i] != null) out.append(payloads[i]);
+      out.append(") ").append(durationsNanos[i] / 1000).append("us");
+      if (failures[i]) out.append(" failed");
+      out.append('\n');
+    }
+    return out.toString();
+  }
+
+  /**
+   * logs the calls kept after a call failed, at most once per {@link #ERROR_DUMP_INTERVAL_MILLIS}
+   * so an AppSdk failing every call does not flood the log
+   *
+   * @return whether the calls were logged
+   */
+  boolean dumpOnError(Logger logger) {
+    String dump;
+    synchronized (this) {
+      if (count == 0) return false;
+      long now = clock.uptimeMillis();
+      if (dumpedOnError && now - lastErrorDumpMillis < ERROR_DUMP_INTERVAL_MILLIS) return false;
+      dumpedOnError = true;
+      lastErrorDumpMillis = now;
+      dump = dump();
+    }
+    logger.info("Last Nielsen calls before failure:\n%s", dump);
+    return true;
+  }
+}
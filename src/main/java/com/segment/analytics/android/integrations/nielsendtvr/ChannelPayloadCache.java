@@ -0,0 +1,177 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the channelInfo and metadata payloads sent to the AppSdk, keyed by
+ * channel and the values of the metadata fields. Live apps cycle through a handful of channels, so
+ * after warming up play and loadMetadata reuse the same payloads instead of building a JSONObject
+ * per event.
+ *
+ * <p>Cached payloads are shared and must never be modified. The cache shrinks when the system
+ * reports memory pressure.
+ */
+class ChannelPayloadCache implements ComponentCallbacks2 {
+  static final int DEFAULT_MAX_SIZE = 16;
+
+  // metadata payloads kept per channel, e.g. for each ad model
+  private static final int METADATA_VARIANTS = 4;
+
+  private final Logger logger;
+  private final int maxSize;
+  private final LinkedHashMap<String, Payloads> entries;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxSize maximum number of channels to keep payloads for, 0 disables caching
+   * @param logger logger to report payloads that fail to build
+   */
+  ChannelPayloadCache(final int maxSize, Logger logger) {
+    this.logger = logger;
+    this.maxSize = Math.max(0, maxSize);
+    this.entries =
+        new LinkedHashMap<String, Payloads>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Payloads> eldest) {
+            if (size() > ChannelPayloadCache.this.maxSize) {
+              evictions++;
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /**
+   * @param channel channel name, or null if the event has none
+   * @return payload for {@code appSdk.play()}
+   */
+  synchronized JSONObject channelInfo(String channel) {
+    Payloads entry = entry(channel);
+    if (entry.channelInfo != null) {
+      hits++;
+      return entry.channelInfo;
+    }
+
+    misses++;
+    JSONObject channelInfo = new JSONObject();
+    try {
+      if (channel != null) channelInfo.put("channelName", channel);
+
+    } catch (JSONException e) {
+      logger.error(e, "Failed to send play event");
+    }
+
+    entry.channelInfo = channelInfo;
+    return channelInfo;
+  }
+
+  /**
+   * @param mapping mapping the values were read with
+   * @param values values of the metadata fields, kept as the cache key so never modified later
+   * @return payload for {@code appSdk.loadMetadata()}
+   */
+  synchronized JSONObject metadata(MetadataMapping mapping, String[] values) {
+    Payloads entry = entry(mapping.channel(values));
+    for (int i = 0; i < METADATA_VARIANTS; i++) {
+      if (entry.mappings[i] == mapping && Arrays.equals(entry.values[i], values)) {
+        hits++;
+        return entry.metadata[i];
+      }
+    }
+
+    misses++;
+    JSONObject metadata;
+    try {
+      metadata = mapping.metadata(values);
+    } catch (JSONException e) {
+      logger.error(e, "Failed to send loadMetadata event");
+      metadata = new JSONObject();
+    }
+
+    // replace the oldest variant, a channel rarely alternates between more than a few
+    int slot = entry.nextVariant;
+    entry.nextVariant = (slot + 1) % METADATA_VARIANTS;
+    entry.mappings[slot] = mapping;
+    entry.values[slot] = values;
+    entry.metadata[slot] = metadata;
+    return metadata;
+  }
+
+  private Payloads entry(String channel) {
+    Payloads entry = entries.get(channel);
+    if (entry == null) {
+      entry = new Payloads();
+      // with caching disabled the entry is simply never stored
+      if (maxSize > 0) entries.put(channel, entry);
+    }
+    return entry;
+  }
+
+  /** Evicts the least recently used channels until at most {@code size} remain. */
+  synchronized void trimToSize(int size) {
+    Iterator<String> iterator = entries.keySet().iterator();
+    while (entries.size() > size && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  synchronized long evictions() {
+    return evictions;
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+      trimToSize(0);
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      trimToSize(maxSize / 2);
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    trimToSize(0);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+    // payloads do not depend on the configuration
+  }
+
+  private static final class Payloads {
+    JSONObject channelInfo;
+    final MetadataMapping[] mappings = new MetadataMapping[METADATA_VARIANTS];
+    final String[][] values = new String[METADATA_VARIANTS][];
+    final JSONObject[] metadata = new JSONObject[METADATA_VARIANTS];
+    int nextVariant;
+  }
+}
@@ -0,0 +1,15 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+/** Monotonic time source, replaced by a virtual clock in tests. */
+interface Clock {
+  Clock SYSTEM =
+      new Clock() {
+        @Override
+        public long uptimeMillis() {
+          return System.nanoTime() / 1000000L;
+        }
+      };
+
+  /** @return milliseconds since an arbitrary, fixed origin */
+  long uptimeMillis();
+}
@@ -0,0 +1,146 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.json.JSONObject;
+
+/**
+ * Collapses the play/stop storms caused by buffering and seeking. A stop is held back for the
+ * coalescing window: if a play for the same channel follows within the window both calls are
+ * dropped, otherwise the stop is forwarded once the window expires. Repeated stops, and repeated
+ * plays of the same channel, are forwarded once.
+ */
+class CoalescingDispatcher implements AppSdkDispatcher {
+  private static final int NONE = 0;
+  private static final int PLAY = 1;
+  private static final int STOP = 2;
+
+  private final AppSdkDispatcher target;
+  private final long windowMillis;
+  private final Clock clock;
+  private final TimerWheel timers;
+  private final TimerWheel.Timeout expireTimeout =
+      new TimerWheel.Timeout() {
+        @Override
+        public void run() {
+          expirePendingStop();
+        }
+      };
+
+  private int lastDirection = NONE;
+  private String lastChannel;
+  private boolean stopPending;
+  private long stopDeadline;
+  private long suppressed;
+
+  /**
+   * @param target dispatcher that receives the calls surviving coalescing
+   * @param windowMillis how long a stop is held back waiting for a matching play
+   * @param clock time source for the coalescing window
+   * @param timers timer wheel forwarding a held back stop once the window expires
+   */
+  CoalescingDispatcher(AppSdkDispatcher target, long windowMillis, Clock clock, TimerWheel timers) {
+    this.target = target;
+    this.windowMillis = windowMillis;
+    this.clock = clock;
+    this.timers = timers;
+  }
+
+  @Override
+  public synchronized void play(JSONObject channelInfo) {
+    String channel = channelInfo.optString("channelName");
+
+    if (stopPending) {
+      stopPending = false;
+      timers.cancel(expireTimeout);
+      if (channel.equals(lastChannel) && clock.uptimeMillis() < stopDeadline) {
+        // stop -> play of the same channel within the window, nothing changed for Nielsen
+        suppressed += 2;
+        return;
+      }
+      forwardStop();
+    } else if (lastDirection == PLAY && channel.equals(lastChannel)) {
+      suppressed++;
+      return;
+    }
+
+    lastDirection = PLAY;
+    lastChannel = channel;
+    target.play(channelInfo);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (stopPending || lastDirection == STOP) {
+      suppressed++;
+      return;
+    }
+
+    stopPending = true;
+    stopDeadline = clock.uptimeMillis() + windowMillis;
+    timers.schedule(expireTimeout, windowMillis);
+  }
+
+  @Override
+  public synchronized void loadMetadata(JSONObject metadata) {
+    forwardPendingStop();
+    target.loadMetadata(metadata);
+  }
+
+  @Override
+  public synchronized void sendID3(String id3) {
+    forwardPendingStop();
+    target.sendID3(id3);
+  }
+
+  @Override
+  public synchronized void end() {
+    forwardPendingStop();
+    lastDirection = NONE;
+    lastChannel = null;
+    target.end();
+  }
+
+  @Override
+  public void flush() {
+    synchronized (this) {
+      forwardPendingStop();
+    }
+    target.flush();
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (this) {
+      forwardPendingStop();
+    }
+    target.shutdown();
+  }
+
+  @Override
+  public DispatcherStats stats() {
+    long suppressed;
+    synchronized (this) {
+      suppressed = this.suppressed;
+    }
+    return target.stats().withCoalesced(suppressed);
+  }
+
+  /** Forwards the held back stop if its coalescing window has expired. */
+  synchronized void expirePendingStop() {
+    if (stopPending && clock.uptimeMillis() >= stopDeadline) {
+      forwardPendingStop();
+    }
+  }
+
+  private void forwardPendingStop() {
+    if (stopPending) {
+      stopPending = false;
+      timers.cancel(expireTimeout);
+      forwardStop();
+    }
+  }
+
+  private void forwardStop() {
+    lastDirection = STOP;
+    target.stop();
+  }
+}
@@ -0,0 +1,306 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defers constructing the AppSdk instance until the first call is dispatched, so apps pay for it
+ * only once a video event arrives and never on the thread creating the integration. The instance
+ * is constructed on a background thread; calls dispatched meanwhile are buffered, up to a bound,
+ * and replayed in order once it is ready. A stop or an end before any other call has nothing to
+ * stop, so it is ignored rather than starting the construction.
+ */
+class DeferredDispatcher implements AppSdkDispatcher {
+  static final int DEFAULT_CAPACITY = 32;
+  private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+  /** Builds the dispatcher that calls the AppSdk instance once it is constructed. */
+  interface Target {
+    AppSdkDispatcher create(AppSdkPool.Entry appSdk);
+  }
+
+  private final Callable<AppSdkPool.Entry> constructor;
+  private final Target target;
+  private final AppSdkHolder holder;
+  private final Executor executor;
+  private final Logger logger;
+  private final int capacity;
+  private final CountDownLatch ready = new CountDownLatch(1);
+
+  // set once buffered calls are replayed, so a non-null delegate can be called without the lock
+  private volatile AppSdkDispatcher delegate;
+
+  // guarded by this
+  private final ArrayDeque<Call> buffer = new ArrayDeque<>();
+  private boolean started;
+  private boolean failed;
+  private boolean shutdown;
+  private long dispatched;
+  private long dropped;
+  private long replayed;
+
+  /**
+   * @param constructor constructs or reuses the AppSdk instance, called on the executor
+   * @param target builds the dispatcher calling the instance
+   * @param holder receives the instance once constructed
+   * @param executor runs the construction off the calling thread
+   * @param capacity maximum number of calls buffered during construction, the oldest are dropped
+   * @param logger integration logger
+   */
+  DeferredDispatcher(
+      Callable<AppSdkPool.Entry> constructor,
+      Target target,
+      AppSdkHolder holder,
+      Executor executor,
+      int capacity,
+      Logger logger) {
+    this.constructor = constructor;
+    this.target = target;
+    this.holder = holder;
+    this.executor = executor;
+    this.capacity = Math.max(1, capacity);
+    this.logger = logger;
+  }
+
+  @Override
+  public void play(final JSONObject channelInfo) {
+    AppSdkDispatcher delegate = this.delegate;
+    if (delegate == null) {
+      delegate =
+          buffer(
+              new Call() {
+                @Override
+                public void run(AppSdkDispatcher target) {
+                  target.play(channelInfo);
+                }
+              },
+              true);
+      if (delegate == null) return;
+    }
+    delegate.play(channelInfo);
+  }
+
+  @Override
+  public void loadMetadata(final JSONObject metadata) {
+    AppSdkDispatcher delegate = this.delegate;
+    if (delegate == null) {
+      delegate =
+          buffer(
+              new Call() {
+                @Override
+                public void run(AppSdkDispatcher target) {
+                  target.loadMetadata(metadata);
+                }
+              },
+              true);
+      if (delegate == null) return;
+    }
+    delegate.loadMetadata(metadata);
+  }
+
+  @Override
+  public void stop() {
+    AppSdkDispatcher delegate = this.delegate;
+    if (delegate == null) {
+      delegate =
+          buffer(
+              new Call() {
+                @Override
+                public void run(AppSdkDispatcher target) {
+                  target.stop();
+                }
+              },
+              false);
+      if (delegate == null) return;
+    }
+    delegate.stop();
+  }
+
+  @Override
+  public void sendID3(final String id3) {
+    AppSdkDispatcher delegate = this.delegate;
+    if (delegate == null) {
+      delegate =
+          buffer(
+              new Call() {
+                @Override
+                public void run(AppSdkDispatcher target) {
+                  target.sendID3(id3);
+                }
+              },
+              true);
+      if (delegate == null) return;
+    }
+    delegate.sendID3(id3);
+  }
+
+  @Override
+  public void end() {
+    AppSdkDispatcher delegate = this.delegate;
+    if (delegate == null) {
+      delegate =
+          buffer(
+              new Call() {
+                @Override
+                public void run(AppSdkDispatcher target) {
+                  target.end();
+                }
+              },
+              false);
+      if (delegate == null) return;
+    }
+    delegate.end();
+  }
+
+  @Override
+  public void flush() {
+    AppSdkDispatcher delegate;
+    synchronized (this) {
+      delegate = this.delegate;
+      if (delegate == null && !started) return;
+    }
+
+    if (delegate == null) {
+      try {
+        if (!ready.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          logger.debug("Timed out waiting for the Nielsen SDK to be constructed");
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      synchronized (this) {
+        delegate = this.delegate;
+      }
+    }
+
+    if (delegate != null) delegate.flush();
+  }
+
+  @Override
+  public void shutdown() {
+    AppSdkDispatcher delegate;
+    synchronized (this) {
+      shutdown = true;
+      delegate = this.delegate;
+    }
+    // if still constructing, the delegate is shut down once the replay completes
+    if (delegate != null) delegate.shutdown();
+  }
+
+  @Override
+  public DispatcherStats stats() {
+    AppSdkDispatcher delegate;
+    int pending;
+    long dispatched;
+    long dropped;
+    long replayed;
+    synchronized (this) {
+      delegate = this.delegate;
+      pending = buffer.size();
+      dispatched = this.dispatched;
+      dropped = this.dropped;
+      replayed = this.replayed;
+    }
+
+    if (delegate == null) {
+      return new DispatcherStats(pending, dispatched, dropped, 0, 0, 0, 0).withReplayed(replayed);
+    }
+    // replayed calls are already counted by the delegate
+    return delegate.stats().withReplayed(replayed).plus(dispatched - replayed, dropped);
+  }
+
+  /**
+   * buffers {@code call} if the AppSdk instance is not constructed yet, starting its construction
+   * on the first call
+   *
+   * @param starts whether the call starts the construction, false for calls that only stop what
+   *     earlier calls started
+   * @return the dispatcher to forward the call to, or null if the call was buffered or dropped
+   */
+  private synchronized AppSdkDispatcher buffer(Call call, boolean starts) {
+    if (delegate != null) return delegate;
+    if (!started && !starts) return null;
+
+    dispatched++;
+    if (failed || shutdown) {
+      dropped++;
+      return null;
+    }
+
+    if (buffer.size() == capacity) {
+      buffer.poll();
+      dropped++;
+    }
+    buffer.add(call);
+
+    if (!started) {
+      started = true;
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              construct();
+            }
+          });
+    }
+    return null;
+  }
+
+  private void construct() {
+    long start = System.nanoTime();
+    AppSdkPool.Entry entry;
+    try {
+      entry = constructor.call();
+    } catch (Exception e) {
+      logger.error(e, "Failed to initialize Nielsen SDK");
+      synchronized (this) {
+        failed = true;
+        dropped += buffer.size();
+        buffer.clear();
+      }
+      ready.countDown();
+      return;
+    }
+    long constructionNanos = System.nanoTime() - start;
+
+    AppSdkDispatcher delegate = target.create(entry);
+    boolean shutdown;
+    int replayed;
+    synchronized (this) {
+      // replay under the lock, so calls dispatched meanwhile queue up behind the buffered ones
+      replayed = buffer.size();
+      this.replayed = replayed;
+      while (!buffer.isEmpty()) {
+        buffer.poll().run(delegate);
+      }
+      this.delegate = delegate;
+      shutdown = this.shutdown;
+    }
+    if (shutdown) {
+      // replayed calls reach the instance before a closed session releases it
+      delegate.flush();
+      delegate.shutdown();
+    }
+    holder.set(entry, constructionNanos);
+    ready.countDown();
+
+    logger.debug(
+        "Constructed Nielsen SDK in %d ms, replayed %d calls",
+        TimeUnit.NANOSECONDS.toMillis(constructionNanos),
+        replayed);
+  }
+
+  /** A call buffered until the AppSdk instance is constructed. */
+  private interface Call {
+    void run(AppSdkDispatcher target);
+  }
+}
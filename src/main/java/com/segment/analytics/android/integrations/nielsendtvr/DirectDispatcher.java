@@ -0,0 +1,156 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls the AppSdk instance synchronously on the thread that dispatches the call, recording each
+ * call in the call trace of the integration. Calls that another session sharing the instance
+ * already covers are dropped by the {@link AppSdkCoordinator} of the instance.
+ */
+class DirectDispatcher implements AppSdkDispatcher {
+  private final AppSdk appSdk;
+  private final AppSdkCoordinator.Player player;
+  private final String sessionId;
+  private final Logger logger;
+  private final AppSdkMetrics metrics;
+  private final CallTrace trace;
+  private final AtomicLong executed = new AtomicLong();
+
+  /**
+   * @param appSdk the AppSdk instance to call
+   * @param sessionId session of the AppSdk instance, or null for the default session
+   * @param logger logger to dump the call trace to when a call fails
+   * @param metrics recorder of the AppSdk call counts and latencies
+   * @param trace ring of the last calls
+   */
+  DirectDispatcher(
+      AppSdk appSdk, String sessionId, Logger logger, AppSdkMetrics metrics, CallTrace trace) {
+    this(appSdk, AppSdkCoordinator.NONE, sessionId, logger, metrics, trace);
+  }
+
+  /**
+   * @param appSdk the AppSdk instance to call
+   * @param coordinator state shared by every session calling {@code appSdk}
+   * @param sessionId session of the AppSdk instance, or null for the default session
+   * @param logger logger to dump the call trace to when a call fails
+   * @param metrics recorder of the AppSdk call counts and latencies
+   * @param trace ring of the last calls
+   */
+  DirectDispatcher(
+      AppSdk appSdk,
+      AppSdkCoordinator coordinator,
+      String sessionId,
+      Logger logger,
+      AppSdkMetrics metrics,
+      CallTrace trace) {
+    this.appSdk = appSdk;
+    this.player = coordinator.join();
+    this.sessionId = sessionId;
+    this.logger = logger;
+    this.metrics = metrics;
+    this.trace = trace;
+  }
+
+  @Override
+  public void play(JSONObject channelInfo) {
+    if (!player.play(channel(channelInfo))) return;
+    long start = System.nanoTime();
+    try {
+      appSdk.play(channelInfo);
+    } catch (RuntimeException e) {
+      fail(AppSdkMetrics.PLAY, channelInfo, start);
+      throw e;
+    }
+    record(AppSdkMetrics.PLAY, channelInfo, start);
+  }
+
+  @Override
+  public void loadMetadata(JSONObject metadata) {
+    long start = System.nanoTime();
+    try {
+      appSdk.loadMetadata(metadata);
+    } catch (RuntimeException e) {
+      fail(AppSdkMetrics.LOAD_METADATA, metadata, start);
+      throw e;
+    }
+    record(AppSdkMetrics.LOAD_METADATA, metadata, start);
+  }
+
+  @Override
+  public void stop() {
+    if (!player.stop()) return;
+    long start = System.nanoTime();
+    try {
+      appSdk.stop();
+    } catch (RuntimeException e) {
+      fail(AppSdkMetrics.STOP, null, start);
+      throw e;
+    }
+    record(AppSdkMetrics.STOP, null, start);
+  }
+
+  @Override
+  public void sendID3(String id3) {
+    if (!player.sendID3(id3)) return;
+    long start = System.nanoTime();
+    try {
+      appSdk.sendID3(id3);
+    } catch (RuntimeException e) {
+      fail(AppSdkMetrics.SEND_ID3, id3, start);
+      throw e;
+    }
+    record(AppSdkMetrics.SEND_ID3, id3, start);
+  }
+
+  @Override
+  public void end() {
+    if (!player.end()) return;
+    long start = System.nanoTime();
+    try {
+      appSdk.end();
+    } catch (RuntimeException e) {
+      fail(AppSdkMetrics.END, null, start);
+      throw e;
+    }
+    record(AppSdkMetrics.END, null, start);
+  }
+
+  @Override
+  public void flush() {
+    // calls are never queued
+  }
+
+  @Override
+  public void shutdown() {
+    // a session detached while playing leaves the instance measuring for the sessions left
+    player.leave();
+  }
+
+  private static String channel(JSONObject channelInfo) {
+    return channelInfo == null ? null : channelInfo.optString(MetadataMapping.CHANNEL_NAME, null);
+  }
+
+  private void record(int method, Object payload, long start) {
+    long nanos = System.nanoTime() - start;
+    metrics.record(method, nanos);
+    trace.record(method, sessionId, payload, nanos, false);
+    executed.incrementAndGet();
+  }
+
+  private void fail(int method, Object payload, long start) {
+    trace.record(method, sessionId, payload, System.nanoTime() - start, true);
+    trace.dumpOnError(logger);
+  }
+
+  @Override
+  public DispatcherStats stats() {
+    long executed = this.executed.get();
+    return new DispatcherStats(0, executed, 0, executed, 0, 0, 0)
+        .withShared(player.suppressedCalls(), player.duplicateId3Tags());
+  }
+}
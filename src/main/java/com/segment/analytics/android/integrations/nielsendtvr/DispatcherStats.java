@@ -0,0 +1,232 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+/** Immutable snapshot of the counters of the dispatcher that forwards calls to the AppSdk. */
+public final class DispatcherStats {
+  private final int queueDepth;
+  private final long dispatched;
+  private final long dropped;
+  private final long executed;
+  private final long totalWaitNanos;
+  private final long maxWaitNanos;
+  private final long coalesced;
+  private final long replayed;
+  private final long sharedCalls;
+  private final long sharedId3Tags;
+
+  DispatcherStats(
+      int queueDepth,
+      long dispatched,
+      long dropped,
+      long executed,
+      long totalWaitNanos,
+      long maxWaitNanos,
+      long coalesced) {
+    this(
+        queueDepth,
+        dispatched,
+        dropped,
+        executed,
+        totalWaitNanos,
+        maxWaitNanos,
+        coalesced,
+        0,
+        0,
+        0);
+  }
+
+  private DispatcherStats(
+      int queueDepth,
+      long dispatched,
+      long dropped,
+      long executed,
+      long totalWaitNanos,
+      long maxWaitNanos,
+      long coalesced,
+      long replayed,
+      long sharedCalls,
+      long sharedId3Tags) {
+    this.queueDepth = queueDepth;
+    this.dispatched = dispatched;
+    this.dropped = dropped;
+    this.executed = executed;
+    this.totalWaitNanos = totalWaitNanos;
+    this.maxWaitNanos = maxWaitNanos;
+    this.coalesced = coalesced;
+    this.replayed = replayed;
+    this.sharedCalls = sharedCalls;
+    this.sharedId3Tags = sharedId3Tags;
+  }
+
+  DispatcherStats withCoalesced(long coalesced) {
+    return new DispatcherStats(
+        queueDepth,
+        dispatched,
+        dropped,
+        executed,
+        totalWaitNanos,
+        maxWaitNanos,
+        coalesced,
+        replayed,
+        sharedCalls,
+        sharedId3Tags);
+  }
+
+  DispatcherStats withReplayed(long replayed) {
+    return new DispatcherStats(
+        queueDepth,
+        dispatched,
+        dropped,
+        executed,
+        totalWaitNanos,
+        maxWaitNanos,
+        coalesced,
+        replayed,
+        sharedCalls,
+        sharedId3Tags);
+  }
+
+  DispatcherStats withShared(long sharedCalls, long sharedId3Tags) {
+    return new DispatcherStats(
+        queueDepth,
+        dispatched,
+        dropped,
+        executed,
+        totalWaitNanos,
+        maxWaitNanos,
+        coalesced,
+        replayed,
+        sharedCalls,
+        sharedId3Tags);
+  }
+
+  /** @return stats that also count calls dispatched, and dropped, before reaching the delegate */
+  DispatcherStats plus(long dispatched, long dropped) {
+    return new DispatcherStats(
+        queueDepth,
+        this.dispatched + dispatched,
+        this.dropped + dropped,
+        executed,
+        totalWaitNanos,
+        maxWaitNanos,
+        coalesced,
+        replayed,
+        sharedCalls,
+        sharedId3Tags);
+  }
+
+  /** @return stats summing the calls of both dispatchers */
+  DispatcherStats plus(DispatcherStats other) {
+    return new DispatcherStats(
+        queueDepth + other.queueDepth,
+        dispatched + other.dispatched,
+        dropped + other.dropped,
+        executed + other.executed,
+        totalWaitNanos + other.totalWaitNanos,
+        Math.max(maxWaitNanos, other.maxWaitNanos),
+        coalesced + other.coalesced,
+        replayed + other.replayed,
+        sharedCalls + other.sharedCalls,
+        sharedId3Tags + other.sharedId3Tags);
+  }
+
+  DispatcherStats withQueueDepth(int queueDepth) {
+    return new DispatcherStats(
+        queueDepth,
+        dispatched,
+        dropped,
+        executed,
+        totalWaitNanos,
+        maxWaitNanos,
+        coalesced,
+        replayed,
+        sharedCalls,
+        sharedId3Tags);
+  }
+
+  /** @return number of calls waiting to be executed at the time of the snapshot */
+  public int queueDepth() {
+    return queueDepth;
+  }
+
+  /** @return number of calls handed to the dispatcher */
+  public long dispatched() {
+    return dispatched;
+  }
+
+  /** @return number of calls dropped by the overflow policy */
+  public long dropped() {
+    return dropped;
+  }
+
+  /** @return number of calls that reached the AppSdk instance */
+  public long executed() {
+    return executed;
+  }
+
+  /** @return total time executed calls spent waiting in the queue, in nanoseconds */
+  public long totalWaitNanos() {
+    return totalWaitNanos;
+  }
+
+  /** @return longest time a single call spent waiting in the queue, in nanoseconds */
+  public long maxWaitNanos() {
+    return maxWaitNanos;
+  }
+
+  /** @return average time executed calls spent waiting in the queue, in nanoseconds */
+  public long averageWaitNanos() {
+    return executed == 0 ? 0 : totalWaitNanos / executed;
+  }
+
+  /** @return number of play and stop calls suppressed by coalescing buffer and seek storms */
+  public long coalesced() {
+    return coalesced;
+  }
+
+  /**
+   * @return number of calls buffered while the AppSdk instance was constructed, and replayed once
+   *     it was ready
+   */
+  public long replayed() {
+    return replayed;
+  }
+
+  /**
+   * @return number of play, stop and end calls not forwarded as another session sharing the AppSdk
+   *     instance already covered them
+   */
+  public long sharedCalls() {
+    return sharedCalls;
+  }
+
+  /** @return number of ID3 tags not forwarded as another session sharing the instance sent them */
+  public long sharedId3Tags() {
+    return sharedId3Tags;
+  }
+
+  @Override
+  public String toString() {
+    return "DispatcherStats{"
+        + "queueDepth="
+        + queueDepth
+        + ", dispatched="
+        + dispatched
+        + ", dropped="
+        + dropped
+        + ", executed="
+        + executed
+        + ", averageWaitNanos="
+        + averageWaitNanos()
+        + ", maxWaitNanos="
+        + maxWaitNanos
+        + ", coalesced="
+        + coalesced
+        + ", replayed="
+        + replayed
+        + ", sharedCalls="
+        + sharedCalls
+        + ", sharedId3Tags="
+        + sharedId3Tags
+        + '}';
+  }
+}
@@ -0,0 +1,189 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps Segment event names to the Nielsen App SDK actions they trigger. The table is compiled once
+ * by {@link NielsenDTVRIntegrationFactory} and looked up on every track call, so lookups are case
+ * insensitive without lowercasing the event name, and the table is sized so that every event
+ * resolves with a single probe.
+ */
+final class EventDispatchTable {
+  static final int ACTION_NONE = 0;
+  static final int ACTION_PLAY = 1;
+  static final int ACTION_LOAD_METADATA = 1 << 1;
+  static final int ACTION_STOP = 1 << 2;
+  static final int ACTION_SEND_ID3 = 1 << 3;
+  /** Calls nothing, only shows the player is alive to the idle auto-stop. */
+  static final int ACTION_HEARTBEAT = 1 << 4;
+  /**
+   * Marks a stop as caused by the app going to the background, so the sessions it stops while
+   * playing resume once the app returns to the foreground.
+   */
+  static final int ACTION_BACKGROUND = 1 << 5;
+
+  /** Largest table we are willing to allocate while looking for a collision free layout. */
+  private static final int MAX_CAPACITY = 1 << 14;
+
+  private final String[] names;
+  private final int[] hashes;
+  private final int[] actions;
+  private final int mask;
+  // false once every name owns its home slot, so a lookup stops at the first slot
+  private final boolean probing;
+
+  private EventDispatchTable(String[] names, int[] hashes, int[] actions, boolean probing) {
+    this.names = names;
+    this.hashes = hashes;
+    this.actions = actions;
+    this.mask = names.length - 1;
+    this.probing = probing;
+  }
+
+  /**
+   * @param event name of the Segment track event
+   * @return bit set of {@code ACTION_*} flags, or {@link #ACTION_NONE} if the event is not mapped
+   */
+  int actionsFor(String event) {
+    if (event == null) return ACTION_NONE;
+
+    int hash = hash(event);
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      String name = names[i];
+      if (name == null) return ACTION_NONE;
+      if (hashes[i] == hash
+          && name.length() == event.length()
+          && name.regionMatches(true, 0, event, 0, event.length())) {
+        return actions[i];
+      }
+      if (!probing) return ACTION_NONE;
+    }
+  }
+
+  /** @return number of mapped event names */
+  int size() {
+    int size = 0;
+    for (String name : names) {
+      if (name != null) size++;
+    }
+    return size;
+  }
+
+  /**
+   * @param action name of an action as used in integration settings
+   * @return matching {@code ACTION_*} flag, or {@link #ACTION_NONE} if the name is unknown
+   */
+  static int parseAction(String action) {
+    if ("play".equalsIgnoreCase(action)) return ACTION_PLAY;
+    if ("loadMetadata".equalsIgnoreCase(action)) return ACTION_LOAD_METADATA;
+    if ("stop".equalsIgnoreCase(action)) return ACTION_STOP;
+    if ("sendID3".equalsIgnoreCase(action)) return ACTION_SEND_ID3;
+    if ("heartbeat".equalsIgnoreCase(action)) return ACTION_HEARTBEAT;
+    if ("background".equalsIgnoreCase(action)) return ACTION_BACKGROUND;
+    return ACTION_NONE;
+  }
+
+  /**
+   * case insensitive string hash, consistent with {@link String#regionMatches(boolean, int, String,
+   * int, int)} ignoring case
+   */
+  static int hash(String s) {
+    int h = 0;
+    for (int i = 0, length = s.length(); i < length; i++) {
+      h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+    }
+    // spread higher bits downwards, since only the low bits select a slot
+    return h ^ (h >>> 16);
+  }
+
+  static final class Builder {
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /** Adds the mapping of Segment video spec events documented for Nielsen DTVR. */
+    Builder putDefaults() {
+      put("Video Content Started", ACTION_PLAY | ACTION_LOAD_METADATA);
+      put("Video Playback Resumed", ACTION_PLAY);
+      put("Video Playback Seek Completed", ACTION_PLAY);
+      put("Video Playback Buffer Completed", ACTION_PLAY);
+      put("Video Playback Paused", ACTION_STOP);
+      put("Video Playback Interrupted", ACTION_STOP);
+      put("Video Content Completed", ACTION_STOP);
+      put("Video Playback Buffer Started", ACTION_STOP);
+      put("Video Playback Seek Started", ACTION_STOP);
+      // Nielsen requested Video Playback Completed and Video Playback Exited to map to stop, as
+      // end is not used for DTVR
+      put("Video Playback Exited", ACTION_STOP);
+      put("Video Playback Completed", ACTION_STOP);
+      put("Application Backgrounded", ACTION_STOP | ACTION_BACKGROUND);
+      // heartbeat sent by the Segment video spec every few seconds of playback
+      put("Video Content Playing", ACTION_HEARTBEAT);
+      return this;
+    }
+
+    /** Replaces the actions mapped to {@code event}. */
+    Builder put(String event, int actions) {
+      entries.put(event.toLowerCase(Locale.US), new Entry(event, actions));
+      return this;
+    }
+
+    /** Adds {@code actions} to the ones already mapped to {@code event}. */
+    Builder add(String event, int actions) {
+      Entry entry = entries.get(event.toLowerCase(Locale.US));
+      return put(event, entry == null ? actions : entry.actions | actions);
+    }
+
+    EventDispatchTable build() {
+      int count = 0;
+      for (Entry entry : entries.values()) {
+        if (entry.actions != ACTION_NONE) count++;
+      }
+
+      int capacity = 2;
+      while (capacity < count * 2) capacity <<= 1;
+
+      // grow until every name owns its home slot, so lookups never have to probe further
+      EventDispatchTable table = layout(capacity, true);
+      while (table == null && capacity < MAX_CAPACITY) {
+        capacity <<= 1;
+        table = layout(capacity, true);
+      }
+
+      return table != null ? table : layout(capacity, false);
+    }
+
+    private EventDispatchTable layout(int capacity, boolean requireHomeSlot) {
+      String[] names = new String[capacity];
+      int[] hashes = new int[capacity];
+      int[] actions = new int[capacity];
+      int mask = capacity - 1;
+
+      for (Entry entry : entries.values()) {
+        if (entry.actions == ACTION_NONE) continue;
+
+        int hash = hash(entry.name);
+        int i = hash & mask;
+        while (names[i] != null) {
+          if (requireHomeSlot) return null;
+          i = (i + 1) & mask;
+        }
+        names[i] = entry.name;
+        hashes[i] = hash;
+        actions[i] = entry.actions;
+      }
+
+      return new EventDispatchTable(names, hashes, actions, !requireHomeSlot);
+    }
+  }
+
+  private static final class Entry {
+    final String name;
+    final int actions;
+
+    Entry(String name, int actions) {
+      this.name = name;
+      this.actions = actions;
+    }
+  }
+}
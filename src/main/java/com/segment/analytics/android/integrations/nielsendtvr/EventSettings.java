@@ -0,0 +1,51 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The settings deciding which Nielsen calls a track event triggers and with which payloads,
+ * compiled once per settings refresh. Instances are immutable, so a refresh replaces them in the
+ * live integration with a single write while events are being tracked.
+ */
+final class EventSettings {
+  final EventDispatchTable dispatchTable;
+  final PropertyPath id3Property;
+  final MetadataMapping metadataMapping;
+  /** Paths of the properties read from track events, without duplicates, for {@link EventTrace}. */
+  final PropertyPath[] properties;
+
+  /**
+   * @param dispatchTable dispatch table routing track events to Nielsen actions
+   * @param id3PropertyName name of the property holding the ID3 tag
+   */
+  EventSettings(EventDispatchTable dispatchTable, String id3PropertyName) {
+    this(dispatchTable, id3PropertyName, MetadataMapping.DEFAULT);
+  }
+
+  /**
+   * @param dispatchTable dispatch table routing track events to Nielsen actions
+   * @param id3PropertyName path of the property holding the ID3 tag
+   * @param metadataMapping mapping of event properties to the Nielsen metadata
+   */
+  EventSettings(
+      EventDispatchTable dispatchTable, String id3PropertyName, MetadataMapping metadataMapping) {
+    this.dispatchTable = dispatchTable;
+    this.id3Property = PropertyPath.parse(id3PropertyName);
+    this.metadataMapping = metadataMapping;
+
+    List<PropertyPath> paths = metadataMapping.paths();
+    paths.add(id3Property);
+    this.properties = distinct(paths);
+  }
+
+  /** @return {@code paths} without the paths repeating an earlier one */
+  static PropertyPath[] distinct(List<PropertyPath> paths) {
+    Map<String, PropertyPath> distinct = new LinkedHashMap<>();
+    for (PropertyPath path : paths) {
+      if (!distinct.containsKey(path.toString())) distinct.put(path.toString(), path);
+    }
+    return distinct.values().toArray(new PropertyPath[0]);
+  }
+}
@@ -0,0 +1,292 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recording of the track events reaching the integration, with the properties it reads, so that
+ * production event streams can be replayed offline against a stub AppSdk. See {@code TraceReplay}
+ * in the benchmarks module. Properties are recorded by their path, such as {@code video.channel},
+ * and nested again when the trace is read.
+ *
+ * <p>Events are buffered in memory and written when the integration is flushed. Recording stops
+ * once the file reaches {@code maxBytes}. Event names, property paths and short values repeat a
+ * lot, so each is written once and then referred to by its index in a dictionary.
+ *
+ * <pre>
+ *   header   int magic, byte version
+ *   event    varint milliseconds since the previous event, string event name, varint number of
+ *            properties, then each property as string path and string value
+ *   string   varint 0 and the string in modified UTF-8, not added to the dictionary
+ *            varint 1 and the string in modified UTF-8, added to the dictionary
+ *            varint n + 2 for entry n of the dictionary
+ * </pre>
+ */
+final class EventTrace {
+  static final EventTrace NONE =
+      new EventTrace(null, 0, new ArrayList<PropertyPath>(), Clock.SYSTEM, null);
+
+  static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  private static final int MAGIC = 0x4e445452;
+  private static final byte VERSION = 1;
+  private static final int MAX_DICTIONARY_SIZE = 1024;
+  // longer strings, like ID3 tags, rarely repeat
+  private static final int MAX_DICTIONARY_LENGTH = 64;
+
+  private static final int LITERAL = 0;
+  private static final int NEW_ENTRY = 1;
+  private static final int FIRST_ENTRY = 2;
+
+  private final long maxBytes;
+  private final List<PropertyPath> sessionProperties;
+  private final Clock clock;
+  private final Logger logger;
+
+  // guarded by this
+  private final Map<String, Integer> dictionary = new HashMap<>();
+  private final List<String> properties = new ArrayList<>();
+  private DataOutputStream out;
+  private long lastEventMillis;
+  // paths recorded for the last event settings, rebuilt when settings are refreshed
+  private EventSettings eventSettings;
+  private PropertyPath[] paths;
+
+  private EventTrace(
+      DataOutputStream out,
+      long maxBytes,
+      List<PropertyPath> sessionProperties,
+      Clock clock,
+      Logger logger) {
+    this.out = out;
+    this.maxBytes = maxBytes;
+    this.sessionProperties = sessionProperties;
+    this.clock = clock;
+    this.logger = logger;
+    this.lastEventMillis = clock.uptimeMillis();
+  }
+
+  /**
+   * starts a new trace in {@code file}, replacing the previous one
+   *
+   * @param file trace file
+   * @param maxBytes size after which recording stops
+   * @param sessionProperties paths of the properties selecting the session of an event, such as
+   *     the session key and app id route, recorded besides those of the event settings
+   * @param clock clock timing the events
+   * @param logger integration logger
+   * @return the trace, or {@link #NONE} if the file cannot be written
+   */
+  static EventTrace open(
+      File file,
+      long maxBytes,
+      List<PropertyPath> sessionProperties,
+      Clock clock,
+      Logger logger) {
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      logger.debug("Recording Nielsen event trace to %s", file);
+      return new EventTrace(out, maxBytes, sessionProperties, clock, logger);
+    } catch (IOException e) {
+      logger.error(e, "Failed to open Nielsen event trace %s", file);
+      return NONE;
+    }
+  }
+
+  /**
+   * appends a track event
+   *
+   * @param event name of the event
+   * @param properties properties of the event
+   * @param eventSettings settings the event is tracked with, naming the properties it reads
+   */
+  synchronized void record(String event, Properties properties, EventSettings eventSettings) {
+    if (out == null) return;
+
+    if (eventSettings != this.eventSettings) {
+      List<PropertyPath> paths = new ArrayList<>(sessionProperties);
+      paths.addAll(Arrays.asList(eventSettings.properties));
+      this.paths = EventSettings.distinct(paths);
+      this.eventSettings = eventSettings;
+    }
+    this.properties.clear();
+    for (PropertyPath path : paths) addProperty(properties, path);
+
+    long now = clock.uptimeMillis();
+    try {
+      writeVarint(out, Math.max(0, now - lastEventMillis));
+      writeString(event == null ? "" : event);
+      writeVarint(out, this.properties.size() / 2);
+      for (int i = 0, size = this.properties.size(); i < size; i++) {
+        writeString(this.properties.get(i));
+      }
+    } catch (IOException e) {
+      logger.error(e, "Failed to write Nielsen event trace, disabling it");
+      close();
+      return;
+    }
+    lastEventMillis = now;
+
+    if (out.size() >= maxBytes) {
+      logger.debug("Nielsen event trace reached %d bytes, recording stopped", out.size());
+      close();
+    }
+  }
+
+  // guarded by this
+  private void addProperty(Properties properties, PropertyPath path) {
+    String value = path.read(properties);
+    if (value == null) return;
+    this.properties.add(path.toString());
+    this.properties.add(value);
+  }
+
+  /** writes the buffered events to the file */
+  synchronized void flush() {
+    if (out == null) return;
+    try {
+      out.flush();
+    } catch (IOException e) {
+      logger.error(e, "Failed to write Nielsen event trace, disabling it");
+      close();
+    }
+  }
+
+  synchronized void close() {
+    if (out == null) return;
+    try {
+      out.close();
+    } catch (IOException ignored) {
+      // the events that could not be written are lost either way
+    }
+    out = null;
+  }
+
+  // guarded by this
+  private void writeString(String value) throws IOException {
+    Integer index = dictionary.get(value);
+    if (index != null) {
+      writeVarint(out, index + FIRST_ENTRY);
+    } else if (dictionary.size() < MAX_DICTIONARY_SIZE && value.length() <= MAX_DICTIONARY_LENGTH) {
+      writeVarint(out, NEW_ENTRY);
+      out.writeUTF(value);
+      dictionary.put(value, dictionary.size());
+    } else {
+      writeVarint(out, LITERAL);
+      out.writeUTF(value);
+    }
+  }
+
+  private static void writeVarint(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /** A track event read back from a trace. */
+  static final class Event {
+    /** milliseconds since the previous event */
+    final long delayMillis;
+
+    final String name;
+    final Properties properties;
+
+    Event(long delayMillis, String name, Properties properties) {
+      this.delayMillis = delayMillis;
+      this.name = name;
+      this.properties = properties;
+    }
+  }
+
+  /** Reads the events of a trace in order. */
+  static final class Reader implements Closeable {
+    private final DataInputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, PropertyPath> paths = new HashMap<>();
+
+    /** @throws IOException if the stream is not a trace */
+    Reader(InputStream in) throws IOException {
+      this.in = new DataInputStream(in);
+      if (this.in.readInt() != MAGIC || this.in.readByte() != VERSION) {
+        throw new IOException("Not a Nielsen event trace");
+      }
+    }
+
+    /**
+     * @return the next event, or null at the end of the trace, including when the last event was
+     *     cut short because the process died before it was written
+     * @throws IOException if the trace cannot be read
+     */
+    Event next() throws IOException {
+      try {
+        long delayMillis = readVarint();
+        String name = readString();
+        long count = readVarint();
+        Properties properties = new Properties();
+        for (long i = 0; i < count; i++) {
+          PropertyPath path = path(readString());
+          path.write(properties, readString());
+        }
+        return new Event(delayMillis, name, properties);
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private PropertyPath path(String name) {
+      PropertyPath path = paths.get(name);
+      if (path == null) {
+        path = PropertyPath.parse(name);
+        paths.put(name, path);
+      }
+      return path;
+    }
+
+    private String readString() throws IOException {
+      long ref = readVarint();
+      if (ref == LITERAL) return in.readUTF();
+      if (ref == NEW_ENTRY) {
+        String value = in.readUTF();
+        dictionary.add(value);
+        return value;
+      }
+      if (ref - FIRST_ENTRY >= dictionary.size()) throw new IOException("Corrupt event trace");
+      return dictionary.get((int) (ref - FIRST_ENTRY));
+    }
+
+    private long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = in.readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IOException("Corrupt event trace");
+    }
+  }
+}
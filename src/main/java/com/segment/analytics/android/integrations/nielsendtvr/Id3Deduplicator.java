@@ -0,0 +1,122 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Filters ID3 tags before they are sent to the AppSdk. A tag is dropped if it matches one of the
+ * last few accepted tags, which also catches tags alternating between renditions or around ad
+ * boundaries, or if it arrives sooner than the minimum interval after the last accepted tag.
+ *
+ * <p>Tags are fingerprinted by hash code and length, and only compared in full when both match,
+ * so steady state filtering neither allocates nor scans whole payloads.
+ */
+final class Id3Deduplicator {
+  static final int DEFAULT_HISTORY_SIZE = 8;
+
+  private final Clock clock;
+  private final long minIntervalMillis;
+  private final String[] tags;
+  private final int[] hashes;
+  private int next;
+  private long lastAcceptedMillis;
+  private boolean accepted;
+
+  private long hits;
+  private long misses;
+  private long rateLimited;
+
+  /**
+   * @param historySize number of recently accepted tags to compare new tags against
+   * @param minIntervalMillis minimum time between two accepted tags, or 0 for no limit
+   * @param clock time source for the rate limit
+   */
+  Id3Deduplicator(int historySize, long minIntervalMillis, Clock clock) {
+    this.tags = new String[Math.max(1, historySize)];
+    this.hashes = new int[tags.length];
+    this.minIntervalMillis = minIntervalMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * @param id3 ID3 tag about to be sent
+   * @return true if the tag must be sent to the AppSdk
+   */
+  boolean accept(String id3) {
+    if (id3 == null) return false;
+
+    int hash = id3.hashCode();
+    int length = id3.length();
+    for (int i = 0; i < tags.length; i++) {
+      String tag = tags[i];
+      if (tag != null && hashes[i] == hash && tag.length() == length && tag.equals(id3)) {
+        hits++;
+        return false;
+      }
+    }
+
+    if (minIntervalMillis > 0) {
+      long now = clock.uptimeMillis();
+      if (accepted && now - lastAcceptedMillis < minIntervalMillis) {
+        rateLimited++;
+        return false;
+      }
+      lastAcceptedMillis = now;
+    }
+
+    accepted = true;
+    tags[next] = id3;
+    hashes[next] = hash;
+    next = (next + 1) % tags.length;
+    misses++;
+    return true;
+  }
+
+  /**
+   * checks a Latin-1 tag still in the raw ID3 metadata against the recently accepted tags, so a
+   * repeated tag is dropped before it is decoded. A new tag must then be decoded and passed to
+   * {@link #accept(String)}.
+   *
+   * @param buffer raw ID3 metadata
+   * @param index absolute index of the tag in {@code buffer}
+   * @param length length of the tag in bytes
+   * @return true if the tag was accepted recently, and is counted as a duplicate
+   */
+  boolean isDuplicate(ByteBuffer buffer, int index, int length) {
+    // Latin-1 decodes each byte to the char of the same value, so this is the hash of the string
+    int hash = 0;
+    for (int i = 0; i < length; i++) hash = 31 * hash + (buffer.get(index + i) & 0xff);
+
+    for (int i = 0; i < tags.length; i++) {
+      String tag = tags[i];
+      if (tag != null && hashes[i] == hash && tag.length() == length) {
+        if (equal(tag, buffer, index)) {
+          hits++;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** @return number of tags dropped as duplicates */
+  long hits() {
+    return hits;
+  }
+
+  /** @return number of tags accepted */
+  long misses() {
+    return misses;
+  }
+
+  /** @return number of new tags dropped by the minimum interval */
+  long rateLimited() {
+    return rateLimited;
+  }
+
+  private static boolean equal(String tag, ByteBuffer buffer, int index) {
+    for (int i = 0; i < tag.length(); i++) {
+      if (tag.charAt(i) != (buffer.get(index + i) & 0xff)) return false;
+    }
+    return true;
+  }
+}
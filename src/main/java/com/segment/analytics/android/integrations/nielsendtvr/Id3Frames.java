@@ -0,0 +1,142 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Finds the Nielsen tag in raw ID3v2.3 and ID3v2.4 metadata, as delivered by the player for HLS
+ * timed metadata. Nielsen carries its tag in the owner identifier of a PRIV frame, a Latin-1
+ * string starting with {@code www.nielsen.com}, which is what {@code AppSdk.sendID3} expects.
+ *
+ * <p>The metadata is scanned in place with absolute reads, so it is neither copied nor modified,
+ * and metadata without a Nielsen frame is rejected without allocating.
+ */
+final class Id3Frames {
+  static final int NOT_FOUND = -1;
+
+  private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+  private static final byte[] NIELSEN_OWNER = {
+    'w', 'w', 'w', '.', 'n', 'i', 'e', 'l', 's', 'e', 'n', '.', 'c', 'o', 'm'
+  };
+  private static final int HEADER_SIZE = 10;
+  private static final int FRAME_HEADER_SIZE = 10;
+  private static final int FLAG_UNSYNCHRONISATION = 0x80;
+  private static final int FLAG_EXTENDED_HEADER = 0x40;
+  private static final int FLAG_FOOTER = 0x10;
+
+  private Id3Frames() {}
+
+  /**
+   * @param buffer ID3 metadata between its position and limit, possibly several tags in a row
+   * @return absolute index of the Nielsen tag in {@code buffer} in the upper 32 bits and its length
+   *     in the lower 32 bits, or {@link #NOT_FOUND}
+   */
+  static long findNielsenTag(ByteBuffer buffer) {
+    int position = buffer.position();
+    int limit = buffer.limit();
+    while (limit - position >= HEADER_SIZE && isTagHeader(buffer, position)) {
+      int version = buffer.get(position + 3);
+      int flags = buffer.get(position + 5) & 0xff;
+      int size = syncsafe(buffer, position + 6);
+      int end = position + HEADER_SIZE + size;
+      if (size < 0 || end > limit) return NOT_FOUND;
+
+      // unsynchronised tags would have to be decoded first, and are not used for Nielsen tags
+      if ((version == 3 || version == 4) && (flags & FLAG_UNSYNCHRONISATION) == 0) {
+        long tag = findNielsenFrame(buffer, position + HEADER_SIZE, end, version, flags);
+        if (tag != NOT_FOUND) return tag;
+      }
+
+      position = end + (version == 4 && (flags & FLAG_FOOTER) != 0 ? HEADER_SIZE : 0);
+    }
+    return NOT_FOUND;
+  }
+
+  /** @return absolute index of a tag found by {@link #findNielsenTag(ByteBuffer)} */
+  static int index(long tag) {
+    return (int) (tag >>> 32);
+  }
+
+  /** @return length of a tag found by {@link #findNielsenTag(ByteBuffer)} */
+  static int length(long tag) {
+    return (int) tag;
+  }
+
+  /** @return the Latin-1 string of {@code length} bytes at absolute {@code index} */
+  static String decode(ByteBuffer buffer, int index, int length) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + index, length, LATIN_1);
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) bytes[i] = buffer.get(index + i);
+    return new String(bytes, LATIN_1);
+  }
+
+  /** @return the Nielsen tag within the frames between {@code start} and {@code end} */
+  private static long findNielsenFrame(
+      ByteBuffer buffer, int start, int end, int version, int flags) {
+    int position = start;
+    if ((flags & FLAG_EXTENDED_HEADER) != 0) {
+      if (end - position < 4) return NOT_FOUND;
+      // the size excludes itself in ID3v2.3, not in ID3v2.4
+      position += version == 4 ? syncsafe(buffer, position) : 4 + bigEndian(buffer, position);
+    }
+
+    while (position >= start && end - position >= FRAME_HEADER_SIZE) {
+      // padding
+      if (buffer.get(position) == 0) return NOT_FOUND;
+
+      int size = version == 4 ? syncsafe(buffer, position + 4) : bigEndian(buffer, position + 4);
+      int data = position + FRAME_HEADER_SIZE;
+      if (size < 0 || size > end - data) return NOT_FOUND;
+
+      if (isPrivFrame(buffer, position) && startsWithNielsenOwner(buffer, data, size)) {
+        int length = 0;
+        while (length < size && buffer.get(data + length) != 0) length++;
+        return ((long) data << 32) | length;
+      }
+      position = data + size;
+    }
+    return NOT_FOUND;
+  }
+
+  private static boolean isTagHeader(ByteBuffer buffer, int position) {
+    return buffer.get(position) == 'I'
+        && buffer.get(position + 1) == 'D'
+        && buffer.get(position + 2) == '3';
+  }
+
+  private static boolean isPrivFrame(ByteBuffer buffer, int position) {
+    return buffer.get(position) == 'P'
+        && buffer.get(position + 1) == 'R'
+        && buffer.get(position + 2) == 'I'
+        && buffer.get(position + 3) == 'V';
+  }
+
+  private static boolean startsWithNielsenOwner(ByteBuffer buffer, int data, int size) {
+    if (size < NIELSEN_OWNER.length) return false;
+    for (int i = 0; i < NIELSEN_OWNER.length; i++) {
+      if (buffer.get(data + i) != NIELSEN_OWNER[i]) return false;
+    }
+    return true;
+  }
+
+  /** @return big endian integer, whatever the byte order of {@code buffer} */
+  private static int bigEndian(ByteBuffer buffer, int position) {
+    return (buffer.get(position) & 0xff) << 24
+        | (buffer.get(position + 1) & 0xff) << 16
+        | (buffer.get(position + 2) & 0xff) << 8
+        | (buffer.get(position + 3) & 0xff);
+  }
+
+  /** @return 28 bit integer stored 7 bits per byte, or -1 if a byte has its top bit set */
+  private static int syncsafe(ByteBuffer buffer, int position) {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int b = buffer.get(position + i);
+      if ((b & 0x80) != 0) return -1;
+      value = (value << 7) | b;
+    }
+    return value;
+  }
+}
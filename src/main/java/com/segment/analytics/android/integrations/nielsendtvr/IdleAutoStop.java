@@ -0,0 +1,77 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+/**
+ * Stops a session left playing without any activity, such as ID3 tags or heartbeats, for the idle
+ * timeout, so a player that crashed or lost its stop callback is not credited with phantom viewing.
+ *
+ * <p>Activity only records the time, and a session's timeout is scheduled once on the shared timer
+ * wheel. When it fires early because of later activity, it is scheduled again for the time left,
+ * so a steady stream of events costs no timer operation per event.
+ */
+final class IdleAutoStop {
+  static final IdleAutoStop NONE = new IdleAutoStop(null, 0, Clock.SYSTEM);
+
+  /** Stops the sessions that went idle. */
+  interface Listener {
+    /** called on the timer thread once {@code session} may have gone idle */
+    void onIdle(PlaybackSession session);
+  }
+
+  private final TimerWheel timers;
+  private final long timeoutMillis;
+  private final Clock clock;
+
+  /**
+   * @param timers timer wheel running the idle timeouts
+   * @param timeoutMillis time without activity after which a playing session is stopped, 0
+   *     disables auto-stop
+   * @param clock time source of the activity
+   */
+  IdleAutoStop(TimerWheel timers, long timeoutMillis, Clock clock) {
+    this.timers = timers;
+    this.timeoutMillis = Math.max(0, timeoutMillis);
+    this.clock = clock;
+  }
+
+  /**
+   * records activity of a playing session, arming its idle timeout if needed. Called under the
+   * lock of the integration.
+   */
+  void activity(final PlaybackSession session, final Listener listener) {
+    if (timeoutMillis == 0) return;
+
+    session.lastActivityMillis = clock.uptimeMillis();
+    if (session.idleTimeout == null) {
+      session.idleTimeout =
+          new TimerWheel.Timeout() {
+            @Override
+            public void run() {
+              listener.onIdle(session);
+            }
+          };
+    }
+    if (!timers.isScheduled(session.idleTimeout)) {
+      timers.schedule(session.idleTimeout, timeoutMillis);
+    }
+  }
+
+  /**
+   * checks whether a session whose timeout fired is idle, scheduling the timeout again for the
+   * time left otherwise. Called under the lock of the integration.
+   *
+   * @return true if the session had no activity for the idle timeout
+   */
+  boolean isIdle(PlaybackSession session) {
+    if (timeoutMillis == 0) return false;
+
+    long left = session.lastActivityMillis + timeoutMillis - clock.uptimeMillis();
+    if (left <= 0) return true;
+    timers.schedule(session.idleTimeout, left);
+    return false;
+  }
+
+  /** disarms the idle timeout of a session that stopped playing */
+  void cancel(PlaybackSession session) {
+    if (session.idleTimeout != null) timers.cancel(session.idleTimeout);
+  }
+}
@@ -0,0 +1,194 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps Segment event properties to the fields of the Nielsen content metadata. Each field reads
+ * the first present of its property paths and transforms the value. The mapping is compiled once
+ * by {@link NielsenDTVRIntegrationFactory} into parallel arrays, so the fields of an event are read
+ * in a single pass over them.
+ *
+ * <p>Field values are read into a {@code String[]} indexed like the fields, which identifies the
+ * metadata for the playback state and the payload cache before any JSONObject is built.
+ */
+final class MetadataMapping {
+  static final int TRANSFORM_NONE = 0;
+  /** {@code dynamic} to ad model {@code 2}, any other load type to {@code 1}. */
+  static final int TRANSFORM_AD_MODEL = 1;
+  static final int TRANSFORM_LOWER_CASE = 2;
+  static final int TRANSFORM_UPPER_CASE = 3;
+
+  /** Metadata field holding the channel, also sent in the channelInfo of play calls. */
+  static final String CHANNEL_NAME = "channelName";
+
+  static final MetadataMapping DEFAULT = new Builder().putDefaults().build();
+
+  private final String[] keys;
+  private final PropertyPath[][] paths;
+  private final int[] transforms;
+  private final int channelField;
+
+  private MetadataMapping(String[] keys, PropertyPath[][] paths, int[] transforms) {
+    this.keys = keys;
+    this.paths = paths;
+    this.transforms = transforms;
+    int channelField = -1;
+    for (int i = 0; i < keys.length; i++) {
+      if (CHANNEL_NAME.equals(keys[i])) channelField = i;
+    }
+    this.channelField = channelField;
+  }
+
+  /**
+   * @param properties properties of the Segment event
+   * @return value of every field, indexed like the fields, null where no property is present
+   */
+  String[] read(Map<?, ?> properties) {
+    String[] values = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) values[i] = read(i, properties);
+    return values;
+  }
+
+  /**
+   * reads only the channel, for the calls that do not load metadata
+   *
+   * @param properties properties of the Segment event
+   * @return channel name, or null if not present or not mapped
+   */
+  String channel(Map<?, ?> properties) {
+    return channelField < 0 ? null : read(channelField, properties);
+  }
+
+  /**
+   * @param values values read by {@link #read(Map)}
+   * @return channel name, or null if not present or not mapped
+   */
+  String channel(String[] values) {
+    return channelField < 0 ? null : values[channelField];
+  }
+
+  /**
+   * @param values values read by {@link #read(Map)}
+   * @return payload for {@code appSdk.loadMetadata()}, of type {@code content}
+   * @throws JSONException if a value cannot be added
+   */
+  JSONObject metadata(String[] values) throws JSONException {
+    JSONObject metadata = new JSONObject();
+    metadata.put("type", "content");
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != null) metadata.put(keys[i], values[i]);
+    }
+    return metadata;
+  }
+
+  /** @return paths of every property read by the fields, in field order */
+  List<PropertyPath> paths() {
+    List<PropertyPath> all = new ArrayList<>();
+    for (PropertyPath[] field : paths) all.addAll(Arrays.asList(field));
+    return all;
+  }
+
+  /** @return number of mapped metadata fields */
+  int size() {
+    return keys.length;
+  }
+
+  private String read(int field, Map<?, ?> properties) {
+    PropertyPath[] paths = this.paths[field];
+    String value = null;
+    for (int i = 0; value == null && i < paths.length; i++) value = paths[i].read(properties);
+    if (value == null) return null;
+
+    switch (transforms[field]) {
+      case TRANSFORM_AD_MODEL:
+        return value.equals("dynamic") ? "2" : "1";
+      case TRANSFORM_LOWER_CASE:
+        return value.toLowerCase(Locale.US);
+      case TRANSFORM_UPPER_CASE:
+        return value.toUpperCase(Locale.US);
+      default:
+        return value;
+    }
+  }
+
+  /**
+   * @param transform name of a transform as used in integration settings
+   * @return matching {@code TRANSFORM_*} constant, or -1 if the name is unknown
+   */
+  static int parseTransform(String transform) {
+    if (transform == null || "none".equalsIgnoreCase(transform)) return TRANSFORM_NONE;
+    if ("adModel".equalsIgnoreCase(transform)) return TRANSFORM_AD_MODEL;
+    if ("lowercase".equalsIgnoreCase(transform)) return TRANSFORM_LOWER_CASE;
+    if ("uppercase".equalsIgnoreCase(transform)) return TRANSFORM_UPPER_CASE;
+    return -1;
+  }
+
+  static final class Builder {
+    private final Map<String, Field> fields = new LinkedHashMap<>();
+
+    /** Adds the channel and ad model fields documented for Nielsen DTVR. */
+    Builder putDefaults() {
+      put(CHANNEL_NAME, TRANSFORM_NONE, "channel");
+      put("adModel", TRANSFORM_AD_MODEL, "loadType", "load_type");
+      return this;
+    }
+
+    /**
+     * replaces the field {@code key} of the metadata
+     *
+     * @param key Nielsen metadata key
+     * @param transform one of the {@code TRANSFORM_*} constants
+     * @param paths property paths read in order until one is present
+     */
+    Builder put(String key, int transform, String... paths) {
+      List<PropertyPath> compiled = new ArrayList<>(paths.length);
+      for (String path : paths) {
+        if (path != null && !path.isEmpty()) compiled.add(PropertyPath.parse(path));
+      }
+      if (compiled.isEmpty()) return remove(key);
+
+      fields.put(key, new Field(compiled.toArray(new PropertyPath[0]), transform));
+      return this;
+    }
+
+    /** Removes the field {@code key} from the metadata. */
+    Builder remove(String key) {
+      fields.remove(key);
+      return this;
+    }
+
+    MetadataMapping build() {
+      int size = fields.size();
+      String[] keys = new String[size];
+      PropertyPath[][] paths = new PropertyPath[size][];
+      int[] transforms = new int[size];
+
+      int i = 0;
+      for (Map.Entry<String, Field> entry : fields.entrySet()) {
+        keys[i] = entry.getKey();
+        paths[i] = entry.getValue().paths;
+        transforms[i] = entry.getValue().transform;
+        i++;
+      }
+      return new MetadataMapping(keys, paths, transforms);
+    }
+  }
+
+  private static final class Field {
+    final PropertyPath[] paths;
+    final int transform;
+
+    Field(PropertyPath[] paths, int transform) {
+      this.paths = paths;
+      this.transform = transform;
+    }
+  }
+}
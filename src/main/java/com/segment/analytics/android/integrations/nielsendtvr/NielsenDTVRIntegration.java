@@ -1,134 +1,501 @@
 package com.segment.analytics.android.integrations.nielsendtvr;
 
+import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
 import com.segment.analytics.integrations.Integration;
 import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.integrations.TrackPayload;
 import com.nielsen.app.sdk.AppSdk;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 public class NielsenDTVRIntegration extends Integration<AppSdk> {
   public static final Factory FACTORY = new NielsenDTVRIntegrationFactory();
 
-  private final AppSdk appSdk;
+  private final PlaybackSessions sessions;
   private final Logger logger;
-  private final List<String> id3EventNames;
-  private final String id3PropertyName;
-  private String previousID3 = "";
+  private final ChannelPayloadCache payloadCache;
+  private final AppSdkMetrics metrics;
+  private final SessionJournal journal;
+  private final EventTrace trace;
+  private final CallTrace callTrace;
+  private final IdleAutoStop autoStop;
+  private final IdleAutoStop.Listener idleListener =
+      new IdleAutoStop.Listener() {
+        @Override
+        public void onIdle(PlaybackSession session) {
+          stopIdle(session);
+        }
+      };
+  // called under the lock of the integration, while it routes an event
+  private final PlaybackSessions.RouteListener routeListener =
+      new PlaybackSessions.RouteListener() {
+        @Override
+        public void onRouteLeft(PlaybackSession session) {
+          stop(session, false);
+        }
+      };
+  // replaced as a whole when settings are refreshed
+  private volatile EventSettings eventSettings;
+  // guarded by this, properties of the player events of dispatch(), reused as nothing keeps them
+  private final Properties playerProperties = new Properties();
+  private boolean closed;
+  private long autoStoppedSessions;
 
   NielsenDTVRIntegration(
-      AppSdk appSdk, Logger logger, List<String> id3EventNames, String id3PropertyName) {
-    this.appSdk = appSdk;
+      PlaybackSessions sessions,
+      Logger logger,
+      EventSettings eventSettings,
+      ChannelPayloadCache payloadCache,
+      AppSdkMetrics metrics,
+      SessionJournal journal,
+      EventTrace trace,
+      CallTrace callTrace,
+      IdleAutoStop autoStop) {
+    this.sessions = sessions;
     this.logger = logger;
-    this.id3EventNames = id3EventNames;
-    this.id3PropertyName = id3PropertyName;
+    this.eventSettings = eventSettings;
+    this.payloadCache = payloadCache;
+    this.metrics = metrics;
+    this.journal = journal;
+    this.trace = trace;
+    this.callTrace = callTrace;
+    this.autoStop = autoStop;
+  }
+
+  /**
+   * @param analytics analytics instance the integration is created for
+   * @return the integration, or null until Segment has created it from the project settings
+   */
+  public static NielsenDTVRIntegration get(Analytics analytics) {
+    return ((NielsenDTVRIntegrationFactory) FACTORY).liveIntegration(analytics);
+  }
+
+  /**
+   * stops the sessions of the integration created for {@code analytics} and closes every AppSdk
+   * instance it created, releasing their threads. Call it when shutting down {@code analytics}, as
+   * Segment does not notify integrations of it.
+   *
+   * @param analytics analytics instance being shut down
+   */
+  public static void shutdown(Analytics analytics) {
+    ((NielsenDTVRIntegrationFactory) FACTORY).shutdown(analytics);
   }
 
   @Override
   public void track(TrackPayload trackPayload) {
-    String event = trackPayload.event();
-
-    switch (event) {
-      case "Video Content Started":
-        play(trackPayload);
-        loadMetadata(trackPayload);
-        break;
-      case "Video Playback Resumed":
-      case "Video Playback Seek Completed":
-      case "Video Playback Buffer Completed":
-        play(trackPayload);
-        break;
-      case "Video Playback Paused":
-      case "Video Playback Interrupted":
-      case "Video Content Completed":
-      case "Video Playback Buffer Started":
-      case "Video Playback Seek Started":
-        //Nielsen requested Video Playback Completed and new Video Playback Exited event map to stop as end is not used for DTVR
-      case "Video Playback Exited":
-      case "Video Playback Completed":
-        stop();
-        break;
-      case "Application Backgrounded":
-        stop();
+    trackLocked(trackPayload);
+    // sessions closed to make room for the event's are released once the lock is left
+    sessions.releaseClosed();
+  }
+
+  // synchronized with the stop run when the app goes to the background
+  private synchronized void trackLocked(TrackPayload trackPayload) {
+    // events still queued once the integration is closed would lease AppSdk instances again
+    if (closed) return;
+    EventSettings eventSettings = this.eventSettings;
+    Properties properties = trackPayload.properties();
+    trace.record(trackPayload.event(), properties, eventSettings);
+
+    int actions = eventSettings.dispatchTable.actionsFor(trackPayload.event());
+    if (actions == EventDispatchTable.ACTION_NONE) return;
+
+    PlaybackSession session = sessions.get(properties, routeListener);
+    if (session == null) return;
+
+    MetadataMapping mapping = eventSettings.metadataMapping;
+    String channel = null;
+    String[] metadata = null;
+    if ((actions & EventDispatchTable.ACTION_LOAD_METADATA) != 0) {
+      metadata = mapping.read(properties);
+      channel = mapping.channel(metadata);
+    } else if ((actions & EventDispatchTable.ACTION_PLAY) != 0) {
+      channel = mapping.channel(properties);
     }
+    dispatch(session, actions, channel, mapping, metadata);
 
-    if (id3EventNames.contains(event.toLowerCase())) {
-      sendID3(trackPayload);
+    if ((actions & EventDispatchTable.ACTION_SEND_ID3) != 0) {
+      sendID3(session, properties, eventSettings.id3Property);
     }
+    recordActivity(session);
   }
 
-  /** @param trackPayload payload of the Segment track event */
-  private void play(TrackPayload trackPayload) {
-    Properties properties = trackPayload.properties();
-    JSONObject channelInfo = new JSONObject();
+  /**
+   * runs the play, loadMetadata and stop actions of a player event without a track event, for
+   * {@link NielsenPlayerBinding}, which calls it off the main thread as it waits for the track
+   * event in progress. The metadata, and the app id route, are read from the {@code channel} and
+   * {@code load_type} properties, like the Segment events the binding emits.
+   *
+   * @param sessionId value of the session key property of the player, or null for the default
+   *     session
+   * @param actions bit set of {@code EventDispatchTable.ACTION_*} flags
+   * @param channel channel playing
+   * @param loadType {@code linear} or {@code dynamic}, or null
+   */
+  void dispatch(String sessionId, int actions, String channel, String loadType) {
+    dispatchLocked(sessionId, actions, channel, loadType);
+    sessions.releaseClosed();
+  }
+
+  private synchronized void dispatchLocked(
+      String sessionId, int actions, String channel, String loadType) {
+    if (closed) return;
+    boolean loadMetadata = (actions & EventDispatchTable.ACTION_LOAD_METADATA) != 0;
+    Properties properties = null;
+    if (loadMetadata || sessions.routesAppIds()) {
+      properties = playerProperties.putValue("channel", channel).putValue("load_type", loadType);
+    }
+    PlaybackSession session = sessions.get(sessionId, properties, routeListener);
+    if (session == null) return;
 
-    try {
-      if (properties.containsKey("channel"))
-        channelInfo.put("channelName", properties.getString("channel"));
+    MetadataMapping mapping = eventSettings.metadataMapping;
+    String[] metadata = loadMetadata ? mapping.read(properties) : null;
+    dispatch(session, actions, channel, mapping, metadata);
+    recordActivity(session);
+  }
 
-    } catch (JSONException e) {
-      logger.error(e, "Failed to send play event");
+  /** @param metadata values of the metadata fields, or null if no metadata is loaded */
+  private void dispatch(
+      PlaybackSession session,
+      int actions,
+      String channel,
+      MetadataMapping mapping,
+      String[] metadata) {
+    if ((actions & EventDispatchTable.ACTION_PLAY) != 0) play(session, channel);
+    if ((actions & EventDispatchTable.ACTION_LOAD_METADATA) != 0) {
+      loadMetadata(session, channel, mapping, metadata);
+    }
+    if ((actions & EventDispatchTable.ACTION_STOP) != 0) {
+      boolean background = (actions & EventDispatchTable.ACTION_BACKGROUND) != 0;
+      if (background || session == sessions.defaultSession()) {
+        // a stop without a session key, like Application Backgrounded, stops every session, even
+        // if it follows the route of the last event to the session of another app id
+        stopAll(background);
+      } else {
+        stop(session, background);
+      }
     }
+  }
 
-    logger.debug("appSdk.play(%s)", channelInfo);
-    appSdk.play(channelInfo);
+  /**
+   * sends the Nielsen tag found in raw ID3 metadata, such as {@code TimedMetaData.getMetaData()},
+   * without going through a track event. The metadata is scanned in place, and a tag repeating a
+   * recent one is dropped before it is decoded.
+   *
+   * @param sessionId value of the session key property of the player, or null for the default
+   *     session
+   * @param metadata ID3 metadata between its position and limit, left unchanged
+   * @return true if a new Nielsen tag was sent
+   */
+  public boolean sendID3(String sessionId, ByteBuffer metadata) {
+    boolean sent = sendID3Locked(sessionId, metadata);
+    sessions.releaseClosed();
+    return sent;
   }
 
-  /** @param trackPayload payload of the Segment track event */
-  private void loadMetadata(TrackPayload trackPayload) {
-    Properties properties = trackPayload.properties();
-    JSONObject jsonMetadata = new JSONObject();
+  private synchronized boolean sendID3Locked(String sessionId, ByteBuffer metadata) {
+    if (closed) return false;
+    long tag = Id3Frames.findNielsenTag(metadata);
+    if (tag == Id3Frames.NOT_FOUND) return false;
+
+    return sendTag(sessionId, metadata, Id3Frames.index(tag), Id3Frames.length(tag));
+  }
+
+  /**
+   * sends a Nielsen tag already found in ID3 metadata, for {@link NielsenPlayerBinding}
+   *
+   * @param sessionId value of the session key property of the player, or null for the default
+   *     session
+   * @param tag bytes of the tag between its position and limit
+   * @return true if the tag was sent
+   */
+  boolean sendID3Tag(String sessionId, ByteBuffer tag) {
+    boolean sent;
+    synchronized (this) {
+      sent = !closed && sendTag(sessionId, tag, tag.position(), tag.remaining());
+    }
+    sessions.releaseClosed();
+    return sent;
+  }
+
+  // guarded by this, sends the tag of length bytes at absolute index, dropping repeated tags
+  private boolean sendTag(String sessionId, ByteBuffer buffer, int index, int length) {
+    PlaybackSession session = sessions.get(sessionId);
+    if (session == null) return false;
+    recordActivity(session);
+
+    if (session.id3Deduplicator.isDuplicate(buffer, index, length)) return false;
+
+    String id3 = Id3Frames.decode(buffer, index, length);
+    if (!session.id3Deduplicator.accept(id3)) return false;
+
+    session.dispatcher.sendID3(id3);
+    return true;
+  }
+
+  /**
+   * sends the Nielsen tag found in {@code length} bytes of raw ID3 metadata at {@code offset}, like
+   * {@link #sendID3(String, ByteBuffer)}
+   */
+  public boolean sendID3(String sessionId, byte[] metadata, int offset, int length) {
+    return sendID3(sessionId, ByteBuffer.wrap(metadata, offset, length));
+  }
 
-    try {
-      jsonMetadata.put("type", "content");
+  private void play(PlaybackSession session, String channel) {
+    session.resumeOnForeground = false;
+    if (!session.playbackState.play(channel)) return;
 
-      if (properties.containsKey("channel"))
-        jsonMetadata.put("channelName", properties.getString("channel"));
+    session.channelInfo = payloadCache.channelInfo(channel);
+    session.dispatcher.play(session.channelInfo);
+    session.appSdkHolder.setSessionActive(true);
+    journal.record(SessionJournal.PLAY, session.id, channel);
+  }
 
-      String loadType = "";
-      if (properties.containsKey("load_type")) loadType = "load_type";
+  /** @param metadata values of the metadata fields read by {@code mapping} */
+  private void loadMetadata(
+      PlaybackSession session, String channel, MetadataMapping mapping, String[] metadata) {
+    session.resumeOnForeground = false;
+    if (!session.playbackState.loadMetadata(channel, metadata)) return;
 
-      if (properties.containsKey("loadType")) loadType = "loadType";
+    session.dispatcher.loadMetadata(payloadCache.metadata(mapping, metadata));
+    journal.record(SessionJournal.LOAD_METADATA, session.id, channel);
+  }
 
-      if (!loadType.isEmpty())
-        jsonMetadata.put("adModel", properties.getString(loadType).equals("dynamic") ? "2" : "1");
+  /**
+   * @param properties properties of the Segment track event
+   * @param id3Property path of the property holding the ID3 tag
+   */
+  private void sendID3(PlaybackSession session, Properties properties, PropertyPath id3Property) {
+    String id3 = id3Property.read(properties);
+    if (!session.id3Deduplicator.accept(id3)) return;
+
+    session.dispatcher.sendID3(id3);
+  }
 
-    } catch (JSONException e) {
-      logger.error(e, "Failed to send loadMetadata event");
+  /**
+   * @param background whether the app went to the background, in which case a session stopped
+   *     while playing resumes once the app returns to the foreground. Any other stop, even of a
+   *     session already stopped, shows the player stopped on its own, so it is not resumed.
+   */
+  private void stop(PlaybackSession session, boolean background) {
+    if (!background) {
+      session.resumeOnForeground = false;
+    } else if (session.playbackState.state() == PlaybackStateMachine.PLAYING) {
+      session.resumeOnForeground = true;
     }
+    if (!session.playbackState.stop()) return;
+    autoStop.cancel(session);
+    session.dispatcher.stop();
+    session.appSdkHolder.setSessionActive(false);
+    journal.record(SessionJournal.STOP, session.id, null);
+  }
 
-    logger.debug("appSdk.loadMetadata(%s)", jsonMetadata);
-    appSdk.loadMetadata(jsonMetadata);
+  private void stopAll(boolean background) {
+    if (sessions.size() == 0) {
+      stop(sessions.defaultSession(), background);
+      return;
+    }
+    for (PlaybackSession session : sessions.all()) stop(session, background);
   }
 
-  /** @param trackPayload payload of the Segment track event */
-  private void sendID3(TrackPayload trackPayload) {
-    Properties properties = trackPayload.properties();
-    String id3 = properties.getString(id3PropertyName);
+  private void end(PlaybackSession session) {
+    session.resumeOnForeground = false;
+    if (!session.playbackState.end()) return;
+    autoStop.cancel(session);
+    session.dispatcher.end();
+    session.appSdkHolder.setSessionActive(false);
+    journal.record(SessionJournal.END, session.id, null);
+  }
 
-    if (previousID3.equals(id3)) return;
-    previousID3 = id3;
+  // any event reaching a playing session shows the player is still alive
+  private void recordActivity(PlaybackSession session) {
+    if (session.playbackState.state() == PlaybackStateMachine.PLAYING) {
+      autoStop.activity(session, idleListener);
+    }
+  }
+
+  /** stops a session that played without any activity for the idle timeout */
+  private synchronized void stopIdle(PlaybackSession session) {
+    if (closed || session.playbackState.state() != PlaybackStateMachine.PLAYING) return;
+    if (!autoStop.isIdle(session)) return;
+
+    stop(session, false);
+    autoStoppedSessions++;
+    String id = session.id == null ? "default" : session.id;
+    logger.debug("Stopped Nielsen session %s after no activity", id);
+  }
+
+  /**
+   * stops the sessions that are playing as soon as the app goes to the background, and waits for
+   * the stop calls to be executed. The Application Backgrounded event then finds them stopped, so
+   * its stops are suppressed.
+   */
+  void stopOnBackground() {
+    List<PlaybackSession> stopped = new ArrayList<>();
+    synchronized (this) {
+      if (closed) return;
+      for (PlaybackSession session : sessions.all()) {
+        if (session.playbackState.state() != PlaybackStateMachine.PLAYING) continue;
+        stop(session, true);
+        stopped.add(session);
+      }
+    }
+    if (!stopped.isEmpty()) {
+      logger.debug("Stopped %d Nielsen sessions in background", stopped.size());
+    }
+
+    // forward the stops held back by coalescing before the process may be frozen
+    for (PlaybackSession session : stopped) session.dispatcher.flush();
+  }
+
+  /**
+   * plays again the sessions stopped by the app going to the background while playing, as soon as
+   * it returns to the foreground, since players resuming on their own rarely send a play event. A
+   * session that saw any other play, loadMetadata or stop event since is left to the app.
+   *
+   * <p>The play call sends the payload of the last play of the session, so resuming does not build
+   * a JSONObject.
+   */
+  synchronized void resumeOnForeground() {
+    if (closed) return;
+
+    int resumed = 0;
+    for (PlaybackSession session : sessions.all()) {
+      if (!session.resumeOnForeground) continue;
+      session.resumeOnForeground = false;
+
+      String channel = session.playbackState.channel();
+      if (session.playbackState.state() != PlaybackStateMachine.STOPPED
+          || !session.playbackState.play(channel)) {
+        continue;
+      }
+      session.dispatcher.play(session.channelInfo);
+      session.appSdkHolder.setSessionActive(true);
+      journal.record(SessionJournal.PLAY, session.id, channel);
+      recordActivity(session);
+      resumed++;
+    }
+    if (resumed > 0) logger.debug("Resumed %d Nielsen sessions in foreground", resumed);
+  }
+
+  /** Waits for queued AppSdk calls to be executed when calls are dispatched asynchronously. */
+  @Override
+  public void flush() {
+    synchronized (this) {
+      sessions.closeIdle();
+    }
+    sessions.releaseClosed();
+    flushAll();
+    trace.flush();
+  }
+
+  @Override
+  public void reset() {
+    flushAll();
+  }
+
+  private void flushAll() {
+    if (sessions.size() == 0) {
+      sessions.defaultSession().dispatcher.flush();
+      return;
+    }
+    for (PlaybackSession session : sessions.all()) session.dispatcher.flush();
+  }
+
+  /**
+   * replaces the event mapping, ID3 property and metadata mapping, taking effect from the next
+   * track event
+   */
+  void setEventSettings(EventSettings eventSettings) {
+    this.eventSettings = eventSettings;
+  }
+
+  /**
+   * @return AppSdk instance of the default session with its pool entry, or null while it is
+   *     constructed in the background
+   */
+  AppSdkPool.Entry defaultAppSdkEntry() {
+    return sessions.defaultSession().appSdkHolder.entry();
+  }
+
+  ChannelPayloadCache payloadCache() {
+    return payloadCache;
+  }
+
+  SessionJournal journal() {
+    return journal;
+  }
+
+  EventTrace trace() {
+    return trace;
+  }
+
+  /**
+   * closes every session once the integration has been replaced after a settings refresh
+   *
+   * @param stopPlayback whether to stop the sessions that are playing, false if the replacement
+   *     keeps measuring with the same AppSdk instance
+   */
+  void close(boolean stopPlayback) {
+    synchronized (this) {
+      closed = true;
+      sessions.closeAll(stopPlayback);
+    }
+    sessions.releaseClosed();
+  }
+
+  /**
+   * @return the last AppSdk calls, oldest first, one per line with their time relative to the last
+   *     call, session, payload and latency. Kept up to the {@code callTraceSize} setting.
+   */
+  public String dumpCallTrace() {
+    return callTrace.dump();
+  }
 
-    logger.debug("appSdk.sendID3(%s)", id3);
-    appSdk.sendID3(id3);
+  /** @return snapshot of the queue depth, drops and wait times of AppSdk calls */
+  public DispatcherStats getDispatcherStats() {
+    return sessions.dispatcherStats();
   }
 
-  private void stop() {
-    logger.debug("appSdk.stop()");
-    appSdk.stop();
+  /**
+   * @return snapshot of the AppSdk call counts and latencies, and of the calls dropped or
+   *     de-duplicated before reaching the AppSdk
+   */
+  public NielsenDTVRStats getStats() {
+    AppSdkHolder defaultAppSdk = sessions.defaultSession().appSdkHolder;
+    return new NielsenDTVRStats(
+        metrics.snapshot(AppSdkMetrics.PLAY),
+        metrics.snapshot(AppSdkMetrics.LOAD_METADATA),
+        metrics.snapshot(AppSdkMetrics.STOP),
+        metrics.snapshot(AppSdkMetrics.SEND_ID3),
+        metrics.snapshot(AppSdkMetrics.END),
+        sessions.dispatcherStats(),
+        sessions.redundantTransitions(),
+        sessions.illegalTransitions(),
+        sessions.duplicateId3Tags(),
+        sessions.rateLimitedId3Tags(),
+        payloadCache.hits(),
+        payloadCache.misses(),
+        defaultAppSdk.constructionNanos(),
+        defaultAppSdk.poolStats(),
+        sessions.size(),
+        sessions.reclaimed(),
+        journal.orphanCount(),
+        autoStoppedSessions());
   }
 
-  private void end() {
-    logger.debug("appSdk.end()");
-    appSdk.end();
+  private synchronized long autoStoppedSessions() {
+    return autoStoppedSessions;
   }
 
+  /**
+   * @return the AppSdk instance of the default session, or null while it is constructed in the
+   *     background
+   */
   @Override
   public AppSdk getUnderlyingInstance() {
-    return appSdk;
+    return sessions.defaultSession().appSdkHolder.get();
   }
 }
@@ -1,6 +1,10 @@
 package com.segment.analytics.android.integrations.nielsendtvr;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.ProcessLifecycleOwner;
 
 import com.segment.analytics.Analytics;
 import com.segment.analytics.ValueMap;
@@ -11,18 +15,40 @@ import com.nielsen.app.sdk.AppSdk;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.segment.analytics.internal.Utils.isNullOrEmpty;
 
 class NielsenDTVRIntegrationFactory implements Integration.Factory {
 
   private static final String NIELSEN_DTVR_KEY = "Nielsen DTVR";
-  private static final Map<String, List<AppSdk>> appSdkInstances = new HashMap<>();
-  private static final int MAX_INSTANCES = 4;
+  // journals opened by this process, by file, so sessions are only recovered once per launch. They
+  // are closed once no integration refers to them.
+  private static final Map<String, Shared<SessionJournal>> sessionJournals = new HashMap<>();
+  // traces recorded by this process, by file, so a settings refresh keeps appending to the same one
+  private static final Map<String, Shared<EventTrace>> eventTraces = new HashMap<>();
 
   static final String SETTING_APP_ID_KEY = "appId";
   static final String SETTING_SF_CODE_KEY = "sfcode";
@@ -30,23 +56,292 @@ class NielsenDTVRIntegrationFactory implements Integration.Factory {
   static final String SETTING_ID3_PROPERTY_KEY = "id3Property";
   static final String SETTING_ID3_PROPERTY_DEFAULT = "id3";
   static final String SETTING_DEBUG_KEY = "debug";
+  static final String SETTING_EVENT_ACTIONS_KEY = "eventActions";
+  static final String SETTING_ASYNC_DISPATCH_KEY = "asyncDispatch";
+  static final String SETTING_DISPATCH_QUEUE_SIZE_KEY = "dispatchQueueSize";
+  static final String SETTING_DISPATCH_OVERFLOW_POLICY_KEY = "dispatchOverflowPolicy";
+  static final String SETTING_COALESCE_WINDOW_KEY = "coalesceWindowMillis";
+  static final String SETTING_ID3_HISTORY_SIZE_KEY = "id3HistorySize";
+  static final String SETTING_ID3_MIN_INTERVAL_KEY = "id3MinIntervalMillis";
+  static final String SETTING_PAYLOAD_CACHE_SIZE_KEY = "payloadCacheSize";
+  static final String SETTING_DEFER_APP_SDK_KEY = "deferAppSdk";
+  static final String SETTING_DEFER_BUFFER_SIZE_KEY = "deferBufferSize";
+  static final String SETTING_POOL_SIZE_KEY = "appSdkPoolSize";
+  static final String SETTING_POOL_POLICY_KEY = "appSdkPoolPolicy";
+  static final String SETTING_SESSION_KEY_PROPERTY_KEY = "sessionKeyProperty";
+  static final String SETTING_MAX_SESSIONS_KEY = "maxSessions";
+  static final String SETTING_SESSION_IDLE_TIMEOUT_KEY = "sessionIdleTimeoutMillis";
+  static final String SETTING_SESSION_WORKERS_KEY = "sessionWorkers";
+  static final int DEFAULT_SESSION_WORKERS = 2;
+  static final String SETTING_SESSION_JOURNAL_KEY = "sessionJournal";
+  static final String SETTING_SESSION_JOURNAL_SIZE_KEY = "sessionJournalSize";
+  static final String SETTING_RECORD_TRACE_KEY = "recordTrace";
+  static final String SETTING_TRACE_MAX_BYTES_KEY = "traceMaxBytes";
+  static final String SETTING_STOP_ON_BACKGROUND_KEY = "stopOnBackground";
+  static final String SETTING_RESUME_ON_FOREGROUND_KEY = "resumeOnForeground";
+  static final String SETTING_CALL_TRACE_SIZE_KEY = "callTraceSize";
+  static final String SETTING_METADATA_MAPPING_KEY = "metadataMapping";
+  static final String SETTING_AUTO_STOP_TIMEOUT_KEY = "autoStopTimeoutMillis";
+  static final String SETTING_APP_ID_ROUTES_KEY = "appIdRoutes";
+  static final String SETTING_APP_ID_ROUTE_PROPERTY_KEY = "appIdRouteProperty";
+
+  /** Settings that a refresh applies to the live integration, without rebuilding it. */
+  static final List<String> EVENT_SETTING_KEYS =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              SETTING_ID3_EVENTS_KEY,
+              SETTING_ID3_PROPERTY_KEY,
+              SETTING_EVENT_ACTIONS_KEY,
+              SETTING_METADATA_MAPPING_KEY));
+
+  // integration created last for each analytics instance and its AppSdk instances. They only
+  // refer to the analytics instance weakly, so one discarded without shutdown() can be collected,
+  // and its state is closed on the next create or shutdown.
+  private final List<AnalyticsState> analyticsStates = new ArrayList<>();
+  private final ReferenceQueue<Analytics> collectedAnalytics = new ReferenceQueue<>();
+
+  private static ScheduledExecutorService scheduler;
+  private static TimerWheel timers;
+  private static Executor lifecycleExecutor;
 
+  /** Constructs each deferred AppSdk instance on its own short-lived background thread. */
+  private static final Executor INIT_EXECUTOR =
+      new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Segment-NielsenDTVR-Init");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      };
+
+  /**
+   * creates the integration, or updates the one created for {@code analytics} when settings are
+   * refreshed. If only {@link #EVENT_SETTING_KEYS} changed, the new event settings are swapped
+   * into the live integration. Otherwise the integration is rebuilt, keeping its AppSdk instance
+   * if the app id, sfcode and debug settings are unchanged.
+   */
   @Override
   public Integration<AppSdk> create(ValueMap settings, Analytics analytics) {
     Logger logger = analytics.logger(NIELSEN_DTVR_KEY);
-    AppSdk appSdk;
+    // settings are compared on the next refresh, so keep them safe from changes by the caller
+    ValueMap snapshot = new ValueMap(new LinkedHashMap<>(settings));
+
+    synchronized (analyticsStates) {
+      closeCollected();
+      AnalyticsState state = state(analytics);
+      if (state == null) {
+        state = new AnalyticsState(analytics, collectedAnalytics);
+        analyticsStates.add(state);
+      }
+      LiveIntegration live = state.live;
+      if (live != null && equalSettings(live.settings, snapshot, EVENT_SETTING_KEYS)) {
+        live.integration.setEventSettings(parseEventSettings(snapshot, logger));
+        live.settings = snapshot;
+        logger.debug("Reloaded Nielsen event settings");
+        return live.integration;
+      }
 
+      AppSdkPool.Entry appSdk = null;
+      if (live != null && equalAppSdkConfig(live.settings, snapshot)) {
+        appSdk = live.integration.defaultAppSdkEntry();
+        if (appSdk != null && !appSdk.appSdk().isValid()) appSdk = null;
+      }
+
+      NielsenDTVRIntegration integration =
+          create(snapshot, analytics, logger, state.appSdkPool, appSdk);
+      if (integration == null) return null;
+
+      if (live != null) {
+        retire(live, appSdk == null);
+        logger.debug("Rebuilt Nielsen integration for new settings");
+      }
+      ProcessLifecycleObserver lifecycleObserver = observeProcessLifecycle(snapshot, integration);
+      state.live =
+          new LiveIntegration(
+              snapshot, integration, lifecycleObserver, analytics.getApplication());
+      return integration;
+    }
+  }
+
+  /**
+   * closes the integration created for {@code analytics}, stopping the sessions that are playing,
+   * and closes every AppSdk instance of {@code analytics}, whether or not it is still leased
+   */
+  void shutdown(Analytics analytics) {
+    synchronized (analyticsStates) {
+      closeCollected();
+      AnalyticsState state = state(analytics);
+      if (state == null) return;
+
+      analyticsStates.remove(state);
+      close(state);
+    }
+  }
+
+  /**
+   * closes an integration that was replaced or shut down, and stops it from observing the app
+   *
+   * @param stopPlayback whether to stop the sessions that are playing
+   */
+  private static void retire(LiveIntegration live, boolean stopPlayback) {
+    live.integration.close(stopPlayback);
+    releaseSessionJournal(live.integration.journal());
+    releaseEventTrace(live.integration.trace());
+    if (live.appContext != null) {
+      live.appContext.unregisterComponentCallbacks(live.integration.payloadCache());
+    }
+    if (live.lifecycleObserver != null) stopObserving(live.lifecycleObserver);
+  }
+
+  /** closes the integration and every AppSdk instance of an analytics instance */
+  private static void close(AnalyticsState state) {
+    if (state.live != null) retire(state.live, true);
+    state.appSdkPool.close();
+  }
+
+  /** closes the state of the analytics instances collected without shutdown() */
+  private void closeCollected() {
+    Reference<? extends Analytics> collected;
+    while ((collected = collectedAnalytics.poll()) != null) {
+      AnalyticsState state = (AnalyticsState) collected;
+      if (analyticsStates.remove(state)) close(state);
+    }
+  }
+
+  /** @return state of {@code analytics}, or null if none, guarded by analyticsStates */
+  private AnalyticsState state(Analytics analytics) {
+    // apps rarely have more than one analytics instance
+    for (AnalyticsState state : analyticsStates) {
+      if (state.get() == analytics) return state;
+    }
+    return null;
+  }
+
+  /** @return integration created last for {@code analytics}, or null if none */
+  NielsenDTVRIntegration liveIntegration(Analytics analytics) {
+    synchronized (analyticsStates) {
+      AnalyticsState state = state(analytics);
+      return state == null || state.live == null ? null : state.live.integration;
+    }
+  }
+
+  /**
+   * builds the integration from scratch
+   *
+   * @param settings integration settings
+   * @param analytics analytics object provided to the factory
+   * @param logger integration logger
+   * @param appSdkPool pool of the AppSdk instances of {@code analytics}
+   * @param appSdk AppSdk instance of the replaced integration to keep using, or null to take one
+   *     from the pool
+   * @return the integration, or null if the AppSdk could not be initialized
+   */
+  private NielsenDTVRIntegration create(
+      final ValueMap settings,
+      Analytics analytics,
+      final Logger logger,
+      final AppSdkPool appSdkPool,
+      AppSdkPool.Entry appSdk) {
+    final AppSdkMetrics metrics = new AppSdkMetrics();
+    final CallTrace callTrace =
+        new CallTrace(
+            settings.getInt(SETTING_CALL_TRACE_SIZE_KEY, CallTrace.DEFAULT_CAPACITY),
+            Clock.SYSTEM);
+    String sessionKeyProperty = settings.getString(SETTING_SESSION_KEY_PROPERTY_KEY);
+    final Executor sessionExecutor =
+        isNullOrEmpty(sessionKeyProperty) ? null : createSessionExecutor(settings);
+    // sessions created later only need the application, which outlives the analytics instance
+    final Context appContext = analytics.getApplication();
+
+    PlaybackSession defaultSession;
     try {
-      appSdk = fetchAppSdk(settings, analytics, appSdkInstances);
+      defaultSession =
+          createSession(
+              null,
+              settings,
+              appContext,
+              appSdkPool,
+              logger,
+              metrics,
+              callTrace,
+              sessionExecutor,
+              appSdk);
     } catch (JSONException e) {
       logger.error(e, "Failed to initialize Nielsen SDK");
       return null;
     }
 
-    List<String> id3EventNames = parseId3EventNames(settings);
-    String id3PropertyName = parseId3PropertyName(settings);
+    SessionJournal journal = openSessionJournal(settings, analytics, logger);
+    closeOrphanedSessions(journal, defaultSession, logger);
+
+    AppIdRoutes routes = parseAppIdRoutes(settings);
+    PlaybackSessions sessions;
+    if (sessionExecutor == null && routes.size() == 0) {
+      sessions = PlaybackSessions.single(defaultSession);
+    } else {
+      sessions =
+          new PlaybackSessions(
+              defaultSession,
+              sessionExecutor == null ? null : sessionKeyProperty,
+              routes,
+              new PlaybackSessions.Factory() {
+                @Override
+                public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                  try {
+                    return createSession(
+                        id,
+                        route == null ? settings : routeSettings(settings, route),
+                        appContext,
+                        appSdkPool,
+                        logger,
+                        metrics,
+                        callTrace,
+                        sessionExecutor,
+                        null);
+                  } catch (JSONException e) {
+                    logger.error(e, "Failed to initialize Nielsen SDK for session %s", id);
+                    return null;
+                  }
+                }
+              },
+              Math.max(
+                  1,
+                  settings.getInt(SETTING_MAX_SESSIONS_KEY, PlaybackSessions.DEFAULT_MAX_SESSIONS)),
+              settings.getLong(
+                  SETTING_SESSION_IDLE_TIMEOUT_KEY, PlaybackSessions.DEFAULT_IDLE_TIMEOUT_MILLIS),
+              Clock.SYSTEM,
+              journal,
+              logger);
+    }
+
+    ChannelPayloadCache payloadCache = createPayloadCache(settings, analytics, logger);
+    EventTrace trace = openEventTrace(settings, routes, analytics, logger);
+
+    return new NielsenDTVRIntegration(
+        sessions,
+        logger,
+        parseEventSettings(settings, logger),
+        payloadCache,
+        metrics,
+        journal,
+        trace,
+        callTrace,
+        createAutoStop(settings));
+  }
+
+  /**
+   * creates the auto-stop of sessions left playing without activity for {@link
+   * #SETTING_AUTO_STOP_TIMEOUT_KEY}, disabled by default
+   *
+   * @param settings integration settings
+   * @return idle auto-stop to use in the integration
+   */
+  IdleAutoStop createAutoStop(ValueMap settings) {
+    long timeoutMillis = settings.getLong(SETTING_AUTO_STOP_TIMEOUT_KEY, 0);
+    if (timeoutMillis <= 0) return IdleAutoStop.NONE;
 
-    return new NielsenDTVRIntegration(appSdk, logger, id3EventNames, id3PropertyName);
+    return new IdleAutoStop(timers(), timeoutMillis, Clock.SYSTEM);
   }
 
   @Override
@@ -55,46 +350,323 @@ class NielsenDTVRIntegrationFactory implements Integration.Factory {
   }
 
   /**
-   * reuse an existing AppSdk instance if {@link #MAX_INSTANCES} instances already exist, otherwise
-   * creates a new AppSdk instance and saves it for future reference
+   * creates a playback session with its own AppSdk instance, taken from the pool, and its own
+   * playback state and ID3 history
    *
+   * @param id value of the session key property, or null for the default session
    * @param settings integration settings
-   * @param analytics analytics object provided to the factory
-   * @return AppSdk instance to use in integration
+   * @param appContext application the AppSdk instance is created for
+   * @param appSdkPool pool of the AppSdk instances of the analytics instance
+   * @param logger integration logger
+   * @param metrics recorder of the AppSdk call counts and latencies
+   * @param callTrace ring of the last AppSdk calls
+   * @param sessionExecutor executor shared by the sessions, or null if events are not routed by
+   *     session
+   * @param appSdk AppSdk instance to keep using, or null to take one from the pool. Its
+   *     construction is never deferred, as it is already constructed.
+   * @throws JSONException if error trying to parse settings
+   * @return the new playback session
    */
-  AppSdk fetchAppSdk(
-      ValueMap settings, Analytics analytics, Map<String, List<AppSdk>> appSdkInstances)
+  PlaybackSession createSession(
+      String id,
+      final ValueMap settings,
+      final Context appContext,
+      final AppSdkPool appSdkPool,
+      Logger logger,
+      AppSdkMetrics metrics,
+      CallTrace callTrace,
+      Executor sessionExecutor,
+      AppSdkPool.Entry appSdk)
       throws JSONException {
-    String appId = settings.getString(SETTING_APP_ID_KEY);
+    AppSdkHolder appSdkHolder = new AppSdkHolder();
+    AppSdkDispatcher dispatcher;
 
-    AppSdk appSdk = reuseAppSdk(appId, appSdkInstances);
-    if (appSdk == null) {
-      Context appContext = analytics.getApplication();
+    // a kept instance is leased right away, before the replaced integration releases it
+    if (appSdk == null && settings.getBoolean(SETTING_DEFER_APP_SDK_KEY, false)) {
+      dispatcher =
+          createDeferredDispatcher(
+              settings,
+              new Callable<AppSdkPool.Entry>() {
+                @Override
+                public AppSdkPool.Entry call() throws JSONException {
+                  return fetchAppSdk(settings, appContext, appSdkPool);
+                }
+              },
+              appSdkHolder,
+              INIT_EXECUTOR,
+              id,
+              sessionExecutor,
+              logger,
+              metrics,
+              callTrace);
+    } else {
+      long start = System.nanoTime();
+      AppSdkPool.Entry entry =
+          appSdk != null ? appSdk.retain() : fetchAppSdk(settings, appContext, appSdkPool);
+      appSdkHolder.set(entry, System.nanoTime() - start);
+      dispatcher =
+          createDispatcher(settings, entry, id, sessionExecutor, logger, metrics, callTrace);
+    }
+
+    return new PlaybackSession(
+        id,
+        appSdkHolder,
+        dispatcher,
+        new PlaybackStateMachine(logger),
+        createId3Deduplicator(settings));
+  }
 
-      JSONObject appSdkConfig = parseAppSdkConfig(settings);
+  /**
+   * creates the executor running the AppSdk calls of every session, with {@link
+   * #SETTING_SESSION_WORKERS_KEY} threads that exit when idle
+   */
+  private static Executor createSessionExecutor(ValueMap settings) {
+    int workers = settings.getInt(SETTING_SESSION_WORKERS_KEY, DEFAULT_SESSION_WORKERS);
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            workers > 0 ? workers : DEFAULT_SESSION_WORKERS,
+            workers > 0 ? workers : DEFAULT_SESSION_WORKERS,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Segment-NielsenDTVR-Session");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 
-      appSdk = new AppSdk(appContext, appSdkConfig, null);
-      saveAppSdk(appId, appSdk, appSdkInstances);
+  /**
+   * opens the journal of session transitions of the app id if {@link #SETTING_SESSION_JOURNAL_KEY}
+   * is enabled, recovering the sessions left open by the previous process the first time
+   *
+   * @param settings integration settings
+   * @param analytics analytics object provided to the factory
+   * @param logger integration logger
+   * @return the journal, or {@link SessionJournal#NONE} if disabled
+   */
+  SessionJournal openSessionJournal(ValueMap settings, Analytics analytics, Logger logger) {
+    if (!settings.getBoolean(SETTING_SESSION_JOURNAL_KEY, false)) return SessionJournal.NONE;
+
+    File file = dataFile(settings, analytics, ".journal");
+    synchronized (sessionJournals) {
+      Shared<SessionJournal> shared = sessionJournals.get(file.getPath());
+      if (shared == null) {
+        SessionJournal journal =
+            SessionJournal.open(
+                file,
+                settings.getInt(
+                    SETTING_SESSION_JOURNAL_SIZE_KEY, SessionJournal.DEFAULT_MAX_RECORDS),
+                logger);
+        if (journal == SessionJournal.NONE) return journal;
+        shared = new Shared<>(journal);
+        sessionJournals.put(file.getPath(), shared);
+      }
+      shared.references++;
+      return shared.value;
     }
+  }
 
-    return appSdk;
+  /** closes {@code journal} once the last integration opening it is retired */
+  private static void releaseSessionJournal(SessionJournal journal) {
+    synchronized (sessionJournals) {
+      if (Shared.release(sessionJournals, journal)) journal.close();
+    }
   }
 
   /**
-   * reuse an existing AppSdk instance if {@link #MAX_INSTANCES} instances already exist
+   * starts recording the track events reaching the integration if {@link
+   * #SETTING_RECORD_TRACE_KEY} is enabled, up to {@link #SETTING_TRACE_MAX_BYTES_KEY} bytes
    *
-   * @param appId fetch instances for the given app id
-   * @param appSdkInstances a map of app ids and their list of AppSdk instances
-   * @return the first existing AppSdk instance or null if max instances has not been reached
+   * @param settings integration settings
+   * @param routes app id routes of the integration, whose property is recorded
+   * @param analytics analytics object provided to the factory
+   * @param logger integration logger
+   * @return the trace, or {@link EventTrace#NONE} if disabled
    */
-  AppSdk reuseAppSdk(String appId, Map<String, List<AppSdk>> appSdkInstances) {
-    List<AppSdk> instancesForId = appSdkInstances.get(appId);
+  EventTrace openEventTrace(
+      ValueMap settings, AppIdRoutes routes, Analytics analytics, Logger logger) {
+    if (!settings.getBoolean(SETTING_RECORD_TRACE_KEY, false)) return EventTrace.NONE;
 
-    if (instancesForId != null && instancesForId.size() >= MAX_INSTANCES) {
-      return instancesForId.get(0);
+    File file = dataFile(settings, analytics, ".trace");
+    synchronized (eventTraces) {
+      Shared<EventTrace> shared = eventTraces.get(file.getPath());
+      if (shared == null) {
+        List<PropertyPath> sessionProperties = new ArrayList<>();
+        String sessionKeyProperty = settings.getString(SETTING_SESSION_KEY_PROPERTY_KEY);
+        if (!isNullOrEmpty(sessionKeyProperty)) {
+          sessionProperties.add(PropertyPath.parse(sessionKeyProperty));
+        }
+        if (routes.size() > 0) sessionProperties.add(routes.property());
+        EventTrace trace =
+            EventTrace.open(
+                file,
+                settings.getLong(SETTING_TRACE_MAX_BYTES_KEY, EventTrace.DEFAULT_MAX_BYTES),
+                sessionProperties,
+                Clock.SYSTEM,
+                logger);
+        if (trace == EventTrace.NONE) return trace;
+        shared = new Shared<>(trace);
+        eventTraces.put(file.getPath(), shared);
+      }
+      shared.references++;
+      return shared.value;
     }
+  }
 
-    return null;
+  /** flushes and closes {@code trace} once the last integration opening it is retired */
+  private static void releaseEventTrace(EventTrace trace) {
+    synchronized (eventTraces) {
+      if (Shared.release(eventTraces, trace)) {
+        trace.flush();
+        trace.close();
+      }
+    }
+  }
+
+  /**
+   * stops the sessions of the integration that are playing as soon as the app goes to the
+   * background, unless {@link #SETTING_STOP_ON_BACKGROUND_KEY} is disabled, and resumes them as
+   * soon as it returns to the foreground, unless {@link #SETTING_RESUME_ON_FOREGROUND_KEY} is
+   * disabled
+   *
+   * @param settings integration settings
+   * @param integration integration to stop and resume
+   * @return the observer being added to the process lifecycle, or null if both are disabled
+   */
+  private static ProcessLifecycleObserver observeProcessLifecycle(
+      ValueMap settings, NielsenDTVRIntegration integration) {
+    boolean stopOnBackground = settings.getBoolean(SETTING_STOP_ON_BACKGROUND_KEY, true);
+    boolean resumeOnForeground = settings.getBoolean(SETTING_RESUME_ON_FOREGROUND_KEY, true);
+    if (!stopOnBackground && !resumeOnForeground) return null;
+
+    final ProcessLifecycleObserver observer =
+        new ProcessLifecycleObserver(
+            integration, lifecycleExecutor(), stopOnBackground, resumeOnForeground);
+    // observers can only be added on the main thread
+    new Handler(Looper.getMainLooper())
+        .post(
+            new Runnable() {
+              @Override
+              public void run() {
+                ProcessLifecycleOwner.get().getLifecycle().addObserver(observer);
+              }
+            });
+    return observer;
+  }
+
+  /** removes an observer added by {@link #observeProcessLifecycle} */
+  private static void stopObserving(final ProcessLifecycleObserver observer) {
+    new Handler(Looper.getMainLooper())
+        .post(
+            new Runnable() {
+              @Override
+              public void run() {
+                ProcessLifecycleOwner.get().getLifecycle().removeObserver(observer);
+              }
+            });
+  }
+
+  /**
+   * @return executor shared by every integration to stop sessions when the app goes to the
+   *     background, and by player bindings to call the integration off the main thread, with a
+   *     thread that exits when idle
+   */
+  static synchronized Executor lifecycleExecutor() {
+    if (lifecycleExecutor == null) {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              1,
+              1,
+              30,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, "Segment-NielsenDTVR-Lifecycle");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      executor.allowCoreThreadTimeOut(true);
+      lifecycleExecutor = executor;
+    }
+    return lifecycleExecutor;
+  }
+
+  /** @return file of the app id in the private files directory, named after {@code extension} */
+  private static File dataFile(ValueMap settings, Analytics analytics, String extension) {
+    String appId = String.valueOf(settings.getString(SETTING_APP_ID_KEY));
+    return new File(
+        analytics.getApplication().getFilesDir(),
+        "segment-nielsen-dtvr-" + appId.replaceAll("[^A-Za-z0-9-]", "_") + extension);
+  }
+
+  /**
+   * stops the AppSdk if sessions were left playing by the previous process, ending the viewing
+   * credited to them. Only the first integration created from the journal does, not the ones
+   * rebuilt on later settings refreshes.
+   */
+  private static void closeOrphanedSessions(
+      SessionJournal journal, PlaybackSession defaultSession, Logger logger) {
+    List<SessionJournal.Entry> orphans = journal.takeOrphans();
+    if (orphans.isEmpty()) return;
+
+    for (SessionJournal.Entry orphan : orphans) {
+      logger.debug(
+          "Closing Nielsen session '%s' left open on channel '%s' at %d",
+          orphan.sessionId, orphan.channel, orphan.timeMillis);
+    }
+    defaultSession.dispatcher.stop();
+    for (SessionJournal.Entry orphan : orphans) {
+      journal.record(SessionJournal.STOP, orphan.sessionId, null);
+    }
+  }
+
+  /**
+   * reuse an existing AppSdk instance if {@link #SETTING_POOL_SIZE_KEY} instances already exist,
+   * otherwise creates a new AppSdk instance and adds it to the pool
+   *
+   * @param settings integration settings
+   * @param appContext application the AppSdk instance is created for
+   * @param appSdkPool pool of the AppSdk instances of the analytics instance, by app id
+   * @return pooled AppSdk instance to use in integration
+   */
+  AppSdkPool.Entry fetchAppSdk(ValueMap settings, Context appContext, AppSdkPool appSdkPool)
+      throws JSONException {
+    String appId = settings.getString(SETTING_APP_ID_KEY);
+    int maxSize = settings.getInt(SETTING_POOL_SIZE_KEY, AppSdkPool.DEFAULT_MAX_SIZE);
+    AppSdkPool.Policy policy =
+        AppSdkPool.Policy.parse(
+            settings.getString(SETTING_POOL_POLICY_KEY), AppSdkPool.Policy.LEAST_ACTIVE);
+
+    // deferred integrations construct their instance on a background thread
+    synchronized (appSdkPool) {
+      AppSdkPool.Entry entry =
+          appSdkPool.select(appId, maxSize > 0 ? maxSize : AppSdkPool.DEFAULT_MAX_SIZE, policy);
+      if (entry == null) {
+        JSONObject appSdkConfig = parseAppSdkConfig(settings);
+
+        entry = appSdkPool.add(appId, newAppSdk(appContext, appSdkConfig));
+      }
+
+      return entry;
+    }
+  }
+
+  /**
+   * @param appContext application the AppSdk instance is created for
+   * @param appSdkConfig config built by {@link #parseAppSdkConfig(ValueMap)}
+   * @return a new AppSdk instance, overridden to replay traces against a stub
+   */
+  AppSdk newAppSdk(Context appContext, JSONObject appSdkConfig) {
+    return new AppSdk(appContext, appSdkConfig, null);
   }
 
   /**
@@ -124,42 +696,400 @@ class NielsenDTVRIntegrationFactory implements Integration.Factory {
   }
 
   /**
-   * save a newly created AppSdk instance
+   * creates the dispatcher that forwards calls to the AppSdk instance, calling it directly on the
+   * integration thread unless {@link #SETTING_ASYNC_DISPATCH_KEY} is enabled, and coalescing play
+   * and stop storms if {@link #SETTING_COALESCE_WINDOW_KEY} is set
    *
-   * @param appId save AppSdk instance to the given app id
-   * @param appSdk the AppSdk instance to save
-   * @param appSdkInstances a map of app ids and their list of AppSdk instances
+   * @param settings integration settings
+   * @param appSdk the AppSdk instance used by the integration, with the state shared by every
+   *     session calling it
+   * @param sessionId session of the AppSdk instance, or null for the default session
+   * @param sessionExecutor executor running the calls of every session, in order per session, or
+   *     null if events are not routed by session
+   * @param logger integration logger
+   * @param metrics recorder of the AppSdk call counts and latencies
+   * @param callTrace ring of the last AppSdk calls
+   * @return dispatcher to use in the integration
    */
-  void saveAppSdk(String appId, AppSdk appSdk, Map<String, List<AppSdk>> appSdkInstances) {
-    List<AppSdk> instancesForId = appSdkInstances.get(appId);
+  AppSdkDispatcher createDispatcher(
+      ValueMap settings,
+      AppSdkPool.Entry appSdk,
+      String sessionId,
+      Executor sessionExecutor,
+      Logger logger,
+      AppSdkMetrics metrics,
+      CallTrace callTrace) {
+    return coalesce(
+        settings,
+        createAppSdkDispatcher(
+            settings, appSdk, sessionId, sessionExecutor, logger, metrics, callTrace));
+  }
 
-    if (instancesForId == null) {
-      instancesForId = new ArrayList<>();
-      appSdkInstances.put(appId, instancesForId);
+  /**
+   * creates the dispatcher like {@link #createDispatcher(ValueMap, AppSdkPool.Entry, String,
+   * Executor, Logger, AppSdkMetrics, CallTrace)}, but constructs the AppSdk instance on a
+   * background thread once the first call is dispatched, buffering up to {@link
+   * #SETTING_DEFER_BUFFER_SIZE_KEY} calls meanwhile
+   *
+   * @param settings integration settings
+   * @param constructor constructs or reuses the AppSdk instance
+   * @param appSdkHolder receives the AppSdk instance once constructed
+   * @param executor runs the construction
+   * @param sessionId session of the AppSdk instance, or null for the default session
+   * @param sessionExecutor executor running the calls of every session, or null
+   * @param logger integration logger
+   * @param metrics recorder of the AppSdk call counts and latencies
+   * @param callTrace ring of the last AppSdk calls
+   * @return dispatcher to use in the integration
+   */
+  AppSdkDispatcher createDeferredDispatcher(
+      final ValueMap settings,
+      Callable<AppSdkPool.Entry> constructor,
+      AppSdkHolder appSdkHolder,
+      Executor executor,
+      final String sessionId,
+      final Executor sessionExecutor,
+      final Logger logger,
+      final AppSdkMetrics metrics,
+      final CallTrace callTrace) {
+    int capacity =
+        settings.getInt(SETTING_DEFER_BUFFER_SIZE_KEY, DeferredDispatcher.DEFAULT_CAPACITY);
+    AppSdkDispatcher dispatcher =
+        new DeferredDispatcher(
+            constructor,
+            new DeferredDispatcher.Target() {
+              @Override
+              public AppSdkDispatcher create(AppSdkPool.Entry appSdk) {
+                return createAppSdkDispatcher(
+                    settings, appSdk, sessionId, sessionExecutor, logger, metrics, callTrace);
+              }
+            },
+            appSdkHolder,
+            executor,
+            capacity > 0 ? capacity : DeferredDispatcher.DEFAULT_CAPACITY,
+            logger);
+    return coalesce(settings, dispatcher);
+  }
+
+  /**
+   * @return dispatcher calling the AppSdk instance, on the session executor if routing by session,
+   *     or through a queue if dispatching async
+   */
+  private AppSdkDispatcher createAppSdkDispatcher(
+      ValueMap settings,
+      AppSdkPool.Entry appSdk,
+      String sessionId,
+      Executor sessionExecutor,
+      Logger logger,
+      AppSdkMetrics metrics,
+      CallTrace callTrace) {
+    AppSdkDispatcher dispatcher =
+        new DirectDispatcher(
+            appSdk.appSdk(), appSdk.coordinator(), sessionId, logger, metrics, callTrace);
+
+    int capacity =
+        settings.getInt(SETTING_DISPATCH_QUEUE_SIZE_KEY, SerialDispatcher.DEFAULT_CAPACITY);
+    if (capacity <= 0) capacity = SerialDispatcher.DEFAULT_CAPACITY;
+    SerialDispatcher.OverflowPolicy overflowPolicy =
+        SerialDispatcher.OverflowPolicy.parse(
+            settings.getString(SETTING_DISPATCH_OVERFLOW_POLICY_KEY),
+            SerialDispatcher.OverflowPolicy.BLOCK);
+
+    if (sessionExecutor != null) {
+      // calls of sessions are always queued, bounded like those of the default session
+      dispatcher =
+          new OrderedDispatcher(dispatcher, sessionExecutor, logger, capacity, overflowPolicy);
+    } else if (settings.getBoolean(SETTING_ASYNC_DISPATCH_KEY, false)) {
+      dispatcher = new SerialDispatcher(dispatcher, logger, capacity, overflowPolicy);
     }
 
-    instancesForId.add(appSdk);
+    return dispatcher;
+  }
+
+  /** @return {@code dispatcher} wrapped to coalesce play and stop storms, if enabled */
+  private AppSdkDispatcher coalesce(ValueMap settings, AppSdkDispatcher dispatcher) {
+    // coalesce before buffering or queueing, so suppressed calls never take up capacity
+    int coalesceWindowMillis = settings.getInt(SETTING_COALESCE_WINDOW_KEY, 0);
+    if (coalesceWindowMillis > 0) {
+      dispatcher =
+          new CoalescingDispatcher(dispatcher, coalesceWindowMillis, Clock.SYSTEM, timers());
+    }
+
+    return dispatcher;
+  }
+
+  /** @return executor shared by every integration for delayed work, created on first use */
+  private static synchronized ScheduledExecutorService scheduler() {
+    if (scheduler == null) {
+      scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, "Segment-NielsenDTVR-Scheduler");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+    }
+    return scheduler;
+  }
+
+  /** @return timer wheel shared by every integration for deadlines, created on first use */
+  private static synchronized TimerWheel timers() {
+    if (timers == null) {
+      timers =
+          new TimerWheel(
+              scheduler(),
+              Clock.SYSTEM,
+              TimerWheel.DEFAULT_TICK_MILLIS,
+              TimerWheel.DEFAULT_WHEEL_SIZE);
+    }
+    return timers;
   }
 
   /**
-   * retrieves lowercase list of id3 event names from settings
+   * creates the filter dropping repeated ID3 tags, remembering the last {@link
+   * #SETTING_ID3_HISTORY_SIZE_KEY} tags and sending at most one tag per {@link
+   * #SETTING_ID3_MIN_INTERVAL_KEY}
    *
    * @param settings integration settings
-   * @return list of lower case id3 event names
+   * @return ID3 filter to use in the integration
+   */
+  Id3Deduplicator createId3Deduplicator(ValueMap settings) {
+    int historySize =
+        settings.getInt(SETTING_ID3_HISTORY_SIZE_KEY, Id3Deduplicator.DEFAULT_HISTORY_SIZE);
+    long minIntervalMillis = settings.getLong(SETTING_ID3_MIN_INTERVAL_KEY, 0);
+
+    return new Id3Deduplicator(historySize, minIntervalMillis, Clock.SYSTEM);
+  }
+
+  /**
+   * creates the cache of channelInfo and metadata payloads, holding up to {@link
+   * #SETTING_PAYLOAD_CACHE_SIZE_KEY} channels and trimmed when the application runs low on memory
+   *
+   * @param settings integration settings
+   * @param analytics analytics object provided to the factory
+   * @param logger integration logger
+   * @return payload cache to use in the integration
+   */
+  ChannelPayloadCache createPayloadCache(ValueMap settings, Analytics analytics, Logger logger) {
+    int maxSize =
+        settings.getInt(SETTING_PAYLOAD_CACHE_SIZE_KEY, ChannelPayloadCache.DEFAULT_MAX_SIZE);
+    ChannelPayloadCache payloadCache = new ChannelPayloadCache(maxSize, logger);
+
+    Context appContext = analytics.getApplication();
+    if (appContext != null) appContext.registerComponentCallbacks(payloadCache);
+
+    return payloadCache;
+  }
+
+  /** @return whether the settings are equal, besides the {@code ignoredKeys} */
+  static boolean equalSettings(ValueMap a, ValueMap b, List<String> ignoredKeys) {
+    Set<String> keys = new HashSet<>(a.keySet());
+    keys.addAll(b.keySet());
+    keys.removeAll(ignoredKeys);
+    for (String key : keys) {
+      Object value = a.get(key);
+      if (value == null ? b.get(key) != null : !value.equals(b.get(key))) return false;
+    }
+    return true;
+  }
+
+  /** @return whether both settings initialize the Nielsen App SDK the same way */
+  boolean equalAppSdkConfig(ValueMap a, ValueMap b) {
+    try {
+      return parseAppSdkConfig(a).toString().equals(parseAppSdkConfig(b).toString());
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+
+  /**
+   * compiles the routing of events to the app ids of other networks from {@link
+   * #SETTING_APP_ID_ROUTES_KEY}, which maps each value of the {@link
+   * #SETTING_APP_ID_ROUTE_PROPERTY_KEY} property, the channel by default, to either an app id or an
+   * object with the {@code appId} and {@code sfcode}, e.g. {@code {"TBS": "P2", "CNN": {"appId":
+   * "P3", "sfcode": "dcr"}}}. Values routed to the app id of the settings are left to its sessions.
+   *
+   * @param settings integration settings
+   * @return routes used by the integration to pick the session of an event
+   */
+  AppIdRoutes parseAppIdRoutes(ValueMap settings) {
+    ValueMap appIdRoutes = settings.getValueMap(SETTING_APP_ID_ROUTES_KEY);
+    if (appIdRoutes == null || appIdRoutes.isEmpty()) return AppIdRoutes.NONE;
+
+    String property = settings.getString(SETTING_APP_ID_ROUTE_PROPERTY_KEY);
+    AppIdRoutes.Builder builder =
+        new AppIdRoutes.Builder(isNullOrEmpty(property) ? AppIdRoutes.DEFAULT_PROPERTY : property);
+    String defaultAppId = settings.getString(SETTING_APP_ID_KEY);
+    for (Map.Entry<String, Object> entry : appIdRoutes.entrySet()) {
+      Object value = entry.getValue();
+      Object sfcode = null;
+      if (value instanceof Map) {
+        Map<?, ?> route = (Map<?, ?>) value;
+        value = route.get("appId");
+        sfcode = route.get("sfcode");
+      }
+      if (!(value instanceof String) || isNullOrEmpty((String) value)) continue;
+      if (value.equals(defaultAppId) && sfcode == null) continue;
+
+      builder.put(entry.getKey(), (String) value, sfcode == null ? null : sfcode.toString());
+    }
+    return builder.build();
+  }
+
+  /** @return {@code settings} with the app id, and sfcode, of {@code route} */
+  private static ValueMap routeSettings(ValueMap settings, AppIdRoutes.Route route) {
+    ValueMap routeSettings = new ValueMap(new LinkedHashMap<>(settings));
+    routeSettings.put(SETTING_APP_ID_KEY, route.appId);
+    if (route.sfcode != null) routeSettings.put(SETTING_SF_CODE_KEY, route.sfcode);
+    return routeSettings;
+  }
+
+  /**
+   * compiles the settings deciding which Nielsen calls a track event triggers
+   *
+   * @param settings integration settings
+   * @param logger logger to report unknown action and transform names
+   * @return event settings of the integration
+   */
+  EventSettings parseEventSettings(ValueMap settings, Logger logger) {
+    List<String> id3EventNames = parseId3EventNames(settings);
+    return new EventSettings(
+        parseEventDispatchTable(settings, id3EventNames, logger),
+        parseId3PropertyName(settings),
+        parseMetadataMapping(settings, logger));
+  }
+
+  /**
+   * retrieves lowercase list of id3 event names from settings, leaving the settings unchanged
+   *
+   * @param settings integration settings
+   * @return list of lower case id3 event names, empty if none are set
    */
   List<String> parseId3EventNames(ValueMap settings) {
-    @SuppressWarnings("unchecked")
-    List<String> id3EventNames = (List<String>) settings.get(SETTING_ID3_EVENTS_KEY);
+    Object value = settings.get(SETTING_ID3_EVENTS_KEY);
+    if (!(value instanceof List)) return Collections.emptyList();
+
+    List<?> names = (List<?>) value;
+    List<String> id3EventNames = new ArrayList<>(names.size());
+    for (Object name : names) {
+      if (name != null) id3EventNames.add(name.toString().toLowerCase(Locale.US));
+    }
+
+    return Collections.unmodifiableList(id3EventNames);
+  }
+
+  /**
+   * compiles the event dispatch table from the default video event mapping, the custom mapping in
+   * {@link #SETTING_EVENT_ACTIONS_KEY} and the id3 event names. A custom mapping replaces the
+   * default actions of an event and maps to either a single action name or a list of action names,
+   * e.g. {@code {"Player Started": ["play", "loadMetadata"], "Player Paused": "stop"}}
+   *
+   * @param settings integration settings
+   * @param id3EventNames event names that send id3 tags
+   * @param logger logger to report unknown action names
+   * @return dispatch table used by the integration to route track events
+   */
+  EventDispatchTable parseEventDispatchTable(
+      ValueMap settings, List<String> id3EventNames, Logger logger) {
+    EventDispatchTable.Builder builder = new EventDispatchTable.Builder().putDefaults();
+
+    ValueMap eventActions = settings.getValueMap(SETTING_EVENT_ACTIONS_KEY);
+    if (eventActions != null) {
+      for (Map.Entry<String, Object> entry : eventActions.entrySet()) {
+        builder.put(entry.getKey(), parseActions(entry.getValue(), logger));
+      }
+    }
+
+    if (id3EventNames != null) {
+      for (String id3EventName : id3EventNames) {
+        builder.add(id3EventName, EventDispatchTable.ACTION_SEND_ID3);
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * @param value a single action name or a list of action names from settings
+   * @param logger logger to report unknown action names
+   * @return bit set of {@code EventDispatchTable.ACTION_*} flags
+   */
+  private int parseActions(Object value, Logger logger) {
+    if (value instanceof String) {
+      int action = EventDispatchTable.parseAction((String) value);
+      if (action == EventDispatchTable.ACTION_NONE) {
+        logger.debug("Ignoring unknown Nielsen action %s", value);
+      }
+      return action;
+    }
+
+    int actions = EventDispatchTable.ACTION_NONE;
+    if (value instanceof List) {
+      for (Object item : (List<?>) value) {
+        actions |= parseActions(item, logger);
+      }
+    }
+    return actions;
+  }
+
+  /**
+   * compiles the mapping of event properties to the Nielsen metadata from the default mapping and
+   * the custom one in {@link #SETTING_METADATA_MAPPING_KEY}. A custom field replaces the default
+   * field of the same metadata key, and maps to either a property path, a list of paths read until
+   * one is present, or an object with the {@code property} path or paths and a {@code transform},
+   * one of {@code adModel}, {@code lowercase} or {@code uppercase}. Nested properties are separated
+   * by dots, and a null or empty path removes the field, e.g. {@code {"channelName":
+   * "video.channel", "programTitle": ["title", "video.title"], "adModel": {"property":
+   * "streamType", "transform": "adModel"}}}
+   *
+   * @param settings integration settings
+   * @param logger logger to report unknown transform names
+   * @return mapping used by the integration to build the metadata
+   */
+  MetadataMapping parseMetadataMapping(ValueMap settings, Logger logger) {
+    ValueMap metadataMapping = settings.getValueMap(SETTING_METADATA_MAPPING_KEY);
+    if (metadataMapping == null) return MetadataMapping.DEFAULT;
 
-    for (int i = 0; i < id3EventNames.size(); ++i) {
-      id3EventNames.set(i, id3EventNames.get(i).toLowerCase());
+    MetadataMapping.Builder builder = new MetadataMapping.Builder().putDefaults();
+    for (Map.Entry<String, Object> entry : metadataMapping.entrySet()) {
+      Object value = entry.getValue();
+      int transform = MetadataMapping.TRANSFORM_NONE;
+      if (value instanceof Map) {
+        Map<?, ?> field = (Map<?, ?>) value;
+        Object transformName = field.get("transform");
+        transform =
+            MetadataMapping.parseTransform(transformName == null ? null : transformName.toString());
+        if (transform < 0) {
+          logger.debug("Ignoring unknown Nielsen metadata transform %s", transformName);
+          transform = MetadataMapping.TRANSFORM_NONE;
+        }
+        value = field.get("property");
+      }
+      builder.put(entry.getKey(), transform, parsePropertyPaths(value));
     }
+    return builder.build();
+  }
+
+  /** @return the property path, or list of paths, from settings */
+  private static String[] parsePropertyPaths(Object value) {
+    if (value instanceof String) return new String[] {(String) value};
+    if (!(value instanceof List)) return new String[0];
 
-    return id3EventNames;
+    List<?> items = (List<?>) value;
+    String[] paths = new String[items.size()];
+    for (int i = 0; i < paths.length; i++) {
+      Object item = items.get(i);
+      paths[i] = item instanceof String ? (String) item : null;
+    }
+    return paths;
   }
 
   /**
-   * retrieves id3 property name from settings, otherwise uses default value
+   * retrieves id3 property name from settings, otherwise uses default value. Nested properties are
+   * separated by dots.
    *
    * @param settings integration settings
    * @return custom id3 property name, otherwise {@link #SETTING_ID3_PROPERTY_DEFAULT}
@@ -169,4 +1099,67 @@ class NielsenDTVRIntegrationFactory implements Integration.Factory {
 
     return isNullOrEmpty(id3Property) ? SETTING_ID3_PROPERTY_DEFAULT : id3Property;
   }
+
+  /**
+   * The integration created for an analytics instance, the settings it was created with, the
+   * observer stopping it when the app goes to the background and the application it registered
+   * with.
+   */
+  private static final class LiveIntegration {
+    ValueMap settings;
+    final NielsenDTVRIntegration integration;
+    final ProcessLifecycleObserver lifecycleObserver;
+    final Context appContext;
+
+    LiveIntegration(
+        ValueMap settings,
+        NielsenDTVRIntegration integration,
+        ProcessLifecycleObserver lifecycleObserver,
+        Context appContext) {
+      this.settings = settings;
+      this.integration = integration;
+      this.lifecycleObserver = lifecycleObserver;
+      this.appContext = appContext;
+    }
+  }
+
+  /**
+   * The live integration and AppSdk instances of an analytics instance, guarded by
+   * analyticsStates. Enqueued once the analytics instance is collected, so nothing it holds may
+   * refer to it.
+   */
+  private static final class AnalyticsState extends WeakReference<Analytics> {
+    final AppSdkPool appSdkPool = new AppSdkPool();
+    LiveIntegration live;
+
+    AnalyticsState(Analytics analytics, ReferenceQueue<Analytics> collected) {
+      super(analytics, collected);
+    }
+  }
+
+  /** A journal or trace opened by this process, with the number of integrations using it. */
+  private static final class Shared<T> {
+    final T value;
+    int references;
+
+    Shared(T value) {
+      this.value = value;
+    }
+
+    /**
+     * drops a reference to {@code value}, removing it from {@code opened} with the last one
+     *
+     * @return whether the last reference was dropped, so {@code value} should be closed
+     */
+    static <T> boolean release(Map<String, Shared<T>> opened, T value) {
+      for (Iterator<Shared<T>> i = opened.values().iterator(); i.hasNext(); ) {
+        Shared<T> shared = i.next();
+        if (shared.value != value) continue;
+        if (--shared.references > 0) return false;
+        i.remove();
+        return true;
+      }
+      return false;
+    }
+  }
 }
@@ -0,0 +1,302 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+/**
+ * Immutable snapshot of how often, and for how long, the integration called into the Nielsen App
+ * SDK, and of the calls it dropped or de-duplicated instead. Obtained from {@link
+ * NielsenDTVRIntegration#getStats()}.
+ */
+public final class NielsenDTVRStats {
+  private final MethodStats play;
+  private final MethodStats loadMetadata;
+  private final MethodStats stop;
+  private final MethodStats sendID3;
+  private final MethodStats end;
+  private final DispatcherStats dispatcher;
+  private final long redundantCalls;
+  private final long illegalCalls;
+  private final long duplicateId3Tags;
+  private final long rateLimitedId3Tags;
+  private final long payloadCacheHits;
+  private final long payloadCacheMisses;
+  private final long appSdkConstructionNanos;
+  private final AppSdkPoolStats appSdkPool;
+  private final int activeSessions;
+  private final long reclaimedSessions;
+  private final int orphanedSessions;
+  private final long autoStoppedSessions;
+
+  NielsenDTVRStats(
+      MethodStats play,
+      MethodStats loadMetadata,
+      MethodStats stop,
+      MethodStats sendID3,
+      MethodStats end,
+      DispatcherStats dispatcher,
+      long redundantCalls,
+      long illegalCalls,
+      long duplicateId3Tags,
+      long rateLimitedId3Tags,
+      long payloadCacheHits,
+      long payloadCacheMisses,
+      long appSdkConstructionNanos,
+      AppSdkPoolStats appSdkPool,
+      int activeSessions,
+      long reclaimedSessions,
+      int orphanedSessions,
+      long autoStoppedSessions) {
+    this.play = play;
+    this.loadMetadata = loadMetadata;
+    this.stop = stop;
+    this.sendID3 = sendID3;
+    this.end = end;
+    this.dispatcher = dispatcher;
+    this.redundantCalls = redundantCalls;
+    this.illegalCalls = illegalCalls;
+    this.duplicateId3Tags = duplicateId3Tags;
+    this.rateLimitedId3Tags = rateLimitedId3Tags;
+    this.payloadCacheHits = payloadCacheHits;
+    this.payloadCacheMisses = payloadCacheMisses;
+    this.appSdkConstructionNanos = appSdkConstructionNanos;
+    this.appSdkPool = appSdkPool;
+    this.activeSessions = activeSessions;
+    this.reclaimedSessions = reclaimedSessions;
+    this.orphanedSessions = orphanedSessions;
+    this.autoStoppedSessions = autoStoppedSessions;
+  }
+
+  public MethodStats play() {
+    return play;
+  }
+
+  public MethodStats loadMetadata() {
+    return loadMetadata;
+  }
+
+  public MethodStats stop() {
+    return stop;
+  }
+
+  public MethodStats sendID3() {
+    return sendID3;
+  }
+
+  public MethodStats end() {
+    return end;
+  }
+
+  /** @return queue depth, drops and wait times of the dispatcher forwarding calls to the AppSdk */
+  public DispatcherStats dispatcher() {
+    return dispatcher;
+  }
+
+  /** @return calls dropped by the dispatcher because its queue was full */
+  public long droppedCalls() {
+    return dispatcher.dropped();
+  }
+
+  /** @return play and stop calls suppressed by coalescing buffer and seek storms */
+  public long coalescedCalls() {
+    return dispatcher.coalesced();
+  }
+
+  /** @return play, stop and end calls another session sharing the AppSdk instance covered */
+  public long sharedCalls() {
+    return dispatcher.sharedCalls();
+  }
+
+  /** @return calls suppressed because they would not have changed the playback state */
+  public long redundantCalls() {
+    return redundantCalls;
+  }
+
+  /** @return calls rejected because they were not allowed in the playback state */
+  public long illegalCalls() {
+    return illegalCalls;
+  }
+
+  /** @return ID3 tags dropped because they were recently sent */
+  public long duplicateId3Tags() {
+    return duplicateId3Tags;
+  }
+
+  /** @return ID3 tags another session sharing the AppSdk instance already sent */
+  public long sharedId3Tags() {
+    return dispatcher.sharedId3Tags();
+  }
+
+  /** @return ID3 tags dropped by the minimum interval between tags */
+  public long rateLimitedId3Tags() {
+    return rateLimitedId3Tags;
+  }
+
+  /** @return play and loadMetadata payloads reused from the payload cache */
+  public long payloadCacheHits() {
+    return payloadCacheHits;
+  }
+
+  /** @return play and loadMetadata payloads that had to be built */
+  public long payloadCacheMisses() {
+    return payloadCacheMisses;
+  }
+
+  /** @return calls buffered while the AppSdk instance was constructed in the background */
+  public long replayedCalls() {
+    return dispatcher.replayed();
+  }
+
+  /**
+   * @return time it took to construct, or reuse, the AppSdk instance in nanoseconds, 0 while it is
+   *     still being constructed
+   */
+  public long appSdkConstructionNanos() {
+    return appSdkConstructionNanos;
+  }
+
+  /** @return occupancy of the AppSdk instances shared by integrations of the same app id */
+  public AppSdkPoolStats appSdkPool() {
+    return appSdkPool;
+  }
+
+  /** @return number of open sessions routed by the session key property */
+  public int activeSessions() {
+    return activeSessions;
+  }
+
+  /** @return number of sessions closed because they were idle, or to make room for new ones */
+  public long reclaimedSessions() {
+    return reclaimedSessions;
+  }
+
+  /** @return sessions left playing by the previous process, and closed on startup */
+  public int orphanedSessions() {
+    return orphanedSessions;
+  }
+
+  /** @return sessions stopped because they played without any activity for the idle timeout */
+  public long autoStoppedSessions() {
+    return autoStoppedSessions;
+  }
+
+  @Override
+  public String toString() {
+    return "NielsenDTVRStats{"
+        + play
+        + ", "
+        + loadMetadata
+        + ", "
+        + stop
+        + ", "
+        + sendID3
+        + ", "
+        + end
+        + ", "
+        + dispatcher
+        + ", redundantCalls="
+        + redundantCalls
+        + ", illegalCalls="
+        + illegalCalls
+        + ", duplicateId3Tags="
+        + duplicateId3Tags
+        + ", rateLimitedId3Tags="
+        + rateLimitedId3Tags
+        + ", payloadCacheHits="
+        + payloadCacheHits
+        + ", payloadCacheMisses="
+        + payloadCacheMisses
+        + ", appSdkConstructionNanos="
+        + appSdkConstructionNanos
+        + ", "
+        + appSdkPool
+        + ", activeSessions="
+        + activeSessions
+        + ", reclaimedSessions="
+        + reclaimedSessions
+        + ", orphanedSessions="
+        + orphanedSessions
+        + ", autoStoppedSessions="
+        + autoStoppedSessions
+        + '}';
+  }
+
+  /** Call count and latency histogram of one AppSdk method. */
+  public static final class MethodStats {
+    private final String name;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] histogram;
+
+    MethodStats(String name, long count, long totalNanos, long maxNanos, long[] histogram) {
+      this.name = name;
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+      this.histogram = histogram;
+    }
+
+    /** @return name of the AppSdk method */
+    public String name() {
+      return name;
+    }
+
+    /** @return number of calls that reached the AppSdk */
+    public long count() {
+      return count;
+    }
+
+    /** @return time spent in the AppSdk over all calls, in nanoseconds */
+    public long totalNanos() {
+      return totalNanos;
+    }
+
+    /** @return longest single call, in nanoseconds */
+    public long maxNanos() {
+      return maxNanos;
+    }
+
+    /** @return average call duration, in nanoseconds */
+    public long averageNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the histogram bucket holding the percentile, in nanoseconds
+     */
+    public long percentileNanos(double percentile) {
+      if (count == 0) return 0;
+
+      long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        seen += histogram[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min(maxNanos, (1L << (i + 1)) - 1);
+        }
+      }
+      return maxNanos;
+    }
+
+    /**
+     * @return number of calls per latency bucket, bucket {@code i} counting calls that took between
+     *     {@code 2^i} and {@code 2^(i+1)} nanoseconds
+     */
+    public long[] histogram() {
+      return histogram.clone();
+    }
+
+    @Override
+    public String toString() {
+      return name
+          + "{count="
+          + count
+          + ", averageNanos="
+          + averageNanos()
+          + ", p99Nanos="
+          + percentileNanos(99)
+          + ", maxNanos="
+          + maxNanos
+          + '}';
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import android.media.MediaPlayer;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Options;
+import com.segment.analytics.Properties;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Drives the Nielsen measurement of a player straight from its callbacks, rather than through
+ * Segment track events, which are serialized and queued before reaching the integration. Callbacks
+ * map to the same calls as the default mapping of the Segment video events.
+ *
+ * <p>Callbacks run on the main thread, so they hand their calls to the background thread that also
+ * stops sessions when the app goes to the background, in order. They never wait for the
+ * integration, which may be tracking an event or flushing its calls on the Segment thread. Calls
+ * are handed over in a ring of {@value #MAX_PENDING} reused commands, the oldest waiting one being
+ * dropped if the integration falls that far behind. An ID3 callback copies only the Nielsen tag,
+ * and only if it differs from the last one, as players repeat the same tag for seconds.
+ *
+ * <p>Register the binding as the {@link MediaPlayer.OnInfoListener}, {@link
+ * MediaPlayer.OnSeekCompleteListener} and {@link MediaPlayer.OnCompletionListener} of the player,
+ * and call {@link #onStart()}, {@link #onPause()} and {@link #onSeekStart()} where the player is
+ * started, paused and sought. Callbacks must come from a single thread, like MediaPlayer's.
+ *
+ * <pre>
+ * NielsenPlayerBinding binding = new NielsenPlayerBinding(analytics, null).emitSegmentEvents(true);
+ * binding.setContent("CNN", "linear");
+ * mediaPlayer.setOnInfoListener(binding);
+ * </pre>
+ */
+public class NielsenPlayerBinding
+    implements MediaPlayer.OnInfoListener,
+        MediaPlayer.OnSeekCompleteListener,
+        MediaPlayer.OnCompletionListener {
+  /** Finds the integration to drive, which Segment creates once settings are fetched. */
+  interface Source {
+    /** @return the integration, or null if not created yet */
+    NielsenDTVRIntegration integration();
+  }
+
+  // events emitted for other destinations, the integration already heard about them
+  private static final Options WITHOUT_NIELSEN =
+      new Options().setIntegration(NielsenDTVRIntegration.FACTORY.key(), false);
+  static final int MAX_PENDING = 16;
+
+  private final Analytics analytics;
+  private final String sessionId;
+  private final Source source;
+  private final Executor executor;
+  private final Runnable drain =
+      new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      };
+  // guarded by this, calls waiting for the executor, from head, the oldest, which may be running
+  private final Command[] pending = new Command[MAX_PENDING];
+  private int head;
+  private int count;
+  private boolean scheduled;
+  // only accessed on the thread of the callbacks
+  private boolean emitSegmentEvents;
+  private String channel;
+  private String loadType;
+  private boolean started;
+  private byte[] lastTag = new byte[0];
+  private int lastTagLength;
+
+  /**
+   * @param analytics analytics instance the integration is created for
+   * @param sessionId value of the session key property of the player, or null for the default
+   *     session
+   */
+  public NielsenPlayerBinding(final Analytics analytics, String sessionId) {
+    this(
+        analytics,
+        sessionId,
+        new Source() {
+          @Override
+          public NielsenDTVRIntegration integration() {
+            return NielsenDTVRIntegration.get(analytics);
+          }
+        },
+        NielsenDTVRIntegrationFactory.lifecycleExecutor());
+  }
+
+  /**
+   * @param source finds the integration to drive
+   * @param executor runs the calls of the integration off the thread of the callbacks, in order
+   */
+  NielsenPlayerBinding(Analytics analytics, String sessionId, Source source, Executor executor) {
+    this.analytics = analytics;
+    this.sessionId = sessionId;
+    this.source = source;
+    this.executor = executor;
+    for (int i = 0; i < pending.length; i++) pending[i] = new Command();
+  }
+
+  /**
+   * @param emitSegmentEvents whether to also track the Segment video events of the callbacks, for
+   *     the other destinations
+   * @return this binding
+   */
+  public NielsenPlayerBinding emitSegmentEvents(boolean emitSegmentEvents) {
+    this.emitSegmentEvents = emitSegmentEvents;
+    return this;
+  }
+
+  /**
+   * sets the content about to be played, the next {@link #onStart()} starts measuring it
+   *
+   * @param channel channel name
+   * @param loadType {@code linear} or {@code dynamic}, or null
+   */
+  public void setContent(String channel, String loadType) {
+    this.channel = channel;
+    this.loadType = loadType;
+    this.started = false;
+    this.lastTagLength = 0;
+  }
+
+  /** the player started, or resumed, playing */
+  public void onStart() {
+    if (started) {
+      dispatch("Video Playback Resumed", EventDispatchTable.ACTION_PLAY);
+    } else {
+      started = true;
+      dispatch(
+          "Video Content Started",
+          EventDispatchTable.ACTION_PLAY | EventDispatchTable.ACTION_LOAD_METADATA);
+    }
+  }
+
+  /** the player paused */
+  public void onPause() {
+    dispatch("Video Playback Paused", EventDispatchTable.ACTION_STOP);
+  }
+
+  /** the player started seeking */
+  public void onSeekStart() {
+    dispatch("Video Playback Seek Started", EventDispatchTable.ACTION_STOP);
+  }
+
+  /** the player stopped playing the content before its end, or was released */
+  public void onStop() {
+    started = false;
+    dispatch("Video Playback Completed", EventDispatchTable.ACTION_STOP);
+  }
+
+  /**
+   * sends the Nielsen tag of raw ID3 metadata of the player, like {@link
+   * NielsenDTVRIntegration#sendID3(String, byte[], int, int)}. Only metadata holding a Nielsen tag
+   * is copied, as the player may reuse {@code metadata} once the callback returns.
+   */
+  public void onID3(byte[] metadata) {
+    long tag = Id3Frames.findNielsenTag(ByteBuffer.wrap(metadata));
+    if (tag == Id3Frames.NOT_FOUND) return;
+
+    int index = Id3Frames.index(tag);
+    int length = Id3Frames.length(tag);
+    if (isLastTag(metadata, index, length)) return;
+    if (lastTag.length < length) lastTag = new byte[length];
+    System.arraycopy(metadata, index, lastTag, 0, length);
+    lastTagLength = length;
+
+    synchronized (this) {
+      next().setTag(metadata, index, length);
+      schedule();
+    }
+  }
+
+  @Override
+  public boolean onInfo(MediaPlayer mp, int what, int extra) {
+    if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+      dispatch("Video Playback Buffer Started", EventDispatchTable.ACTION_STOP);
+    } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+      dispatch("Video Playback Buffer Completed", EventDispatchTable.ACTION_PLAY);
+    }
+    return false;
+  }
+
+  @Override
+  public void onSeekComplete(MediaPlayer mp) {
+    dispatch("Video Playback Seek Completed", EventDispatchTable.ACTION_PLAY);
+  }
+
+  @Override
+  public void onCompletion(MediaPlayer mp) {
+    started = false;
+    dispatch("Video Content Completed", EventDispatchTable.ACTION_STOP);
+  }
+
+  private void dispatch(String event, int actions) {
+    synchronized (this) {
+      next().set(actions, channel, loadType);
+      schedule();
+    }
+
+    if (emitSegmentEvents) {
+      Properties properties = new Properties();
+      if (channel != null) properties.putValue("channel", channel);
+      if (loadType != null) properties.putValue("load_type", loadType);
+      analytics.track(event, properties, WITHOUT_NIELSEN);
+    }
+  }
+
+  private boolean isLastTag(byte[] metadata, int index, int length) {
+    if (length != lastTagLength) return false;
+    for (int i = length - 1; i >= 0; i--) {
+      if (metadata[index + i] != lastTag[i]) return false;
+    }
+    return true;
+  }
+
+  /** @return command to fill at the tail, guarded by this */
+  private Command next() {
+    if (count == pending.length) {
+      // the oldest may be running, so the next oldest makes room
+      Command dropped = pending[(head + 1) % pending.length];
+      for (int i = 1; i < count - 1; i++) {
+        pending[(head + i) % pending.length] = pending[(head + i + 1) % pending.length];
+      }
+      pending[(head + count - 1) % pending.length] = dropped;
+      count--;
+    }
+    return pending[(head + count++) % pending.length];
+  }
+
+  // guarded by this
+  private void schedule() {
+    if (scheduled) return;
+    scheduled = true;
+    executor.execute(drain);
+  }
+
+  private void drain() {
+    NielsenDTVRIntegration integration = source.integration();
+    while (true) {
+      Command command;
+      synchronized (this) {
+        if (count == 0) {
+          scheduled = false;
+          return;
+        }
+        command = pending[head];
+      }
+
+      if (integration != null) command.run(integration, sessionId);
+
+      synchronized (this) {
+        head = (head + 1) % pending.length;
+        count--;
+      }
+    }
+  }
+
+  /** A call handed over to the executor, reused once run. */
+  private static final class Command {
+    private int actions;
+    private String channel;
+    private String loadType;
+    private byte[] tag = new byte[0];
+    private ByteBuffer tagBuffer = ByteBuffer.wrap(tag);
+
+    void set(int actions, String channel, String loadType) {
+      this.actions = actions;
+      this.channel = channel;
+      this.loadType = loadType;
+    }
+
+    void setTag(byte[] metadata, int index, int length) {
+      set(EventDispatchTable.ACTION_SEND_ID3, null, null);
+      if (tag.length < length) {
+        tag = new byte[length];
+        tagBuffer = ByteBuffer.wrap(tag);
+      }
+      System.arraycopy(metadata, index, tag, 0, length);
+      tagBuffer.clear();
+      tagBuffer.limit(length);
+    }
+
+    void run(NielsenDTVRIntegration integration, String sessionId) {
+      if (actions == EventDispatchTable.ACTION_SEND_ID3) {
+        integration.sendID3Tag(sessionId, tagBuffer);
+      } else {
+        integration.dispatch(sessionId, actions, channel, loadType);
+      }
+    }
+  }
+}
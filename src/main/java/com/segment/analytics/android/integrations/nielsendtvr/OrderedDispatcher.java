@@ -0,0 +1,274 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes the AppSdk calls of one playback session, in order, on an executor shared by every
+ * session. Unlike {@link SerialDispatcher} no thread is dedicated to the session, so the calls of
+ * different sessions run in parallel on as many threads as the executor has. Like it, the calls
+ * queued are bounded, and a call dispatched while the queue is full is handled by the {@link
+ * SerialDispatcher.OverflowPolicy}.
+ */
+class OrderedDispatcher implements AppSdkDispatcher {
+  private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+  // commands besides the AppSdkMetrics method constants
+  private static final int BARRIER = AppSdkMetrics.METHOD_COUNT;
+  private static final int SHUTDOWN = AppSdkMetrics.METHOD_COUNT + 1;
+
+  private final AppSdkDispatcher target;
+  private final Executor executor;
+  private final Logger logger;
+  private final int capacity;
+  private final SerialDispatcher.OverflowPolicy overflowPolicy;
+  private final Runnable drain =
+      new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      };
+
+  // guarded by this
+  private final ArrayDeque<Command> queue = new ArrayDeque<>();
+  // calls in the queue, besides flushes and the shutdown, which are never dropped
+  private int queuedCalls;
+  private boolean draining;
+  private boolean shutdown;
+  private long dispatched;
+  private long dropped;
+  private long executed;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+
+  /**
+   * @param target dispatcher that executes calls on the executor, usually a {@link
+   *     DirectDispatcher}
+   * @param executor executor shared by the sessions
+   * @param logger integration logger
+   * @param capacity maximum number of queued calls
+   * @param overflowPolicy what to do with calls dispatched while the queue is full
+   */
+  OrderedDispatcher(
+      AppSdkDispatcher target,
+      Executor executor,
+      Logger logger,
+      int capacity,
+      SerialDispatcher.OverflowPolicy overflowPolicy) {
+    this.target = target;
+    this.executor = executor;
+    this.logger = logger;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  @Override
+  public void play(JSONObject channelInfo) {
+    dispatch(new Command(AppSdkMetrics.PLAY, channelInfo));
+  }
+
+  @Override
+  public void loadMetadata(JSONObject metadata) {
+    dispatch(new Command(AppSdkMetrics.LOAD_METADATA, metadata));
+  }
+
+  @Override
+  public void stop() {
+    dispatch(new Command(AppSdkMetrics.STOP, null));
+  }
+
+  @Override
+  public void sendID3(String id3) {
+    dispatch(new Command(AppSdkMetrics.SEND_ID3, id3));
+  }
+
+  @Override
+  public void end() {
+    dispatch(new Command(AppSdkMetrics.END, null));
+  }
+
+  @Override
+  public void flush() {
+    CountDownLatch latch = new CountDownLatch(1);
+    synchronized (this) {
+      if (queue.isEmpty() && !draining) return;
+      enqueue(new Command(BARRIER, latch));
+    }
+
+    try {
+      if (!latch.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        logger.debug("Timed out flushing pending Nielsen calls");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Drops calls dispatched from now on, the ones already queued are still executed before the
+   * target is shut down.
+   */
+  @Override
+  public synchronized void shutdown() {
+    if (shutdown) return;
+    shutdown = true;
+    enqueue(new Command(SHUTDOWN, null));
+  }
+
+  @Override
+  public DispatcherStats stats() {
+    DispatcherStats target = this.target.stats();
+    synchronized (this) {
+      return new DispatcherStats(
+              queue.size(), dispatched, dropped, executed, totalWaitNanos, maxWaitNanos, 0)
+          .withShared(target.sharedCalls(), target.sharedId3Tags());
+    }
+  }
+
+  private synchronized void dispatch(Command command) {
+    dispatched++;
+    if (shutdown) {
+      dropped++;
+      logger.debug(
+          "Dropped appSdk.%s(), session is closed", AppSdkMetrics.METHOD_NAMES[command.method]);
+      return;
+    }
+
+    if (queuedCalls >= capacity) {
+      switch (overflowPolicy) {
+        case BLOCK:
+          try {
+            // without a drain scheduled nothing would make room
+            while (queuedCalls >= capacity && draining) wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          if (queuedCalls >= capacity) {
+            drop(command);
+            return;
+          }
+          break;
+        case DROP_NEWEST:
+          drop(command);
+          return;
+        case DROP_OLDEST:
+          Command oldest = oldestCall();
+          queue.remove(oldest);
+          queuedCalls--;
+          drop(oldest);
+          break;
+      }
+    }
+    enqueue(command);
+  }
+
+  // guarded by this, the call that has waited the longest, skipping flushes and the shutdown
+  private Command oldestCall() {
+    for (Command command : queue) {
+      if (command.method < AppSdkMetrics.METHOD_COUNT) return command;
+    }
+    return null;
+  }
+
+  // guarded by this
+  private void drop(Command command) {
+    dropped++;
+    logger.debug(
+        "Dropped appSdk.%s(), dispatch queue is full", AppSdkMetrics.METHOD_NAMES[command.method]);
+  }
+
+  // guarded by this
+  private void enqueue(Command command) {
+    queue.add(command);
+    if (command.method < AppSdkMetrics.METHOD_COUNT) queuedCalls++;
+    if (draining) return;
+
+    draining = true;
+    try {
+      executor.execute(drain);
+    } catch (RejectedExecutionException e) {
+      draining = false;
+      logger.error(e, "Failed to schedule Nielsen calls");
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Command command;
+      synchronized (this) {
+        command = queue.poll();
+        if (command == null) {
+          draining = false;
+          notifyAll();
+          return;
+        }
+        if (command.method < AppSdkMetrics.METHOD_COUNT) {
+          queuedCalls--;
+          notifyAll();
+        }
+      }
+
+      if (command.method == BARRIER) {
+        ((CountDownLatch) command.argument).countDown();
+        continue;
+      }
+      if (command.method == SHUTDOWN) {
+        target.shutdown();
+        continue;
+      }
+
+      long waitNanos = System.nanoTime() - command.dispatchedAtNanos;
+      try {
+        execute(command);
+      } catch (RuntimeException e) {
+        logger.error(e, "appSdk.%s() failed", AppSdkMetrics.METHOD_NAMES[command.method]);
+      }
+
+      synchronized (this) {
+        executed++;
+        totalWaitNanos += waitNanos;
+        if (waitNanos > maxWaitNanos) maxWaitNanos = waitNanos;
+      }
+    }
+  }
+
+  private void execute(Command command) {
+    switch (command.method) {
+      case AppSdkMetrics.PLAY:
+        target.play((JSONObject) command.argument);
+        break;
+      case AppSdkMetrics.LOAD_METADATA:
+        target.loadMetadata((JSONObject) command.argument);
+        break;
+      case AppSdkMetrics.STOP:
+        target.stop();
+        break;
+      case AppSdkMetrics.SEND_ID3:
+        target.sendID3((String) command.argument);
+        break;
+      case AppSdkMetrics.END:
+        target.end();
+        break;
+    }
+  }
+
+  private static final class Command {
+    final int method;
+    final Object argument;
+    final long dispatchedAtNanos;
+
+    Command(int method, Object argument) {
+      this.method = method;
+      this.argument = argument;
+      this.dispatchedAtNanos = System.nanoTime();
+    }
+  }
+}
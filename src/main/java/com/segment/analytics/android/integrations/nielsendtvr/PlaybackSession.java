@@ -0,0 +1,76 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.json.JSONObject;
+
+/**
+ * State of one player measured by the integration: its AppSdk instance, the dispatcher calling
+ * it, its playback state and the ID3 tags it recently sent. Sessions are independent, so several
+ * players on screen at once do not corrupt each other's measurement.
+ */
+final class PlaybackSession {
+  final String id;
+  final AppSdkHolder appSdkHolder;
+  final AppSdkDispatcher dispatcher;
+  final PlaybackStateMachine playbackState;
+  final Id3Deduplicator id3Deduplicator;
+
+  // only accessed by PlaybackSessions, under its lock
+  long lastUsedMillis;
+  // only accessed by IdleAutoStop, under the lock of the integration
+  long lastActivityMillis;
+  TimerWheel.Timeout idleTimeout;
+  // only accessed under the lock of the integration: payload of the last play call, and whether
+  // the session was stopped by the app going to the background while playing
+  JSONObject channelInfo;
+  boolean resumeOnForeground;
+
+  /**
+   * @param id value of the session key property, followed by {@code @appId} if routed to another
+   *     app id, or null for the default session
+   * @param appSdkHolder AppSdk instance of the session
+   * @param dispatcher dispatcher calling the AppSdk instance
+   * @param playbackState playback state of the session
+   * @param id3Deduplicator filter dropping repeated ID3 tags of the session
+   */
+  PlaybackSession(
+      String id,
+      AppSdkHolder appSdkHolder,
+      AppSdkDispatcher dispatcher,
+      PlaybackStateMachine playbackState,
+      Id3Deduplicator id3Deduplicator) {
+    this.id = id;
+    this.appSdkHolder = appSdkHolder;
+    this.dispatcher = dispatcher;
+    this.playbackState = playbackState;
+    this.id3Deduplicator = id3Deduplicator;
+  }
+
+  /**
+   * stops measuring the session if it is playing. {@link #release} must follow, outside the locks
+   * of the integration.
+   *
+   * @param journal journal recording that the session is closed
+   */
+  void close(SessionJournal journal) {
+    int state = playbackState.state();
+    if (state == PlaybackStateMachine.PLAYING || state == PlaybackStateMachine.LOADED) {
+      journal.record(SessionJournal.STOP, id, null);
+    }
+    if (state == PlaybackStateMachine.PLAYING && playbackState.stop()) {
+      dispatcher.stop();
+    }
+  }
+
+  /**
+   * runs the calls still queued for the AppSdk instance and releases it, closing it if no other
+   * session uses it. A session released without being closed leaves the instance measuring, for
+   * the session that has taken it over.
+   */
+  void release() {
+    // the stop must reach a pooled instance before the last release closes it
+    dispatcher.flush();
+    dispatcher.shutdown();
+    appSdkHolder.setSessionActive(false);
+    appSdkHolder.release();
+  }
+}
@@ -0,0 +1,378 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes events to the playback session named by their session key property, creating sessions on
+ * first use and closing the ones that have been idle for too long. Events without the property, or
+ * every event if no session key property is configured, go to the default session.
+ *
+ * <p>A session that is playing is only closed to reclaim it once idle for the idle timeout, as a
+ * player abandoned without a stop would otherwise hold its session and AppSdk instance forever. It
+ * is stopped first, so Nielsen stops crediting it. Sessions are closed under the lock of the
+ * integration, and their AppSdk instances released by {@link #releaseClosed} once it is left, as
+ * that waits for their queued calls.
+ *
+ * <p>Events that {@link AppIdRoutes} routes to another app id go to sessions of that app id, keyed
+ * {@code "@appId"}, or {@code "id@appId"} with a session key, and created and reclaimed like the
+ * others. Events without the route property, such as ID3 and stop events, follow the route of the
+ * last event of the same session key, so they reach the session playing the routed channel. Once
+ * an event routes a session key to another app id, the session of its previous app id is left to
+ * the {@link RouteListener} to stop, so two AppSdk instances never credit the same player at once.
+ */
+final class PlaybackSessions {
+  static final int DEFAULT_MAX_SESSIONS = 8;
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+  /** Creates the session of a session key. */
+  interface Factory {
+    /**
+     * @param id key of the session
+     * @param route app id of the session, or null for the app id of the integration settings
+     * @return the new session, or null if it could not be created
+     */
+    PlaybackSession create(String id, AppIdRoutes.Route route);
+  }
+
+  /** Stops the session a player leaves when its events are routed to another app id. */
+  interface RouteListener {
+    /**
+     * called before the session of the new route is opened
+     *
+     * @param session session of the previous route of the player
+     */
+    void onRouteLeft(PlaybackSession session);
+  }
+
+  private final PlaybackSession defaultSession;
+  private final String keyProperty;
+  private final AppIdRoutes routes;
+  private final Factory factory;
+  private final int maxSessions;
+  private final long idleTimeoutMillis;
+  private final Clock clock;
+  private final SessionJournal journal;
+  private final Logger logger;
+
+  // guarded by this, in access order so the least recently used session comes first
+  private final LinkedHashMap<String, PlaybackSession> sessions =
+      new LinkedHashMap<>(16, 0.75f, true);
+  // guarded by this, route of the last event of each session key, null key without session key
+  private final LinkedHashMap<String, AppIdRoutes.Route> currentRoutes;
+  // guarded by this, sessions closed but not released yet
+  private final List<PlaybackSession> closed = new ArrayList<>();
+  private long lastSweepMillis;
+  private long reclaimed;
+  // counters of the sessions already closed
+  private long closedRedundantTransitions;
+  private long closedIllegalTransitions;
+  private long closedDuplicateId3Tags;
+  private long closedRateLimitedId3Tags;
+  private DispatcherStats closedDispatcherStats = new DispatcherStats(0, 0, 0, 0, 0, 0, 0);
+
+  /** @return sessions routing every event to {@code defaultSession} */
+  static PlaybackSessions single(PlaybackSession defaultSession) {
+    return new PlaybackSessions(
+        defaultSession,
+        null,
+        AppIdRoutes.NONE,
+        null,
+        0,
+        0,
+        Clock.SYSTEM,
+        SessionJournal.NONE,
+        null);
+  }
+
+  /**
+   * @param defaultSession session of events without the session key property
+   * @param keyProperty name of the property identifying the session of an event, or null to route
+   *     every event to the default session
+   * @param routes app ids of the events of other networks
+   * @param factory creates the session of a session key
+   * @param maxSessions maximum number of sessions besides the default one, the least recently used
+   *     that is not playing, or else that has been idle for the idle timeout, is closed to make
+   *     room for a new session
+   * @param idleTimeoutMillis time after which a session without events is closed, and stopped if
+   *     it is playing
+   * @param clock clock measuring idle time
+   * @param journal journal recording the sessions closed
+   * @param logger integration logger
+   */
+  PlaybackSessions(
+      PlaybackSession defaultSession,
+      String keyProperty,
+      AppIdRoutes routes,
+      Factory factory,
+      int maxSessions,
+      long idleTimeoutMillis,
+      Clock clock,
+      SessionJournal journal,
+      Logger logger) {
+    this.defaultSession = defaultSession;
+    this.keyProperty = keyProperty;
+    this.routes = routes;
+    this.factory = factory;
+    this.maxSessions = maxSessions;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.clock = clock;
+    this.journal = journal;
+    this.logger = logger;
+    final int maxRoutes = maxSessions + 1;
+    this.currentRoutes =
+        new LinkedHashMap<String, AppIdRoutes.Route>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, AppIdRoutes.Route> eldest) {
+            return size() > maxRoutes;
+          }
+        };
+  }
+
+  /**
+   * @param properties properties of the Segment track event
+   * @return session of the event, or null if it could not be created
+   */
+  PlaybackSession get(Properties properties) {
+    return get(properties, null);
+  }
+
+  /**
+   * @param properties properties of the Segment track event
+   * @param listener notified of the session left if the event changes the route, or null
+   * @return session of the event, or null if it could not be created
+   */
+  PlaybackSession get(Properties properties, RouteListener listener) {
+    String id = keyProperty == null ? null : properties.getString(keyProperty);
+    return get(id, properties, listener);
+  }
+
+  /**
+   * @param id value of the session key property, or null for the default session
+   * @return the session, of the app id of the last routed event of {@code id}, or null if it could
+   *     not be created
+   */
+  PlaybackSession get(String id) {
+    return get(id, null);
+  }
+
+  /**
+   * @param id value of the session key property, or null for the default session
+   * @param properties properties routing the event to an app id, or null to follow the route of
+   *     the last event of {@code id}
+   * @return the session, or null if it could not be created
+   */
+  PlaybackSession get(String id, Map<?, ?> properties) {
+    return get(id, properties, null);
+  }
+
+  /**
+   * @param id value of the session key property, or null for the default session
+   * @param properties properties routing the event to an app id, or null to follow the route of
+   *     the last event of {@code id}
+   * @param listener notified of the session left if {@code properties} change the route, or null
+   * @return the session, or null if it could not be created
+   */
+  PlaybackSession get(String id, Map<?, ?> properties, RouteListener listener) {
+    if (keyProperty == null) id = null;
+    AppIdRoutes.Route route = route(id, properties, listener);
+    if (route != null) return getOrCreate(route.sessionKey(id), route);
+
+    return id == null ? defaultSession : getOrCreate(id, null);
+  }
+
+  /** @return whether events are routed to other app ids, by properties read from the event */
+  boolean routesAppIds() {
+    return routes.size() > 0;
+  }
+
+  /** @return default session, which routes events without a session key */
+  PlaybackSession defaultSession() {
+    return defaultSession;
+  }
+
+  /** @return every open session, the default one first */
+  synchronized List<PlaybackSession> all() {
+    List<PlaybackSession> all = new ArrayList<>(sessions.size() + 1);
+    all.add(defaultSession);
+    all.addAll(sessions.values());
+    return all;
+  }
+
+  /** @return number of open sessions besides the default one */
+  synchronized int size() {
+    return sessions.size();
+  }
+
+  /** @return number of sessions closed because they were idle or least recently used */
+  synchronized long reclaimed() {
+    return reclaimed;
+  }
+
+  synchronized long redundantTransitions() {
+    long count = closedRedundantTransitions;
+    for (PlaybackSession session : all()) count += session.playbackState.redundantTransitions();
+    return count;
+  }
+
+  synchronized long illegalTransitions() {
+    long count = closedIllegalTransitions;
+    for (PlaybackSession session : all()) count += session.playbackState.illegalTransitions();
+    return count;
+  }
+
+  synchronized long duplicateId3Tags() {
+    long count = closedDuplicateId3Tags;
+    for (PlaybackSession session : all()) count += session.id3Deduplicator.hits();
+    return count;
+  }
+
+  synchronized long rateLimitedId3Tags() {
+    long count = closedRateLimitedId3Tags;
+    for (PlaybackSession session : all()) count += session.id3Deduplicator.rateLimited();
+    return count;
+  }
+
+  /** @return dispatcher stats of every session, including the closed ones */
+  synchronized DispatcherStats dispatcherStats() {
+    DispatcherStats stats = closedDispatcherStats;
+    for (PlaybackSession session : all()) stats = stats.plus(session.dispatcher.stats());
+    return stats;
+  }
+
+  /**
+   * closes the sessions that have been idle for longer than the idle timeout. Must be called under
+   * the lock of the integration, which guards the playback state.
+   */
+  synchronized void closeIdle() {
+    if (factory == null) return;
+    closeIdle(clock.uptimeMillis());
+  }
+
+  /**
+   * closes every session, including the default one, once the integration is replaced
+   *
+   * @param stopPlayback whether to stop the sessions that are playing, or leave their AppSdk
+   *     instance measuring for the replacement
+   */
+  synchronized void closeAll(boolean stopPlayback) {
+    for (PlaybackSession session : all()) {
+      if (stopPlayback) session.close(journal);
+      closed.add(session);
+    }
+    sessions.clear();
+  }
+
+  /**
+   * releases the AppSdk instances of the sessions closed so far, after running their queued calls.
+   * Must be called without holding the lock of the integration, as it may wait for the calls.
+   */
+  void releaseClosed() {
+    List<PlaybackSession> released;
+    synchronized (this) {
+      if (closed.isEmpty()) return;
+      released = new ArrayList<>(closed);
+      closed.clear();
+    }
+    for (PlaybackSession session : released) session.release();
+  }
+
+  private AppIdRoutes.Route route(String id, Map<?, ?> properties, RouteListener listener) {
+    if (routes.size() == 0) return null;
+
+    PlaybackSession left;
+    AppIdRoutes.Route route;
+    synchronized (this) {
+      AppIdRoutes.Route current = currentRoutes.get(id);
+      if (properties == null) return current;
+      route = routes.route(properties, current);
+      if (route == current) return route;
+
+      currentRoutes.put(id, route);
+      if (listener == null) return route;
+      left = open(current == null ? id : current.sessionKey(id));
+    }
+    if (left != null) listener.onRouteLeft(left);
+    return route;
+  }
+
+  /** @return the open session of {@code id}, the default one for null, without creating it */
+  private synchronized PlaybackSession open(String id) {
+    return id == null ? defaultSession : sessions.get(id);
+  }
+
+  private synchronized PlaybackSession getOrCreate(String id, AppIdRoutes.Route route) {
+    long now = clock.uptimeMillis();
+    if (now - lastSweepMillis >= idleTimeoutMillis) closeIdle(now);
+
+    PlaybackSession session = sessions.get(id);
+    if (session == null) {
+      PlaybackSession evicted = null;
+      if (sessions.size() >= maxSessions) {
+        evicted = evictionCandidate(now);
+        if (evicted == null) {
+          logger.info("Dropping event of Nielsen session %s, all %d are playing", id, maxSessions);
+          return null;
+        }
+      }
+      session = factory.create(id, route);
+      if (session == null) return null;
+
+      if (evicted != null) {
+        close(evicted);
+        sessions.remove(evicted.id);
+      }
+      sessions.put(id, session);
+      logger.debug("Opened Nielsen session %s", id);
+    }
+    session.lastUsedMillis = now;
+    return session;
+  }
+
+  // guarded by this
+  private void closeIdle(long now) {
+    lastSweepMillis = now;
+    for (Iterator<PlaybackSession> iterator = sessions.values().iterator(); iterator.hasNext(); ) {
+      PlaybackSession session = iterator.next();
+      // sessions are in access order, so the rest were used more recently
+      if (now - session.lastUsedMillis < idleTimeoutMillis) return;
+
+      close(session);
+      iterator.remove();
+    }
+  }
+
+  // guarded by this, falls back to the least recently used if idle, even if playing
+  private PlaybackSession evictionCandidate(long now) {
+    for (PlaybackSession session : sessions.values()) {
+      if (!isPlaying(session)) return session;
+    }
+    PlaybackSession eldest = sessions.values().iterator().next();
+    return now - eldest.lastUsedMillis >= idleTimeoutMillis ? eldest : null;
+  }
+
+  private static boolean isPlaying(PlaybackSession session) {
+    return session.playbackState.state() == PlaybackStateMachine.PLAYING;
+  }
+
+  // guarded by this
+  private void close(PlaybackSession session) {
+    session.close(journal);
+    closed.add(session);
+    reclaimed++;
+    closedRedundantTransitions += session.playbackState.redundantTransitions();
+    closedIllegalTransitions += session.playbackState.illegalTransitions();
+    closedDuplicateId3Tags += session.id3Deduplicator.hits();
+    closedRateLimitedId3Tags += session.id3Deduplicator.rateLimited();
+    // calls still queued when the session closes are not counted as pending forever
+    closedDispatcherStats =
+        closedDispatcherStats.plus(session.dispatcher.stats().withQueueDepth(0));
+    logger.debug("Closed Nielsen session %s", session.id);
+  }
+}
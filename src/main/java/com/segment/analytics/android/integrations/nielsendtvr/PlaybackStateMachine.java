@@ -0,0 +1,137 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.integrations.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the Nielsen playback state of a session so that only calls that change it reach the
+ * AppSdk. It is consulted before a payload is built, so redundant calls cost neither an SDK call
+ * nor a JSONObject.
+ *
+ * <pre>
+ *   IDLE    --loadMetadata--> LOADED --play--> PLAYING --stop--> STOPPED
+ *   any     --play----------> PLAYING          (suppressed if already playing the same channel)
+ *   any     --stop----------> STOPPED          (suppressed if idle or already stopped)
+ *   any     --end-----------> IDLE             (illegal if already idle)
+ * </pre>
+ *
+ * Loading metadata for another channel than the one playing, without a play for that channel
+ * first, is illegal as Nielsen would credit it to the wrong channel.
+ */
+final class PlaybackStateMachine {
+  static final int IDLE = 0;
+  static final int LOADED = 1;
+  static final int PLAYING = 2;
+  static final int STOPPED = 3;
+
+  private static final String[] STATE_NAMES = {"idle", "loaded", "playing", "stopped"};
+
+  private final Logger logger;
+  private int state = IDLE;
+  private String channel;
+  private String metadataChannel;
+  private String[] metadata;
+  private long redundantTransitions;
+  private long illegalTransitions;
+
+  PlaybackStateMachine(Logger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * @param channel channel name of the play call
+   * @return true if the play call changes state and must be forwarded
+   */
+  boolean play(String channel) {
+    if (state == PLAYING && equal(this.channel, channel)) {
+      redundantTransitions++;
+      return false;
+    }
+
+    state = PLAYING;
+    this.channel = channel;
+    return true;
+  }
+
+  /**
+   * @param channel channel name of the metadata
+   * @param metadata values of the metadata fields, kept for comparison so never modified later
+   * @return true if the loadMetadata call changes state and must be forwarded
+   */
+  boolean loadMetadata(String channel, String[] metadata) {
+    if (state == PLAYING && !equal(this.channel, channel)) {
+      illegal("loadMetadata");
+      return false;
+    }
+
+    if ((state == LOADED || state == PLAYING)
+        && equal(metadataChannel, channel)
+        && Arrays.equals(this.metadata, metadata)) {
+      redundantTransitions++;
+      return false;
+    }
+
+    if (state != PLAYING) state = LOADED;
+    this.channel = channel;
+    metadataChannel = channel;
+    this.metadata = metadata;
+    return true;
+  }
+
+  /**
+   * @return true if the stop call changes state and must be forwarded, false if nothing played or
+   *     loaded since the session started or ended, such as on a backgrounded app without video
+   */
+  boolean stop() {
+    if (state == IDLE || state == STOPPED) {
+      redundantTransitions++;
+      return false;
+    }
+
+    state = STOPPED;
+    return true;
+  }
+
+  /** @return true if the end call changes state and must be forwarded */
+  boolean end() {
+    if (state == IDLE) {
+      illegal("end");
+      return false;
+    }
+
+    state = IDLE;
+    channel = null;
+    metadataChannel = null;
+    metadata = null;
+    return true;
+  }
+
+  int state() {
+    return state;
+  }
+
+  /** @return channel last played or loaded, or null once ended */
+  String channel() {
+    return channel;
+  }
+
+  /** @return number of calls suppressed because they would not change state */
+  long redundantTransitions() {
+    return redundantTransitions;
+  }
+
+  /** @return number of calls rejected because they are not allowed in the current state */
+  long illegalTransitions() {
+    return illegalTransitions;
+  }
+
+  private void illegal(String call) {
+    illegalTransitions++;
+    logger.debug("Ignoring appSdk.%s() while %s", call, STATE_NAMES[state]);
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,79 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Stops the sessions of the integration that are playing as soon as the whole app goes to the
+ * background, rather than once the Application Backgrounded event makes its way through Segment,
+ * and plays them again as soon as it returns to the foreground.
+ *
+ * <p>Lifecycle callbacks run on the main thread, so the stop and the resume run on {@code
+ * executor}, where they may wait for the track event in progress and for the stop calls to be
+ * executed.
+ */
+final class ProcessLifecycleObserver implements DefaultLifecycleObserver {
+  private final NielsenDTVRIntegration integration;
+  private final Executor executor;
+  private final boolean stopOnBackground;
+  private final boolean resumeOnForeground;
+
+  /**
+   * @param integration integration whose sessions are stopped
+   * @param executor runs the stop and the resume off the main thread
+   * @param stopOnBackground whether to stop the sessions playing when the app goes to the
+   *     background, otherwise left to the Application Backgrounded event
+   * @param resumeOnForeground whether to resume the sessions stopped in the background when the app
+   *     returns to the foreground
+   */
+  ProcessLifecycleObserver(
+      NielsenDTVRIntegration integration,
+      Executor executor,
+      boolean stopOnBackground,
+      boolean resumeOnForeground) {
+    this.integration = integration;
+    this.executor = executor;
+    this.stopOnBackground = stopOnBackground;
+    this.resumeOnForeground = resumeOnForeground;
+  }
+
+  @Override
+  public void onStop(LifecycleOwner owner) {
+    if (!stopOnBackground) return;
+
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            integration.stopOnBackground();
+          }
+        });
+  }
+
+  @Override
+  public void onCreate(LifecycleOwner owner) {}
+
+  @Override
+  public void onStart(LifecycleOwner owner) {
+    if (!resumeOnForeground) return;
+
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            integration.resumeOnForeground();
+          }
+        });
+  }
+
+  @Override
+  public void onResume(LifecycleOwner owner) {}
+
+  @Override
+  public void onPause(LifecycleOwner owner) {}
+
+  @Override
+  public void onDestroy(LifecycleOwner owner) {}
+}
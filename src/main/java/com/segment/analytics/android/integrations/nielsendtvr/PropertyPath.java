@@ -0,0 +1,79 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.Map;
+
+/**
+ * Path to a Segment event property, possibly nested in object properties, e.g. {@code
+ * video.channel}. The path is split once when settings are compiled, so reading it is a walk down
+ * the property maps without parsing the path again.
+ */
+final class PropertyPath {
+  private final String path;
+  private final String[] names;
+
+  private PropertyPath(String path, String[] names) {
+    this.path = path;
+    this.names = names;
+  }
+
+  /**
+   * @param path property name, with nested names separated by dots
+   * @return the compiled path
+   */
+  static PropertyPath parse(String path) {
+    int count = 1;
+    for (int i = path.indexOf('.'); i >= 0; i = path.indexOf('.', i + 1)) count++;
+
+    String[] names = new String[count];
+    int start = 0;
+    for (int n = 0; n < count - 1; n++) {
+      int end = path.indexOf('.', start);
+      names[n] = path.substring(start, end);
+      start = end + 1;
+    }
+    names[count - 1] = path.substring(start);
+    return new PropertyPath(path, names);
+  }
+
+  /**
+   * @param properties properties of the Segment event
+   * @return the property as a string like {@code ValueMap.getString()}, or null if any name along
+   *     the path is missing or not an object
+   */
+  String read(Map<?, ?> properties) {
+    Object value = properties.get(names[0]);
+    for (int i = 1; i < names.length; i++) {
+      if (!(value instanceof Map)) return null;
+      value = ((Map<?, ?>) value).get(names[i]);
+    }
+
+    if (value instanceof String) return (String) value;
+    return value == null ? null : String.valueOf(value);
+  }
+
+  /**
+   * sets the property, creating the objects missing along the path, to rebuild recorded events
+   *
+   * @param properties properties of the Segment event
+   * @param value value of the property
+   */
+  void write(ValueMap properties, String value) {
+    ValueMap map = properties;
+    for (int i = 0; i < names.length - 1; i++) {
+      Object child = map.get(names[i]);
+      if (!(child instanceof ValueMap)) {
+        child = new ValueMap();
+        map.put(names[i], child);
+      }
+      map = (ValueMap) child;
+    }
+    map.put(names[names.length - 1], value);
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
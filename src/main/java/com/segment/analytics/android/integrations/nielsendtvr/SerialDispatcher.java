@@ -0,0 +1,264 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues AppSdk calls on a bounded queue and executes them, in order, on a dedicated thread, so a
+ * slow Nielsen SDK call never holds up the Segment integration thread.
+ */
+class SerialDispatcher implements AppSdkDispatcher {
+  /** What to do with a call dispatched while the queue is full. */
+  enum OverflowPolicy {
+    /** Wait for the worker to make room, which preserves every call. */
+    BLOCK,
+    /** Drop the call being dispatched. */
+    DROP_NEWEST,
+    /** Drop the call that has waited the longest to make room for the new one. */
+    DROP_OLDEST;
+
+    /**
+     * @param name policy name as used in integration settings, e.g. {@code "dropOldest"}
+     * @param defaultPolicy policy to use if the name is missing or unknown
+     */
+    static OverflowPolicy parse(String name, OverflowPolicy defaultPolicy) {
+      if ("block".equalsIgnoreCase(name)) return BLOCK;
+      if ("dropNewest".equalsIgnoreCase(name)) return DROP_NEWEST;
+      if ("dropOldest".equalsIgnoreCase(name)) return DROP_OLDEST;
+      return defaultPolicy;
+    }
+  }
+
+  static final int DEFAULT_CAPACITY = 64;
+  private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+  private static final String THREAD_NAME = "Segment-NielsenDTVR-Dispatcher";
+
+  // commands besides the AppSdkMetrics method constants
+  private static final int BARRIER = AppSdkMetrics.METHOD_COUNT;
+  private static final int SHUTDOWN = AppSdkMetrics.METHOD_COUNT + 1;
+
+  private final AppSdkDispatcher target;
+  private final Logger logger;
+  private final OverflowPolicy overflowPolicy;
+  private final BlockingQueue<Command> queue;
+  private final Thread worker;
+
+  private final AtomicLong dispatched = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  // only written by the worker thread
+  private volatile long executed;
+  private volatile long totalWaitNanos;
+  private volatile long maxWaitNanos;
+  private volatile boolean shutdown;
+
+  /**
+   * @param target dispatcher that executes calls on the worker thread, usually a {@link
+   *     DirectDispatcher}
+   * @param logger logger to report dropped calls
+   * @param capacity maximum number of queued calls
+   * @param overflowPolicy what to do with calls dispatched while the queue is full
+   */
+  SerialDispatcher(
+      AppSdkDispatcher target, Logger logger, int capacity, OverflowPolicy overflowPolicy) {
+    this.target = target;
+    this.logger = logger;
+    this.overflowPolicy = overflowPolicy;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.worker =
+        new Thread(THREAD_NAME) {
+          @Override
+          public void run() {
+            drain();
+          }
+        };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  @Override
+  public void play(JSONObject channelInfo) {
+    dispatch(new Command(AppSdkMetrics.PLAY, channelInfo));
+  }
+
+  @Override
+  public void loadMetadata(JSONObject metadata) {
+    dispatch(new Command(AppSdkMetrics.LOAD_METADATA, metadata));
+  }
+
+  @Override
+  public void stop() {
+    dispatch(new Command(AppSdkMetrics.STOP, null));
+  }
+
+  @Override
+  public void sendID3(String id3) {
+    dispatch(new Command(AppSdkMetrics.SEND_ID3, id3));
+  }
+
+  @Override
+  public void end() {
+    dispatch(new Command(AppSdkMetrics.END, null));
+  }
+
+  @Override
+  public void flush() {
+    if (Thread.currentThread() == worker || !worker.isAlive()) return;
+
+    CountDownLatch latch = new CountDownLatch(1);
+    try {
+      queue.put(new Command(BARRIER, latch));
+      if (!latch.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        logger.debug("Timed out flushing %d pending Nielsen calls", queue.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    if (shutdown) return;
+    shutdown = true;
+
+    flush();
+    try {
+      queue.put(new Command(SHUTDOWN, null));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public DispatcherStats stats() {
+    DispatcherStats target = this.target.stats();
+    return new DispatcherStats(
+            queue.size(),
+            dispatched.get(),
+            dropped.get(),
+            executed,
+            totalWaitNanos,
+            maxWaitNanos,
+            0)
+        .withShared(target.sharedCalls(), target.sharedId3Tags());
+  }
+
+  private void dispatch(Command command) {
+    dispatched.incrementAndGet();
+    if (shutdown) {
+      drop(command);
+      return;
+    }
+
+    switch (overflowPolicy) {
+      case BLOCK:
+        try {
+          queue.put(command);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          drop(command);
+        }
+        break;
+      case DROP_NEWEST:
+        if (!queue.offer(command)) drop(command);
+        break;
+      case DROP_OLDEST:
+        while (!queue.offer(command)) {
+          Command oldest = oldestCall();
+          if (oldest == null) {
+            // only flushes and the shutdown are waiting, which are never dropped
+            drop(command);
+            break;
+          }
+          if (queue.remove(oldest)) drop(oldest);
+        }
+        break;
+    }
+  }
+
+  /**
+   * @return the call that has waited the longest, skipping the flush and shutdown commands, or
+   *     null if no call is queued
+   */
+  private Command oldestCall() {
+    for (Command command : queue) {
+      if (command.method < AppSdkMetrics.METHOD_COUNT) return command;
+    }
+    return null;
+  }
+
+  private void drop(Command command) {
+    dropped.incrementAndGet();
+    logger.debug(
+        "Dropped appSdk.%s(), dispatch queue is full", AppSdkMetrics.METHOD_NAMES[command.method]);
+  }
+
+  private void drain() {
+    while (true) {
+      Command command;
+      try {
+        command = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      if (command.method == SHUTDOWN) {
+        target.shutdown();
+        return;
+      }
+      if (command.method == BARRIER) {
+        ((CountDownLatch) command.argument).countDown();
+        continue;
+      }
+
+      long waitNanos = System.nanoTime() - command.dispatchedAtNanos;
+      totalWaitNanos += waitNanos;
+      if (waitNanos > maxWaitNanos) maxWaitNanos = waitNanos;
+
+      try {
+        execute(command);
+      } catch (RuntimeException e) {
+        logger.error(e, "appSdk.%s() failed", AppSdkMetrics.METHOD_NAMES[command.method]);
+      }
+      executed++;
+    }
+  }
+
+  private void execute(Command command) {
+    switch (command.method) {
+      case AppSdkMetrics.PLAY:
+        target.play((JSONObject) command.argument);
+        break;
+      case AppSdkMetrics.LOAD_METADATA:
+        target.loadMetadata((JSONObject) command.argument);
+        break;
+      case AppSdkMetrics.STOP:
+        target.stop();
+        break;
+      case AppSdkMetrics.SEND_ID3:
+        target.sendID3((String) command.argument);
+        break;
+      case AppSdkMetrics.END:
+        target.end();
+        break;
+    }
+  }
+
+  private static final class Command {
+    final int method;
+    final Object argument;
+    final long dispatchedAtNanos;
+
+    Command(int method, Object argument) {
+      this.method = method;
+      this.argument = argument;
+      this.dispatchedAtNanos = System.nanoTime();
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.integrations.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the playback transitions of every session, so that sessions left playing
+ * when the process was killed can be closed on the next launch.
+ *
+ * <p>Transitions are appended as fixed size records to a small file kept open for appending. A
+ * record is a single write into the page cache, which survives the death of the process, so no
+ * sync is needed. Once the file holds {@code maxRecords} records it is compacted to one record per
+ * session still playing, so reading it on startup never parses more than {@code maxRecords *
+ * RECORD_SIZE} bytes.
+ *
+ * <p>The sessions left open by the previous process are written back to the new journal, and only
+ * dropped from it once the caller records their stop, so they survive another crash in between.
+ *
+ * <pre>
+ *   byte  0      transition, one of the {@code PLAY}, {@code LOAD_METADATA}, {@code STOP} and
+ *                {@code END} constants
+ *   byte  1      length of the session id
+ *   bytes 2-28   session id in UTF-8, truncated, empty for the default session
+ *   byte  29     length of the channel name
+ *   bytes 30-55  channel name in UTF-8, truncated
+ *   bytes 56-63  wall clock time of the transition in milliseconds, big endian
+ * </pre>
+ */
+final class SessionJournal {
+  static final SessionJournal NONE = new SessionJournal(null, 0, null);
+
+  static final byte PLAY = 1;
+  static final byte LOAD_METADATA = 2;
+  static final byte STOP = 3;
+  static final byte END = 4;
+
+  static final int RECORD_SIZE = 64;
+  static final int DEFAULT_MAX_RECORDS = 128;
+
+  private static final int MAX_FILE_LENGTH = 1 << 16;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int SESSION_OFFSET = 1;
+  private static final int SESSION_MAX_LENGTH = 27;
+  private static final int CHANNEL_OFFSET = 29;
+  private static final int CHANNEL_MAX_LENGTH = 26;
+  private static final int TIME_OFFSET = 56;
+
+  private final File file;
+  private final int maxRecords;
+  private final Logger logger;
+
+  // guarded by this
+  private final byte[] record = new byte[RECORD_SIZE];
+  // last record of each session that is playing, or has metadata loaded
+  private final Map<String, byte[]> openSessions = new LinkedHashMap<>();
+  private FileOutputStream out;
+  private int records;
+  private List<Entry> orphans = Collections.emptyList();
+  private int orphanCount;
+
+  private SessionJournal(File file, int maxRecords, Logger logger) {
+    this.file = file;
+    this.maxRecords = maxRecords;
+    this.logger = logger;
+  }
+
+  /**
+   * reads the sessions left open by the previous process, then starts a new journal in {@code file}
+   *
+   * @param file journal file, created if missing
+   * @param maxRecords number of records after which the journal is compacted
+   * @param logger integration logger
+   * @return the journal, or {@link #NONE} if the file cannot be written
+   */
+  static SessionJournal open(File file, int maxRecords, Logger logger) {
+    SessionJournal journal = new SessionJournal(file, Math.max(1, maxRecords), logger);
+    try {
+      journal.recover();
+      return journal;
+    } catch (IOException e) {
+      logger.error(e, "Failed to open Nielsen session journal %s", file);
+      return NONE;
+    }
+  }
+
+  /**
+   * appends a transition of a session
+   *
+   * @param transition one of {@link #PLAY}, {@link #LOAD_METADATA}, {@link #STOP} and {@link #END}
+   * @param sessionId id of the session, or null for the default session
+   * @param channel channel of the session, or null if unknown
+   */
+  synchronized void record(byte transition, String sessionId, String channel) {
+    if (out == null) return;
+
+    String key = sessionId == null ? "" : sessionId;
+    encode(record, transition, key, channel, System.currentTimeMillis());
+    try {
+      if (records >= maxRecords) compact();
+      out.write(record);
+      records++;
+    } catch (IOException e) {
+      logger.error(e, "Failed to write Nielsen session journal, disabling it");
+      close();
+      return;
+    }
+
+    if (transition == PLAY || transition == LOAD_METADATA) {
+      openSessions.put(key, record.clone());
+    } else {
+      openSessions.remove(key);
+    }
+  }
+
+  /**
+   * hands over the sessions that were still open when the previous process died, once, so they are
+   * closed by the first integration created. They stay in the journal until {@link #STOP} is
+   * recorded for each of them.
+   *
+   * @return the orphaned sessions not handed over yet
+   */
+  synchronized List<Entry> takeOrphans() {
+    List<Entry> taken = orphans;
+    orphans = Collections.emptyList();
+    return taken;
+  }
+
+  /** @return number of sessions that were still open when the previous process died */
+  synchronized int orphanCount() {
+    return orphanCount;
+  }
+
+  synchronized void close() {
+    if (out == null) return;
+    try {
+      out.close();
+    } catch (IOException ignored) {
+      // nothing was buffered
+    }
+    out = null;
+  }
+
+  private void recover() throws IOException {
+    byte[] bytes = new byte[0];
+    if (file.length() > MAX_FILE_LENGTH) {
+      // compaction keeps the journal far smaller, so this is not a journal we wrote
+      logger.debug("Ignoring Nielsen session journal %s of %d bytes", file, file.length());
+    } else if (file.exists()) {
+      // a torn last record is ignored below
+      bytes = new byte[(int) file.length()];
+      FileInputStream in = new FileInputStream(file);
+      try {
+        int read = 0;
+        while (read < bytes.length) {
+          int count = in.read(bytes, read, bytes.length - read);
+          if (count < 0) break;
+          read += count;
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    Map<String, Entry> open = new LinkedHashMap<>();
+    for (int offset = 0; offset + RECORD_SIZE <= bytes.length; offset += RECORD_SIZE) {
+      Entry entry = decode(bytes, offset);
+      if (entry == null) continue;
+      if (entry.transition == PLAY || entry.transition == LOAD_METADATA) {
+        open.put(entry.sessionId, entry);
+      } else {
+        open.remove(entry.sessionId);
+      }
+    }
+    orphans = Collections.unmodifiableList(new ArrayList<>(open.values()));
+    orphanCount = orphans.size();
+
+    // the new journal starts with the orphans, until the caller records that they are closed
+    out = new FileOutputStream(file, false);
+    for (Entry orphan : orphans) {
+      encode(record, orphan.transition, orphan.sessionId, orphan.channel, orphan.timeMillis);
+      out.write(record);
+      openSessions.put(orphan.sessionId, record.clone());
+      records++;
+    }
+  }
+
+  // guarded by this
+  private void compact() throws IOException {
+    File compacted = new File(file.getPath() + ".tmp");
+    FileOutputStream compactedOut = new FileOutputStream(compacted, false);
+    try {
+      for (byte[] openSession : openSessions.values()) {
+        compactedOut.write(openSession);
+      }
+    } finally {
+      compactedOut.close();
+    }
+
+    out.close();
+    out = null;
+    if (!compacted.renameTo(file)) throw new IOException("Failed to replace " + file);
+    out = new FileOutputStream(file, true);
+    records = openSessions.size();
+  }
+
+  static void encode(byte[] record, byte transition, String sessionId, String channel, long time) {
+    record[0] = transition;
+    putString(record, SESSION_OFFSET, SESSION_MAX_LENGTH, sessionId);
+    putString(record, CHANNEL_OFFSET, CHANNEL_MAX_LENGTH, channel);
+    for (int i = 0; i < 8; i++) {
+      record[TIME_OFFSET + i] = (byte) (time >>> (56 - 8 * i));
+    }
+  }
+
+  /** @return the record at {@code offset}, or null if it is not a valid record */
+  static Entry decode(byte[] bytes, int offset) {
+    byte transition = bytes[offset];
+    if (transition < PLAY || transition > END) return null;
+
+    String sessionId = getString(bytes, offset + SESSION_OFFSET, SESSION_MAX_LENGTH);
+    String channel = getString(bytes, offset + CHANNEL_OFFSET, CHANNEL_MAX_LENGTH);
+    if (sessionId == null || channel == null) return null;
+
+    long time = 0;
+    for (int i = 0; i < 8; i++) {
+      time = (time << 8) | (bytes[offset + TIME_OFFSET + i] & 0xff);
+    }
+    return new Entry(transition, sessionId, channel, time);
+  }
+
+  private static void putString(byte[] record, int offset, int maxLength, String value) {
+    int length = 0;
+    if (value != null) {
+      byte[] bytes = value.getBytes(UTF_8);
+      length = Math.min(bytes.length, maxLength);
+      System.arraycopy(bytes, 0, record, offset + 1, length);
+    }
+    record[offset] = (byte) length;
+    for (int i = offset + 1 + length; i <= offset + maxLength; i++) record[i] = 0;
+  }
+
+  private static String getString(byte[] bytes, int offset, int maxLength) {
+    int length = bytes[offset] & 0xff;
+    if (length > maxLength) return null;
+    return new String(bytes, offset + 1, length, UTF_8);
+  }
+
+  /** A session transition read back from the journal. */
+  static final class Entry {
+    final byte transition;
+    /** id of the session, empty for the default session */
+    final String sessionId;
+    /** channel of the session, empty if unknown */
+    final String channel;
+    final long timeMillis;
+
+    Entry(byte transition, String sessionId, String channel, long timeMillis) {
+      this.transition = transition;
+      this.sessionId = sessionId;
+      this.channel = channel;
+      this.timeMillis = timeMillis;
+    }
+  }
+}
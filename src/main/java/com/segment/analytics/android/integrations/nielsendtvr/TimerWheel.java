@@ -0,0 +1,169 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel running the deadlines of every integration, such as held back stops and idle
+ * sessions, from a single periodic task. A timeout is linked into the bucket of its deadline tick,
+ * so scheduling, rescheduling and cancelling it are constant time and allocate nothing. Each tick
+ * only visits the timeouts of one bucket, and the periodic task is cancelled while no timeout is
+ * pending.
+ *
+ * <p>Timeouts fire on the executor thread, at most one tick after their deadline, and never before
+ * it.
+ */
+final class TimerWheel {
+  static final long DEFAULT_TICK_MILLIS = 100;
+  static final int DEFAULT_WHEEL_SIZE = 512;
+
+  /**
+   * Deadline owned by a session or dispatcher and reused for each of its deadlines. Its links are
+   * guarded by the wheel.
+   */
+  abstract static class Timeout implements Runnable {
+    private Timeout previous;
+    private Timeout next;
+    private long deadlineTick;
+    private boolean scheduled;
+  }
+
+  private final ScheduledExecutorService executor;
+  private final Clock clock;
+  private final long tickMillis;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final long originMillis;
+  private final Runnable tickTask =
+      new Runnable() {
+        @Override
+        public void run() {
+          advance();
+        }
+      };
+  // only used by advance(), which runs on the executor thread
+  private final List<Timeout> expired = new ArrayList<>();
+
+  // guarded by this
+  private long tick;
+  private int pending;
+  private ScheduledFuture<?> ticker;
+
+  /**
+   * @param executor runs the periodic tick and the expired timeouts
+   * @param clock time source of the deadlines
+   * @param tickMillis resolution of the deadlines
+   * @param wheelSize number of buckets, rounded up to a power of two
+   */
+  TimerWheel(ScheduledExecutorService executor, Clock clock, long tickMillis, int wheelSize) {
+    this.executor = executor;
+    this.clock = clock;
+    this.tickMillis = Math.max(1, tickMillis);
+    int size = 1;
+    while (size < wheelSize) size <<= 1;
+    this.buckets = new Timeout[size];
+    this.mask = size - 1;
+    this.originMillis = clock.uptimeMillis();
+  }
+
+  /**
+   * schedules {@code timeout} to run in {@code delayMillis}, replacing its previous deadline if it
+   * is already scheduled
+   */
+  synchronized void schedule(Timeout timeout, long delayMillis) {
+    if (timeout.scheduled) unlink(timeout);
+
+    long now = clock.uptimeMillis();
+    if (ticker == null) {
+      // nothing is pending, so no bucket is skipped by moving the wheel to the current tick
+      tick = (now - originMillis) / tickMillis;
+      ticker =
+          executor.scheduleAtFixedRate(
+              tickTask,
+              tickMillis - (now - originMillis) % tickMillis,
+              tickMillis,
+              TimeUnit.MILLISECONDS);
+    }
+
+    // rounded up, so a timeout never fires before its deadline
+    long deadlineMillis = now + Math.max(0, delayMillis) - originMillis;
+    long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+    timeout.deadlineTick = Math.max(deadlineTick, tick + 1);
+
+    int bucket = (int) (timeout.deadlineTick & mask);
+    timeout.previous = null;
+    timeout.next = buckets[bucket];
+    if (buckets[bucket] != null) buckets[bucket].previous = timeout;
+    buckets[bucket] = timeout;
+    timeout.scheduled = true;
+    pending++;
+  }
+
+  /** @return true if {@code timeout} was scheduled and will no longer run */
+  synchronized boolean cancel(Timeout timeout) {
+    if (!timeout.scheduled) return false;
+    unlink(timeout);
+    stopTickerIfIdle();
+    return true;
+  }
+
+  /** @return whether {@code timeout} is waiting for its deadline */
+  synchronized boolean isScheduled(Timeout timeout) {
+    return timeout.scheduled;
+  }
+
+  /** @return number of timeouts waiting for their deadline */
+  synchronized int pending() {
+    return pending;
+  }
+
+  /** Runs the timeouts whose deadline has passed, visiting each bucket at most once. */
+  void advance() {
+    synchronized (this) {
+      long target = (clock.uptimeMillis() - originMillis) / tickMillis;
+      long last = Math.min(target, tick + buckets.length);
+      for (long t = tick + 1; t <= last; t++) {
+        Timeout timeout = buckets[(int) (t & mask)];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.deadlineTick <= target) {
+            unlink(timeout);
+            expired.add(timeout);
+          }
+          timeout = next;
+        }
+      }
+      tick = Math.max(tick, target);
+      stopTickerIfIdle();
+    }
+
+    // outside the lock, timeouts take the locks of their owners and may schedule again
+    for (int i = 0, size = expired.size(); i < size; i++) expired.get(i).run();
+    expired.clear();
+  }
+
+  // guarded by this
+  private void unlink(Timeout timeout) {
+    if (timeout.previous != null) {
+      timeout.previous.next = timeout.next;
+    } else {
+      buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+    }
+    if (timeout.next != null) timeout.next.previous = timeout.previous;
+    timeout.previous = null;
+    timeout.next = null;
+    timeout.scheduled = false;
+    pending--;
+  }
+
+  // guarded by this
+  private void stopTickerIfIdle() {
+    if (pending == 0 && ticker != null) {
+      ticker.cancel(false);
+      ticker = null;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Properties;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AppIdRoutesTest {
+    @Test
+    public void routesByPropertyValue() {
+        AppIdRoutes routes = new AppIdRoutes.Builder("channel").put("TBS", "P2", null).put("TNT", "P2", "dcr").put("CNN", "P3", "dcr").build();
+
+        AppIdRoutes.Route tbs = routes.route(new Properties().putValue("channel", "TBS"));
+        assertEquals("P2", tbs.appId);
+        assertNull(tbs.sfcode);
+        // values routed to one app id share its route, and the sfcode of its first route
+        assertSame(tbs, routes.route(new Properties().putValue("channel", "TNT")));
+        assertEquals("dcr", routes.route(new Properties().putValue("channel", "CNN")).sfcode);
+        assertNull(routes.route(new Properties().putValue("channel", "HLN")));
+        assertNull(routes.route(new Properties()));
+        assertEquals(3, routes.size());
+    }
+
+    @Test
+    public void routesByNestedProperty() {
+        AppIdRoutes routes = new AppIdRoutes.Builder("video.network").put("turner", "P2", null).build();
+
+        assertEquals("P2", routes.route(new Properties().putValue("video", new Properties().putValue("network", "turner"))).appId);
+        assertNull(routes.route(new Properties().putValue("network", "turner")));
+    }
+
+    @Test
+    public void eventsWithoutPropertyKeepCurrentRoute() {
+        AppIdRoutes routes = new AppIdRoutes.Builder("channel").put("TBS", "P2", null).build();
+        AppIdRoutes.Route tbs = routes.route(new Properties().putValue("channel", "TBS"));
+
+        assertSame(tbs, routes.route(new Properties(), tbs));
+        assertNull(routes.route(new Properties().putValue("channel", "CNN"), tbs));
+    }
+
+    @Test
+    public void sessionKeys() {
+        AppIdRoutes.Route route = new AppIdRoutes.Route("P2", null);
+
+        assertEquals("@P2", route.sessionKey(null));
+        assertEquals("pip@P2", route.sessionKey("pip"));
+    }
+
+    @Test
+    public void noneRoutesNothing() {
+        assertNull(AppIdRoutes.NONE.route(new Properties().putValue("channel", "TBS")));
+        assertEquals(0, AppIdRoutes.NONE.size());
+    }
+}
@@ -0,0 +1,175 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AppSdkCoordinatorTest {
+    @Mock AppSdk appSdk;
+
+    private final Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+    private AppSdkCoordinator coordinator;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        coordinator = new AppSdkCoordinator(AppSdkCoordinator.DEFAULT_STRIPES, AppSdkCoordinator.DEFAULT_STRIPE_HISTORY_SIZE);
+    }
+
+    @Test
+    public void secondPlayOfSameChannelIsSuppressed() {
+        AppSdkCoordinator.Player a = coordinator.join();
+        AppSdkCoordinator.Player b = coordinator.join();
+
+        assertTrue(a.play("CNN"));
+        assertFalse(b.play("CNN"));
+        assertTrue(b.play("BBC"));
+        assertEquals(1, b.suppressedCalls());
+    }
+
+    @Test
+    public void stopIsForwardedOnceLastPlayerStops() {
+        AppSdkCoordinator.Player a = coordinator.join();
+        AppSdkCoordinator.Player b = coordinator.join();
+        a.play("CNN");
+        b.play("CNN");
+
+        assertFalse(a.stop());
+        assertTrue(b.stop());
+        assertFalse(a.stop());
+    }
+
+    @Test
+    public void firstStopOfIdleInstanceIsForwarded() {
+        AppSdkCoordinator.Player a = coordinator.join();
+        AppSdkCoordinator.Player b = coordinator.join();
+
+        assertTrue(a.stop());
+        assertFalse(b.stop());
+    }
+
+    @Test
+    public void endIsSuppressedWhileAnotherPlayerPlays() {
+        AppSdkCoordinator.Player a = coordinator.join();
+        AppSdkCoordinator.Player b = coordinator.join();
+        a.play("CNN");
+        b.play("CNN");
+
+        assertFalse(a.end());
+        assertTrue(b.end());
+        assertTrue(a.play("CNN"));
+    }
+
+    @Test
+    public void leavingPlayerHandsPlaybackOver() {
+        AppSdkCoordinator.Player replaced = coordinator.join();
+        replaced.play("CNN");
+        replaced.leave();
+
+        AppSdkCoordinator.Player replacement = coordinator.join();
+        assertFalse(replacement.play("CNN"));
+        assertTrue(replacement.stop());
+    }
+
+    @Test
+    public void id3TagIsSentOncePerInstance() {
+        AppSdkCoordinator.Player a = coordinator.join();
+        AppSdkCoordinator.Player b = coordinator.join();
+
+        assertTrue(a.sendID3("tag1"));
+        assertFalse(b.sendID3("tag1"));
+        assertTrue(b.sendID3("tag2"));
+        assertEquals(1, b.duplicateId3Tags());
+    }
+
+    @Test
+    public void noneForwardsEveryCall() {
+        AppSdkCoordinator.Player a = AppSdkCoordinator.NONE.join();
+        AppSdkCoordinator.Player b = AppSdkCoordinator.NONE.join();
+        a.play("CNN");
+
+        assertTrue(b.play("CNN"));
+        assertTrue(b.stop());
+        assertTrue(a.sendID3("tag1"));
+        assertTrue(b.sendID3("tag1"));
+    }
+
+    @Test
+    public void dispatchersSharingInstanceDoNotDuplicateCalls() throws JSONException {
+        DirectDispatcher a = new DirectDispatcher(appSdk, coordinator, null, logger, new AppSdkMetrics(), CallTrace.NONE);
+        DirectDispatcher b = new DirectDispatcher(appSdk, coordinator, "pip", logger, new AppSdkMetrics(), CallTrace.NONE);
+        JSONObject channelInfo = new JSONObject().put("channelName", "CNN");
+
+        a.play(channelInfo);
+        b.play(new JSONObject(channelInfo.toString()));
+        a.sendID3("tag1");
+        b.sendID3("tag1");
+        a.stop();
+        verify(appSdk, times(1)).play(any(JSONObject.class));
+        verify(appSdk, times(1)).sendID3("tag1");
+        verify(appSdk, times(0)).stop();
+
+        b.stop();
+        verify(appSdk, times(1)).stop();
+
+        DispatcherStats stats = a.stats().plus(b.stats());
+        assertEquals(2, stats.sharedCalls());
+        assertEquals(1, stats.sharedId3Tags());
+    }
+
+    @Test
+    public void concurrentPlayersForwardOnePlayAndOneStop() throws InterruptedException {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger plays = new AtomicInteger();
+        final AtomicInteger stops = new AtomicInteger();
+        final CountDownLatch playing = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final AppSdkCoordinator.Player player = coordinator.join();
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (player.play("CNN")) plays.incrementAndGet();
+                        playing.countDown();
+                        playing.await();
+                        if (player.stop()) stops.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(1, plays.get());
+        assertEquals(1, stops.get());
+    }
+}
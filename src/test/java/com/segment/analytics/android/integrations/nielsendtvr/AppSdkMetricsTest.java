@@ -0,0 +1,48 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AppSdkMetricsTest {
+
+    @Test
+    public void buckets() {
+        assertEquals(0, AppSdkMetrics.bucket(0));
+        assertEquals(0, AppSdkMetrics.bucket(1));
+        assertEquals(1, AppSdkMetrics.bucket(2));
+        assertEquals(1, AppSdkMetrics.bucket(3));
+        assertEquals(10, AppSdkMetrics.bucket(1024));
+        assertEquals(AppSdkMetrics.BUCKET_COUNT - 1, AppSdkMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void snapshot() {
+        AppSdkMetrics metrics = new AppSdkMetrics();
+        for (int i = 0; i < 98; i++) {
+            metrics.record(AppSdkMetrics.SEND_ID3, 1000);
+        }
+        metrics.record(AppSdkMetrics.SEND_ID3, 5000);
+        metrics.record(AppSdkMetrics.SEND_ID3, 1000000);
+        metrics.record(AppSdkMetrics.STOP, 10);
+
+        NielsenDTVRStats.MethodStats sendID3 = metrics.snapshot(AppSdkMetrics.SEND_ID3);
+        assertEquals("sendID3", sendID3.name());
+        assertEquals(100, sendID3.count());
+        assertEquals(98 * 1000 + 5000 + 1000000, sendID3.totalNanos());
+        assertEquals(1000000, sendID3.maxNanos());
+        assertEquals(1023, sendID3.percentileNanos(50));
+        assertEquals(8191, sendID3.percentileNanos(99));
+        assertEquals(1000000, sendID3.percentileNanos(100));
+        assertEquals(98, sendID3.histogram()[9]);
+
+        assertEquals(1, metrics.snapshot(AppSdkMetrics.STOP).count());
+        assertEquals(0, metrics.snapshot(AppSdkMetrics.PLAY).count());
+        assertEquals(0, metrics.snapshot(AppSdkMetrics.PLAY).percentileNanos(99));
+    }
+}
@@ -0,0 +1,172 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.AppSdkPool.Policy.LEAST_ACTIVE;
+import static com.segment.analytics.android.integrations.nielsendtvr.AppSdkPool.Policy.ROUND_ROBIN;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AppSdkPoolTest {
+    @Mock AppSdk first;
+    @Mock AppSdk second;
+    @Mock AppSdk third;
+
+    private final String appid = "testappid";
+    private AppSdkPool pool;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        when(first.isValid()).thenReturn(true);
+        when(second.isValid()).thenReturn(true);
+        when(third.isValid()).thenReturn(true);
+        pool = new AppSdkPool();
+    }
+
+    @Test
+    public void growsUntilFull() {
+        assertNull(pool.select(appid, 2, LEAST_ACTIVE));
+        pool.add(appid, first);
+        assertNull(pool.select(appid, 2, LEAST_ACTIVE));
+        pool.add(appid, second);
+
+        assertSame(first, pool.select(appid, 2, LEAST_ACTIVE).appSdk());
+        assertNull(pool.select("otherappid", 2, LEAST_ACTIVE));
+    }
+
+    @Test
+    public void roundRobin() {
+        pool.add(appid, first);
+        pool.add(appid, second);
+        pool.add(appid, third);
+
+        assertSame(first, pool.select(appid, 3, ROUND_ROBIN).appSdk());
+        assertSame(second, pool.select(appid, 3, ROUND_ROBIN).appSdk());
+        assertSame(third, pool.select(appid, 3, ROUND_ROBIN).appSdk());
+        assertSame(first, pool.select(appid, 3, ROUND_ROBIN).appSdk());
+    }
+
+    @Test
+    public void leastActive() {
+        AppSdkPool.Entry firstEntry = pool.add(appid, first);
+        AppSdkPool.Entry secondEntry = pool.add(appid, second);
+
+        // both play one session, so the one shared by fewer integrations wins
+        firstEntry.sessionStarted();
+        secondEntry.sessionStarted();
+        assertSame(firstEntry, pool.select(appid, 2, LEAST_ACTIVE));
+        assertSame(secondEntry, pool.select(appid, 2, LEAST_ACTIVE));
+
+        secondEntry.sessionEnded();
+        assertSame(secondEntry, pool.select(appid, 2, LEAST_ACTIVE));
+        assertSame(secondEntry, pool.select(appid, 2, LEAST_ACTIVE));
+    }
+
+    @Test
+    public void evictsInvalidInstances() {
+        pool.add(appid, first);
+        pool.add(appid, second);
+        when(first.isValid()).thenReturn(false);
+
+        assertNull(pool.select(appid, 2, LEAST_ACTIVE));
+        pool.add(appid, third);
+
+        AppSdkPoolStats stats = pool.stats(appid);
+        assertEquals(2, stats.size());
+        assertEquals(2, stats.maxSize());
+        assertEquals(1, stats.evictions());
+    }
+
+    @Test
+    public void stats() {
+        AppSdkPool.Entry entry = pool.add(appid, first);
+        pool.add(appid, second);
+        pool.select(appid, 2, ROUND_ROBIN);
+        entry.sessionStarted();
+
+        AppSdkPoolStats stats = pool.stats(appid);
+        assertArrayEquals(new int[] {2, 1}, stats.integrations());
+        assertArrayEquals(new int[] {1, 0}, stats.activeSessions());
+        assertEquals(0, pool.stats("otherappid").size());
+        assertEquals(2, entry.poolStats().size());
+    }
+
+    @Test
+    public void holderTracksSessions() {
+        AppSdkPool.Entry entry = pool.add(appid, first);
+        AppSdkHolder holder = new AppSdkHolder();
+
+        // a session started before a deferred instance is constructed counts once it is
+        holder.setSessionActive(true);
+        holder.set(entry, 0);
+        holder.setSessionActive(true);
+        assertArrayEquals(new int[] {1}, pool.stats(appid).activeSessions());
+
+        holder.setSessionActive(false);
+        assertArrayEquals(new int[] {0}, holder.poolStats().activeSessions());
+    }
+
+    @Test
+    public void lastReleaseClosesInstance() {
+        AppSdkPool.Entry entry = pool.add(appid, first).retain();
+
+        entry.release();
+        verify(first, never()).close();
+
+        entry.release();
+        verify(first).close();
+        assertEquals(0, pool.stats(appid).size());
+        assertEquals(1, pool.stats(appid).evictions());
+
+        // a late release of an already closed instance does not close it again
+        entry.release();
+        verify(first, times(1)).close();
+    }
+
+    @Test
+    public void holderReleasedBeforeConstructionClosesInstance() {
+        AppSdkHolder holder = new AppSdkHolder();
+        holder.release();
+
+        holder.set(pool.add(appid, first), 0);
+
+        verify(first).close();
+    }
+
+    @Test
+    public void closeClosesLeasedInstances() {
+        AppSdkPool.Entry entry = pool.add(appid, first);
+        pool.add("otherappid", second);
+
+        pool.close();
+        verify(first).close();
+        verify(second).close();
+        assertEquals(0, pool.stats(appid).size());
+
+        entry.release();
+        verify(first, times(1)).close();
+
+        // constructed after the pool closed, so never shared and closed once released
+        AppSdkPool.Entry late = pool.add(appid, third);
+        assertNull(pool.select(appid, 1, LEAST_ACTIVE));
+        late.release();
+        verify(third).close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CallTraceTest {
+    private final Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+    private long now;
+    private final Clock clock = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void keepsLastCallsOldestFirst() {
+        CallTrace trace = new CallTrace(2, clock);
+        trace.record(AppSdkMetrics.PLAY, null, "a", 0, false);
+        now += 100;
+        trace.record(AppSdkMetrics.SEND_ID3, null, "b", 0, false);
+        now += 50;
+        trace.record(AppSdkMetrics.STOP, null, null, 0, false);
+
+        assertEquals(3, trace.count());
+        assertEquals("-50ms - sendID3(b) 0us\n0ms - stop() 0us\n", trace.dump());
+    }
+
+    @Test
+    public void dumpsSessionPayloadLatencyAndFailure() {
+        CallTrace trace = new CallTrace(CallTrace.DEFAULT_CAPACITY, clock);
+        trace.record(AppSdkMetrics.PLAY, "pip", "{\"channelName\":\"CNN\"}", 450000, true);
+
+        assertEquals("0ms pip play({\"channelName\":\"CNN\"}) 450us failed\n", trace.dump());
+    }
+
+    @Test
+    public void emptyTraceRecordsNothing() {
+        CallTrace.NONE.record(AppSdkMetrics.PLAY, null, "a", 0, false);
+
+        assertEquals(0, CallTrace.NONE.count());
+        assertEquals("", CallTrace.NONE.dump());
+        assertFalse(CallTrace.NONE.dumpOnError(logger));
+    }
+
+    @Test
+    public void dumpsOnErrorAtMostOncePerInterval() {
+        CallTrace trace = new CallTrace(CallTrace.DEFAULT_CAPACITY, clock);
+        trace.record(AppSdkMetrics.STOP, null, null, 0, true);
+
+        assertTrue(trace.dumpOnError(logger));
+        now += CallTrace.ERROR_DUMP_INTERVAL_MILLIS - 1;
+        assertFalse(trace.dumpOnError(logger));
+        now += 1;
+        assertTrue(trace.dumpOnError(logger));
+    }
+
+    @Test
+    public void directDispatcherRecordsFailedCall() throws Exception {
+        AppSdk appSdk = mock(AppSdk.class);
+        RuntimeException failure = new IllegalStateException();
+        doThrow(failure).when(appSdk).stop();
+        CallTrace trace = new CallTrace(CallTrace.DEFAULT_CAPACITY, clock);
+        AppSdkMetrics metrics = new AppSdkMetrics();
+        DirectDispatcher dispatcher = new DirectDispatcher(appSdk, "pip", logger, metrics, trace);
+
+        dispatcher.play(new JSONObject().put("channelName", "CNN"));
+        try {
+            dispatcher.stop();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(failure, e);
+        }
+
+        String[] calls = trace.dump().split("\n");
+        assertEquals(2, calls.length);
+        assertTrue(calls[0].contains("pip play({\"channelName\":\"CNN\"})"));
+        assertTrue(calls[1].endsWith(" failed"));
+        assertEquals(1, dispatcher.stats().executed());
+    }
+}
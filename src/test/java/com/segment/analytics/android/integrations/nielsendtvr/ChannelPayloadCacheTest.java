@@ -0,0 +1,104 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import android.content.ComponentCallbacks2;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ChannelPayloadCacheTest {
+    private Logger logger;
+
+    @Before
+    public void init() {
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+    }
+
+    @Test
+    public void payloads() throws JSONException {
+        ChannelPayloadCache cache = new ChannelPayloadCache(4, logger);
+
+        JSONAssert.assertEquals(new JSONObject().put("channelName", "a"), cache.channelInfo("a"), JSONCompareMode.STRICT);
+        JSONAssert.assertEquals(new JSONObject(), cache.channelInfo(null), JSONCompareMode.STRICT);
+        JSONAssert.assertEquals(
+                new JSONObject().put("type", "content").put("channelName", "a").put("adModel", "2"),
+                cache.metadata(MetadataMapping.DEFAULT, metadata("a", "2")),
+                JSONCompareMode.STRICT);
+        JSONAssert.assertEquals(
+                new JSONObject().put("type", "content").put("channelName", "a"),
+                cache.metadata(MetadataMapping.DEFAULT, metadata("a", null)),
+                JSONCompareMode.STRICT);
+    }
+
+    @Test
+    public void reusesPayloads() {
+        ChannelPayloadCache cache = new ChannelPayloadCache(4, logger);
+
+        assertSame(cache.channelInfo("a"), cache.channelInfo("a"));
+        assertSame(cache.metadata(MetadataMapping.DEFAULT, metadata("a", "1")), cache.metadata(MetadataMapping.DEFAULT, metadata("a", "1")));
+        assertNotSame(cache.metadata(MetadataMapping.DEFAULT, metadata("a", "1")), cache.metadata(MetadataMapping.DEFAULT, metadata("a", "2")));
+
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.misses());
+        assertEquals(3, cache.hits());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ChannelPayloadCache cache = new ChannelPayloadCache(2, logger);
+
+        JSONObject a = cache.channelInfo("a");
+        cache.channelInfo("b");
+        cache.channelInfo("a");
+        cache.channelInfo("c");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        assertSame(a, cache.channelInfo("a"));
+        assertEquals(3, cache.misses());
+    }
+
+    @Test
+    public void disabled() {
+        ChannelPayloadCache cache = new ChannelPayloadCache(0, logger);
+
+        assertNotSame(cache.channelInfo("a"), cache.channelInfo("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void trimsOnMemoryPressure() {
+        ChannelPayloadCache cache = new ChannelPayloadCache(4, logger);
+        cache.channelInfo("a");
+        cache.channelInfo("b");
+        cache.channelInfo("c");
+        cache.channelInfo("d");
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(2, cache.size());
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, cache.size());
+        assertEquals(4, cache.evictions());
+    }
+
+    /** @return values of the default metadata fields */
+    private static String[] metadata(String channel, String adModel) {
+        return new String[] {channel, adModel};
+    }
+}
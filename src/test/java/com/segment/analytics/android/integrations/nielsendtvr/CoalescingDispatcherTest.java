@@ -0,0 +1,135 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CoalescingDispatcherTest {
+    @Mock AppSdkDispatcher target;
+    @Mock ScheduledExecutorService scheduler;
+
+    private long now;
+    private TimerWheel timers;
+    private CoalescingDispatcher dispatcher;
+    private JSONObject channelA;
+    private JSONObject channelB;
+
+    @Before
+    public void init() throws JSONException {
+        MockitoAnnotations.initMocks(this);
+        when(target.stats()).thenReturn(new DispatcherStats(0, 0, 0, 0, 0, 0, 0));
+
+        Clock clock = new Clock() {
+            @Override
+            public long uptimeMillis() {
+                return now;
+            }
+        };
+        timers = new TimerWheel(scheduler, clock, TimerWheel.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_WHEEL_SIZE);
+        dispatcher = new CoalescingDispatcher(target, 500, clock, timers);
+        channelA = new JSONObject().put("channelName", "a");
+        channelB = new JSONObject().put("channelName", "b");
+    }
+
+    @Test
+    public void stopPlayWithinWindowIsSuppressed() {
+        dispatcher.play(channelA);
+        dispatcher.stop();
+        now += 100;
+        dispatcher.play(channelA);
+        now += 1000;
+        dispatcher.expirePendingStop();
+
+        verify(target, times(1)).play(channelA);
+        verify(target, never()).stop();
+        assertEquals(2, dispatcher.stats().coalesced());
+    }
+
+    @Test
+    public void stopIsForwardedWhenWindowExpires() {
+        dispatcher.play(channelA);
+        dispatcher.stop();
+        assertEquals(1, timers.pending());
+
+        now += 499;
+        dispatcher.expirePendingStop();
+        verify(target, never()).stop();
+
+        now += 1;
+        dispatcher.expirePendingStop();
+        verify(target).stop();
+    }
+
+    @Test
+    public void stopPlayAfterWindowIsForwarded() {
+        dispatcher.play(channelA);
+        dispatcher.stop();
+        now += 600;
+        dispatcher.play(channelA);
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).play(channelA);
+        inOrder.verify(target).stop();
+        inOrder.verify(target).play(channelA);
+        assertEquals(0, dispatcher.stats().coalesced());
+    }
+
+    @Test
+    public void channelChangeIsForwarded() {
+        dispatcher.play(channelA);
+        dispatcher.stop();
+        dispatcher.play(channelB);
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).play(channelA);
+        inOrder.verify(target).stop();
+        inOrder.verify(target).play(channelB);
+    }
+
+    @Test
+    public void repeatedCallsAreForwardedOnce() {
+        dispatcher.play(channelA);
+        dispatcher.play(channelA);
+        dispatcher.stop();
+        dispatcher.stop();
+        now += 600;
+        dispatcher.expirePendingStop();
+        dispatcher.stop();
+
+        verify(target, times(1)).play(channelA);
+        verify(target, times(1)).stop();
+        assertEquals(3, dispatcher.stats().coalesced());
+    }
+
+    @Test
+    public void otherCallsForwardPendingStopFirst() {
+        dispatcher.play(channelA);
+        dispatcher.stop();
+        dispatcher.sendID3("id3");
+        dispatcher.flush();
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).play(channelA);
+        inOrder.verify(target).stop();
+        inOrder.verify(target).sendID3("id3");
+        inOrder.verify(target).flush();
+    }
+}
@@ -0,0 +1,193 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DeferredDispatcherTest {
+    @Mock AppSdk appSdk;
+
+    private Logger logger;
+    private AppSdkMetrics metrics;
+    private AppSdkHolder holder;
+    private final List<Runnable> tasks = new ArrayList<>();
+    private int constructions;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+        metrics = new AppSdkMetrics();
+        holder = new AppSdkHolder();
+    }
+
+    @Test
+    public void constructsOnFirstCall() {
+        DeferredDispatcher dispatcher = dispatcher(constructor(), DeferredDispatcher.DEFAULT_CAPACITY);
+        assertEquals(0, tasks.size());
+
+        dispatcher.sendID3("1");
+        dispatcher.sendID3("2");
+
+        assertEquals(1, tasks.size());
+        assertEquals(0, constructions);
+        assertNull(holder.get());
+    }
+
+    @Test
+    public void stopBeforeFirstCallDoesNotConstruct() {
+        DeferredDispatcher dispatcher = dispatcher(constructor(), DeferredDispatcher.DEFAULT_CAPACITY);
+
+        dispatcher.stop();
+        dispatcher.end();
+
+        assertEquals(0, tasks.size());
+        assertEquals(0, dispatcher.stats().dispatched());
+    }
+
+    @Test
+    public void replaysBufferedCallsInOrder() throws JSONException {
+        DeferredDispatcher dispatcher = dispatcher(constructor(), DeferredDispatcher.DEFAULT_CAPACITY);
+        JSONObject channelInfo = new JSONObject().put("channelName", "1");
+        JSONObject metadata = new JSONObject().put("type", "content");
+
+        dispatcher.play(channelInfo);
+        dispatcher.loadMetadata(metadata);
+        dispatcher.sendID3("tag");
+        verifyZeroInteractions(appSdk);
+        assertEquals(3, dispatcher.stats().queueDepth());
+
+        runTasks();
+        dispatcher.stop();
+
+        InOrder inOrder = inOrder(appSdk);
+        inOrder.verify(appSdk).play(channelInfo);
+        inOrder.verify(appSdk).loadMetadata(metadata);
+        inOrder.verify(appSdk).sendID3("tag");
+        inOrder.verify(appSdk).stop();
+        assertSame(appSdk, holder.get());
+        assertEquals(1, constructions);
+
+        DispatcherStats stats = dispatcher.stats();
+        assertEquals(4, stats.dispatched());
+        assertEquals(4, stats.executed());
+        assertEquals(3, stats.replayed());
+        assertEquals(0, stats.dropped());
+    }
+
+    @Test
+    public void dropsOldestCallsWhenBufferIsFull() {
+        DeferredDispatcher dispatcher = dispatcher(constructor(), 2);
+
+        dispatcher.sendID3("1");
+        dispatcher.sendID3("2");
+        dispatcher.sendID3("3");
+        runTasks();
+
+        verify(appSdk, never()).sendID3("1");
+        InOrder inOrder = inOrder(appSdk);
+        inOrder.verify(appSdk).sendID3("2");
+        inOrder.verify(appSdk).sendID3("3");
+
+        DispatcherStats stats = dispatcher.stats();
+        assertEquals(3, stats.dispatched());
+        assertEquals(1, stats.dropped());
+        assertEquals(2, stats.replayed());
+    }
+
+    @Test
+    public void dropsCallsWhenConstructionFails() {
+        DeferredDispatcher dispatcher =
+                dispatcher(
+                        new Callable<AppSdkPool.Entry>() {
+                            @Override
+                            public AppSdkPool.Entry call() throws JSONException {
+                                throw new JSONException("invalid config");
+                            }
+                        },
+                        DeferredDispatcher.DEFAULT_CAPACITY);
+
+        dispatcher.sendID3("1");
+        runTasks();
+        dispatcher.stop();
+        dispatcher.flush();
+
+        assertNull(holder.get());
+        assertEquals(0, tasks.size());
+        DispatcherStats stats = dispatcher.stats();
+        assertEquals(2, stats.dispatched());
+        assertEquals(2, stats.dropped());
+        assertEquals(0, stats.queueDepth());
+    }
+
+    @Test
+    public void flushBeforeFirstCallDoesNotConstruct() {
+        DeferredDispatcher dispatcher = dispatcher(constructor(), DeferredDispatcher.DEFAULT_CAPACITY);
+
+        dispatcher.flush();
+
+        assertEquals(0, tasks.size());
+    }
+
+    private DeferredDispatcher dispatcher(Callable<AppSdkPool.Entry> constructor, int capacity) {
+        return new DeferredDispatcher(
+                constructor,
+                new DeferredDispatcher.Target() {
+                    @Override
+                    public AppSdkDispatcher create(AppSdkPool.Entry appSdk) {
+                        return new DirectDispatcher(appSdk.appSdk(), null, logger, metrics, CallTrace.NONE);
+                    }
+                },
+                holder,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable runnable) {
+                        tasks.add(runnable);
+                    }
+                },
+                capacity,
+                logger);
+    }
+
+    private Callable<AppSdkPool.Entry> constructor() {
+        return new Callable<AppSdkPool.Entry>() {
+            @Override
+            public AppSdkPool.Entry call() {
+                constructions++;
+                return new AppSdkPool.Entry(null, null, appSdk);
+            }
+        };
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_BACKGROUND;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_LOAD_METADATA;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_NONE;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_PLAY;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_SEND_ID3;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_STOP;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventDispatchTableTest {
+
+    @Test
+    public void defaults() {
+        EventDispatchTable table = new EventDispatchTable.Builder().putDefaults().build();
+
+        assertEquals(13, table.size());
+        assertEquals(ACTION_PLAY | ACTION_LOAD_METADATA, table.actionsFor("Video Content Started"));
+        assertEquals(ACTION_PLAY, table.actionsFor("Video Playback Buffer Completed"));
+        assertEquals(ACTION_STOP, table.actionsFor("Video Playback Buffer Started"));
+        assertEquals(ACTION_STOP | ACTION_BACKGROUND, table.actionsFor("Application Backgrounded"));
+    }
+
+    @Test
+    public void lookupIgnoresCase() {
+        EventDispatchTable table = new EventDispatchTable.Builder().putDefaults().build();
+
+        assertEquals(ACTION_STOP, table.actionsFor("VIDEO PLAYBACK PAUSED"));
+        assertEquals(ACTION_STOP, table.actionsFor("video playback paused"));
+    }
+
+    @Test
+    public void unknownEvents() {
+        EventDispatchTable table = new EventDispatchTable.Builder().putDefaults().build();
+
+        assertEquals(ACTION_NONE, table.actionsFor("Product Viewed"));
+        assertEquals(ACTION_NONE, table.actionsFor("Video Playback Pause"));
+        assertEquals(ACTION_NONE, table.actionsFor(""));
+        assertEquals(ACTION_NONE, table.actionsFor(null));
+    }
+
+    @Test
+    public void putReplacesAndAddCombines() {
+        EventDispatchTable table = new EventDispatchTable.Builder()
+                .putDefaults()
+                .put("video playback paused", ACTION_NONE)
+                .add("Video Playback Resumed", ACTION_SEND_ID3)
+                .add("Custom ID3", ACTION_SEND_ID3)
+                .build();
+
+        assertEquals(ACTION_NONE, table.actionsFor("Video Playback Paused"));
+        assertEquals(ACTION_PLAY | ACTION_SEND_ID3, table.actionsFor("Video Playback Resumed"));
+        assertEquals(ACTION_SEND_ID3, table.actionsFor("custom id3"));
+        assertEquals(13, table.size());
+    }
+
+    @Test
+    public void namesWithSameHashAreProbed() {
+        // no layout gives these their own home slot, as their hashes are equal
+        assertEquals(EventDispatchTable.hash("a@"), EventDispatchTable.hash("b!"));
+        EventDispatchTable table = new EventDispatchTable.Builder()
+                .put("a@", ACTION_PLAY)
+                .put("b!", ACTION_STOP)
+                .build();
+
+        assertEquals(ACTION_PLAY, table.actionsFor("a@"));
+        assertEquals(ACTION_STOP, table.actionsFor("B!"));
+        assertEquals(ACTION_NONE, table.actionsFor("c!"));
+    }
+
+    @Test
+    public void emptyTable() {
+        EventDispatchTable table = new EventDispatchTable.Builder().build();
+
+        assertEquals(0, table.size());
+        assertEquals(ACTION_NONE, table.actionsFor("Video Content Started"));
+    }
+
+    @Test
+    public void parseAction() {
+        assertEquals(ACTION_PLAY, EventDispatchTable.parseAction("play"));
+        assertEquals(ACTION_LOAD_METADATA, EventDispatchTable.parseAction("loadMetadata"));
+        assertEquals(ACTION_STOP, EventDispatchTable.parseAction("STOP"));
+        assertEquals(ACTION_SEND_ID3, EventDispatchTable.parseAction("sendId3"));
+        assertEquals(ACTION_BACKGROUND, EventDispatchTable.parseAction("background"));
+        assertEquals(ACTION_NONE, EventDispatchTable.parseAction("end"));
+        assertEquals(ACTION_NONE, EventDispatchTable.parseAction(null));
+    }
+}
@@ -0,0 +1,152 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventTraceTest {
+    private final EventSettings settings = new EventSettings(new EventDispatchTable.Builder().putDefaults().build(), "id3");
+    private long now;
+    private Clock clock;
+    private Logger logger;
+    private File file;
+
+    @Before
+    public void init() throws IOException {
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+        clock = new Clock() {
+            @Override
+            public long uptimeMillis() {
+                return now;
+            }
+        };
+        file = File.createTempFile("nielsen-dtvr", ".trace");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void recordsEventsWithTheirRelevantProperties() throws IOException {
+        EventTrace trace = EventTrace.open(file, EventTrace.DEFAULT_MAX_BYTES, Collections.singletonList(PropertyPath.parse("session_id")), clock, logger);
+        now += 1500;
+        trace.record("Video Content Started", new Properties().putValue("channel", "CNN").putValue("load_type", "linear").putValue("screen", "home"), settings);
+        now += 20;
+        trace.record("Video ID3 Tag", new Properties().putValue("channel", "CNN").putValue("id3", "tag").putValue("session_id", "pip"), settings);
+        trace.record("Video Content Started", new Properties().putValue("channel", "CNN"), settings);
+        trace.close();
+
+        EventTrace.Reader reader = new EventTrace.Reader(new FileInputStream(file));
+        EventTrace.Event first = reader.next();
+        assertEquals(1500, first.delayMillis);
+        assertEquals("Video Content Started", first.name);
+        assertEquals(new Properties().putValue("channel", "CNN").putValue("load_type", "linear"), first.properties);
+
+        EventTrace.Event second = reader.next();
+        assertEquals(20, second.delayMillis);
+        assertEquals(new Properties().putValue("channel", "CNN").putValue("session_id", "pip").putValue("id3", "tag"), second.properties);
+
+        EventTrace.Event third = reader.next();
+        assertEquals(0, third.delayMillis);
+        assertEquals("Video Content Started", third.name);
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void nestedPropertiesAreRecordedByPath() throws IOException {
+        MetadataMapping mapping = new MetadataMapping.Builder().putDefaults().put(MetadataMapping.CHANNEL_NAME, MetadataMapping.TRANSFORM_NONE, "video.channel").build();
+        EventSettings nested = new EventSettings(new EventDispatchTable.Builder().putDefaults().build(), "ad.id3", mapping);
+        EventTrace trace = EventTrace.open(file, EventTrace.DEFAULT_MAX_BYTES, Collections.singletonList(PropertyPath.parse("video.network")), clock, logger);
+        Properties video = new Properties().putValue("channel", "CNN").putValue("network", "turner").putValue("title", "News");
+        Properties ad = new Properties().putValue("id3", "tag");
+        trace.record("Video Content Started", new Properties().putValue("video", video).putValue("ad", ad).putValue("load_type", "linear").putValue("screen", "home"), nested);
+        trace.close();
+
+        EventTrace.Reader reader = new EventTrace.Reader(new FileInputStream(file));
+        EventTrace.Event event = reader.next();
+        // properties the integration does not read are left out
+        Properties recordedVideo = new Properties().putValue("channel", "CNN").putValue("network", "turner");
+        assertEquals(new Properties().putValue("video", recordedVideo).putValue("ad", ad).putValue("load_type", "linear"), event.properties);
+        assertEquals("CNN", mapping.channel(event.properties));
+        assertEquals("tag", nested.id3Property.read(event.properties));
+        reader.close();
+    }
+
+    @Test
+    public void repeatedStringsAreWrittenOnce() {
+        EventTrace trace = EventTrace.open(file, EventTrace.DEFAULT_MAX_BYTES, Collections.<PropertyPath>emptyList(), clock, logger);
+        trace.record("Video Playback Buffer Started", new Properties().putValue("channel", "CNN"), settings);
+        trace.flush();
+        long first = file.length();
+        trace.record("Video Playback Buffer Started", new Properties().putValue("channel", "CNN"), settings);
+        trace.close();
+
+        // delay, event, property count, name and value
+        assertEquals(5, file.length() - first);
+    }
+
+    @Test
+    public void tornEventEndsTheTrace() throws IOException {
+        EventTrace trace = EventTrace.open(file, EventTrace.DEFAULT_MAX_BYTES, Collections.<PropertyPath>emptyList(), clock, logger);
+        trace.record("Video Playback Paused", new Properties(), settings);
+        trace.record("Video Playback Resumed", new Properties().putValue("channel", "CNN"), settings);
+        trace.close();
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 2);
+        truncated.close();
+
+        EventTrace.Reader reader = new EventTrace.Reader(new FileInputStream(file));
+        assertEquals("Video Playback Paused", reader.next().name);
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void recordingStopsAtMaxBytes() {
+        EventTrace trace = EventTrace.open(file, 64, Collections.<PropertyPath>emptyList(), clock, logger);
+        char[] tag = new char[249];
+        Arrays.fill(tag, 'a');
+        for (int i = 0; i < 10; i++) {
+            trace.record("Video ID3 Tag", new Properties().putValue("id3", new String(tag)), settings);
+        }
+        trace.flush();
+
+        assertTrue(file.length() < 64 + 300);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new EventTrace.Reader(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}));
+    }
+
+    @Test
+    public void noneIgnoresEvents() {
+        EventTrace.NONE.record("Video Playback Paused", new Properties(), settings);
+        EventTrace.NONE.flush();
+        EventTrace.NONE.close();
+    }
+}
@@ -0,0 +1,144 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+
+import org.json.JSONObject;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * AppSdk double for long running tests. Each call can take virtual time on a {@link
+ * VirtualScheduler} and can be made to fail, and the sequence of calls is checked as it happens
+ * against what Nielsen expects: no play while playing the same channel, no stop once stopped and no
+ * end before playing.
+ *
+ * <p>Only counts and the violations are kept, so hours of simulated viewing take constant memory.
+ */
+final class FakeAppSdk {
+    /** Decides the latency of, or the failure of, a call. */
+    interface Behavior {
+        /**
+         * @param method one of the {@code AppSdkMetrics} method constants
+         * @param call number of calls made so far to this method
+         * @param now virtual time of the call
+         * @return virtual milliseconds the call takes
+         * @throws RuntimeException to fail the call
+         */
+        long latencyMillis(int method, long call, long now);
+    }
+
+    static final Behavior INSTANT = new Behavior() {
+        @Override
+        public long latencyMillis(int method, long call, long now) {
+            return 0;
+        }
+    };
+
+    final AppSdk appSdk;
+
+    private final VirtualScheduler scheduler;
+    private final long[] calls = new long[AppSdkMetrics.METHOD_COUNT];
+    private final List<String> violations = new ArrayList<>();
+    private Behavior behavior = INSTANT;
+    private String playingChannel;
+    private boolean playing;
+    private boolean stopped;
+    private long failures;
+    private int lastMethod = -1;
+
+    FakeAppSdk(VirtualScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.appSdk = mock(AppSdk.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                String name = invocation.getMethod().getName();
+                if ("isValid".equals(name)) return true;
+                int method = method(name);
+                if (method < 0) return null;
+                call(method, invocation.getArguments().length > 0 ? invocation.getArgument(0) : null);
+                return null;
+            }
+        });
+    }
+
+    FakeAppSdk behavior(Behavior behavior) {
+        this.behavior = behavior;
+        return this;
+    }
+
+    /** @return number of calls made to {@code method}, including the failed ones */
+    long calls(int method) {
+        return calls[method];
+    }
+
+    long failures() {
+        return failures;
+    }
+
+    /** @return last method called, or -1 */
+    int lastMethod() {
+        return lastMethod;
+    }
+
+    boolean playing() {
+        return playing;
+    }
+
+    /** @return descriptions of the calls Nielsen would not expect, in order */
+    List<String> violations() {
+        return Collections.unmodifiableList(violations);
+    }
+
+    private void call(int method, Object argument) {
+        long call = calls[method]++;
+        lastMethod = method;
+        long latencyMillis;
+        try {
+            latencyMillis = behavior.latencyMillis(method, call, scheduler.uptimeMillis());
+        } catch (RuntimeException e) {
+            failures++;
+            throw e;
+        }
+        scheduler.sleep(latencyMillis);
+
+        switch (method) {
+            case AppSdkMetrics.PLAY:
+                String channel = ((JSONObject) argument).optString("channelName");
+                if (playing && channel.equals(playingChannel)) violation("play(" + channel + ") while playing it");
+                playing = true;
+                stopped = false;
+                playingChannel = channel;
+                break;
+            case AppSdkMetrics.STOP:
+                if (stopped) violation("stop() while stopped");
+                playing = false;
+                stopped = true;
+                break;
+            case AppSdkMetrics.END:
+                if (!playing && !stopped) violation("end() before play()");
+                playing = false;
+                stopped = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void violation(String description) {
+        // a handful is enough to diagnose, and keeps memory bounded
+        if (violations.size() < 100) violations.add(description + " at " + scheduler.uptimeMillis());
+    }
+
+    private static int method(String name) {
+        for (int i = 0; i < AppSdkMetrics.METHOD_COUNT; i++) {
+            if (AppSdkMetrics.METHOD_NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+}
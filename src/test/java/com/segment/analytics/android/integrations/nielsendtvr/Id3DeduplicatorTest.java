@@ -0,0 +1,90 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class Id3DeduplicatorTest {
+    private long now;
+    private final Clock clock = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void dropsTagsInHistory() {
+        Id3Deduplicator deduplicator = new Id3Deduplicator(2, 0, clock);
+
+        assertTrue(deduplicator.accept("a"));
+        assertTrue(deduplicator.accept("b"));
+        assertFalse(deduplicator.accept("a"));
+        assertFalse(deduplicator.accept(new String("b")));
+        assertTrue(deduplicator.accept("c"));
+        // "a" was pushed out of the history by "c"
+        assertTrue(deduplicator.accept("a"));
+
+        assertEquals(2, deduplicator.hits());
+        assertEquals(4, deduplicator.misses());
+    }
+
+    @Test
+    public void sameHashDifferentTag() {
+        Id3Deduplicator deduplicator = new Id3Deduplicator(4, 0, clock);
+
+        // "Aa" and "BB" share their hash code and length
+        assertTrue(deduplicator.accept("Aa"));
+        assertTrue(deduplicator.accept("BB"));
+        assertEquals(0, deduplicator.hits());
+    }
+
+    @Test
+    public void rawTagMatchesAcceptedTag() {
+        Id3Deduplicator deduplicator = new Id3Deduplicator(2, 0, clock);
+        ByteBuffer buffer = ByteBuffer.wrap("xxwww.nielsen.com/\u00e9aBB".getBytes(Charset.forName("ISO-8859-1")));
+
+        assertFalse(deduplicator.isDuplicate(buffer, 2, 17));
+        assertTrue(deduplicator.accept("www.nielsen.com/\u00e9"));
+        assertTrue(deduplicator.isDuplicate(buffer, 2, 17));
+        assertTrue(deduplicator.accept("Aa"));
+        // same hash code and length, different tag
+        assertFalse(deduplicator.isDuplicate(buffer, 20, 2));
+
+        assertEquals(1, deduplicator.hits());
+        assertEquals(2, deduplicator.misses());
+    }
+
+    @Test
+    public void nullTagIsDropped() {
+        Id3Deduplicator deduplicator = new Id3Deduplicator(4, 0, clock);
+
+        assertFalse(deduplicator.accept(null));
+        assertEquals(0, deduplicator.misses());
+    }
+
+    @Test
+    public void minInterval() {
+        Id3Deduplicator deduplicator = new Id3Deduplicator(4, 1000, clock);
+
+        assertTrue(deduplicator.accept("a"));
+        now += 999;
+        assertFalse(deduplicator.accept("b"));
+        now += 1;
+        assertTrue(deduplicator.accept("b"));
+        assertFalse(deduplicator.accept("b"));
+
+        assertEquals(1, deduplicator.rateLimited());
+        assertEquals(1, deduplicator.hits());
+    }
+}
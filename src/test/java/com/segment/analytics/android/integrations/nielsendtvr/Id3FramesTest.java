@@ -0,0 +1,160 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class Id3FramesTest {
+    static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+    static final String NIELSEN_TAG = nielsenTag('A');
+
+    @Test
+    public void findsNielsenPrivFrame() {
+        ByteBuffer metadata = ByteBuffer.wrap(tag(4, 0, frame(4, "TXXX", "\0title\0value".getBytes(LATIN_1)), privFrame(4, NIELSEN_TAG)));
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void findsNielsenPrivFrameInId3v23() {
+        ByteBuffer metadata = ByteBuffer.wrap(tag(3, 0, privFrame(3, NIELSEN_TAG)));
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void skipsOtherPrivFrames() {
+        ByteBuffer metadata = ByteBuffer.wrap(tag(4, 0, privFrame(4, "com.apple.streaming.transportStreamTimestamp"), privFrame(4, NIELSEN_TAG)));
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void findsNielsenTagInLaterTag() {
+        ByteBuffer metadata = ByteBuffer.wrap(concat(tag(4, 0, privFrame(4, "com.apple.streaming.transportStreamTimestamp")), tag(4, 0, privFrame(4, NIELSEN_TAG))));
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void skipsExtendedHeader() {
+        byte[] extendedHeader = {0, 0, 0, 6, 1, 0};
+        ByteBuffer metadata = ByteBuffer.wrap(tag(4, 0x40, extendedHeader, privFrame(4, NIELSEN_TAG)));
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void readsSliceWithoutChangingIt() {
+        byte[] tag = tag(4, 0, privFrame(4, NIELSEN_TAG));
+        byte[] bytes = concat(new byte[] {1, 2, 3}, tag, new byte[] {4});
+        ByteBuffer metadata = ByteBuffer.wrap(bytes, 3, tag.length);
+        metadata.order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+        assertEquals(3, metadata.position());
+        assertEquals(3 + tag.length, metadata.limit());
+    }
+
+    @Test
+    public void readsDirectBuffer() {
+        byte[] tag = tag(4, 0, privFrame(4, NIELSEN_TAG));
+        ByteBuffer metadata = ByteBuffer.allocateDirect(tag.length);
+        metadata.put(tag).flip();
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void rejectsMetadataWithoutNielsenFrame() {
+        assertEquals(Id3Frames.NOT_FOUND, Id3Frames.findNielsenTag(ByteBuffer.wrap(tag(4, 0, privFrame(4, "www.example.com/tag")))));
+        assertEquals(Id3Frames.NOT_FOUND, Id3Frames.findNielsenTag(ByteBuffer.wrap(NIELSEN_TAG.getBytes(LATIN_1))));
+        assertEquals(Id3Frames.NOT_FOUND, Id3Frames.findNielsenTag(ByteBuffer.wrap(new byte[0])));
+        // unsynchronised tags are not decoded
+        assertEquals(Id3Frames.NOT_FOUND, Id3Frames.findNielsenTag(ByteBuffer.wrap(tag(4, 0x80, privFrame(4, NIELSEN_TAG)))));
+    }
+
+    @Test
+    public void rejectsTruncatedMetadata() {
+        byte[] tag = tag(4, 0, privFrame(4, NIELSEN_TAG));
+        for (int length = 0; length < tag.length; length++) {
+            assertEquals(Id3Frames.NOT_FOUND, Id3Frames.findNielsenTag(ByteBuffer.wrap(Arrays.copyOf(tag, length))));
+        }
+    }
+
+    @Test
+    public void rejectsFrameOverrunningTag() {
+        byte[] frame = privFrame(4, NIELSEN_TAG);
+        frame[7] = 0x7f;
+
+        assertEquals(Id3Frames.NOT_FOUND, Id3Frames.findNielsenTag(ByteBuffer.wrap(tag(4, 0, frame))));
+    }
+
+    @Test
+    public void tagWithoutTerminatorEndsWithFrame() {
+        ByteBuffer metadata = ByteBuffer.wrap(tag(4, 0, frame(4, "PRIV", NIELSEN_TAG.getBytes(LATIN_1))));
+
+        assertEquals(NIELSEN_TAG, find(metadata));
+    }
+
+    @Test
+    public void decodesHeapAndDirectBuffersAlike() {
+        byte[] bytes = NIELSEN_TAG.getBytes(LATIN_1);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+
+        assertArrayEquals(bytes, Id3Frames.decode(direct, 0, bytes.length).getBytes(LATIN_1));
+        assertEquals(NIELSEN_TAG.substring(2, 10), Id3Frames.decode(ByteBuffer.wrap(bytes, 1, 20).slice(), 1, 8));
+    }
+
+    private static String find(ByteBuffer metadata) {
+        long tag = Id3Frames.findNielsenTag(metadata);
+        assertEquals(false, tag == Id3Frames.NOT_FOUND);
+        return Id3Frames.decode(metadata, Id3Frames.index(tag), Id3Frames.length(tag));
+    }
+
+    /** @return 249 character tag as sent by Nielsen, varying with {@code c} */
+    static String nielsenTag(char c) {
+        StringBuilder tag = new StringBuilder("www.nielsen.com/X100zdCIGeIlgZnkYj6UvQ==/");
+        while (tag.length() < 249) tag.append(c);
+        return tag.toString();
+    }
+
+    /** @return ID3 tag of the given major version holding the frames */
+    static byte[] tag(int version, int flags, byte[]... frames) {
+        byte[] body = concat(frames);
+        return concat(new byte[] {'I', 'D', '3', (byte) version, 0, (byte) flags}, syncsafe(body.length), body);
+    }
+
+    /** @return PRIV frame with the owner identifier and a few bytes of private data */
+    static byte[] privFrame(int version, String owner) {
+        return frame(version, "PRIV", concat(owner.getBytes(LATIN_1), new byte[] {0, 1, 2, 3}));
+    }
+
+    static byte[] frame(int version, String id, byte[] data) {
+        byte[] size = version == 4 ? syncsafe(data.length) : ByteBuffer.allocate(4).putInt(data.length).array();
+        return concat(id.getBytes(LATIN_1), size, new byte[] {0, 0}, data);
+    }
+
+    private static byte[] syncsafe(int size) {
+        return new byte[] {(byte) (size >> 21 & 0x7f), (byte) (size >> 14 & 0x7f), (byte) (size >> 7 & 0x7f), (byte) (size & 0x7f)};
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+}
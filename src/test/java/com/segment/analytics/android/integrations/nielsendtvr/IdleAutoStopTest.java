@@ -0,0 +1,109 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_DEFAULT;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class IdleAutoStopTest {
+    private static final long TIMEOUT = 30000;
+
+    @Mock AppSdk appSdk;
+
+    private final Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final TimerWheel timers = new TimerWheel(scheduler, scheduler, TimerWheel.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_WHEEL_SIZE);
+    private final TrackPayload.Builder payloadBuilder = new TrackPayload.Builder().anonymousId("1");
+
+    private NielsenDTVRIntegration integration;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        AppSdkMetrics metrics = new AppSdkMetrics();
+        PlaybackSession session = new PlaybackSession(null, AppSdkHolder.of(appSdk, 0), new DirectDispatcher(appSdk, null, logger, metrics, CallTrace.NONE), new PlaybackStateMachine(logger), new Id3Deduplicator(Id3Deduplicator.DEFAULT_HISTORY_SIZE, 0, scheduler));
+        EventDispatchTable dispatchTable = new EventDispatchTable.Builder().putDefaults().add("Video ID3 Tag", EventDispatchTable.ACTION_SEND_ID3).build();
+        integration = new NielsenDTVRIntegration(PlaybackSessions.single(session), logger, new EventSettings(dispatchTable, SETTING_ID3_PROPERTY_DEFAULT), new ChannelPayloadCache(ChannelPayloadCache.DEFAULT_MAX_SIZE, logger), metrics, SessionJournal.NONE, EventTrace.NONE, CallTrace.NONE, new IdleAutoStop(timers, TIMEOUT, scheduler));
+    }
+
+    @Test
+    public void stopsSessionWithoutActivity() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+
+        scheduler.advance(TIMEOUT - 1);
+        verify(appSdk, never()).stop();
+        scheduler.advance(TimerWheel.DEFAULT_TICK_MILLIS);
+        verify(appSdk, times(1)).stop();
+        assertEquals(1, integration.getStats().autoStoppedSessions());
+        assertEquals(0, timers.pending());
+    }
+
+    @Test
+    public void id3TagsAndHeartbeatsKeepSessionPlaying() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        for (int i = 0; i < 10; i++) {
+            scheduler.advance(TIMEOUT / 2);
+            track(i % 2 == 0 ? "Video Content Playing" : "Video ID3 Tag", new Properties().putValue("id3", "tag" + i));
+        }
+        verify(appSdk, never()).stop();
+        // one timeout per session, however many events
+        assertEquals(1, timers.pending());
+
+        scheduler.advance(TIMEOUT + TimerWheel.DEFAULT_TICK_MILLIS);
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void stoppedSessionIsNotStoppedAgain() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        track("Video Playback Paused", new Properties().putValue("channel", "a"));
+        assertEquals(0, timers.pending());
+
+        scheduler.advance(2 * TIMEOUT);
+        verify(appSdk, times(1)).stop();
+        assertEquals(0, integration.getStats().autoStoppedSessions());
+    }
+
+    @Test
+    public void playAfterAutoStopResumes() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(2 * TIMEOUT);
+        track("Video Playback Resumed", new Properties().putValue("channel", "a"));
+
+        verify(appSdk, times(2)).play(any(JSONObject.class));
+        assertEquals(1, timers.pending());
+    }
+
+    @Test
+    public void closedIntegrationIsNotStopped() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        integration.close(false);
+
+        scheduler.advance(2 * TIMEOUT);
+        verify(appSdk, never()).stop();
+    }
+
+    private void track(String event, Properties properties) {
+        integration.track(payloadBuilder.event(event).properties(properties).build());
+    }
+}
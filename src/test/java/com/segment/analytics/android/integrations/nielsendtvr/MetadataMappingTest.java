@@ -0,0 +1,68 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Properties;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MetadataMappingTest {
+    @Test
+    public void defaultMapping() throws JSONException {
+        MetadataMapping mapping = MetadataMapping.DEFAULT;
+
+        assertArrayEquals(new String[] {"a", "2"}, mapping.read(new Properties().putValue("channel", "a").putValue("loadType", "dynamic")));
+        assertArrayEquals(new String[] {"a", "1"}, mapping.read(new Properties().putValue("channel", "a").putValue("load_type", "linear")));
+        assertArrayEquals(new String[] {null, null}, mapping.read(new Properties()));
+        assertEquals("a", mapping.channel(new Properties().putValue("channel", "a")));
+        JSONAssert.assertEquals(new JSONObject().put("type", "content").put("channelName", "a"), mapping.metadata(new String[] {"a", null}), JSONCompareMode.STRICT);
+    }
+
+    @Test
+    public void readsFirstPresentPath() {
+        MetadataMapping mapping = new MetadataMapping.Builder().put("programTitle", MetadataMapping.TRANSFORM_NONE, "title", "video.title").build();
+
+        assertArrayEquals(new String[] {"b"}, mapping.read(new Properties().putValue("video", new Properties().putValue("title", "b"))));
+        assertArrayEquals(new String[] {"a"}, mapping.read(new Properties().putValue("title", "a").putValue("video", new Properties().putValue("title", "b"))));
+        // a path through a property that is not an object is missing
+        assertArrayEquals(new String[] {null}, mapping.read(new Properties().putValue("video", "b")));
+    }
+
+    @Test
+    public void transformsValues() {
+        MetadataMapping mapping = new MetadataMapping.Builder()
+                .put("a", MetadataMapping.TRANSFORM_LOWER_CASE, "a")
+                .put("b", MetadataMapping.TRANSFORM_UPPER_CASE, "b")
+                .put("c", MetadataMapping.TRANSFORM_NONE, "c")
+                .build();
+
+        assertArrayEquals(new String[] {"cnn", "HLN", "42"}, mapping.read(new Properties().putValue("a", "CNN").putValue("b", "hln").putValue("c", 42)));
+    }
+
+    @Test
+    public void removesFields() {
+        MetadataMapping mapping = new MetadataMapping.Builder().putDefaults().put("adModel", MetadataMapping.TRANSFORM_NONE, "").build();
+
+        assertEquals(1, mapping.size());
+        assertNull(new MetadataMapping.Builder().remove("channelName").build().channel(new Properties().putValue("channel", "a")));
+    }
+
+    @Test
+    public void parseTransform() {
+        assertEquals(MetadataMapping.TRANSFORM_NONE, MetadataMapping.parseTransform(null));
+        assertEquals(MetadataMapping.TRANSFORM_AD_MODEL, MetadataMapping.parseTransform("admodel"));
+        assertEquals(MetadataMapping.TRANSFORM_LOWER_CASE, MetadataMapping.parseTransform("lowercase"));
+        assertEquals(-1, MetadataMapping.parseTransform("reverse"));
+    }
+}
@@ -1,15 +1,19 @@
 package com.segment.analytics.android.integrations.nielsendtvr;
 
+import android.app.Application;
+
 import com.nielsen.app.sdk.AppSdk;
 import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
 import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.RobolectricTestRunner;
@@ -17,25 +21,53 @@ import org.robolectric.annotation.Config;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_BACKGROUND;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_LOAD_METADATA;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_NONE;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_PLAY;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_SEND_ID3;
+import static com.segment.analytics.android.integrations.nielsendtvr.EventDispatchTable.ACTION_STOP;
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_APP_ID_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_APP_ID_ROUTES_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_APP_ID_ROUTE_PROPERTY_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ASYNC_DISPATCH_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_COALESCE_WINDOW_KEY;
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_DEBUG_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_DEFER_APP_SDK_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_EVENT_ACTIONS_KEY;
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_EVENTS_KEY;
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_DEFAULT;
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_METADATA_MAPPING_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_POOL_POLICY_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_POOL_SIZE_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_RECORD_TRACE_KEY;
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_SESSION_JOURNAL_KEY;
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_SF_CODE_KEY;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.reset;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -44,11 +76,9 @@ import static org.mockito.Mockito.when;
 public class NielsenDTVRIntegrationFactoryTest {
     @Mock AppSdk appSdk;
     @Mock Analytics analytics;
-    @Mock NielsenDTVRIntegrationFactory factoryMock;
 
     private ValueMap settings;
-    private Map<String, List<AppSdk>> emptyInstances;
-    private Map<String, List<AppSdk>> maxInstances;
+    private AppSdkPool pool;
     private NielsenDTVRIntegrationFactory factory;
 
     private final String appid = "testappid";
@@ -58,9 +88,7 @@ public class NielsenDTVRIntegrationFactoryTest {
     public void init() {
         MockitoAnnotations.initMocks(this);
 
-        emptyInstances = new HashMap<>();
-        maxInstances = new HashMap<>();
-        maxInstances.put(appid, new ArrayList<>(Arrays.asList(appSdk, appSdk, appSdk, appSdk)));
+        pool = new AppSdkPool();
 
         settings = new ValueMap();
         settings.put(SETTING_APP_ID_KEY, appid);
@@ -69,12 +97,6 @@ public class NielsenDTVRIntegrationFactoryTest {
         factory = new NielsenDTVRIntegrationFactory();
     }
 
-    @Test
-    public void reuseAppSdk() {
-        assertNull(factory.reuseAppSdk(appid, emptyInstances));
-        assertEquals(appSdk, factory.reuseAppSdk(appid, maxInstances));
-    }
-
     @Test
     public void parseAppSdkConfig() throws JSONException {
         JSONObject expectedConfig = new JSONObject()
@@ -88,31 +110,23 @@ public class NielsenDTVRIntegrationFactoryTest {
         JSONAssert.assertEquals(expectedConfig, factory.parseAppSdkConfig(settings), JSONCompareMode.STRICT);
     }
 
-    @Test
-    public void saveAppSdk() {
-        List<AppSdk> instancesForId;
-
-        factory.saveAppSdk(appid, appSdk, emptyInstances);
-        instancesForId = emptyInstances.get(appid);
-        assertEquals(1, instancesForId.size());
-
-        factory.saveAppSdk(appid, appSdk, maxInstances);
-        instancesForId = maxInstances.get(appid);
-        assertEquals(5, instancesForId.size());
-    }
-
     @Test
     public void fetchAppSdk() throws JSONException {
-        when(factoryMock.fetchAppSdk((ValueMap) any(), (Analytics) any(), ArgumentMatchers.<String, List<AppSdk>>anyMap())).thenCallRealMethod();
-        when(factoryMock.reuseAppSdk(anyString(), eq(emptyInstances))).thenReturn(null);
-        when(factoryMock.reuseAppSdk(anyString(), eq(maxInstances))).thenReturn(appSdk);
+        settings.put(SETTING_POOL_SIZE_KEY, 2);
 
-        factoryMock.fetchAppSdk(settings, analytics, emptyInstances);
-        verify(factoryMock).saveAppSdk(anyString(), (AppSdk) any(), ArgumentMatchers.<String, List<AppSdk>>anyMap());
+        AppSdkPool.Entry first = factory.fetchAppSdk(settings, analytics.getApplication(), pool);
+        AppSdkPool.Entry second = factory.fetchAppSdk(settings, analytics.getApplication(), pool);
+        assertNotSame(first, second);
+        assertEquals(2, pool.stats(appid).size());
 
-        reset(factoryMock);
-        factoryMock.fetchAppSdk(settings, analytics, maxInstances);
-        verify(factoryMock, never()).saveAppSdk(anyString(), (AppSdk) any(), ArgumentMatchers.<String, List<AppSdk>>anyMap());
+        // the pool is full, so the instance with the fewest playing sessions is reused
+        first.sessionStarted();
+        assertSame(second, factory.fetchAppSdk(settings, analytics.getApplication(), pool));
+        assertEquals(2, pool.stats(appid).size());
+
+        settings.put(SETTING_POOL_POLICY_KEY, "roundRobin");
+        assertSame(first, factory.fetchAppSdk(settings, analytics.getApplication(), pool));
+        assertSame(second, factory.fetchAppSdk(settings, analytics.getApplication(), pool));
     }
 
     @Test
@@ -156,6 +170,368 @@ public class NielsenDTVRIntegrationFactoryTest {
         assertEquals(expected, factory.parseId3EventNames(settings));
     }
 
+    @Test
+    public void parseId3EventNamesLeavesSettingsUnchanged() {
+        List<String> names = new ArrayList<>(Arrays.asList("SendID3A", "sendid3b"));
+        settings.put(SETTING_ID3_EVENTS_KEY, names);
+
+        assertEquals(Arrays.asList("sendid3a", "sendid3b"), factory.parseId3EventNames(settings));
+        assertEquals(Arrays.asList("SendID3A", "sendid3b"), names);
+
+        settings.remove(SETTING_ID3_EVENTS_KEY);
+        assertEquals(Collections.emptyList(), factory.parseId3EventNames(settings));
+    }
+
+    @Test
+    public void equalSettingsIgnoresEventSettings() {
+        ValueMap refreshed = new ValueMap(new LinkedHashMap<>(settings));
+        refreshed.put(SETTING_ID3_PROPERTY_KEY, "tag");
+        assertTrue(NielsenDTVRIntegrationFactory.equalSettings(settings, refreshed, NielsenDTVRIntegrationFactory.EVENT_SETTING_KEYS));
+
+        refreshed.put(SETTING_COALESCE_WINDOW_KEY, 100);
+        assertFalse(NielsenDTVRIntegrationFactory.equalSettings(settings, refreshed, NielsenDTVRIntegrationFactory.EVENT_SETTING_KEYS));
+    }
+
+    @Test
+    public void refreshedEventSettingsAreSwappedIntoLiveIntegration() {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        settings.put(SETTING_DEFER_APP_SDK_KEY, true);
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+
+        settings.put(SETTING_ID3_PROPERTY_KEY, "tag");
+        settings.put(SETTING_ID3_EVENTS_KEY, Arrays.asList("Ad Tag"));
+        assertSame(integration, factory.create(settings, analytics));
+
+        settings.put(SETTING_COALESCE_WINDOW_KEY, 100);
+        assertNotSame(integration, factory.create(settings, analytics));
+    }
+
+    @Test
+    public void rebuiltIntegrationKeepsAppSdk() {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        settings.put(SETTING_APP_ID_KEY, "reloadappid");
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        AppSdk appSdk = integration.getUnderlyingInstance();
+
+        settings.put(SETTING_COALESCE_WINDOW_KEY, 100);
+        NielsenDTVRIntegration rebuilt = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertNotSame(integration, rebuilt);
+        assertSame(appSdk, rebuilt.getUnderlyingInstance());
+
+        settings.put(SETTING_DEBUG_KEY, true);
+        NielsenDTVRIntegration debug = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertNotSame(appSdk, debug.getUnderlyingInstance());
+    }
+
+    @Test
+    public void rebuiltIntegrationReleasesReplacedAppSdk() {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        factory.create(settings, analytics);
+
+        settings.put(SETTING_DEBUG_KEY, true);
+        NielsenDTVRIntegration rebuilt = (NielsenDTVRIntegration) factory.create(settings, analytics);
+
+        // the replaced instance was closed with its last integration
+        AppSdkPoolStats stats = rebuilt.getStats().appSdkPool();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.evictions());
+    }
+
+    @Test
+    public void parallelCreateScopesAppSdkInstancesPerAnalytics() throws Exception {
+        final int threads = 8;
+        final List<Analytics> instances = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Analytics instance = mock(Analytics.class);
+            when(instance.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.NONE));
+            instances.add(instance);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<NielsenDTVRIntegration>> created = new ArrayList<>();
+            for (int i = 0; i < threads * 4; i++) {
+                final Analytics instance = instances.get(i % threads);
+                created.add(executor.submit(new Callable<NielsenDTVRIntegration>() {
+                    @Override
+                    public NielsenDTVRIntegration call() throws InterruptedException {
+                        start.await();
+                        return (NielsenDTVRIntegration) factory.create(settings, instance);
+                    }
+                }));
+            }
+            start.countDown();
+
+            for (int i = 0; i < created.size(); i++) {
+                NielsenDTVRIntegration integration = created.get(i).get(10, TimeUnit.SECONDS);
+                // the same settings for the same analytics instance reuse its integration
+                assertSame(factory.liveIntegration(instances.get(i % threads)), integration);
+                // every analytics instance has its own pool, with a single instance
+                assertEquals(1, integration.getStats().appSdkPool().size());
+            }
+
+            List<Future<?>> shutdowns = new ArrayList<>();
+            for (final Analytics instance : instances) {
+                shutdowns.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        factory.shutdown(instance);
+                    }
+                }));
+            }
+            for (Future<?> shutdown : shutdowns) shutdown.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            assertNull(factory.liveIntegration(instances.get(i)));
+        }
+    }
+
+    @Test
+    public void shutdownClosesAppSdkInstances() {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertEquals(1, integration.getStats().appSdkPool().size());
+
+        factory.shutdown(analytics);
+
+        assertNull(factory.liveIntegration(analytics));
+        assertEquals(0, integration.getStats().appSdkPool().size());
+        // a later create starts over with a new pool
+        NielsenDTVRIntegration recreated = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertNotSame(integration.getUnderlyingInstance(), recreated.getUnderlyingInstance());
+    }
+
+    @Test
+    public void integrationOfCollectedAnalyticsIsClosed() throws InterruptedException {
+        settings.put(SETTING_APP_ID_ROUTES_KEY, new ValueMap().putValue("TBS", "P2"));
+        List<NielsenDTVRIntegration> created = new ArrayList<>();
+        WeakReference<Analytics> collected = createForDiscardedAnalytics(created);
+        for (int i = 0; i < 500 && created.get(0).getStats().appSdkPool().size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, created.get(0).getStats().appSdkPool().size());
+
+        for (int i = 0; i < 50 && collected.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(collected.get());
+
+        // the next create closes what the collected instance left open
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        factory.create(settings, analytics);
+        assertEquals(0, created.get(0).getStats().appSdkPool().size());
+        factory.shutdown(analytics);
+    }
+
+    private WeakReference<Analytics> createForDiscardedAnalytics(List<NielsenDTVRIntegration> created) {
+        Analytics discarded = mock(Analytics.class);
+        when(discarded.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.NONE));
+        // the deferred construction of session instances must not refer to analytics either
+        settings.put(SETTING_DEFER_APP_SDK_KEY, true);
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, discarded);
+        settings.remove(SETTING_DEFER_APP_SDK_KEY);
+        for (String channel : Arrays.asList("CNN", "TBS")) {
+            integration.track(new TrackPayload.Builder().anonymousId("1").event("Video Content Started").properties(new Properties().putValue("channel", channel)).build());
+        }
+        created.add(integration);
+        // Mockito keeps the last invocation of a mock for stubbing until another mock is invoked
+        analytics.getApplication();
+        return new WeakReference<>(discarded);
+    }
+
+    @Test
+    public void trackAfterShutdownIsIgnored() {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        settings.put(SETTING_APP_ID_ROUTES_KEY, new ValueMap().putValue("TBS", "P2"));
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+
+        factory.shutdown(analytics);
+        integration.track(new TrackPayload.Builder().anonymousId("1").event("Video Content Started").properties(new Properties().putValue("channel", "TBS")).build());
+
+        // no session was opened, so no AppSdk instance was leased from the closed pool
+        assertEquals(0, integration.getStats().activeSessions());
+        assertEquals(0, integration.getStats().play().count());
+        assertEquals(0, integration.getStats().appSdkPool().size());
+    }
+
+    @Test
+    public void orphanedSessionsAreOnlyClosedByFirstIntegration() throws IOException {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        File filesDir = File.createTempFile("nielsen-dtvr", "");
+        assertTrue(filesDir.delete() && filesDir.mkdir());
+        Application application = mock(Application.class);
+        when(application.getFilesDir()).thenReturn(filesDir);
+        when(analytics.getApplication()).thenReturn(application);
+        settings.put(SETTING_APP_ID_KEY, "orphanappid");
+        settings.put(SETTING_SESSION_JOURNAL_KEY, true);
+        SessionJournal previous = SessionJournal.open(new File(filesDir, "segment-nielsen-dtvr-orphanappid.journal"), SessionJournal.DEFAULT_MAX_RECORDS, Logger.with(Analytics.LogLevel.DEBUG));
+        previous.record(SessionJournal.PLAY, null, "CNN");
+        previous.close();
+
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertEquals(1, integration.getStats().orphanedSessions());
+        assertEquals(1, integration.getStats().stop().count());
+
+        settings.put(SETTING_COALESCE_WINDOW_KEY, 100);
+        NielsenDTVRIntegration rebuilt = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertNotSame(integration, rebuilt);
+        assertEquals(0, rebuilt.getStats().stop().count());
+        factory.shutdown(analytics);
+    }
+
+    @Test
+    public void shutdownClosesJournalAndTraceOfLastIntegration() throws IOException {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        File filesDir = File.createTempFile("nielsen-dtvr", "");
+        assertTrue(filesDir.delete() && filesDir.mkdir());
+        Application application = mock(Application.class);
+        when(application.getFilesDir()).thenReturn(filesDir);
+        when(analytics.getApplication()).thenReturn(application);
+        settings.put(SETTING_APP_ID_KEY, "closedappid");
+        settings.put(SETTING_SESSION_JOURNAL_KEY, true);
+        settings.put(SETTING_RECORD_TRACE_KEY, true);
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        integration.track(new TrackPayload.Builder().anonymousId("1").event("Video Content Started").properties(new Properties().putValue("channel", "CNN")).build());
+
+        // the rebuilt integration keeps writing to the same files
+        settings.put(SETTING_COALESCE_WINDOW_KEY, 100);
+        NielsenDTVRIntegration rebuilt = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertSame(integration.journal(), rebuilt.journal());
+        assertSame(integration.trace(), rebuilt.trace());
+
+        factory.shutdown(analytics);
+
+        EventTrace.Reader reader = new EventTrace.Reader(new FileInputStream(new File(filesDir, "segment-nielsen-dtvr-closedappid.trace")));
+        assertEquals("Video Content Started", reader.next().name);
+        assertNull(reader.next());
+        reader.close();
+        // the next integration opens them again
+        NielsenDTVRIntegration recreated = (NielsenDTVRIntegration) factory.create(settings, analytics);
+        assertNotSame(integration.journal(), recreated.journal());
+        assertNotSame(integration.trace(), recreated.trace());
+        factory.shutdown(analytics);
+    }
+
+    @Test
+    public void parseAppIdRoutes() {
+        assertSame(AppIdRoutes.NONE, factory.parseAppIdRoutes(settings));
+
+        settings.put(SETTING_APP_ID_ROUTES_KEY, new ValueMap()
+                .putValue("TBS", "P2")
+                .putValue("CNN", new ValueMap().putValue("appId", "P3").putValue("sfcode", "dcr"))
+                .putValue("HLN", appid)
+                .putValue("TCM", new ValueMap().putValue("sfcode", "dcr")));
+        AppIdRoutes routes = factory.parseAppIdRoutes(settings);
+
+        assertEquals("P2", routes.route(new Properties().putValue("channel", "TBS")).appId);
+        assertEquals("dcr", routes.route(new Properties().putValue("channel", "CNN")).sfcode);
+        // the app id of the settings, and routes without an app id, are left to the default sessions
+        assertEquals(2, routes.size());
+
+        settings.put(SETTING_APP_ID_ROUTE_PROPERTY_KEY, "network");
+        assertEquals("P2", factory.parseAppIdRoutes(settings).route(new Properties().putValue("network", "TBS")).appId);
+    }
+
+    @Test
+    public void routedEventsOpenSessionOfTheirAppId() {
+        when(analytics.logger("Nielsen DTVR")).thenReturn(Logger.with(Analytics.LogLevel.DEBUG));
+        settings.put(SETTING_APP_ID_ROUTES_KEY, new ValueMap().putValue("TBS", "P2"));
+        NielsenDTVRIntegration integration = (NielsenDTVRIntegration) factory.create(settings, analytics);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1").event("Video Content Started").properties(new Properties().putValue("channel", "CNN")).build());
+        assertEquals(0, integration.getStats().activeSessions());
+
+        integration.track(new TrackPayload.Builder().anonymousId("1").event("Video Content Started").properties(new Properties().putValue("channel", "TBS")).build());
+        assertEquals(1, integration.getStats().activeSessions());
+    }
+
+    @Test
+    public void parseEventDispatchTable() {
+        Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+        ValueMap eventActions = new ValueMap()
+                .putValue("Player Started", Arrays.asList("play", "loadMetadata"))
+                .putValue("video playback paused", "sendID3")
+                .putValue("Video Playback Exited", "unknown");
+        settings.put(SETTING_EVENT_ACTIONS_KEY, eventActions);
+
+        EventDispatchTable table = factory.parseEventDispatchTable(settings, Arrays.asList("sendid3a"), logger);
+
+        assertEquals(ACTION_PLAY | ACTION_LOAD_METADATA, table.actionsFor("Player Started"));
+        assertEquals(ACTION_SEND_ID3, table.actionsFor("Video Playback Paused"));
+        assertEquals(ACTION_NONE, table.actionsFor("Video Playback Exited"));
+        assertEquals(ACTION_STOP | ACTION_BACKGROUND, table.actionsFor("Application Backgrounded"));
+        assertEquals(ACTION_SEND_ID3, table.actionsFor("SendID3A"));
+    }
+
+    @Test
+    public void parseMetadataMapping() throws JSONException {
+        Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+        ValueMap metadataMapping = new ValueMap()
+                .putValue("channelName", "video.channel")
+                .putValue("programTitle", Arrays.asList("title", "video.title"))
+                .putValue("adModel", new ValueMap().putValue("property", "streamType").putValue("transform", "adModel"))
+                .putValue("stationType", new ValueMap().putValue("property", "station").putValue("transform", "unknown"));
+        settings.put(SETTING_METADATA_MAPPING_KEY, metadataMapping);
+
+        MetadataMapping mapping = factory.parseMetadataMapping(settings, logger);
+        String[] values = mapping.read(new ValueMap()
+                .putValue("video", new ValueMap().putValue("channel", "CNN").putValue("title", "News"))
+                .putValue("streamType", "dynamic")
+                .putValue("station", "Local"));
+
+        JSONAssert.assertEquals(
+                new JSONObject().put("type", "content").put("channelName", "CNN").put("adModel", "2").put("programTitle", "News").put("stationType", "Local"),
+                mapping.metadata(values),
+                JSONCompareMode.STRICT);
+        assertEquals("CNN", mapping.channel(values));
+
+        settings.remove(SETTING_METADATA_MAPPING_KEY);
+        assertSame(MetadataMapping.DEFAULT, factory.parseMetadataMapping(settings, logger));
+    }
+
+    @Test
+    public void createDispatcher() {
+        Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+        AppSdkPool.Entry entry = new AppSdkPool.Entry(null, null, appSdk);
+        assertTrue(factory.createDispatcher(settings, entry, null, null, logger, new AppSdkMetrics(), CallTrace.NONE) instanceof DirectDispatcher);
+
+        settings.put(SETTING_ASYNC_DISPATCH_KEY, true);
+        AppSdkDispatcher dispatcher = factory.createDispatcher(settings, entry, null, null, logger, new AppSdkMetrics(), CallTrace.NONE);
+        assertTrue(dispatcher instanceof SerialDispatcher);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void createDeferredDispatcher() {
+        Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+        AppSdkHolder holder = new AppSdkHolder();
+        Callable<AppSdkPool.Entry> constructor = new Callable<AppSdkPool.Entry>() {
+            @Override
+            public AppSdkPool.Entry call() {
+                return pool.add(appid, appSdk);
+            }
+        };
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        };
+
+        AppSdkDispatcher dispatcher = factory.createDeferredDispatcher(settings, constructor, holder, executor, null, null, logger, new AppSdkMetrics(), CallTrace.NONE);
+        assertTrue(dispatcher instanceof DeferredDispatcher);
+        assertNull(holder.get());
+
+        dispatcher.sendID3("id3");
+        verify(appSdk).sendID3("id3");
+        assertEquals(appSdk, holder.get());
+    }
+
     @Test
     public void parseId3PropertyName() {
         assertEquals(SETTING_ID3_PROPERTY_DEFAULT, factory.parseId3PropertyName(settings));
@@ -13,6 +13,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.RobolectricTestRunner;
@@ -20,21 +21,31 @@ import org.robolectric.annotation.Config;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
 import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_DEFAULT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
 public class NielsenDTVRIntegrationTest {
     @Mock AppSdk appSdk;
+    @Mock AppSdk sessionAppSdk;
 
+    private final Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+    private final AppSdkMetrics metrics = new AppSdkMetrics();
+    private EventSettings eventSettings;
     private NielsenDTVRIntegration integration;
     private TrackPayload.Builder basePayloadBuilder;
 
@@ -66,10 +77,66 @@ public class NielsenDTVRIntegrationTest {
     public void init() {
         MockitoAnnotations.initMocks(this);
 
-        integration = new NielsenDTVRIntegration(appSdk, Logger.with(Analytics.LogLevel.DEBUG), id3EventNames, SETTING_ID3_PROPERTY_DEFAULT);
+        EventDispatchTable.Builder dispatchTable = new EventDispatchTable.Builder().putDefaults();
+        for (String id3EventName : id3EventNames) {
+            dispatchTable.add(id3EventName, EventDispatchTable.ACTION_SEND_ID3);
+        }
+
+        eventSettings = new EventSettings(dispatchTable.build(), SETTING_ID3_PROPERTY_DEFAULT);
+        integration = integration(PlaybackSessions.single(session(null, appSdk)));
         basePayloadBuilder = new TrackPayload.Builder().anonymousId("1");
     }
 
+    private PlaybackSession session(String id, AppSdk appSdk) {
+        return new PlaybackSession(
+                id,
+                AppSdkHolder.of(appSdk, 0),
+                new DirectDispatcher(appSdk, id, logger, metrics, CallTrace.NONE),
+                new PlaybackStateMachine(logger),
+                new Id3Deduplicator(Id3Deduplicator.DEFAULT_HISTORY_SIZE, 0, Clock.SYSTEM));
+    }
+
+    /** @return sessions keyed by the session_id property, opened on {@code sessionAppSdk} */
+    private PlaybackSessions sessions(AppIdRoutes routes) {
+        return new PlaybackSessions(
+                session(null, appSdk),
+                "session_id",
+                routes,
+                new PlaybackSessions.Factory() {
+                    @Override
+                    public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                        return session(id, sessionAppSdk);
+                    }
+                },
+                PlaybackSessions.DEFAULT_MAX_SESSIONS,
+                PlaybackSessions.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                Clock.SYSTEM,
+                SessionJournal.NONE,
+                logger);
+    }
+
+    /** starts playback, as a stop before anything played is not forwarded */
+    private void play() {
+        integration.track(
+                basePayloadBuilder
+                        .event("Video Playback Resumed")
+                        .properties(new Properties().putValue("channel", "a"))
+                        .build());
+    }
+
+    private NielsenDTVRIntegration integration(PlaybackSessions sessions) {
+        return new NielsenDTVRIntegration(
+                sessions,
+                logger,
+                eventSettings,
+                new ChannelPayloadCache(ChannelPayloadCache.DEFAULT_MAX_SIZE, logger),
+                metrics,
+                SessionJournal.NONE,
+                EventTrace.NONE,
+                CallTrace.NONE,
+                IdleAutoStop.NONE);
+    }
+
     @Test
     public void videoContentStarted() throws JSONException {
         Properties properties = new Properties().putValue("channel", "a").putValue("load_type", "linear");
@@ -133,6 +200,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoPlaybackPaused() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Playback Paused")
@@ -143,6 +211,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoPlaybackInterrupted() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Playback Interrupted")
@@ -153,6 +222,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoContentCompleted() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Content Completed")
@@ -163,6 +233,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoPlaybackBufferStarted() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Playback Buffer Started")
@@ -173,6 +244,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoPlaybackSeekStarted() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Playback Seek Started")
@@ -183,6 +255,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoPlaybackExited() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Playback Exited")
@@ -193,6 +266,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void videoPlaybackCompleted() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Video Playback Completed")
@@ -203,6 +277,7 @@ public class NielsenDTVRIntegrationTest {
 
     @Test
     public void applicationBackgrounded() {
+        play();
         integration.track(
                 basePayloadBuilder
                         .event("Application Backgrounded")
@@ -242,4 +317,237 @@ public class NielsenDTVRIntegrationTest {
         verify(appSdk).sendID3(id3B);
         verify(appSdk, times(2)).sendID3(anyString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void eventNamesAreCaseInsensitive() {
+        play();
+        integration.track(
+                basePayloadBuilder
+                        .event("video playback PAUSED")
+                        .build());
+
+        verify(appSdk).stop();
+    }
+
+    @Test
+    public void stopBeforePlayIsSuppressed() {
+        integration.track(
+                basePayloadBuilder
+                        .event("Application Backgrounded")
+                        .build());
+
+        verify(appSdk, never()).stop();
+    }
+
+    @Test
+    public void unmappedEvent() {
+        integration.track(
+                basePayloadBuilder
+                        .event("Product Viewed")
+                        .build());
+
+        verifyZeroInteractions(appSdk);
+    }
+
+    @Test
+    public void redundantStopIsSuppressed() {
+        play();
+        integration.track(
+                basePayloadBuilder
+                        .event("Video Playback Paused")
+                        .build());
+        integration.track(
+                basePayloadBuilder
+                        .event("Application Backgrounded")
+                        .build());
+
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void redundantPlayIsSuppressed() throws JSONException {
+        Properties properties = new Properties().putValue("channel", "a");
+        JSONObject expectedPlayConfig = new JSONObject().put("channelName", "a");
+        TrackPayload payload = basePayloadBuilder
+                .event("Video Playback Resumed")
+                .properties(properties)
+                .build();
+
+        integration.track(payload);
+        integration.track(payload);
+
+        verify(appSdk, times(1)).play(matchJSON(expectedPlayConfig));
+    }
+
+    @Test
+    public void alternatingID3IsDeduplicated() {
+        TrackPayload payloadA = basePayloadBuilder
+                .event("sendid3a")
+                .properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "testid3A"))
+                .build();
+        TrackPayload payloadB = basePayloadBuilder
+                .event("sendid3a")
+                .properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "testid3B"))
+                .build();
+
+        integration.track(payloadA);
+        integration.track(payloadB);
+        integration.track(payloadA);
+        integration.track(payloadB);
+
+        verify(appSdk, times(1)).sendID3("testid3A");
+        verify(appSdk, times(1)).sendID3("testid3B");
+    }
+
+    @Test
+    public void eventsAreRoutedBySession() throws JSONException {
+        integration = integration(sessions(AppIdRoutes.NONE));
+
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("channel", "a")).build());
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("channel", "b").putValue("session_id", "pip")).build());
+        // the same tag in both sessions is sent to both AppSdk instances
+        integration.track(basePayloadBuilder.event("sendid3a").properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "tag")).build());
+        integration.track(basePayloadBuilder.event("sendid3a").properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "tag").putValue("session_id", "pip")).build());
+        integration.track(basePayloadBuilder.event("Application Backgrounded").properties(new Properties()).build());
+
+        verify(appSdk).play(matchJSON(new JSONObject().put("channelName", "a")));
+        verify(sessionAppSdk).play(matchJSON(new JSONObject().put("channelName", "b")));
+        verify(appSdk).sendID3("tag");
+        verify(sessionAppSdk).sendID3("tag");
+        verify(appSdk).stop();
+        verify(sessionAppSdk).stop();
+        assertEquals(1, integration.getStats().activeSessions());
+    }
+
+    @Test
+    public void eventsWithoutChannelFollowRoutedChannel() throws JSONException {
+        integration = integration(sessions(new AppIdRoutes.Builder(AppIdRoutes.DEFAULT_PROPERTY).put("TBS", "P2", null).build()));
+        byte[] metadata = Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, Id3FramesTest.NIELSEN_TAG));
+
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("channel", "TBS")).build());
+        integration.track(basePayloadBuilder.event("sendid3a").properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "tag")).build());
+        assertTrue(integration.sendID3(null, metadata, 0, metadata.length));
+        integration.track(basePayloadBuilder.event("Video Playback Paused").properties(new Properties()).build());
+
+        verify(sessionAppSdk).play(matchJSON(new JSONObject().put("channelName", "TBS")));
+        verify(sessionAppSdk).sendID3("tag");
+        verify(sessionAppSdk).sendID3(Id3FramesTest.NIELSEN_TAG);
+        verify(sessionAppSdk).stop();
+        verifyZeroInteractions(appSdk);
+
+        // a channel of the settings app id leaves the route
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("channel", "CNN")).build());
+        integration.track(basePayloadBuilder.event("sendid3a").properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "tag2")).build());
+        verify(appSdk).play(matchJSON(new JSONObject().put("channelName", "CNN")));
+        verify(appSdk).sendID3("tag2");
+    }
+
+    @Test
+    public void switchingRouteStopsLeftSession() throws JSONException {
+        integration = integration(sessions(new AppIdRoutes.Builder(AppIdRoutes.DEFAULT_PROPERTY).put("TBS", "P2", null).build()));
+
+        integration.track(basePayloadBuilder.event("Video Content Started").properties(new Properties().putValue("channel", "TBS")).build());
+        integration.track(basePayloadBuilder.event("Video Content Started").properties(new Properties().putValue("channel", "CNN")).build());
+        integration.track(basePayloadBuilder.event("Video Content Started").properties(new Properties().putValue("channel", "TBS")).build());
+
+        InOrder inOrder = inOrder(sessionAppSdk, appSdk);
+        inOrder.verify(sessionAppSdk).play(matchJSON(new JSONObject().put("channelName", "TBS")));
+        inOrder.verify(sessionAppSdk).stop();
+        inOrder.verify(appSdk).play(matchJSON(new JSONObject().put("channelName", "CNN")));
+        inOrder.verify(appSdk).stop();
+        inOrder.verify(sessionAppSdk).play(matchJSON(new JSONObject().put("channelName", "TBS")));
+    }
+
+    @Test
+    public void backgroundStopsRoutedSessions() {
+        integration = integration(sessions(new AppIdRoutes.Builder(AppIdRoutes.DEFAULT_PROPERTY).put("TBS", "P2", null).build()));
+
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("channel", "CNN").putValue("session_id", "main")).build());
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("channel", "TBS")).build());
+        integration.track(basePayloadBuilder.event("Application Backgrounded").properties(new Properties()).build());
+
+        verify(sessionAppSdk, times(2)).stop();
+    }
+
+    @Test
+    public void eventSettingsAreSwapped() {
+        integration.setEventSettings(new EventSettings(new EventDispatchTable.Builder().put("Ad Tag", EventDispatchTable.ACTION_SEND_ID3).build(), "tag"));
+
+        integration.track(basePayloadBuilder.event("sendid3a").properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, "old")).build());
+        integration.track(basePayloadBuilder.event("Ad Tag").properties(new Properties().putValue("tag", "new")).build());
+
+        verify(appSdk, never()).sendID3("old");
+        verify(appSdk).sendID3("new");
+    }
+
+    @Test
+    public void customMetadataMapping() throws JSONException {
+        MetadataMapping mapping = new MetadataMapping.Builder()
+                .putDefaults()
+                .put("channelName", MetadataMapping.TRANSFORM_NONE, "video.channel")
+                .put("programTitle", MetadataMapping.TRANSFORM_NONE, "video.title")
+                .build();
+        integration.setEventSettings(new EventSettings(new EventDispatchTable.Builder().putDefaults().put("Ad Tag", EventDispatchTable.ACTION_SEND_ID3).build(), "ad.id3", mapping));
+
+        Properties video = new Properties().putValue("channel", "CNN").putValue("title", "News");
+        integration.track(basePayloadBuilder.event("Video Content Started").properties(new Properties().putValue("video", video).putValue("load_type", "linear")).build());
+        integration.track(basePayloadBuilder.event("Video Playback Resumed").properties(new Properties().putValue("video", video)).build());
+        integration.track(basePayloadBuilder.event("Ad Tag").properties(new Properties().putValue("ad", new Properties().putValue("id3", "tag"))).build());
+
+        verify(appSdk, times(1)).play(matchJSON(new JSONObject().put("channelName", "CNN")));
+        verify(appSdk).loadMetadata(matchJSON(new JSONObject().put("type", "content").put("channelName", "CNN").put("adModel", "1").put("programTitle", "News")));
+        verify(appSdk).sendID3("tag");
+    }
+
+    @Test
+    public void sendRawID3() {
+        byte[] metadata = Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, Id3FramesTest.NIELSEN_TAG));
+
+        assertTrue(integration.sendID3(null, metadata, 0, metadata.length));
+        assertFalse(integration.sendID3(null, ByteBuffer.wrap(metadata)));
+        verify(appSdk, times(1)).sendID3(Id3FramesTest.NIELSEN_TAG);
+
+        String next = Id3FramesTest.nielsenTag('B');
+        assertTrue(integration.sendID3(null, ByteBuffer.wrap(Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, next)))));
+        verify(appSdk).sendID3(next);
+        assertEquals(1, integration.getStats().duplicateId3Tags());
+    }
+
+    @Test
+    public void rawID3DeduplicatedWithTrackedID3() {
+        integration.track(basePayloadBuilder.event("sendid3a").properties(new Properties().putValue(SETTING_ID3_PROPERTY_DEFAULT, Id3FramesTest.NIELSEN_TAG)).build());
+        byte[] metadata = Id3FramesTest.tag(3, 0, Id3FramesTest.privFrame(3, Id3FramesTest.NIELSEN_TAG));
+
+        assertFalse(integration.sendID3(null, metadata, 0, metadata.length));
+        verify(appSdk, times(1)).sendID3(anyString());
+    }
+
+    @Test
+    public void rawMetadataWithoutNielsenTagIsIgnored() {
+        byte[] metadata = Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, "com.apple.streaming.transportStreamTimestamp"));
+
+        assertFalse(integration.sendID3(null, metadata, 0, metadata.length));
+        verifyZeroInteractions(appSdk);
+    }
+
+    @Test
+    public void stats() {
+        Properties properties = new Properties().putValue("channel", "a").putValue(SETTING_ID3_PROPERTY_DEFAULT, "id3");
+        integration.track(basePayloadBuilder.event("Video Content Started").properties(properties).build());
+        integration.track(basePayloadBuilder.event("sendid3a").properties(properties).build());
+        integration.track(basePayloadBuilder.event("sendid3a").properties(properties).build());
+        integration.track(basePayloadBuilder.event("Video Playback Paused").build());
+        integration.track(basePayloadBuilder.event("Application Backgrounded").build());
+
+        NielsenDTVRStats stats = integration.getStats();
+        assertEquals(1, stats.play().count());
+        assertEquals(1, stats.loadMetadata().count());
+        assertEquals(1, stats.sendID3().count());
+        assertEquals(1, stats.stop().count());
+        assertEquals(0, stats.end().count());
+        assertEquals(1, stats.redundantCalls());
+        assertEquals(1, stats.duplicateId3Tags());
+        assertEquals(2, stats.payloadCacheMisses());
+        assertEquals(4, stats.dispatcher().executed());
+    }
+}
@@ -0,0 +1,284 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import android.media.MediaPlayer;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Options;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_DEFAULT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class NielsenPlayerBindingTest {
+    @Mock AppSdk appSdk;
+    @Mock AppSdk routedAppSdk;
+    @Mock Analytics analytics;
+    @Mock MediaPlayer mediaPlayer;
+
+    private final Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+    private final AppSdkMetrics metrics = new AppSdkMetrics();
+    private NielsenDTVRIntegration integration;
+    private NielsenPlayerBinding binding;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        integration = integration(PlaybackSessions.single(session(null, appSdk)));
+        binding = binding(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        binding.setContent("CNN", "dynamic");
+    }
+
+    private NielsenPlayerBinding binding(Executor executor) {
+        return new NielsenPlayerBinding(analytics, null, new NielsenPlayerBinding.Source() {
+            @Override
+            public NielsenDTVRIntegration integration() {
+                return integration;
+            }
+        }, executor);
+    }
+
+    private PlaybackSession session(String id, AppSdk appSdk) {
+        return new PlaybackSession(
+                id,
+                AppSdkHolder.of(appSdk, 0),
+                new DirectDispatcher(appSdk, id, logger, metrics, CallTrace.NONE),
+                new PlaybackStateMachine(logger),
+                new Id3Deduplicator(Id3Deduplicator.DEFAULT_HISTORY_SIZE, 0, Clock.SYSTEM));
+    }
+
+    private NielsenDTVRIntegration integration(PlaybackSessions sessions) {
+        return new NielsenDTVRIntegration(
+                sessions,
+                logger,
+                new EventSettings(new EventDispatchTable.Builder().putDefaults().build(), SETTING_ID3_PROPERTY_DEFAULT),
+                new ChannelPayloadCache(ChannelPayloadCache.DEFAULT_MAX_SIZE, logger),
+                metrics,
+                SessionJournal.NONE,
+                EventTrace.NONE,
+                CallTrace.NONE,
+                IdleAutoStop.NONE);
+    }
+
+    @Test
+    public void drivesPlaybackFromCallbacks() throws Exception {
+        binding.onStart();
+        binding.onInfo(mediaPlayer, MediaPlayer.MEDIA_INFO_BUFFERING_START, 0);
+        binding.onInfo(mediaPlayer, MediaPlayer.MEDIA_INFO_BUFFERING_END, 0);
+        binding.onPause();
+        binding.onStart();
+        binding.onSeekStart();
+        binding.onSeekComplete(mediaPlayer);
+        binding.onCompletion(mediaPlayer);
+
+        InOrder inOrder = inOrder(appSdk);
+        ArgumentCaptor<JSONObject> metadata = ArgumentCaptor.forClass(JSONObject.class);
+        inOrder.verify(appSdk).play(any(JSONObject.class));
+        inOrder.verify(appSdk).loadMetadata(metadata.capture());
+        for (int i = 0; i < 3; i++) {
+            inOrder.verify(appSdk).stop();
+            inOrder.verify(appSdk).play(any(JSONObject.class));
+        }
+        inOrder.verify(appSdk).stop();
+        inOrder.verifyNoMoreInteractions();
+        assertEquals("2", metadata.getValue().getString("adModel"));
+        assertEquals("CNN", metadata.getValue().getString("channelName"));
+
+        verifyZeroInteractions(analytics);
+    }
+
+    @Test
+    public void newContentStartsAgain() {
+        binding.onStart();
+        binding.onStop();
+        binding.setContent("HLN", "linear");
+        binding.onStart();
+
+        verify(appSdk, times(2)).loadMetadata(any(JSONObject.class));
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void otherInfoIsIgnored() {
+        assertFalse(binding.onInfo(mediaPlayer, 3, 0));
+
+        verifyZeroInteractions(appSdk);
+    }
+
+    @Test
+    public void emitsSegmentEventsWithoutNielsen() {
+        binding.emitSegmentEvents(true);
+        binding.onStart();
+        binding.onPause();
+
+        ArgumentCaptor<Properties> properties = ArgumentCaptor.forClass(Properties.class);
+        ArgumentCaptor<Options> options = ArgumentCaptor.forClass(Options.class);
+        verify(analytics).track(eq("Video Content Started"), properties.capture(), options.capture());
+        verify(analytics).track(eq("Video Playback Paused"), any(Properties.class), any(Options.class));
+        assertEquals(new Properties().putValue("channel", "CNN").putValue("load_type", "dynamic"), properties.getValue());
+        assertEquals(false, options.getValue().integrations().get("Nielsen DTVR"));
+        verify(appSdk).stop();
+    }
+
+    @Test
+    public void waitsForIntegration() {
+        integration = null;
+        binding.emitSegmentEvents(true);
+        binding.onStart();
+        binding.onID3(new byte[0]);
+
+        verify(analytics).track(anyString(), any(Properties.class), any(Options.class));
+        verifyZeroInteractions(appSdk);
+    }
+
+    @Test
+    public void sendsID3() {
+        byte[] metadata = Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, Id3FramesTest.NIELSEN_TAG));
+        binding.onID3(metadata);
+        binding.onID3(metadata);
+
+        verify(appSdk, times(1)).sendID3(Id3FramesTest.NIELSEN_TAG);
+        verify(appSdk, never()).play(any(JSONObject.class));
+    }
+
+    @Test
+    public void repeatedTagIsHandedOverOnce() {
+        final List<Runnable> queued = new ArrayList<>();
+        binding = binding(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        });
+        binding.setContent("CNN", "dynamic");
+        byte[] metadata = Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, Id3FramesTest.NIELSEN_TAG));
+
+        binding.onID3(metadata);
+        binding.onID3(metadata.clone());
+        binding.onStart();
+
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+        InOrder inOrder = inOrder(appSdk);
+        inOrder.verify(appSdk).sendID3(Id3FramesTest.NIELSEN_TAG);
+        inOrder.verify(appSdk).play(any(JSONObject.class));
+    }
+
+    @Test
+    public void fullRingDropsOldestWaitingCall() {
+        final List<Runnable> queued = new ArrayList<>();
+        binding = binding(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        });
+        for (int i = 0; i <= NielsenPlayerBinding.MAX_PENDING; i++) {
+            binding.setContent("C" + i, "dynamic");
+            binding.onStart();
+        }
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+
+        ArgumentCaptor<JSONObject> channelInfo = ArgumentCaptor.forClass(JSONObject.class);
+        verify(appSdk, times(NielsenPlayerBinding.MAX_PENDING)).play(channelInfo.capture());
+        List<String> channels = new ArrayList<>();
+        for (JSONObject info : channelInfo.getAllValues()) channels.add(info.optString("channelName"));
+        assertEquals("C0", channels.get(0));
+        assertFalse(channels.contains("C1"));
+        assertEquals("C" + NielsenPlayerBinding.MAX_PENDING, channels.get(channels.size() - 1));
+    }
+
+    @Test
+    public void routedChannelDrivesSessionOfItsAppId() {
+        AppIdRoutes routes = new AppIdRoutes.Builder(AppIdRoutes.DEFAULT_PROPERTY).put("TBS", "P2", null).build();
+        integration = integration(new PlaybackSessions(
+                session(null, appSdk),
+                null,
+                routes,
+                new PlaybackSessions.Factory() {
+                    @Override
+                    public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                        return session(id, routedAppSdk);
+                    }
+                },
+                PlaybackSessions.DEFAULT_MAX_SESSIONS,
+                PlaybackSessions.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                Clock.SYSTEM,
+                SessionJournal.NONE,
+                logger));
+        binding.setContent("TBS", "linear");
+
+        binding.onStart();
+        binding.onID3(Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, Id3FramesTest.NIELSEN_TAG)));
+        binding.onPause();
+
+        verify(routedAppSdk).play(any(JSONObject.class));
+        verify(routedAppSdk).loadMetadata(any(JSONObject.class));
+        verify(routedAppSdk).sendID3(Id3FramesTest.NIELSEN_TAG);
+        verify(routedAppSdk).stop();
+        verifyZeroInteractions(appSdk);
+    }
+
+    @Test
+    public void callbacksDoNotWaitForIntegration() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        binding = binding(executor);
+        binding.setContent("CNN", "dynamic");
+        byte[] metadata = Id3FramesTest.tag(4, 0, Id3FramesTest.privFrame(4, Id3FramesTest.NIELSEN_TAG));
+
+        // held by the Segment thread while it tracks an event or flushes
+        synchronized (integration) {
+            binding.onStart();
+            binding.onID3(metadata);
+            Arrays.fill(metadata, (byte) 0);
+            verifyZeroInteractions(appSdk);
+        }
+
+        InOrder inOrder = inOrder(appSdk);
+        inOrder.verify(appSdk, timeout(5000)).play(any(JSONObject.class));
+        inOrder.verify(appSdk, timeout(5000)).loadMetadata(any(JSONObject.class));
+        inOrder.verify(appSdk, timeout(5000)).sendID3(Id3FramesTest.NIELSEN_TAG);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,211 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class OrderedDispatcherTest {
+    @Mock AppSdk first;
+    @Mock AppSdk second;
+
+    private Logger logger;
+    private AppSdkMetrics metrics;
+    private ExecutorService executor;
+    private final CountDownLatch releaseStop = new CountDownLatch(1);
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+        metrics = new AppSdkMetrics();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        releaseStop.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void callsOfOneSessionRunInOrder() throws JSONException {
+        OrderedDispatcher dispatcher = dispatcher(first);
+        JSONObject channelInfo = new JSONObject().put("channelName", "a");
+
+        dispatcher.play(channelInfo);
+        dispatcher.sendID3("tag");
+        dispatcher.stop();
+        dispatcher.flush();
+
+        InOrder inOrder = inOrder(first);
+        inOrder.verify(first).play(channelInfo);
+        inOrder.verify(first).sendID3("tag");
+        inOrder.verify(first).stop();
+
+        DispatcherStats stats = dispatcher.stats();
+        assertEquals(3, stats.dispatched());
+        assertEquals(3, stats.executed());
+        assertEquals(0, stats.queueDepth());
+    }
+
+    @Test
+    public void sessionsRunInParallel() throws InterruptedException {
+        final CountDownLatch stopStarted = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                stopStarted.countDown();
+                releaseStop.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(first).stop();
+        OrderedDispatcher blocked = dispatcher(first);
+        OrderedDispatcher other = dispatcher(second);
+
+        blocked.stop();
+        blocked.sendID3("blocked");
+        assertTrue(stopStarted.await(5, TimeUnit.SECONDS));
+
+        // the second session is not held up by the first one
+        other.sendID3("other");
+        other.flush();
+        verify(second).sendID3("other");
+        verify(first, never()).sendID3("blocked");
+
+        releaseStop.countDown();
+        blocked.flush();
+        verify(first).sendID3("blocked");
+    }
+
+    @Test
+    public void callsAfterShutdownAreDropped() {
+        OrderedDispatcher dispatcher = dispatcher(first);
+
+        dispatcher.shutdown();
+        dispatcher.stop();
+        dispatcher.flush();
+
+        verify(first, never()).stop();
+        assertEquals(1, dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void shutdownReachesTargetAfterQueuedCalls() {
+        AppSdkDispatcher target = mock(AppSdkDispatcher.class);
+        OrderedDispatcher dispatcher = new OrderedDispatcher(target, executor, logger, SerialDispatcher.DEFAULT_CAPACITY, SerialDispatcher.OverflowPolicy.BLOCK);
+
+        dispatcher.stop();
+        dispatcher.shutdown();
+        dispatcher.flush();
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).stop();
+        inOrder.verify(target).shutdown();
+    }
+
+    @Test
+    public void dropOldestMakesRoomWhenFull() throws InterruptedException {
+        OrderedDispatcher dispatcher = blockedDispatcher(SerialDispatcher.OverflowPolicy.DROP_OLDEST);
+
+        dispatcher.sendID3("1");
+        dispatcher.sendID3("2");
+        dispatcher.sendID3("3");
+        releaseStop.countDown();
+        dispatcher.flush();
+
+        verify(first, never()).sendID3("1");
+        verify(first).sendID3("2");
+        verify(first).sendID3("3");
+        assertEquals(1, dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void dropNewestDropsCallWhenFull() throws InterruptedException {
+        OrderedDispatcher dispatcher = blockedDispatcher(SerialDispatcher.OverflowPolicy.DROP_NEWEST);
+
+        dispatcher.sendID3("1");
+        dispatcher.sendID3("2");
+        dispatcher.sendID3("3");
+        releaseStop.countDown();
+        dispatcher.flush();
+
+        verify(first).sendID3("1");
+        verify(first).sendID3("2");
+        verify(first, never()).sendID3("3");
+        assertEquals(1, dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        final OrderedDispatcher dispatcher = blockedDispatcher(SerialDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.sendID3("1");
+        dispatcher.sendID3("2");
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.sendID3("3");
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        releaseStop.countDown();
+        producer.join(5000);
+        dispatcher.flush();
+
+        verify(first).sendID3("3");
+        assertEquals(0, dispatcher.stats().dropped());
+    }
+
+    /** @return dispatcher of capacity 2, its executor held up by a stop call until releaseStop */
+    private OrderedDispatcher blockedDispatcher(SerialDispatcher.OverflowPolicy overflowPolicy) throws InterruptedException {
+        final CountDownLatch stopStarted = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                stopStarted.countDown();
+                releaseStop.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(first).stop();
+        OrderedDispatcher dispatcher = new OrderedDispatcher(new DirectDispatcher(first, null, logger, metrics, CallTrace.NONE), executor, logger, 2, overflowPolicy);
+        dispatcher.stop();
+        assertTrue(stopStarted.await(5, TimeUnit.SECONDS));
+        return dispatcher;
+    }
+
+    private OrderedDispatcher dispatcher(AppSdk appSdk) {
+        return new OrderedDispatcher(new DirectDispatcher(appSdk, null, logger, metrics, CallTrace.NONE), executor, logger, SerialDispatcher.DEFAULT_CAPACITY, SerialDispatcher.OverflowPolicy.BLOCK);
+    }
+}
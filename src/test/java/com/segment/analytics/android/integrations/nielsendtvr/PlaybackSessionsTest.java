@@ -0,0 +1,251 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PlaybackSessionsTest {
+    private long now;
+    private Logger logger;
+    private PlaybackSession defaultSession;
+    private PlaybackSessions sessions;
+    private final Map<String, AppSdkDispatcher> dispatchers = new HashMap<>();
+
+    @Before
+    public void init() {
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+        defaultSession = session(null);
+
+        Clock clock = new Clock() {
+            @Override
+            public long uptimeMillis() {
+                return now;
+            }
+        };
+        PlaybackSessions.Factory factory = new PlaybackSessions.Factory() {
+            @Override
+            public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                return "broken".equals(id) ? null : session(id);
+            }
+        };
+        sessions = new PlaybackSessions(defaultSession, "session_id", AppIdRoutes.NONE, factory, 2, 1000, clock, SessionJournal.NONE, logger);
+    }
+
+    @Test
+    public void routesBySessionKey() {
+        PlaybackSession a = sessions.get(new Properties().putValue("session_id", "a"));
+        PlaybackSession b = sessions.get(new Properties().putValue("session_id", "b"));
+
+        assertEquals("a", a.id);
+        assertNotSame(a, b);
+        assertSame(a, sessions.get(new Properties().putValue("session_id", "a")));
+        assertSame(defaultSession, sessions.get(new Properties()));
+        assertNull(sessions.get(new Properties().putValue("session_id", "broken")));
+        assertEquals(2, sessions.size());
+    }
+
+    @Test
+    public void singleRoutesEverythingToDefaultSession() {
+        PlaybackSessions single = PlaybackSessions.single(defaultSession);
+
+        assertSame(defaultSession, single.get(new Properties().putValue("session_id", "a")));
+        assertEquals(0, single.size());
+    }
+
+    @Test
+    public void idleSessionsAreClosed() {
+        PlaybackSession a = sessions.get(new Properties().putValue("session_id", "a"));
+        a.playbackState.play("channel");
+        a.playbackState.stop();
+        now += 600;
+        sessions.get(new Properties().putValue("session_id", "b"));
+        now += 600;
+
+        sessions.closeIdle();
+        verify(dispatchers.get("a"), never()).shutdown();
+        sessions.releaseClosed();
+
+        assertEquals(1, sessions.size());
+        assertEquals(1, sessions.reclaimed());
+        verify(dispatchers.get("a")).flush();
+        verify(dispatchers.get("a")).shutdown();
+        verify(dispatchers.get("b"), never()).shutdown();
+    }
+
+    @Test
+    public void idlePlayingSessionIsStoppedAndClosed() {
+        PlaybackSession a = sessions.get(new Properties().putValue("session_id", "a"));
+        a.playbackState.play("channel");
+        now += 600;
+
+        sessions.closeIdle();
+        assertEquals(1, sessions.size());
+        verify(dispatchers.get("a"), never()).stop();
+
+        now += 600;
+        sessions.closeIdle();
+        sessions.releaseClosed();
+
+        assertEquals(0, sessions.size());
+        assertEquals(PlaybackStateMachine.STOPPED, a.playbackState.state());
+        InOrder inOrder = inOrder(dispatchers.get("a"));
+        inOrder.verify(dispatchers.get("a")).stop();
+        inOrder.verify(dispatchers.get("a")).flush();
+        inOrder.verify(dispatchers.get("a")).shutdown();
+    }
+
+    @Test
+    public void leastRecentlyUsedSessionIsClosedWhenFull() {
+        sessions.get(new Properties().putValue("session_id", "a"));
+        sessions.get(new Properties().putValue("session_id", "b"));
+        sessions.get(new Properties().putValue("session_id", "a"));
+        sessions.get(new Properties().putValue("session_id", "c"));
+        sessions.releaseClosed();
+
+        assertEquals(2, sessions.size());
+        verify(dispatchers.get("b")).shutdown();
+        // idle sessions are not stopped, as Nielsen was never told they play
+        verify(dispatchers.get("b"), never()).stop();
+        verify(dispatchers.get("a"), never()).shutdown();
+    }
+
+    @Test
+    public void playingSessionIsNotEvictedWhenFull() {
+        sessions.get(new Properties().putValue("session_id", "a")).playbackState.play("channel");
+        sessions.get(new Properties().putValue("session_id", "b"));
+        sessions.get(new Properties().putValue("session_id", "c"));
+        sessions.releaseClosed();
+
+        assertEquals(2, sessions.size());
+        verify(dispatchers.get("a"), never()).shutdown();
+        verify(dispatchers.get("b")).shutdown();
+    }
+
+    @Test
+    public void newSessionIsRefusedWhenEverySessionPlays() {
+        sessions.get(new Properties().putValue("session_id", "a")).playbackState.play("channel");
+        sessions.get(new Properties().putValue("session_id", "b")).playbackState.play("channel");
+
+        assertNull(sessions.get(new Properties().putValue("session_id", "c")));
+        assertEquals(2, sessions.size());
+        assertNull(dispatchers.get("c"));
+        verify(dispatchers.get("a"), never()).stop();
+        verify(dispatchers.get("b"), never()).stop();
+    }
+
+    @Test
+    public void idlePlayingSessionIsEvictedWhenEverySessionPlays() {
+        sessions.get(new Properties().putValue("session_id", "a")).playbackState.play("channel");
+        now += 400;
+        sessions.get(new Properties().putValue("session_id", "b")).playbackState.play("channel");
+        now += 700;
+
+        PlaybackSession c = sessions.get(new Properties().putValue("session_id", "c"));
+        sessions.releaseClosed();
+
+        assertEquals("c", c.id);
+        assertEquals(2, sessions.size());
+        verify(dispatchers.get("a")).stop();
+        verify(dispatchers.get("a")).shutdown();
+        verify(dispatchers.get("b"), never()).stop();
+    }
+
+    @Test
+    public void closeAllReleasesOnceCalled() {
+        PlaybackSession a = sessions.get(new Properties().putValue("session_id", "a"));
+        a.playbackState.play("channel");
+
+        sessions.closeAll(false);
+        verify(dispatchers.get("a"), never()).flush();
+        sessions.releaseClosed();
+
+        assertEquals(0, sessions.size());
+        verify(dispatchers.get("a")).flush();
+        verify(dispatchers.get("a")).shutdown();
+        verify(dispatchers.get("a"), never()).stop();
+        verify(dispatchers.get(null)).shutdown();
+    }
+
+    @Test
+    public void statsIncludeClosedSessions() {
+        PlaybackSession a = sessions.get(new Properties().putValue("session_id", "a"));
+        a.playbackState.stop();
+        a.id3Deduplicator.accept("tag");
+        a.id3Deduplicator.accept("tag");
+        defaultSession.playbackState.stop();
+        now += 2000;
+        sessions.closeIdle();
+
+        assertEquals(0, sessions.size());
+        assertEquals(2, sessions.redundantTransitions());
+        assertEquals(1, sessions.duplicateId3Tags());
+        assertEquals(2, sessions.dispatcherStats().dispatched());
+    }
+
+    @Test
+    public void routesOtherAppIdsToTheirSessions() {
+        final Map<String, AppIdRoutes.Route> routes = new HashMap<>();
+        AppIdRoutes appIdRoutes = new AppIdRoutes.Builder("channel").put("TBS", "P2", null).build();
+        PlaybackSessions routed = new PlaybackSessions(defaultSession, null, appIdRoutes, new PlaybackSessions.Factory() {
+            @Override
+            public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                routes.put(id, route);
+                return session(id);
+            }
+        }, 2, 1000, Clock.SYSTEM, SessionJournal.NONE, logger);
+
+        PlaybackSession tbs = routed.get(new Properties().putValue("channel", "TBS"));
+        assertEquals("@P2", tbs.id);
+        assertEquals("P2", routes.get("@P2").appId);
+        assertSame(tbs, routed.get(new Properties().putValue("channel", "TBS").putValue("session_id", "a")));
+        assertSame(defaultSession, routed.get(new Properties().putValue("channel", "CNN")));
+        assertEquals(1, routed.size());
+
+        // with a session key, each session of a routed app id is separate
+        PlaybackSession pip = sessions(appIdRoutes).get(new Properties().putValue("channel", "TBS").putValue("session_id", "pip"));
+        assertEquals("pip@P2", pip.id);
+    }
+
+    private PlaybackSessions sessions(AppIdRoutes routes) {
+        return new PlaybackSessions(defaultSession, "session_id", routes, new PlaybackSessions.Factory() {
+            @Override
+            public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                return session(id);
+            }
+        }, 2, 1000, Clock.SYSTEM, SessionJournal.NONE, logger);
+    }
+
+    private PlaybackSession session(String id) {
+        AppSdkDispatcher dispatcher = mock(AppSdkDispatcher.class);
+        when(dispatcher.stats()).thenReturn(new DispatcherStats(1, 1, 0, 1, 0, 0, 0));
+        dispatchers.put(id, dispatcher);
+        return new PlaybackSession(
+                id,
+                new AppSdkHolder(),
+                dispatcher,
+                new PlaybackStateMachine(logger),
+                new Id3Deduplicator(Id3Deduplicator.DEFAULT_HISTORY_SIZE, 0, Clock.SYSTEM));
+    }
+}
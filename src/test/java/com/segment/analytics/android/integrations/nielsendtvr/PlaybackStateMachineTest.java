@@ -0,0 +1,91 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.PlaybackStateMachine.IDLE;
+import static com.segment.analytics.android.integrations.nielsendtvr.PlaybackStateMachine.LOADED;
+import static com.segment.analytics.android.integrations.nielsendtvr.PlaybackStateMachine.PLAYING;
+import static com.segment.analytics.android.integrations.nielsendtvr.PlaybackStateMachine.STOPPED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PlaybackStateMachineTest {
+    private PlaybackStateMachine stateMachine;
+
+    @Before
+    public void init() {
+        stateMachine = new PlaybackStateMachine(Logger.with(Analytics.LogLevel.DEBUG));
+    }
+
+    @Test
+    public void contentLifecycle() {
+        assertEquals(IDLE, stateMachine.state());
+
+        assertTrue(stateMachine.play("a"));
+        assertTrue(stateMachine.loadMetadata("a", metadata("a", "1")));
+        assertEquals(PLAYING, stateMachine.state());
+
+        assertTrue(stateMachine.stop());
+        assertEquals(STOPPED, stateMachine.state());
+
+        assertTrue(stateMachine.play("a"));
+        assertTrue(stateMachine.end());
+        assertEquals(IDLE, stateMachine.state());
+        assertEquals(0, stateMachine.redundantTransitions());
+        assertEquals(0, stateMachine.illegalTransitions());
+    }
+
+    @Test
+    public void redundantTransitionsAreSuppressed() {
+        assertTrue(stateMachine.play("a"));
+        assertFalse(stateMachine.play("a"));
+        assertTrue(stateMachine.loadMetadata("a", metadata("a", "1")));
+        assertFalse(stateMachine.loadMetadata("a", metadata("a", "1")));
+        assertTrue(stateMachine.stop());
+        assertFalse(stateMachine.stop());
+
+        assertEquals(3, stateMachine.redundantTransitions());
+    }
+
+    @Test
+    public void channelChangeIsForwarded() {
+        assertTrue(stateMachine.play("a"));
+        assertTrue(stateMachine.play("b"));
+        assertTrue(stateMachine.loadMetadata("b", metadata("b", null)));
+        assertTrue(stateMachine.loadMetadata("b", metadata("b", "2")));
+    }
+
+    @Test
+    public void loadMetadataBeforePlay() {
+        assertTrue(stateMachine.loadMetadata("a", metadata("a", "1")));
+        assertEquals(LOADED, stateMachine.state());
+        assertTrue(stateMachine.play("a"));
+        assertEquals(PLAYING, stateMachine.state());
+    }
+
+    @Test
+    public void illegalTransitionsAreRejected() {
+        assertFalse(stateMachine.end());
+
+        assertTrue(stateMachine.play("a"));
+        assertFalse(stateMachine.loadMetadata("b", metadata("b", "1")));
+        assertEquals(PLAYING, stateMachine.state());
+
+        assertEquals(2, stateMachine.illegalTransitions());
+    }
+
+    /** @return values of the default metadata fields */
+    private static String[] metadata(String channel, String adModel) {
+        return new String[] {channel, adModel};
+    }
+}
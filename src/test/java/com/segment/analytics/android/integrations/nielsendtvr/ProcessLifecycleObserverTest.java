@@ -0,0 +1,200 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import androidx.lifecycle.LifecycleOwner;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Executor;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.NielsenDTVRIntegrationFactory.SETTING_ID3_PROPERTY_DEFAULT;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ProcessLifecycleObserverTest {
+    @Mock AppSdk appSdk;
+    @Mock LifecycleOwner owner;
+
+    private final Logger logger = Logger.with(Analytics.LogLevel.DEBUG);
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+    private final TrackPayload.Builder payloadBuilder = new TrackPayload.Builder().anonymousId("1");
+
+    private NielsenDTVRIntegration integration;
+    private ProcessLifecycleObserver observer;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        AppSdkMetrics metrics = new AppSdkMetrics();
+        AppSdkDispatcher dispatcher = new CoalescingDispatcher(new DirectDispatcher(appSdk, null, logger, metrics, CallTrace.NONE), 1000, scheduler, new TimerWheel(scheduler, scheduler, TimerWheel.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_WHEEL_SIZE));
+        PlaybackSession session = new PlaybackSession(null, AppSdkHolder.of(appSdk, 0), dispatcher, new PlaybackStateMachine(logger), new Id3Deduplicator(Id3Deduplicator.DEFAULT_HISTORY_SIZE, 0, scheduler));
+        integration = new NielsenDTVRIntegration(PlaybackSessions.single(session), logger, new EventSettings(new EventDispatchTable.Builder().putDefaults().build(), SETTING_ID3_PROPERTY_DEFAULT), new ChannelPayloadCache(ChannelPayloadCache.DEFAULT_MAX_SIZE, logger), metrics, SessionJournal.NONE, EventTrace.NONE, CallTrace.NONE, IdleAutoStop.NONE);
+        observer = new ProcessLifecycleObserver(integration, direct, true, true);
+    }
+
+    @Test
+    public void stopsPlayingSessionOnBackground() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        observer.onStop(owner);
+
+        // forwarded at once, without waiting for the coalescing window
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void applicationBackgroundedAfterStopIsSuppressed() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        observer.onStop(owner);
+        track("Application Backgrounded", new Properties());
+        scheduler.advance(5000);
+
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void stopWithinCoalescingWindowIsForwarded() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+
+        observer.onStop(owner);
+
+        verify(appSdk).play(any(JSONObject.class));
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void idleSessionIsNotStopped() {
+        observer.onStop(owner);
+        track("Application Backgrounded", new Properties());
+        scheduler.advance(5000);
+
+        verify(appSdk, never()).stop();
+    }
+
+    @Test
+    public void stoppedSessionIsNotStoppedAgain() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        track("Video Playback Paused", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        observer.onStop(owner);
+
+        verify(appSdk, times(1)).stop();
+    }
+
+    @Test
+    public void closedIntegrationIsNotStopped() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+        integration.close(false);
+
+        observer.onStop(owner);
+
+        verify(appSdk, never()).stop();
+    }
+
+    @Test
+    public void resumesSessionStoppedInBackgroundWithCachedPayload() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+        ArgumentCaptor<JSONObject> played = ArgumentCaptor.forClass(JSONObject.class);
+        verify(appSdk).play(played.capture());
+
+        observer.onStop(owner);
+        track("Application Backgrounded", new Properties());
+        observer.onStart(owner);
+        scheduler.advance(5000);
+
+        verify(appSdk, times(2)).play(played.capture());
+        assertSame(played.getAllValues().get(0), played.getAllValues().get(1));
+    }
+
+    @Test
+    public void resumesSessionStoppedByApplicationBackgrounded() {
+        ProcessLifecycleObserver resumeOnly = new ProcessLifecycleObserver(integration, direct, false, true);
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        resumeOnly.onStop(owner);
+        track("Application Backgrounded", new Properties());
+        scheduler.advance(5000);
+        verify(appSdk, times(1)).stop();
+
+        resumeOnly.onStart(owner);
+        scheduler.advance(5000);
+        verify(appSdk, times(2)).play(any(JSONObject.class));
+    }
+
+    @Test
+    public void sessionPausedInBackgroundIsNotResumed() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        observer.onStop(owner);
+        track("Video Playback Paused", new Properties().putValue("channel", "a"));
+        observer.onStart(owner);
+        scheduler.advance(5000);
+
+        verify(appSdk, times(1)).play(any(JSONObject.class));
+    }
+
+    @Test
+    public void sessionStoppedBeforeBackgroundIsNotResumed() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        track("Video Playback Paused", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        observer.onStop(owner);
+        track("Application Backgrounded", new Properties());
+        observer.onStart(owner);
+        scheduler.advance(5000);
+
+        verify(appSdk, times(1)).play(any(JSONObject.class));
+    }
+
+    @Test
+    public void sessionIsResumedOnce() {
+        track("Video Content Started", new Properties().putValue("channel", "a"));
+        scheduler.advance(5000);
+
+        observer.onStop(owner);
+        observer.onStart(owner);
+        track("Video Playback Resumed", new Properties().putValue("channel", "a"));
+        observer.onStart(owner);
+        scheduler.advance(5000);
+
+        verify(appSdk, times(2)).play(any(JSONObject.class));
+    }
+
+    private void track(String event, Properties properties) {
+        integration.track(payloadBuilder.event(event).properties(properties).build());
+    }
+}
@@ -0,0 +1,226 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.nielsen.app.sdk.AppSdk;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.segment.analytics.android.integrations.nielsendtvr.SerialDispatcher.OverflowPolicy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SerialDispatcherTest {
+    @Mock AppSdk appSdk;
+
+    private Logger logger;
+    private SerialDispatcher dispatcher;
+    private final CountDownLatch stopStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseStop = new CountDownLatch(1);
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+
+        // the first stop() parks the worker thread until the test releases it
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                stopStarted.countDown();
+                releaseStop.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(appSdk).stop();
+    }
+
+    @After
+    public void tearDown() {
+        releaseStop.countDown();
+        if (dispatcher != null) dispatcher.shutdown();
+    }
+
+    private SerialDispatcher create(int capacity, OverflowPolicy policy) {
+        return new SerialDispatcher(new DirectDispatcher(appSdk, null, logger, new AppSdkMetrics(), CallTrace.NONE), logger, capacity, policy);
+    }
+
+    @Test
+    public void executesInOrder() {
+        dispatcher = create(8, OverflowPolicy.BLOCK);
+        JSONObject channelInfo = new JSONObject();
+        JSONObject metadata = new JSONObject();
+        releaseStop.countDown();
+
+        dispatcher.play(channelInfo);
+        dispatcher.loadMetadata(metadata);
+        dispatcher.sendID3("id3");
+        dispatcher.stop();
+        dispatcher.end();
+        dispatcher.flush();
+
+        InOrder inOrder = inOrder(appSdk);
+        inOrder.verify(appSdk).play(channelInfo);
+        inOrder.verify(appSdk).loadMetadata(metadata);
+        inOrder.verify(appSdk).sendID3("id3");
+        inOrder.verify(appSdk).stop();
+        inOrder.verify(appSdk).end();
+
+        DispatcherStats stats = dispatcher.stats();
+        assertEquals(0, stats.queueDepth());
+        assertEquals(5, stats.dispatched());
+        assertEquals(5, stats.executed());
+        assertEquals(0, stats.dropped());
+    }
+
+    @Test
+    public void dropNewest() throws InterruptedException {
+        dispatcher = create(2, OverflowPolicy.DROP_NEWEST);
+
+        dispatcher.stop();
+        assertTrue(stopStarted.await(5, TimeUnit.SECONDS));
+        dispatcher.sendID3("a");
+        dispatcher.sendID3("b");
+        dispatcher.sendID3("c");
+        assertEquals(2, dispatcher.stats().queueDepth());
+
+        releaseStop.countDown();
+        dispatcher.flush();
+
+        verify(appSdk).sendID3("a");
+        verify(appSdk).sendID3("b");
+        verify(appSdk, never()).sendID3("c");
+        assertEquals(1, dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void dropOldest() throws InterruptedException {
+        dispatcher = create(2, OverflowPolicy.DROP_OLDEST);
+
+        dispatcher.stop();
+        assertTrue(stopStarted.await(5, TimeUnit.SECONDS));
+        dispatcher.sendID3("a");
+        dispatcher.sendID3("b");
+        dispatcher.sendID3("c");
+
+        releaseStop.countDown();
+        dispatcher.flush();
+
+        verify(appSdk, never()).sendID3("a");
+        verify(appSdk).sendID3("b");
+        verify(appSdk).sendID3("c");
+        assertEquals(1, dispatcher.stats().dropped());
+        assertTrue(dispatcher.stats().maxWaitNanos() > 0);
+    }
+
+    @Test
+    public void dropOldestKeepsPendingFlush() throws InterruptedException {
+        dispatcher = create(2, OverflowPolicy.DROP_OLDEST);
+        dispatcher.stop();
+        assertTrue(stopStarted.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch flushed = new CountDownLatch(1);
+        Thread flushing = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.flush();
+                flushed.countDown();
+            }
+        };
+        flushing.start();
+        while (dispatcher.stats().queueDepth() == 0) Thread.yield();
+        dispatcher.sendID3("a");
+        dispatcher.sendID3("b");
+
+        assertFalse(flushed.await(100, TimeUnit.MILLISECONDS));
+        releaseStop.countDown();
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        verify(appSdk, never()).sendID3("a");
+        verify(appSdk).sendID3("b");
+        assertEquals(1, dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void fullQueueDuringShutdownStillShutsDownTarget() throws InterruptedException {
+        AppSdkDispatcher target = mock(AppSdkDispatcher.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                stopStarted.countDown();
+                releaseStop.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(target).stop();
+        when(target.stats()).thenReturn(new DispatcherStats(0, 0, 0, 0, 0, 0, 0));
+        dispatcher = new SerialDispatcher(target, logger, 2, OverflowPolicy.DROP_OLDEST);
+        dispatcher.stop();
+        assertTrue(stopStarted.await(5, TimeUnit.SECONDS));
+        dispatcher.sendID3("a");
+        dispatcher.sendID3("b");
+        dispatcher.sendID3("c");
+
+        Thread shuttingDown = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.shutdown();
+            }
+        };
+        shuttingDown.start();
+        // dropped, or dropping queued calls to make room, but never the flush or the shutdown
+        dispatcher.sendID3("d");
+        releaseStop.countDown();
+        shuttingDown.join(5000);
+
+        verify(target, timeout(5000)).shutdown();
+        verify(target, never()).sendID3("a");
+        DispatcherStats stats = dispatcher.stats();
+        assertEquals(0, stats.queueDepth());
+        assertEquals(stats.dispatched(), stats.executed() + stats.dropped());
+    }
+
+    @Test
+    public void shutdownDrainsAndDropsLaterCalls() {
+        dispatcher = create(8, OverflowPolicy.BLOCK);
+        releaseStop.countDown();
+
+        dispatcher.sendID3("a");
+        dispatcher.shutdown();
+        dispatcher.sendID3("b");
+
+        verify(appSdk, times(1)).sendID3("a");
+        verify(appSdk, never()).sendID3("b");
+        assertEquals(1, dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void parseOverflowPolicy() {
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("block", OverflowPolicy.DROP_NEWEST));
+        assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.parse("dropNewest", OverflowPolicy.BLOCK));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse("DROPOLDEST", OverflowPolicy.BLOCK));
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse(null, OverflowPolicy.BLOCK));
+    }
+}
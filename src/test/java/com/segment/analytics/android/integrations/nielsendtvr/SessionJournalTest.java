@@ -0,0 +1,130 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SessionJournalTest {
+    private Logger logger;
+    private File file;
+
+    @Before
+    public void init() throws IOException {
+        logger = Logger.with(Analytics.LogLevel.DEBUG);
+        file = File.createTempFile("nielsen-dtvr", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void recoversSessionsLeftOpen() {
+        SessionJournal journal = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger);
+        assertTrue(journal.takeOrphans().isEmpty());
+        journal.record(SessionJournal.PLAY, null, "channel a");
+        journal.record(SessionJournal.LOAD_METADATA, "pip", "channel b");
+        journal.record(SessionJournal.PLAY, "stopped", "channel c");
+        journal.record(SessionJournal.STOP, "stopped", null);
+        journal.close();
+
+        List<SessionJournal.Entry> orphans = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger).takeOrphans();
+
+        assertEquals(2, orphans.size());
+        assertEquals("", orphans.get(0).sessionId);
+        assertEquals("channel a", orphans.get(0).channel);
+        assertEquals(SessionJournal.PLAY, orphans.get(0).transition);
+        assertEquals("pip", orphans.get(1).sessionId);
+        assertEquals(SessionJournal.LOAD_METADATA, orphans.get(1).transition);
+    }
+
+    @Test
+    public void orphansAreHandedOverOnce() {
+        SessionJournal journal = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger);
+        journal.record(SessionJournal.PLAY, null, "channel a");
+        journal.close();
+
+        SessionJournal recovered = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger);
+        assertEquals(1, recovered.takeOrphans().size());
+        assertTrue(recovered.takeOrphans().isEmpty());
+        assertEquals(1, recovered.orphanCount());
+    }
+
+    @Test
+    public void orphansSurviveAnotherCrashUntilClosed() {
+        SessionJournal journal = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger);
+        journal.record(SessionJournal.PLAY, "pip", "channel a");
+        journal.close();
+
+        // the process dies again before closing the orphans
+        SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger).close();
+
+        SessionJournal recovered = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger);
+        List<SessionJournal.Entry> orphans = recovered.takeOrphans();
+        assertEquals(1, orphans.size());
+        assertEquals("channel a", orphans.get(0).channel);
+        recovered.record(SessionJournal.STOP, orphans.get(0).sessionId, null);
+        recovered.close();
+
+        assertTrue(SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger).takeOrphans().isEmpty());
+    }
+
+    @Test
+    public void compactsToOpenSessions() {
+        SessionJournal journal = SessionJournal.open(file, 4, logger);
+        journal.record(SessionJournal.PLAY, "a", "channel a");
+        for (int i = 0; i < 10; i++) {
+            journal.record(SessionJournal.PLAY, "b", "channel b");
+            journal.record(SessionJournal.STOP, "b", null);
+        }
+        journal.close();
+
+        assertTrue(file.length() <= 4 * SessionJournal.RECORD_SIZE);
+        List<SessionJournal.Entry> orphans = SessionJournal.open(file, 4, logger).takeOrphans();
+        assertEquals(1, orphans.size());
+        assertEquals("a", orphans.get(0).sessionId);
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        SessionJournal journal = SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger);
+        journal.record(SessionJournal.PLAY, "a", "channel a");
+        journal.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {SessionJournal.STOP, 1, 'a'});
+        out.close();
+
+        assertEquals(1, SessionJournal.open(file, SessionJournal.DEFAULT_MAX_RECORDS, logger).takeOrphans().size());
+    }
+
+    @Test
+    public void encodeTruncatesLongValues() {
+        byte[] record = new byte[SessionJournal.RECORD_SIZE];
+        String longId = "session-with-a-very-long-identifier";
+        SessionJournal.encode(record, SessionJournal.PLAY, longId, null, 1234L);
+
+        SessionJournal.Entry entry = SessionJournal.decode(record, 0);
+        assertEquals(longId.substring(0, 27), entry.sessionId);
+        assertEquals("", entry.channel);
+        assertEquals(1234L, entry.timeMillis);
+        assertNull(SessionJournal.decode(new byte[SessionJournal.RECORD_SIZE], 0));
+    }
+}
@@ -0,0 +1,180 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates hours of viewing on a virtual clock: two players sending ID3 tags every two seconds,
+ * buffer storms, pauses, a short lived third player and the app going to the background every
+ * hour, while the AppSdk has latency spikes and fails some calls.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SoakTest {
+    private static final long SECOND = 1000;
+    private static final long HOUR = 3600 * SECOND;
+    private static final long TICK = 100;
+    private static final String[] CHANNELS = {"CNN", "HLN", "TBS", "TNT", "truTV", "TCM"};
+
+    private final Logger logger = Logger.with(Analytics.LogLevel.NONE);
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final TimerWheel timers = new TimerWheel(scheduler, scheduler, TimerWheel.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_WHEEL_SIZE);
+    private final AppSdkMetrics metrics = new AppSdkMetrics();
+    private final List<FakeAppSdk> appSdks = new ArrayList<>();
+    private final Map<String, FakeAppSdk> currentAppSdks = new HashMap<>();
+    private final Map<String, String> channels = new HashMap<>();
+    private final TrackPayload.Builder payloadBuilder = new TrackPayload.Builder().anonymousId("soak");
+
+    private ChannelPayloadCache payloadCache;
+    private PlaybackSessions sessions;
+    private NielsenDTVRIntegration integration;
+
+    /** Plays take 20ms with a 3s spike every 10th play, ID3 tags take 5ms and every 25th fails. */
+    private final FakeAppSdk.Behavior slowAndFlaky = new FakeAppSdk.Behavior() {
+        @Override
+        public long latencyMillis(int method, long call, long now) {
+            if (method == AppSdkMetrics.PLAY) return call % 10 == 9 ? 3 * SECOND : 20;
+            if (method == AppSdkMetrics.SEND_ID3) {
+                if (call % 25 == 24) throw new IllegalStateException("injected failure");
+                return 5;
+            }
+            return 1;
+        }
+    };
+
+    @Before
+    public void init() {
+        PlaybackSession defaultSession = session(null);
+        sessions = new PlaybackSessions(defaultSession, "session_id", AppIdRoutes.NONE, new PlaybackSessions.Factory() {
+            @Override
+            public PlaybackSession create(String id, AppIdRoutes.Route route) {
+                return session(id);
+            }
+        }, 4, 10 * 60 * SECOND, scheduler, SessionJournal.NONE, logger);
+        payloadCache = new ChannelPayloadCache(ChannelPayloadCache.DEFAULT_MAX_SIZE, logger);
+        integration = new NielsenDTVRIntegration(sessions, logger, new EventSettings(new EventDispatchTable.Builder().putDefaults().add("Video ID3 Tag", EventDispatchTable.ACTION_SEND_ID3).build(), "id3"), payloadCache, metrics, SessionJournal.NONE, EventTrace.NONE, CallTrace.NONE, new IdleAutoStop(timers, 5 * 60 * SECOND, scheduler));
+    }
+
+    @Test
+    public void sixHoursOfViewing() {
+        int maxQueueDepth = 0;
+        int maxPending = 0;
+
+        for (long now = 0; now < 6 * HOUR; now += TICK) {
+            scheduler.runUntil(now);
+            long t = now % HOUR;
+            long hour = now / HOUR;
+
+            if (t == 0) {
+                track("Video Content Started", "main", CHANNELS[(int) (hour % CHANNELS.length)], null);
+                track("Video Content Started", "pip", CHANNELS[(int) ((hour + 1) % CHANNELS.length)], null);
+            }
+            boolean backgrounded = t >= 3540 * SECOND;
+            boolean mainPaused = t >= 1800 * SECOND && t < 1860 * SECOND;
+            if (t % (2 * SECOND) == 0 && !backgrounded) {
+                // tags change every 10 seconds, so most of them are duplicates
+                if (!mainPaused) track("Video ID3 Tag", "main", null, "main-" + now / (10 * SECOND));
+                track("Video ID3 Tag", "pip", null, "pip-" + now / (10 * SECOND));
+                if (t >= 600 * SECOND && t < 900 * SECOND) track("Video ID3 Tag", "preview", null, "preview-" + now / (10 * SECOND));
+            }
+            // a buffer storm every 14 minutes: ten stalls of 100ms within two seconds
+            long storm = t % (840 * SECOND);
+            if (t >= 840 * SECOND && storm < 2 * SECOND) {
+                track(storm % 200 == 0 ? "Video Playback Buffer Started" : "Video Playback Buffer Completed", "main", null, null);
+            }
+            if (t == 600 * SECOND) track("Video Content Started", "preview", "TCM", null);
+            if (t == 1800 * SECOND) track("Video Playback Paused", "main", null, null);
+            if (t == 1860 * SECOND) track("Video Playback Resumed", "main", null, null);
+            if (t == 3540 * SECOND) track("Application Backgrounded", null, null, null);
+
+            // Segment flushes integrations every 30 seconds, the queues are already drained here
+            if (t % (30 * SECOND) == 0) sessions.closeIdle();
+
+            if (t == 1830 * SECOND) assertFalse("main is paused", currentAppSdks.get("main").playing());
+            if (t == 1900 * SECOND) assertTrue("main resumed", currentAppSdks.get("main").playing());
+            if (t == 1000 * SECOND) assertTrue("preview plays", currentAppSdks.get("preview").playing());
+            if (t == 1600 * SECOND) {
+                // preview was auto-stopped after 5 minutes without tags, then closed once idle for 10
+                assertFalse("preview is closed", currentAppSdks.get("preview").playing());
+                assertEquals(2, sessions.size());
+            }
+            if (t == 3570 * SECOND) {
+                for (FakeAppSdk appSdk : appSdks) assertFalse("backgrounded", appSdk.playing());
+            }
+
+            maxQueueDepth = Math.max(maxQueueDepth, sessions.dispatcherStats().queueDepth());
+            maxPending = Math.max(maxPending, scheduler.pending());
+        }
+        scheduler.advance(HOUR);
+
+        for (FakeAppSdk appSdk : appSdks) assertEquals(new ArrayList<String>(), appSdk.violations());
+
+        // a 3s latency spike backs up at most a few seconds of calls
+        assertTrue("queue depth " + maxQueueDepth, maxQueueDepth > 0 && maxQueueDepth <= 10);
+        // coalescing timers and drains do not pile up
+        assertTrue("pending tasks " + maxPending, maxPending <= 8);
+        assertEquals(0, scheduler.pending());
+
+        // nothing grows with the length of the session
+        assertEquals(2, sessions.size());
+        assertTrue(payloadCache.size() <= ChannelPayloadCache.DEFAULT_MAX_SIZE);
+        // the default session, main, pip and a preview every hour
+        assertEquals(1 + 2 + 6, appSdks.size());
+
+        NielsenDTVRStats stats = integration.getStats();
+        DispatcherStats dispatcher = stats.dispatcher();
+        assertEquals(0, dispatcher.queueDepth());
+        // reclaimed sessions were stopped before they closed, so every call ran
+        assertEquals(dispatcher.dispatched(), dispatcher.executed() + dispatcher.dropped());
+        assertTrue(stats.coalescedCalls() > 0);
+        assertTrue(stats.duplicateId3Tags() > stats.sendID3().count());
+
+        long failures = 0;
+        for (FakeAppSdk appSdk : appSdks) failures += appSdk.failures();
+        assertTrue(failures > 0);
+        assertEquals(6, stats.reclaimedSessions());
+        assertEquals(6, stats.autoStoppedSessions());
+    }
+
+    private PlaybackSession session(String id) {
+        FakeAppSdk appSdk = new FakeAppSdk(scheduler).behavior(slowAndFlaky);
+        appSdks.add(appSdk);
+        currentAppSdks.put(id, appSdk);
+
+        AppSdkDispatcher dispatcher = new CoalescingDispatcher(
+                new OrderedDispatcher(new DirectDispatcher(appSdk.appSdk, null, logger, metrics, CallTrace.NONE), scheduler, logger, SerialDispatcher.DEFAULT_CAPACITY, SerialDispatcher.OverflowPolicy.DROP_OLDEST),
+                SECOND,
+                scheduler,
+                timers);
+        return new PlaybackSession(id, AppSdkHolder.of(appSdk.appSdk, 0), dispatcher, new PlaybackStateMachine(logger), new Id3Deduplicator(Id3Deduplicator.DEFAULT_HISTORY_SIZE, 0, scheduler));
+    }
+
+    private void track(String event, String session, String channel, String id3) {
+        // like players do, events carry the channel last started
+        if (channel != null) channels.put(session, channel);
+        channel = channels.get(session);
+
+        Properties properties = new Properties();
+        if (session != null) properties.putValue("session_id", session);
+        if (channel != null) properties.putValue("channel", channel);
+        if (id3 != null) properties.putValue("id3", id3);
+        integration.track(payloadBuilder.event(event).properties(properties).build());
+    }
+}
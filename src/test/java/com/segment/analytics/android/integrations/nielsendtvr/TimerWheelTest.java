@@ -0,0 +1,115 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TimerWheelTest {
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final TimerWheel timers = new TimerWheel(scheduler, scheduler, 100, 8);
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void firesAtDeadlineRoundedUpToTick() {
+        TimerWheel.Timeout a = timeout("a");
+        scheduler.advance(50);
+        timers.schedule(a, 120);
+
+        // due at 170, fired on the tick at 200
+        scheduler.advance(149);
+        assertEquals(0, fired.size());
+        scheduler.advance(1);
+        assertEquals(Arrays.asList("a"), fired);
+        assertEquals(0, timers.pending());
+    }
+
+    @Test
+    public void deadlinesBeyondOneRotation() {
+        timers.schedule(timeout("far"), 2500);
+        timers.schedule(timeout("near"), 300);
+
+        scheduler.advance(800);
+        assertEquals(Arrays.asList("near"), fired);
+        scheduler.advance(1700);
+        assertEquals(Arrays.asList("near", "far"), fired);
+    }
+
+    @Test
+    public void rescheduleReplacesDeadline() {
+        TimerWheel.Timeout a = timeout("a");
+        timers.schedule(a, 200);
+        timers.schedule(a, 500);
+
+        assertEquals(1, timers.pending());
+        scheduler.advance(400);
+        assertEquals(0, fired.size());
+        scheduler.advance(100);
+        assertEquals(Arrays.asList("a"), fired);
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotFire() {
+        TimerWheel.Timeout a = timeout("a");
+        TimerWheel.Timeout b = timeout("b");
+        timers.schedule(a, 200);
+        timers.schedule(b, 200);
+
+        assertTrue(timers.cancel(a));
+        assertFalse(timers.cancel(a));
+        assertFalse(timers.isScheduled(a));
+        scheduler.advance(1000);
+        assertEquals(Arrays.asList("b"), fired);
+    }
+
+    @Test
+    public void tickerOnlyRunsWhileTimeoutsArePending() {
+        timers.schedule(timeout("a"), 300);
+        assertEquals(1, scheduler.pending());
+
+        scheduler.advance(1000);
+        assertEquals(0, scheduler.pending());
+        assertEquals(3, scheduler.executed());
+
+        // restarted on the current tick after sleeping, without replaying the skipped ones
+        timers.schedule(timeout("b"), 100);
+        scheduler.advance(100);
+        assertEquals(Arrays.asList("a", "b"), fired);
+        assertEquals(4, scheduler.executed());
+    }
+
+    @Test
+    public void timeoutMayScheduleItselfAgain() {
+        final TimerWheel.Timeout[] repeating = new TimerWheel.Timeout[1];
+        repeating[0] = new TimerWheel.Timeout() {
+            @Override
+            public void run() {
+                fired.add("r");
+                if (fired.size() < 3) timers.schedule(repeating[0], 100);
+            }
+        };
+        timers.schedule(repeating[0], 100);
+
+        scheduler.advance(1000);
+        assertEquals(Arrays.asList("r", "r", "r"), fired);
+    }
+
+    private TimerWheel.Timeout timeout(final String name) {
+        return new TimerWheel.Timeout() {
+            @Override
+            public void run() {
+                fired.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,175 @@
+package com.segment.analytics.android.integrations.nielsendtvr;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual clock and single threaded scheduler for deterministic tests. Time only moves when the
+ * test advances it, or when a task {@link #sleep(long)}s to simulate a slow call, and tasks run on
+ * the test thread in order of their due time, then of submission.
+ *
+ * <p>A task keeps the simulated worker busy for as long as it sleeps, so work submitted meanwhile
+ * waits its turn like it would on a real executor.
+ */
+final class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService, Clock {
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private long executed;
+    private boolean shutdown;
+
+    @Override
+    public long uptimeMillis() {
+        return now;
+    }
+
+    /** Simulates a call blocking the current task for {@code millis}. */
+    void sleep(long millis) {
+        now += millis;
+    }
+
+    /** Runs the tasks due until {@code time}, then moves the clock to {@code time}. */
+    void runUntil(long time) {
+        while (!tasks.isEmpty() && tasks.peek().time <= time) {
+            Task<?> task = tasks.poll();
+            // a task that was due while the worker was busy starts late
+            now = Math.max(now, task.time);
+            executed++;
+            task.run();
+            if (task.periodMillis > 0 && !task.isCancelled()) {
+                task.time = task.fixedRate ? task.time + task.periodMillis : now + task.periodMillis;
+                tasks.add(task);
+            }
+        }
+        now = Math.max(now, time);
+    }
+
+    /** Advances the clock by {@code millis}, running the tasks due meanwhile. */
+    void advance(long millis) {
+        runUntil(now + millis);
+    }
+
+    /** Runs every task due now, including the ones they submit. */
+    void runDue() {
+        runUntil(now);
+    }
+
+    /** @return number of tasks waiting to run, including periodic ones */
+    int pending() {
+        return tasks.size();
+    }
+
+    /** @return number of task runs so far */
+    long executed() {
+        return executed;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(new Task<>(Executors.callable(command), now + unit.toMillis(delay), 0, false));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(new Task<>(callable, now + unit.toMillis(delay), 0, false));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return add(new Task<>(Executors.callable(command), now + unit.toMillis(initialDelay), unit.toMillis(period), true));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return add(new Task<>(Executors.callable(command), now + unit.toMillis(initialDelay), unit.toMillis(delay), false));
+    }
+
+    private <V> Task<V> add(Task<V> task) {
+        if (shutdown) throw new RejectedExecutionException("Scheduler is shut down");
+        tasks.add(task);
+        return task;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        tasks.clear();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        final long order = sequence++;
+        final long periodMillis;
+        final boolean fixedRate;
+        long time;
+
+        Task(Callable<V> callable, long time, long periodMillis, boolean fixedRate) {
+            super(callable);
+            this.time = time;
+            this.periodMillis = periodMillis;
+            this.fixedRate = fixedRate;
+        }
+
+        @Override
+        public void run() {
+            if (periodMillis > 0) {
+                runAndReset();
+            } else {
+                super.run();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            tasks.remove(this);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Task<?> task = (Task<?>) other;
+            if (time != task.time) return time < task.time ? -1 : 1;
+            return order < task.order ? -1 : order == task.order ? 0 : 1;
+        }
+    }
+}